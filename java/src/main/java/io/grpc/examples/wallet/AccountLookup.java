@@ -0,0 +1,444 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.account.GetUserInfosRequest;
+import io.grpc.examples.wallet.account.GetUserInfosResponse;
+import io.grpc.stub.MetadataUtils;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up accounts with hedged and retried {@code GetUserInfo} and {@code GetUserInfos} calls, so
+ * that one slow or unavailable account replica does not set the tail latency of the calls that
+ * depend on it.
+ *
+ * <p>A second attempt is sent when the first has not completed after the configured percentile of
+ * recent attempt latencies of the same method, and the first response wins. An attempt failing
+ * with UNAVAILABLE is retried once. Both extra attempts are paid for from a budget that every
+ * lookup tops up by {@code budgetPercent} of an attempt, so extra attempts never exceed that share
+ * of the lookups (plus a small burst), even when every replica is failing.
+ *
+ * <p>Optionally, the accounts last looked up are remembered and returned when the account servers
+ * are cut off by an open {@link CircuitBreaker}, so that known users keep being served through an
+ * outage with account data at most {@link #FALLBACK_MAX_AGE_MS} old.
+ */
+final class AccountLookup {
+  static final int DEFAULT_HEDGE_PERCENTILE = 95;
+  static final int DEFAULT_BUDGET_PERCENT = 10;
+  static final int MAX_ATTEMPTS = 2;
+  // Extra attempts that may be spent at once out of the budget saved up.
+  static final int MAX_BURST = 20;
+  private static final int ATTEMPT_COST = 100;
+  private static final int LATENCY_WINDOW = 1024;
+  // No hedging until this many latencies are known, and the delay is recomputed this often.
+  static final int MIN_SAMPLES = 64;
+  static final long FALLBACK_MAX_AGE_MS = 10 * 60 * 1000;
+
+  private final AccountGrpc.AccountFutureStub stub;
+  private final HashedWheelTimer timer;
+  private final int hedgePercentile;
+  private final int budgetPercent;
+  private final AtomicInteger budget = new AtomicInteger();
+  // Evicts the least recently used accounts past its size, and expires stale ones.
+  private final Cache<String, GetUserInfoResponse> fallbackCache;
+
+  // Batches take longer than single lookups, so each method hedges after its own latencies.
+  private final LatencyWindow userInfoLatencies = new LatencyWindow();
+  private final LatencyWindow userInfosLatencies = new LatencyWindow();
+
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong overBudget = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  /**
+   * @param timer schedules the hedged attempts; their delay is rounded up to its tick
+   * @param hedgePercentile the percentile of attempt latencies after which to hedge, or 0 to
+   *     never hedge
+   * @param budgetPercent the most extra attempts to send, as a percentage of lookups
+   * @param fallbackCacheSize the most accounts to remember for when the circuit is open, or 0 to
+   *     never fall back
+   */
+  AccountLookup(
+      Channel accountChannel,
+      HashedWheelTimer timer,
+      int hedgePercentile,
+      int budgetPercent,
+      int fallbackCacheSize) {
+    if (hedgePercentile < 0 || hedgePercentile >= 100) {
+      throw new IllegalArgumentException("hedgePercentile must be between 0 and 99");
+    }
+    if (budgetPercent < 0 || budgetPercent > 100) {
+      throw new IllegalArgumentException("budgetPercent must be between 0 and 100");
+    }
+    this.stub = AccountGrpc.newFutureStub(accountChannel);
+    this.timer = timer;
+    this.hedgePercentile = hedgePercentile;
+    this.budgetPercent = budgetPercent;
+    this.fallbackCache =
+        CacheBuilder.newBuilder()
+            .maximumSize(fallbackCacheSize)
+            .expireAfterWrite(FALLBACK_MAX_AGE_MS, MILLISECONDS)
+            .build();
+  }
+
+  /**
+   * Returns the account of {@code token}, blocking until an attempt succeeds or the lookup fails.
+   * Forwards the route header of the current call if any; attempts inherit the current context, so
+   * they are cancelled with it.
+   */
+  GetUserInfoResponse getUserInfo(String token) {
+    final AccountGrpc.AccountFutureStub stub = routedStub();
+    final GetUserInfoRequest request = GetUserInfoRequest.newBuilder().setToken(token).build();
+    Lookup<GetUserInfoResponse> lookup =
+        new Lookup<GetUserInfoResponse>(userInfoLatencies) {
+          @Override
+          ListenableFuture<GetUserInfoResponse> send() {
+            return stub.getUserInfo(request);
+          }
+        };
+    try {
+      GetUserInfoResponse response = lookup.await();
+      remember(token, response);
+      return response;
+    } catch (StatusRuntimeException e) {
+      if (CircuitBreaker.isRejection(e.getStatus())) {
+        GetUserInfoResponse cached = fallback(token);
+        if (cached != null) {
+          fallbacks.incrementAndGet();
+          return cached;
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the accounts of {@code tokens} in order, like {@link #getUserInfo} but with a single
+   * {@code GetUserInfos} call. While the circuit is open, the batch is answered from the accounts
+   * remembered if all of them are, and fails otherwise.
+   */
+  GetUserInfosResponse getUserInfos(List<String> tokens) {
+    final AccountGrpc.AccountFutureStub stub = routedStub();
+    final GetUserInfosRequest request =
+        GetUserInfosRequest.newBuilder().addAllTokens(tokens).build();
+    Lookup<GetUserInfosResponse> lookup =
+        new Lookup<GetUserInfosResponse>(userInfosLatencies) {
+          @Override
+          ListenableFuture<GetUserInfosResponse> send() {
+            return stub.getUserInfos(request);
+          }
+        };
+    try {
+      GetUserInfosResponse response = lookup.await();
+      if (response.getUsersCount() == tokens.size()) {
+        for (int i = 0; i < tokens.size(); i++) {
+          remember(tokens.get(i), response.getUsers(i));
+        }
+      }
+      return response;
+    } catch (StatusRuntimeException e) {
+      if (CircuitBreaker.isRejection(e.getStatus())) {
+        GetUserInfosResponse.Builder cached = GetUserInfosResponse.newBuilder();
+        for (String token : tokens) {
+          GetUserInfoResponse account = fallback(token);
+          if (account == null) {
+            throw e;
+          }
+          cached.addUsers(account);
+        }
+        fallbacks.incrementAndGet();
+        return cached.build();
+      }
+      throw e;
+    }
+  }
+
+  /** Returns the current hedging delay, or a negative value while hedging is not yet enabled. */
+  long hedgeDelay(TimeUnit unit) {
+    long delay = userInfoLatencies.hedgeDelayNanos;
+    return delay < 0 ? delay : unit.convert(delay, NANOSECONDS);
+  }
+
+  /** Returns counters of the extra attempts sent, for logs and benchmarks. */
+  String stats() {
+    return "lookups="
+        + lookups.get()
+        + " hedges="
+        + hedges.get()
+        + " hedgeWins="
+        + hedgeWins.get()
+        + " retries="
+        + retries.get()
+        + " overBudget="
+        + overBudget.get()
+        + " fallbacks="
+        + fallbacks.get();
+  }
+
+  /** Returns the stub, forwarding the route header of the current call if any. */
+  private AccountGrpc.AccountFutureStub routedStub() {
+    AccountGrpc.AccountFutureStub stub = this.stub;
+    String routeVal = WalletInterceptors.ROUTE_KEY.get();
+    if (routeVal != null) {
+      Metadata headers = new Metadata();
+      headers.put(WalletInterceptors.ROUTE_MD_KEY, routeVal);
+      stub = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+    }
+    return stub;
+  }
+
+  private void remember(String token, GetUserInfoResponse response) {
+    fallbackCache.put(token, response);
+  }
+
+  private GetUserInfoResponse fallback(String token) {
+    return fallbackCache.getIfPresent(token);
+  }
+
+  private void deposit() {
+    while (true) {
+      int current = budget.get();
+      int next = Math.min(MAX_BURST * ATTEMPT_COST, current + budgetPercent);
+      if (next == current || budget.compareAndSet(current, next)) {
+        return;
+      }
+    }
+  }
+
+  private boolean withdraw() {
+    while (true) {
+      int current = budget.get();
+      if (current < ATTEMPT_COST) {
+        overBudget.incrementAndGet();
+        return false;
+      }
+      if (budget.compareAndSet(current, current - ATTEMPT_COST)) {
+        return true;
+      }
+    }
+  }
+
+  /** The recent attempt latencies of one method, and the hedging delay they give. */
+  private final class LatencyWindow {
+    // Guarded by this.
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long count;
+    // Negative until MIN_SAMPLES latencies were recorded.
+    volatile long hedgeDelayNanos = -1;
+
+    synchronized void record(long nanos) {
+      latencies[(int) (count++ % LATENCY_WINDOW)] = nanos;
+      if (hedgePercentile == 0 || count % MIN_SAMPLES != 0) {
+        return;
+      }
+      long[] sorted = Arrays.copyOf(latencies, (int) Math.min(count, LATENCY_WINDOW));
+      Arrays.sort(sorted);
+      hedgeDelayNanos = sorted[sorted.length * hedgePercentile / 100];
+    }
+  }
+
+  private abstract class Lookup<RespT> {
+    final LatencyWindow latencies;
+    final Context context = Context.current();
+    final SettableFuture<RespT> result = SettableFuture.create();
+
+    // Guarded by this.
+    final List<Attempt<RespT>> attempts = new ArrayList<>(MAX_ATTEMPTS);
+    int outstanding;
+    // Set once the lookup failed, so that the attempts it cancels do not fail it again.
+    boolean failed;
+    HashedWheelTimer.Timeout hedgeTimeout;
+
+    Lookup(LatencyWindow latencies) {
+      this.latencies = latencies;
+    }
+
+    /** Sends one attempt. */
+    abstract ListenableFuture<RespT> send();
+
+    /** Runs the lookup, blocking until an attempt succeeds or the lookup fails. */
+    RespT await() {
+      lookups.incrementAndGet();
+      deposit();
+      start();
+      try {
+        return result.get();
+      } catch (ExecutionException e) {
+        throw Status.fromThrowable(e.getCause()).asRuntimeException();
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+        throw Status.CANCELLED.withDescription("Interrupted").withCause(e).asRuntimeException();
+      }
+    }
+
+    synchronized void start() {
+      startAttempt();
+      long delay = latencies.hedgeDelayNanos;
+      if (hedgePercentile > 0 && delay >= 0) {
+        hedgeTimeout =
+            timer.schedule(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    hedge();
+                  }
+                },
+                delay,
+                NANOSECONDS);
+      }
+    }
+
+    synchronized void hedge() {
+      if (result.isDone() || attempts.size() >= MAX_ATTEMPTS || !withdraw()) {
+        return;
+      }
+      hedges.incrementAndGet();
+      startAttempt();
+    }
+
+    // Called with this held. Listeners may run on this thread before it returns.
+    private void startAttempt() {
+      final Attempt<RespT> attempt = new Attempt<>(attempts.size());
+      attempts.add(attempt);
+      outstanding++;
+      Context previous = context.attach();
+      try {
+        attempt.future = send();
+      } finally {
+        context.detach(previous);
+      }
+      Futures.addCallback(
+          attempt.future,
+          new FutureCallback<RespT>() {
+            @Override
+            public void onSuccess(RespT response) {
+              succeeded(attempt, response);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              failed(t);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+
+    synchronized void succeeded(Attempt<RespT> winner, RespT response) {
+      outstanding--;
+      if (result.isDone()) {
+        return;
+      }
+      long now = System.nanoTime();
+      latencies.record(now - winner.startNanos);
+      if (winner.index > 0) {
+        hedgeWins.incrementAndGet();
+      }
+      result.set(response);
+      for (Attempt<RespT> attempt : attempts) {
+        if (attempt != winner && !attempt.future.isDone()) {
+          // A lower bound of its latency, so that the slow attempts hedging cut short still count
+          // towards the percentile.
+          latencies.record(now - attempt.startNanos);
+          attempt.future.cancel(false);
+        }
+      }
+      cancelHedge();
+    }
+
+    synchronized void failed(Throwable t) {
+      outstanding--;
+      if (failed || result.isDone()) {
+        return;
+      }
+      Status status = Status.fromThrowable(t);
+      boolean unavailable = status.getCode() == Status.Code.UNAVAILABLE;
+      if (unavailable && outstanding > 0) {
+        // Wait for the other attempt.
+        return;
+      }
+      // Calls rejected by an open circuit would only be rejected again.
+      if (unavailable
+          && !CircuitBreaker.isRejection(status)
+          && attempts.size() < MAX_ATTEMPTS
+          && withdraw()) {
+        retries.incrementAndGet();
+        cancelHedge();
+        startAttempt();
+        return;
+      }
+      failed = true;
+      cancelHedge();
+      // The other attempt, still waiting on a slow replica, can no longer change the outcome.
+      for (Attempt<RespT> attempt : attempts) {
+        attempt.future.cancel(false);
+      }
+      result.setException(t);
+    }
+
+    synchronized void cancel() {
+      result.cancel(false);
+      for (Attempt<RespT> attempt : attempts) {
+        attempt.future.cancel(false);
+      }
+      cancelHedge();
+    }
+
+    private void cancelHedge() {
+      if (hedgeTimeout != null) {
+        hedgeTimeout.cancel();
+      }
+    }
+  }
+
+  private static final class Attempt<RespT> {
+    final int index;
+    final long startNanos = System.nanoTime();
+    ListenableFuture<RespT> future;
+
+    Attempt(int index) {
+      this.index = index;
+    }
+  }
+}
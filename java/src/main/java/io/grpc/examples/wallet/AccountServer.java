@@ -18,17 +18,20 @@ package io.grpc.examples.wallet;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import com.sun.net.httpserver.HttpServer;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerCredentials;
 import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.Status;
 import io.grpc.examples.wallet.account.AccountGrpc;
 import io.grpc.examples.wallet.account.GetUserInfoRequest;
 import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.account.GetUserInfosRequest;
+import io.grpc.examples.wallet.account.GetUserInfosResponse;
 import io.grpc.examples.wallet.account.MembershipType;
-import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import io.grpc.services.AdminInterface;
 import io.grpc.services.HealthStatusManager;
@@ -36,6 +39,9 @@ import io.grpc.stub.StreamObserver;
 import io.grpc.xds.XdsServerBuilder;
 import io.grpc.xds.XdsServerCredentials;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /** Account server for the gRPC Wallet example. */
@@ -50,9 +56,23 @@ public class AccountServer {
   private Server adminServer;
   private int port = 18883;
   private int adminPort = 28883;
+  private int metricsPort = 38883;
   private String hostnameSuffix = "";
   private String gcpClientProject = "";
+  private String traceSampling = "";
+  private TraceSampler traceSampler;
+  private String captureFile = "";
+  private double captureSampleRate = 0.01;
   private CredentialsType credentialsType = CredentialsType.INSECURE;
+  private TrafficRecorder recorder;
+  private int healthIntervalMs = HealthEvaluator.DEFAULT_INTERVAL_MS;
+  private int healthMaxInFlight = HealthEvaluator.DEFAULT_MAX_IN_FLIGHT;
+  private int healthMaxLagMs = HealthEvaluator.DEFAULT_MAX_LAG_MS;
+  private String faults = "";
+  private final FaultInjector faultInjector = new FaultInjector();
+  private HealthEvaluator healthEvaluator;
+  private final LocalMetrics localMetrics = new LocalMetrics();
+  private HttpServer metricsServer;
 
   void parseArgs(String[] args) {
     boolean usage = false;
@@ -78,10 +98,26 @@ public class AccountServer {
         port = Integer.parseInt(value);
       } else if ("admin_port".equals(key)) {
         adminPort = Integer.parseInt(value);
+      } else if ("metrics_port".equals(key)) {
+        metricsPort = Integer.parseInt(value);
       } else if ("hostname_suffix".equals(key)) {
         hostnameSuffix = value;
       } else if ("gcp_client_project".equals(key)) {
         gcpClientProject = value;
+      } else if ("trace_sampling".equals(key)) {
+        traceSampling = value;
+      } else if ("health_interval_ms".equals(key)) {
+        healthIntervalMs = Integer.parseInt(value);
+      } else if ("health_max_in_flight".equals(key)) {
+        healthMaxInFlight = Integer.parseInt(value);
+      } else if ("health_max_lag_ms".equals(key)) {
+        healthMaxLagMs = Integer.parseInt(value);
+      } else if ("faults".equals(key)) {
+        faults = value;
+      } else if ("capture_file".equals(key)) {
+        captureFile = value;
+      } else if ("capture_sample_rate".equals(key)) {
+        captureSampleRate = Double.parseDouble(value);
       }  else if ("creds".equals(key)) {
         credentialsType = CredentialsType.valueOf(value.toUpperCase());
       } else {
@@ -99,12 +135,34 @@ public class AccountServer {
               + s.port
               + "\n  --admin_port=PORT          The admin port to listen on. Default "
               + s.adminPort
+              + "\n  --metrics_port=PORT        The port to serve metrics on in the Prometheus "
+              + "text format, under /metrics. 0 disables it. Default "
+              + s.metricsPort
               + "\n  --hostname_suffix=STR  Suffix to append to hostname in response header. "
               + "Default \""
               + s.hostnameSuffix
               + "\""
               + "\n  --gcp_client_project=STR GCP project. If set, metrics and traces will be "
               + "sent to Stackdriver. Default \"" + s.gcpClientProject + "\""
+              + "\n  --trace_sampling=SPEC      Traces to sample, as comma-separated settings: "
+              + "rate=FLOAT, method:SERVICE/METHOD=FLOAT, membership:NAME=FLOAT, "
+              + "max_per_second=INT, keep_errors=BOOL and keep_slow_ms=INT. Default samples "
+              + "every trace."
+              + "\n  --health_interval_ms=INT   Interval between evaluations of the load to report "
+              + "in health checks. 0 always reports SERVING. Default "
+              + s.healthIntervalMs
+              + "\n  --health_max_in_flight=INT Unary calls in flight over which to report "
+              + "NOT_SERVING. Default "
+              + s.healthMaxInFlight
+              + "\n  --health_max_lag_ms=INT    Timer lag over which to report NOT_SERVING. "
+              + "Default "
+              + s.healthMaxLagMs
+              + "\n  --faults=TEXT              Faults to inject into incoming calls, as a "
+              + "FaultConfig in protobuf text format. Can be changed at runtime on the admin port."
+              + "\n  --capture_file=PATH        Record a sample of incoming calls to this file for "
+              + "replay with the client. Default \"" + s.captureFile + "\""
+              + "\n  --capture_sample_rate=FLOAT Fraction of calls to record. Default "
+              + s.captureSampleRate
               + "\n  --creds=insecure|xds  . Type of credentials to use on the server. "
               + "Default "
               + s.credentialsType.toString().toLowerCase());
@@ -113,18 +171,48 @@ public class AccountServer {
   }
 
   private void start() throws IOException {
+    traceSampler = TraceSampler.parse(traceSampling);
     if (!gcpClientProject.isEmpty()) {
-      Observability.registerExporters(gcpClientProject);
+      Observability.registerExporters(gcpClientProject, traceSampler);
+    }
+    if (!faults.isEmpty()) {
+      faultInjector.setConfig(FaultInjector.parse(faults));
     }
     HealthStatusManager health = new HealthStatusManager();
     // start an admin+health server in plaintext mode
     adminServer =
         ServerBuilder.forPort(adminPort)
             .addServices(AdminInterface.getStandardServices())
+            .addService(faultInjector.adminService())
             .addService(health.getHealthService())
             .build()
             .start();
     logger.info("Admin & health server started, listening on " + adminPort);
+    if (metricsPort != 0) {
+      metricsServer = localMetrics.serve(metricsPort);
+      logger.info("Metrics served on " + metricsPort + "/metrics");
+    }
+    if (!captureFile.isEmpty()) {
+      recorder = new TrafficRecorder(Paths.get(captureFile), captureSampleRate);
+      logger.info("Capturing " + captureSampleRate + " of calls to " + captureFile);
+    }
+    healthEvaluator =
+        new HealthEvaluator(
+            health, Collections.singletonList(AccountGrpc.SERVICE_NAME), healthMaxInFlight);
+    healthEvaluator.addLagLimit(healthMaxLagMs);
+    ServerServiceDefinition service =
+        ServerInterceptors.intercept(
+            new AccountImpl(),
+            faultInjector,
+            new WalletInterceptors.HostnameInterceptor(),
+            new DeadlineInterceptors.ExpiredCallInterceptor(),
+            healthEvaluator,
+            localMetrics,
+            traceSampler);
+    if (recorder != null) {
+      // Outermost, so the recorded latency covers the other interceptors too.
+      service = ServerInterceptors.intercept(service, recorder);
+    }
     ServerCredentials serverCredentials =
         credentialsType == CredentialsType.XDS
             ? XdsServerCredentials.create(InsecureServerCredentials.create())
@@ -132,9 +220,7 @@ public class AccountServer {
     if (credentialsType == CredentialsType.XDS) {
       server =
           XdsServerBuilder.forPort(port, serverCredentials)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new AccountImpl(), new WalletInterceptors.HostnameInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
@@ -142,15 +228,13 @@ public class AccountServer {
     } else {
       server =
           ServerBuilder.forPort(port)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new AccountImpl(), new WalletInterceptors.HostnameInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
               .start();
     }
-    health.setStatus("", ServingStatus.SERVING);
+    healthEvaluator.start(healthIntervalMs);
     logger.info("Server started, listening on " + port);
     Runtime.getRuntime()
         .addShutdownHook(
@@ -169,12 +253,26 @@ public class AccountServer {
   }
 
   private void stop() throws InterruptedException {
+    if (healthEvaluator != null) {
+      healthEvaluator.shutdown();
+    }
     if (server != null) {
       server.shutdown().awaitTermination(30, SECONDS);
     }
     if (adminServer != null) {
       adminServer.shutdown().awaitTermination(30, SECONDS);
     }
+    if (metricsServer != null) {
+      metricsServer.stop(0);
+    }
+    faultInjector.shutdown();
+    if (recorder != null) {
+      try {
+        recorder.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close traffic capture", e);
+      }
+    }
   }
 
   private void blockUntilShutdown() throws InterruptedException {
@@ -194,19 +292,42 @@ public class AccountServer {
     @Override
     public void getUserInfo(
         GetUserInfoRequest req, StreamObserver<GetUserInfoResponse> responseObserver) {
-      String token = req.getToken();
-      GetUserInfoResponse.Builder response = GetUserInfoResponse.newBuilder();
-      if (Client.ALICE_TOKEN.equals(token)) {
-        response.setName("Alice").setMembership(MembershipType.PREMIUM);
-      } else if (Client.BOB_TOKEN.equals(token)) {
-        response.setName("Bob").setMembership(MembershipType.NORMAL);
-      } else {
+      GetUserInfoResponse response = lookup(req.getToken());
+      if (response == null) {
         responseObserver.onError(
             Status.NOT_FOUND.withDescription("Unknown token").asRuntimeException());
         return;
       }
+      responseObserver.onNext(response);
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getUserInfos(
+        GetUserInfosRequest req, StreamObserver<GetUserInfosResponse> responseObserver) {
+      GetUserInfosResponse.Builder response = GetUserInfosResponse.newBuilder();
+      for (String token : req.getTokensList()) {
+        GetUserInfoResponse user = lookup(token);
+        response.addUsers(user == null ? GetUserInfoResponse.getDefaultInstance() : user);
+      }
       responseObserver.onNext(response.build());
       responseObserver.onCompleted();
     }
+
+    /** Returns the account info for {@code token}, or null if the token is unknown. */
+    private static GetUserInfoResponse lookup(String token) {
+      if (Client.ALICE_TOKEN.equals(token)) {
+        return GetUserInfoResponse.newBuilder()
+            .setName("Alice")
+            .setMembership(MembershipType.PREMIUM)
+            .build();
+      } else if (Client.BOB_TOKEN.equals(token)) {
+        return GetUserInfoResponse.newBuilder()
+            .setName("Bob")
+            .setMembership(MembershipType.NORMAL)
+            .build();
+      }
+      return null;
+    }
   }
 }
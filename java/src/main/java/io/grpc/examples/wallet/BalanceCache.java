@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the last {@link BalanceResponse} built for each user and detail level. An entry is
+ * reused only while the user's wallet and the prices it was built from are unchanged, so callers
+ * arriving on the same price tick share a single response instead of each building their own.
+ *
+ * <p>Each detail level keeps at most {@code maxEntries} users, evicting the least recently used
+ * ones, so that the users active now stay cached however many have been seen before.
+ */
+final class BalanceCache {
+
+  /** Builds a response on a cache miss. */
+  interface Loader {
+    BalanceResponse load();
+  }
+
+  private final ConcurrentMap<String, Entry> totals;
+  private final ConcurrentMap<String, Entry> perAddress;
+
+  BalanceCache(int maxEntries) {
+    totals = CacheBuilder.newBuilder().maximumSize(maxEntries).<String, Entry>build().asMap();
+    perAddress = CacheBuilder.newBuilder().maximumSize(maxEntries).<String, Entry>build().asMap();
+  }
+
+  /**
+   * Returns the cached response for {@code user}, or the one built by {@code loader} if the cache
+   * holds none for this wallet and prices. Concurrent misses for the same inputs call the loader
+   * only once.
+   *
+   * @param walletVersion the version of the user's holdings
+   * @param priceVersion the combined version of the prices from the stats server
+   * @param priceFingerprint a hash of the prices the response is computed from
+   */
+  BalanceResponse get(
+      String user,
+      boolean includeBalancePerAddress,
+      long walletVersion,
+      long priceVersion,
+      long priceFingerprint,
+      Loader loader) {
+    ConcurrentMap<String, Entry> entries = includeBalancePerAddress ? perAddress : totals;
+    Entry entry = entries.get(user);
+    if (entry == null || !entry.matches(walletVersion, priceVersion, priceFingerprint)) {
+      Entry fresh = new Entry(walletVersion, priceVersion, priceFingerprint);
+      if (entry == null) {
+        entry = entries.putIfAbsent(user, fresh);
+      } else {
+        entry = entries.replace(user, entry, fresh) ? null : entries.get(user);
+      }
+      if (entry == null || !entry.matches(walletVersion, priceVersion, priceFingerprint)) {
+        // Either we installed the fresh entry or another caller replaced it with one for a
+        // different price; in the latter case keep the newer entry and use ours privately.
+        entry = fresh;
+      }
+    }
+    return entry.response(loader);
+  }
+
+  private static final class Entry {
+    final long walletVersion;
+    final long priceVersion;
+    final long priceFingerprint;
+    private volatile BalanceResponse response;
+
+    Entry(long walletVersion, long priceVersion, long priceFingerprint) {
+      this.walletVersion = walletVersion;
+      this.priceVersion = priceVersion;
+      this.priceFingerprint = priceFingerprint;
+    }
+
+    boolean matches(long walletVersion, long priceVersion, long priceFingerprint) {
+      return this.walletVersion == walletVersion
+          && this.priceVersion == priceVersion
+          && this.priceFingerprint == priceFingerprint;
+    }
+
+    BalanceResponse response(Loader loader) {
+      BalanceResponse result = response;
+      if (result == null) {
+        synchronized (this) {
+          result = response;
+          if (result == null) {
+            result = loader.load();
+            response = result;
+          }
+        }
+      }
+      return result;
+    }
+  }
+}
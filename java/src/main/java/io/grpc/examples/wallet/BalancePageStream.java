@@ -0,0 +1,170 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import io.grpc.Status;
+import io.grpc.examples.wallet.PortfolioValuation.Prices;
+import io.grpc.examples.wallet.WalletStore.WalletHoldings;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends the per-address balances of a wallet as a stream of {@link BalancePage}s. Pages are valued
+ * and built in parallel on an executor and sent as soon as they are ready, with at most {@code
+ * parallelism} pages in flight and none started while the transport is not ready, so a large
+ * wallet is neither valued on the handler thread nor held in memory as a single message. The
+ * total, the sum of the pages, follows the last of them. The stream fails with INTERNAL if a
+ * page cannot be built, or cannot be handed to the executor.
+ */
+final class BalancePageStream {
+  static final int DEFAULT_PAGE_SIZE = 1000;
+  static final int MAX_PAGE_SIZE = 10000;
+
+  private final WalletHoldings wallet;
+  private final Prices prices;
+  private final int pageSize;
+  private final int pageCount;
+  private final int parallelism;
+  private final Executor executor;
+  private final ServerCallStreamObserver<BalancePage> responseObserver;
+
+  // Guarded by this.
+  private int nextPage;
+  private int inFlight;
+  private long total;
+  private boolean done;
+
+  /**
+   * @param wallet an immutable snapshot of the holdings, so every page reflects the same state
+   * @param prices the prices of every asset of {@code wallet}
+   * @param pageSize the requested page size; zero selects {@link #DEFAULT_PAGE_SIZE}
+   */
+  BalancePageStream(
+      WalletHoldings wallet,
+      Prices prices,
+      int pageSize,
+      int parallelism,
+      Executor executor,
+      ServerCallStreamObserver<BalancePage> responseObserver) {
+    this.wallet = wallet;
+    this.prices = prices;
+    this.pageSize = pageSize == 0 ? DEFAULT_PAGE_SIZE : Math.min(pageSize, MAX_PAGE_SIZE);
+    this.pageCount = (wallet.addressCount() + this.pageSize - 1) / this.pageSize;
+    this.parallelism = parallelism;
+    this.executor = executor;
+    this.responseObserver = responseObserver;
+  }
+
+  /** Starts sending pages. Must be called from the RPC handler. */
+  void start() {
+    responseObserver.setOnCancelHandler(
+        new Runnable() {
+          @Override
+          public void run() {
+            synchronized (BalancePageStream.this) {
+              done = true;
+            }
+          }
+        });
+    responseObserver.setOnReadyHandler(
+        new Runnable() {
+          @Override
+          public void run() {
+            fill();
+          }
+        });
+    fill();
+  }
+
+  private synchronized void fill() {
+    while (!done && nextPage < pageCount && inFlight < parallelism && responseObserver.isReady()) {
+      final int page = nextPage++;
+      inFlight++;
+      try {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                buildAndSend(page);
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        inFlight--;
+        fail("Could not schedule a page", e);
+        return;
+      }
+    }
+    if (!done && nextPage == pageCount && inFlight == 0) {
+      done = true;
+      responseObserver.onNext(
+          BalancePage.newBuilder()
+              .setOffset(wallet.addressCount())
+              .setLast(true)
+              .setBalance(total)
+              .build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  private void buildAndSend(int page) {
+    int start = page * pageSize;
+    int end = Math.min(start + pageSize, wallet.addressCount());
+    BalancePage.Builder builder = BalancePage.newBuilder().setOffset(start);
+    long pageTotal = 0;
+    try {
+      // Addresses of one asset tend to be adjacent, so the last price looked up is kept.
+      String asset = null;
+      long price = 0;
+      for (int i = start; i < end; i++) {
+        if (!wallet.asset(i).equals(asset)) {
+          asset = wallet.asset(i);
+          price = prices.get(asset).getPrice();
+        }
+        long value = wallet.amount(i) * price;
+        pageTotal += value;
+        builder.addAddresses(
+            BalancePerAddress.newBuilder().setAddress(wallet.address(i)).setBalance(value));
+      }
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        inFlight--;
+        fail("Failed to build page " + page, e);
+      }
+      return;
+    }
+    synchronized (this) {
+      inFlight--;
+      if (done) {
+        return;
+      }
+      total += pageTotal;
+      responseObserver.onNext(builder.build());
+    }
+    fill();
+  }
+
+  // Called with this held.
+  private void fail(String description, Throwable cause) {
+    if (done) {
+      return;
+    }
+    done = true;
+    responseObserver.onError(
+        Status.INTERNAL.withDescription(description).withCause(cause).asRuntimeException());
+  }
+}
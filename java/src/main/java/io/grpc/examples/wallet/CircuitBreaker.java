@@ -0,0 +1,356 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Ticker;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker for the calls of one channel. It opens when, over the last ten seconds,
+ * enough calls have failed or were slow, then fails every call at once with UNAVAILABLE instead
+ * of letting it wait on a dependency that is down. After a pause it lets a few probe calls
+ * through, and closes again once they all succeed. If they have not all finished after another
+ * pause, it opens again, so that probes which hang do not hold it half-open for good.
+ *
+ * <p>Only failures that say something about the dependency count: UNAVAILABLE, DEADLINE_EXCEEDED,
+ * INTERNAL, UNKNOWN and RESOURCE_EXHAUSTED. Latency is only judged for unary calls. The state and
+ * the time it was entered share one atomic word and the window is made of atomic per-second
+ * counters, so calls never take a lock.
+ */
+final class CircuitBreaker implements ClientInterceptor {
+  private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+  static final double DEFAULT_FAILURE_RATE = 0.5;
+  static final double DEFAULT_SLOW_CALL_RATE = 0.8;
+  static final long DEFAULT_SLOW_CALL_MS = 2000;
+  static final int DEFAULT_MIN_CALLS = 20;
+  static final long DEFAULT_OPEN_MS = 5000;
+  static final int DEFAULT_HALF_OPEN_PROBES = 3;
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private static final State[] STATES = State.values();
+  private static final int BUCKETS = 10;
+  private static final long BUCKET_NANOS = SECONDS.toNanos(1);
+  // Per bucket: calls, failures, slow calls.
+  private static final int CALLS = 0;
+  private static final int FAILURES = 1;
+  private static final int SLOW = 2;
+
+  private final String name;
+  private final double failureRate;
+  private final double slowCallRate;
+  private final long slowCallNanos;
+  private final int minCalls;
+  private final long openNanos;
+  private final int halfOpenProbes;
+  private final Ticker ticker;
+  private final long originNanos;
+
+  // The state in the low two bits, and above them when it was entered, relative to originNanos.
+  private final AtomicLong state = new AtomicLong(pack(State.CLOSED, 0));
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * 3);
+  private final AtomicLongArray epochs = new AtomicLongArray(BUCKETS);
+  private final AtomicInteger probesLeft = new AtomicInteger();
+  private final AtomicInteger probeSuccesses = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * @param name names the dependency in logs and errors
+   * @param failureRate the share of failed calls that opens the circuit
+   * @param slowCallRate the share of calls slower than {@code slowCallMs} that opens the circuit
+   * @param minCalls the fewest calls in the window for either rate to be judged
+   * @param openMs how long to fail calls before probing
+   * @param halfOpenProbes the number of probe calls that must all succeed to close the circuit
+   * @param ticker the clock the window, the pauses and call latencies are measured with
+   */
+  CircuitBreaker(
+      String name,
+      double failureRate,
+      double slowCallRate,
+      long slowCallMs,
+      int minCalls,
+      long openMs,
+      int halfOpenProbes,
+      Ticker ticker) {
+    if (!(failureRate > 0 && failureRate <= 1 && slowCallRate > 0 && slowCallRate <= 1)) {
+      throw new IllegalArgumentException("Rates must be greater than 0 and at most 1");
+    }
+    if (minCalls <= 0 || halfOpenProbes <= 0) {
+      throw new IllegalArgumentException("minCalls and halfOpenProbes must be positive");
+    }
+    this.name = name;
+    this.failureRate = failureRate;
+    this.slowCallRate = slowCallRate;
+    this.slowCallNanos = MILLISECONDS.toNanos(slowCallMs);
+    this.minCalls = minCalls;
+    this.openNanos = MILLISECONDS.toNanos(openMs);
+    this.halfOpenProbes = halfOpenProbes;
+    this.ticker = ticker;
+    this.originNanos = ticker.read();
+    for (int i = 0; i < BUCKETS; i++) {
+      epochs.set(i, -1);
+    }
+  }
+
+  /** Creates a breaker with the default thresholds except for the given ones. */
+  CircuitBreaker(String name, double failureRate, long slowCallMs, long openMs) {
+    this(
+        name,
+        failureRate,
+        DEFAULT_SLOW_CALL_RATE,
+        slowCallMs,
+        DEFAULT_MIN_CALLS,
+        openMs,
+        DEFAULT_HALF_OPEN_PROBES,
+        Ticker.systemTicker());
+  }
+
+  /** Returns whether {@code status} is the failure of a call rejected by an open circuit. */
+  static boolean isRejection(Status status) {
+    return status.getCause() instanceof OpenCircuitException;
+  }
+
+  State state() {
+    return STATES[(int) (state.get() & 3)];
+  }
+
+  /** Returns the number of calls failed without being sent. */
+  long rejectedCalls() {
+    return rejected.get();
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+      MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+    long current = state.get();
+    State currentState = STATES[(int) (current & 3)];
+    // The half-open state that the call probes, or 0 if it is not a probe.
+    long probeOf = 0;
+    if (currentState == State.OPEN) {
+      long now = now();
+      if (now - (current >>> 2) < openNanos) {
+        return reject(method);
+      }
+      long halfOpen = pack(State.HALF_OPEN, now);
+      if (!state.compareAndSet(current, halfOpen)) {
+        return reject(method);
+      }
+      logger.info("Circuit to " + name + " half-open, probing with " + halfOpenProbes + " calls");
+      probeSuccesses.set(0);
+      probesLeft.set(halfOpenProbes);
+      current = halfOpen;
+      currentState = State.HALF_OPEN;
+    }
+    if (currentState == State.HALF_OPEN) {
+      if (!tryTakeProbe()) {
+        long now = now();
+        if (now - (current >>> 2) >= openNanos
+            && state.compareAndSet(current, pack(State.OPEN, now))) {
+          logger.warning("Circuit to " + name + " reopened: probes did not finish in time");
+        }
+        return reject(method);
+      }
+      probeOf = current;
+    }
+    return new ObservedCall<>(
+        next.newCall(method, callOptions),
+        method.getType() == MethodDescriptor.MethodType.UNARY,
+        probeOf);
+  }
+
+  /** Takes one of the probe calls left, without going below zero when there are none. */
+  private boolean tryTakeProbe() {
+    while (true) {
+      int left = probesLeft.get();
+      if (left <= 0) {
+        return false;
+      }
+      if (probesLeft.compareAndSet(left, left - 1)) {
+        return true;
+      }
+    }
+  }
+
+  private <ReqT, RespT> ClientCall<ReqT, RespT> reject(MethodDescriptor<ReqT, RespT> method) {
+    rejected.incrementAndGet();
+    return new FailedClientCall<>(
+        Status.UNAVAILABLE
+            .withDescription(
+                "Circuit to " + name + " is open; not calling " + method.getFullMethodName())
+            .withCause(OpenCircuitException.INSTANCE));
+  }
+
+  private void onClose(Status status, long latencyNanos, boolean timed, long probeOf) {
+    // Probes of an earlier half-open state have no say in the current one.
+    if (probeOf != 0 && state.get() != probeOf) {
+      return;
+    }
+    if (status.getCode() == Status.Code.CANCELLED) {
+      // Cancelled by the caller, e.g. a hedged attempt that lost: says nothing of the dependency.
+      if (probeOf != 0) {
+        probesLeft.incrementAndGet();
+      }
+      return;
+    }
+    boolean failure = isFailure(status.getCode());
+    boolean slow = timed && latencyNanos >= slowCallNanos;
+    if (probeOf != 0) {
+      if (failure || slow) {
+        if (state.compareAndSet(probeOf, pack(State.OPEN, now()))) {
+          logger.warning("Circuit to " + name + " reopened after a failed probe: " + status);
+        }
+      } else if (probeSuccesses.incrementAndGet() >= halfOpenProbes
+          && state.compareAndSet(probeOf, pack(State.CLOSED, now()))) {
+        for (int i = 0; i < BUCKETS; i++) {
+          epochs.set(i, -1);
+        }
+        logger.info("Circuit to " + name + " closed");
+      }
+      return;
+    }
+    long epoch = now() / BUCKET_NANOS;
+    int bucket = (int) (epoch % BUCKETS);
+    long seen = epochs.get(bucket);
+    if (seen != epoch && epochs.compareAndSet(bucket, seen, epoch)) {
+      // Counts racing with the reset may be lost; the window is an estimate.
+      counts.set(bucket * 3 + CALLS, 0);
+      counts.set(bucket * 3 + FAILURES, 0);
+      counts.set(bucket * 3 + SLOW, 0);
+    }
+    counts.incrementAndGet(bucket * 3 + CALLS);
+    if (failure) {
+      counts.incrementAndGet(bucket * 3 + FAILURES);
+    }
+    if (slow) {
+      counts.incrementAndGet(bucket * 3 + SLOW);
+    }
+    if (failure || slow) {
+      maybeOpen(epoch);
+    }
+  }
+
+  private void maybeOpen(long epoch) {
+    long current = state.get();
+    if ((current & 3) != State.CLOSED.ordinal()) {
+      return;
+    }
+    long calls = 0;
+    long failures = 0;
+    long slow = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (epochs.get(i) > epoch - BUCKETS) {
+        calls += counts.get(i * 3 + CALLS);
+        failures += counts.get(i * 3 + FAILURES);
+        slow += counts.get(i * 3 + SLOW);
+      }
+    }
+    if (calls < minCalls
+        || (failures < calls * failureRate && slow < calls * slowCallRate)) {
+      return;
+    }
+    if (state.compareAndSet(current, pack(State.OPEN, now()))) {
+      logger.warning(
+          "Circuit to "
+              + name
+              + " opened: "
+              + failures
+              + " failed and "
+              + slow
+              + " slow of "
+              + calls
+              + " calls");
+    }
+  }
+
+  /** Returns whether a call that ended with {@code code} says the dependency is in trouble. */
+  static boolean isFailure(Status.Code code) {
+    switch (code) {
+      case UNAVAILABLE:
+      case DEADLINE_EXCEEDED:
+      case INTERNAL:
+      case UNKNOWN:
+      case RESOURCE_EXHAUSTED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private long now() {
+    return ticker.read() - originNanos;
+  }
+
+  private static long pack(State state, long sinceNanos) {
+    return (sinceNanos << 2) | state.ordinal();
+  }
+
+  /** Reports how each call ended to the breaker. */
+  private final class ObservedCall<ReqT, RespT> extends SimpleForwardingClientCall<ReqT, RespT> {
+    private final boolean timed;
+    private final long probeOf;
+
+    ObservedCall(ClientCall<ReqT, RespT> delegate, boolean timed, long probeOf) {
+      super(delegate);
+      this.timed = timed;
+      this.probeOf = probeOf;
+    }
+
+    @Override
+    public void start(Listener<RespT> responseListener, Metadata headers) {
+      final long startNanos = ticker.read();
+      super.start(
+          new SimpleForwardingClientCallListener<RespT>(responseListener) {
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+              CircuitBreaker.this.onClose(status, ticker.read() - startNanos, timed, probeOf);
+              super.onClose(status, trailers);
+            }
+          },
+          headers);
+    }
+  }
+
+  /** Marks the calls failed by an open circuit. Shared, so it has no stack trace. */
+  private static final class OpenCircuitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    static final OpenCircuitException INSTANCE = new OpenCircuitException();
+
+    private OpenCircuitException() {
+      super("Circuit open", null, false, false);
+    }
+  }
+}
@@ -32,12 +32,18 @@ import io.grpc.InsecureChannelCredentials;
 import io.grpc.ManagedChannel;
 import io.grpc.Metadata;
 import io.grpc.MethodDescriptor;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.faults.FaultConfig;
+import io.grpc.examples.wallet.faults.FaultInjectionGrpc;
+import io.grpc.examples.wallet.faults.GetFaultsRequest;
 import io.grpc.examples.wallet.stats.PriceRequest;
 import io.grpc.examples.wallet.stats.PriceResponse;
 import io.grpc.examples.wallet.stats.StatsGrpc;
 import io.grpc.xds.XdsChannelCredentials;
 import io.opencensus.trace.Tracing;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Iterator;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
@@ -64,27 +70,42 @@ public class Client {
   private String statsServer = "localhost:18882";
   private String user = "Alice";
   private String gcpClientProject = "";
+  private String traceSampling = "";
   private String route = "";
   private boolean watch;
   private boolean unaryWatch;
   private boolean affinity;
+  private int updateIntervalMs;
+  private boolean deltaUpdates;
+  private int pageSize;
+  private int deadlineMs;
+  private String symbol = "";
+  private String captureFile = "";
+  private double replaySpeedup = 1;
+  private String replayTarget = "";
+  private String adminServer = "localhost:28881";
+  private String faults = "";
   private CredentialsType credentialsType = CredentialsType.INSECURE;
 
-  public void run() throws InterruptedException, ExecutionException {
+  public void run() throws IOException, InterruptedException, ExecutionException {
     logger.info("Will try to run " + command);
 
     if (!gcpClientProject.isEmpty()) {
-      Observability.registerExporters(gcpClientProject);
+      Observability.registerExporters(gcpClientProject, TraceSampler.parse(traceSampling));
     }
 
     String target;
     if ("price".equals(command)) {
       target = statsServer;
+    } else if ("replay".equals(command) && !replayTarget.isEmpty()) {
+      target = replayTarget;
+    } else if ("faults".equals(command)) {
+      target = adminServer;
     } else {
       target = walletServer;
     }
     ChannelCredentials channelCredentials =
-        credentialsType == CredentialsType.XDS
+        credentialsType == CredentialsType.XDS && !"faults".equals(command)
             ? XdsChannelCredentials.create(InsecureChannelCredentials.create())
             : InsecureChannelCredentials.create();
 
@@ -110,29 +131,79 @@ public class Client {
     }
     Channel channel =
         ClientInterceptors.intercept(managedChannel, new HeaderClientInterceptor(headers));
+    if (deadlineMs > 0) {
+      channel =
+          ClientInterceptors.intercept(
+              channel, new DeadlineInterceptors.BudgetInterceptor(0, 0, deadlineMs));
+    }
 
     try {
-      if ("price".equals(command)) {
+      if ("replay".equals(command)) {
+        // The captured headers are replayed as they were, so the user's are not added.
+        TrafficReplayer replayer = new TrafficReplayer(managedChannel, replaySpeedup);
+        replayer.replay(Paths.get(captureFile));
+        System.out.print(replayer.report());
+      } else if ("faults".equals(command)) {
+        // Admin servers only serve plaintext, and take no user headers.
+        FaultInjectionGrpc.FaultInjectionBlockingStub blockingStub =
+            FaultInjectionGrpc.newBlockingStub(managedChannel);
+        FaultConfig config =
+            faults.isEmpty()
+                ? blockingStub.getFaults(GetFaultsRequest.getDefaultInstance())
+                : blockingStub.setFaults(
+                    "none".equals(faults)
+                        ? FaultConfig.getDefaultInstance()
+                        : FaultInjector.parse(faults));
+        System.out.print(config);
+      } else if ("price".equals(command)) {
         StatsGrpc.StatsBlockingStub blockingStub = StatsGrpc.newBlockingStub(channel);
+        PriceRequest request =
+            PriceRequest.newBuilder()
+                .setUpdateIntervalMs(updateIntervalMs)
+                .setSymbol(symbol)
+                .build();
         if (watch) {
-          Iterator<PriceResponse> responses =
-              blockingStub.watchPrice(PriceRequest.getDefaultInstance());
-          while (responses.hasNext()) {
-            printPriceResponse(responses.next());
+          while (true) {
+            try {
+              Iterator<PriceResponse> responses = blockingStub.watchPrice(request);
+              while (responses.hasNext()) {
+                printPriceResponse(responses.next());
+              }
+              break;
+            } catch (StatusRuntimeException e) {
+              reconnectOrThrow(e);
+            }
           }
         } else {
-          PriceResponse response = blockingStub.fetchPrice(PriceRequest.getDefaultInstance());
+          PriceResponse response = blockingStub.fetchPrice(request);
           printPriceResponse(response);
         }
       } else {
         WalletGrpc.WalletBlockingStub blockingStub = WalletGrpc.newBlockingStub(channel);
         BalanceRequest request =
-            BalanceRequest.newBuilder().setIncludeBalancePerAddress(true).build();
+            BalanceRequest.newBuilder()
+                .setIncludeBalancePerAddress(true)
+                .setUpdateIntervalMs(updateIntervalMs)
+                .setDeltaUpdates(deltaUpdates)
+                .setPageSize(pageSize)
+                .build();
         if (watch) {
-          Iterator<BalanceResponse> responses = blockingStub.withWaitForReady().watchBalance(
-              request);
-          while (responses.hasNext()) {
-            printBalanceResponse(responses.next());
+          while (true) {
+            try {
+              Iterator<BalanceResponse> responses = blockingStub.withWaitForReady().watchBalance(
+                  request);
+              while (responses.hasNext()) {
+                printBalanceResponse(responses.next());
+              }
+              break;
+            } catch (StatusRuntimeException e) {
+              reconnectOrThrow(e);
+            }
+          }
+        } else if (pageSize > 0) {
+          Iterator<BalancePage> pages = blockingStub.listBalances(request);
+          while (pages.hasNext()) {
+            printBalancePage(pages.next());
           }
         } else if (unaryWatch) {
           while (true) {
@@ -162,18 +233,43 @@ public class Client {
     }
   }
 
+  /**
+   * Returns if a watch stream failed because its server is draining, in which case the watch
+   * starts again on another server, or rethrows the failure.
+   */
+  private static void reconnectOrThrow(StatusRuntimeException e) {
+    if (e.getStatus().getCode() != Status.Code.UNAVAILABLE
+        || !StreamDrainer.DRAINING.equals(e.getStatus().getDescription())) {
+      throw e;
+    }
+    logger.log(Level.INFO, "Watch interrupted, reconnecting: {0}", e.getStatus());
+  }
+
   private void printPriceResponse(PriceResponse response) {
     System.out.println("price: " + response.getPrice());
   }
 
   private void printBalanceResponse(BalanceResponse response) {
-    System.out.println("total balance: " + response.getBalance());
+    System.out.println(
+        "total balance: " + response.getBalance() + (response.getDelta() ? " (changes only)" : ""));
     for (BalancePerAddress address : response.getAddressesList()) {
       System.out.println(
           "- address: " + address.getAddress() + ", balance: " + address.getBalance());
     }
   }
 
+  private void printBalancePage(BalancePage page) {
+    if (page.getLast()) {
+      System.out.println("total balance: " + page.getBalance());
+      return;
+    }
+    System.out.println("page at offset " + page.getOffset() + ":");
+    for (BalancePerAddress address : page.getAddressesList()) {
+      System.out.println(
+          "- address: " + address.getAddress() + ", balance: " + address.getBalance());
+    }
+  }
+
   void parseArgs(String[] args) {
     boolean usage = false;
     for (String arg : args) {
@@ -184,11 +280,12 @@ public class Client {
                   + arg);
           usage = true;
           break;
-        } else if ("balance".equals(arg) || "price".equals(arg)) {
+        } else if ("balance".equals(arg) || "price".equals(arg) || "replay".equals(arg)
+            || "faults".equals(arg)) {
           command = arg;
           continue;
         } else {
-          System.err.println("Command must be either balance or price: " + arg);
+          System.err.println("Command must be one of balance, price, replay or faults: " + arg);
           usage = true;
           break;
         }
@@ -219,6 +316,8 @@ public class Client {
         }
       } else if ("gcp_client_project".equals(key)) {
         gcpClientProject = value;
+      } else if ("trace_sampling".equals(key)) {
+        traceSampling = value;
       } else if ("watch".equals(key)) {
         watch = Boolean.parseBoolean(value);
       } else if ("unary_watch".equals(key)) {
@@ -227,6 +326,26 @@ public class Client {
         affinity = Boolean.parseBoolean(value);
       } else if ("route".equals(key)) {
         route = value;
+      } else if ("update_interval_ms".equals(key)) {
+        updateIntervalMs = Integer.parseInt(value);
+      } else if ("delta_updates".equals(key)) {
+        deltaUpdates = Boolean.parseBoolean(value);
+      } else if ("deadline_ms".equals(key)) {
+        deadlineMs = Integer.parseInt(value);
+      } else if ("page_size".equals(key)) {
+        pageSize = Integer.parseInt(value);
+      } else if ("symbol".equals(key)) {
+        symbol = value;
+      } else if ("capture_file".equals(key)) {
+        captureFile = value;
+      } else if ("replay_speedup".equals(key)) {
+        replaySpeedup = Double.parseDouble(value);
+      } else if ("replay_target".equals(key)) {
+        replayTarget = value;
+      } else if ("admin_server".equals(key)) {
+        adminServer = value;
+      } else if ("faults".equals(key)) {
+        faults = value;
       } else if ("creds".equals(key)) {
         credentialsType = CredentialsType.valueOf(value.toUpperCase());
       } else {
@@ -236,16 +355,22 @@ public class Client {
       }
     }
     if (!usage && command == null) {
-      System.err.println("Must specify either balance or price command");
+      System.err.println("Must specify one of balance, price, replay or faults command");
+      usage = true;
+    }
+    if (!usage && "replay".equals(command) && captureFile.isEmpty()) {
+      System.err.println("The replay command requires --capture_file");
       usage = true;
     }
     if (usage) {
       Client c = new Client();
       System.out.println(
-          "Usage: [balance|price] [ARGS...]"
+          "Usage: [balance|price|replay|faults] [ARGS...]"
               + "\n"
               + "balance: create channel to wallet_server and get balance.\n"
               + "price: create channel to stats_server and get price.\n"
+              + "replay: replay a server's capture_file and compare latencies.\n"
+              + "faults: show or replace the faults injected by the server at admin_server.\n"
               + "\n  --wallet_server=HOST      Address of the wallet service. Default "
               + c.walletServer
               + "\n  --stats_server=HOST       Address of the stats service. Default "
@@ -254,6 +379,10 @@ public class Client {
               + c.user
               + "\n  --gcp_client_project=STR GCP project. If set, metrics and traces will be "
               + "sent to Stackdriver. Default \"" + c.gcpClientProject + "\""
+              + "\n  --trace_sampling=SPEC     Traces to sample, as comma-separated settings: "
+              + "rate=FLOAT, method:SERVICE/METHOD=FLOAT, membership:NAME=FLOAT, "
+              + "max_per_second=INT, keep_errors=BOOL and keep_slow_ms=INT. Default samples "
+              + "every trace."
               + "\n  --watch=true|false        Whether to call the streaming RPC. Default "
               + c.watch
               + "\n  --unary_watch=true|false  Watch for balance updates with unary RPC"
@@ -263,6 +392,29 @@ public class Client {
               + c.unaryWatch
               + "\n  --affinity=true|false     Send requests with session affinity. Default "
               + c.affinity
+              + "\n  --update_interval_ms=INT  Interval between watch updates. 0 uses the server"
+              + " default for the membership. Default "
+              + c.updateIntervalMs
+              + "\n  --delta_updates=true|false Only print addresses whose balance changed in"
+              + " watch updates. Default "
+              + c.deltaUpdates
+              + "\n  --deadline_ms=INT         Deadline of unary RPCs. 0 for none. Default "
+              + c.deadlineMs
+              + "\n  --page_size=INT           If set, list the balance of each address in pages"
+              + " of this size (balance command). Requires watch=false. Default "
+              + c.pageSize
+              + "\n  --symbol=STR              Asset to price (price command). Default is the"
+              + " server's default asset"
+              + "\n  --capture_file=PATH       File captured by a server's --capture_file to"
+              + " replay (replay command)"
+              + "\n  --replay_speedup=FLOAT    Replay speed relative to the capture. Default "
+              + c.replaySpeedup
+              + "\n  --replay_target=HOST      Server to replay against. Default wallet_server"
+              + "\n  --admin_server=HOST       Admin address of the server whose faults to show or"
+              + " replace (faults command). Default "
+              + c.adminServer
+              + "\n  --faults=TEXT             FaultConfig in protobuf text format to set (faults"
+              + " command), or none to clear them. Shows the current faults if empty"
               + "\n  --creds=insecure|xds  . Type of credentials to use on the client. "
               + "Default "
               + c.credentialsType.toString().toLowerCase()
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.opencensus.stats.Aggregation;
+import io.opencensus.stats.Measure.MeasureLong;
+import io.opencensus.stats.Stats;
+import io.opencensus.stats.View;
+import io.opencensus.tags.TagKey;
+import io.opencensus.tags.TagValue;
+import io.opencensus.tags.Tags;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Interceptors that spend the deadline of an incoming call across the calls it makes downstream.
+ *
+ * <p>gRPC already gives outgoing calls the deadline of the call they are made from. {@link
+ * BudgetInterceptor} additionally keeps a fraction of the remaining time for the work left on this
+ * hop once the downstream call returns, fails a call at once when what is left is too short for it
+ * to succeed, and bounds unary calls made without any deadline. {@link ExpiredCallInterceptor}
+ * rejects calls whose deadline passed before they reached their handler. Both count the calls
+ * they skip in the {@code wallet/deadline/skipped_calls} view.
+ */
+final class DeadlineInterceptors {
+  static final double DEFAULT_RESERVE = 0.1;
+  static final int DEFAULT_MIN_BUDGET_MS = 5;
+  static final int DEFAULT_DEADLINE_MS = 10000;
+
+  static final String REASON_EXPIRED = "expired";
+  static final String REASON_INSUFFICIENT_BUDGET = "insufficient_budget";
+
+  private static final TagKey REASON_KEY = TagKey.create("reason");
+  private static final TagKey METHOD_KEY = TagKey.create("method");
+  private static final MeasureLong SKIPPED_CALLS =
+      MeasureLong.create(
+          "wallet/deadline/skipped_calls",
+          "Calls not started because their deadline could not be met",
+          "1");
+  private static final View SKIPPED_CALLS_VIEW =
+      View.create(
+          View.Name.create("wallet/deadline/skipped_calls"),
+          "Calls not started because their deadline could not be met, by reason and method",
+          SKIPPED_CALLS,
+          Aggregation.Count.create(),
+          Arrays.asList(REASON_KEY, METHOD_KEY));
+
+  private static final AtomicLong skippedCalls = new AtomicLong();
+
+  /** Registers the view of skipped calls, so that it is exported. */
+  static void registerViews() {
+    Stats.getViewManager().registerView(SKIPPED_CALLS_VIEW);
+  }
+
+  /** Returns the number of calls skipped by the interceptors of this process. */
+  static long skippedCalls() {
+    return skippedCalls.get();
+  }
+
+  private static void recordSkipped(String reason, String method) {
+    skippedCalls.incrementAndGet();
+    Stats.getStatsRecorder()
+        .newMeasureMap()
+        .put(SKIPPED_CALLS, 1)
+        .record(
+            Tags.getTagger()
+                .currentBuilder()
+                .putLocal(REASON_KEY, TagValue.create(reason))
+                .putLocal(METHOD_KEY, TagValue.create(method))
+                .build());
+  }
+
+  /** Sets the deadline of outgoing calls from the time the current call has left. */
+  static final class BudgetInterceptor implements ClientInterceptor {
+    private final double reserve;
+    private final long minBudgetNanos;
+    private final long defaultDeadlineMs;
+
+    /**
+     * @param reserve the fraction of the remaining time to keep for this hop, from 0 to 1
+     * @param minBudgetMs calls with less than this left once the reserve is taken fail at once
+     * @param defaultDeadlineMs the deadline of unary calls made without one, or 0 for none
+     */
+    BudgetInterceptor(double reserve, long minBudgetMs, long defaultDeadlineMs) {
+      if (!(reserve >= 0 && reserve < 1)) {
+        throw new IllegalArgumentException("reserve must be at least 0 and less than 1");
+      }
+      this.reserve = reserve;
+      this.minBudgetNanos = MILLISECONDS.toNanos(minBudgetMs);
+      this.defaultDeadlineMs = defaultDeadlineMs;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+        MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+      Deadline deadline = earliest(callOptions.getDeadline(), Context.current().getDeadline());
+      if (deadline == null) {
+        if (defaultDeadlineMs > 0 && method.getType() == MethodDescriptor.MethodType.UNARY) {
+          callOptions = callOptions.withDeadlineAfter(defaultDeadlineMs, MILLISECONDS);
+        }
+        return next.newCall(method, callOptions);
+      }
+      long budgetNanos = (long) (deadline.timeRemaining(NANOSECONDS) * (1 - reserve));
+      if (budgetNanos < minBudgetNanos) {
+        recordSkipped(REASON_INSUFFICIENT_BUDGET, method.getFullMethodName());
+        return new FailedClientCall<>(
+            Status.DEADLINE_EXCEEDED.withDescription(
+                "Only "
+                    + NANOSECONDS.toMillis(Math.max(0, budgetNanos))
+                    + "ms left to call "
+                    + method.getFullMethodName()));
+      }
+      return next.newCall(method, callOptions.withDeadlineAfter(budgetNanos, NANOSECONDS));
+    }
+
+    private static Deadline earliest(Deadline a, Deadline b) {
+      if (a == null) {
+        return b;
+      }
+      return b == null ? a : a.minimum(b);
+    }
+  }
+
+  /** Rejects calls whose deadline expired before they reached this server's handlers. */
+  static final class ExpiredCallInterceptor implements ServerInterceptor {
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+        ServerCall<ReqT, RespT> call,
+        Metadata requestHeaders,
+        ServerCallHandler<ReqT, RespT> next) {
+      Deadline deadline = Context.current().getDeadline();
+      if (deadline != null && deadline.isExpired()) {
+        recordSkipped(REASON_EXPIRED, call.getMethodDescriptor().getFullMethodName());
+        call.close(
+            Status.DEADLINE_EXCEEDED.withDescription("Deadline expired before the call started"),
+            new Metadata());
+        return new ServerCall.Listener<ReqT>() {};
+      }
+      return next.startCall(call, requestHeaders);
+    }
+  }
+
+  private DeadlineInterceptors() {}
+}
@@ -16,16 +16,36 @@
 
 package io.grpc.examples.wallet;
 
+import static io.grpc.ConnectivityState.IDLE;
+
 import com.google.common.collect.ImmutableMap;
+import io.grpc.Attributes;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
 import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancer.CreateSubchannelArgs;
 import io.grpc.LoadBalancer.Helper;
+import io.grpc.LoadBalancer.PickResult;
+import io.grpc.LoadBalancer.PickSubchannelArgs;
+import io.grpc.LoadBalancer.Subchannel;
+import io.grpc.LoadBalancer.SubchannelPicker;
+import io.grpc.LoadBalancer.SubchannelStateListener;
 import io.grpc.LoadBalancerProvider;
 import io.grpc.LoadBalancerRegistry;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
 import io.grpc.NameResolver;
 import io.grpc.NameResolver.ConfigOrError;
 import io.grpc.Status;
+import io.grpc.SynchronizationContext.ScheduledHandle;
 import io.grpc.util.ForwardingLoadBalancer;
+import io.grpc.util.ForwardingLoadBalancerHelper;
+import io.grpc.util.ForwardingSubchannel;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -34,6 +54,12 @@ import java.util.Map;
  * addresses. The purpose of this implementation is to demonstrate how to configure a custom {@link
  * LoadBalancer} in Traffic Director, as explained in:
  * https://cloud.google.com/traffic-director/docs/proxyless-configure-advanced-traffic-management
+ *
+ * <p>The balancer also ejects replicas that fail or answer much slower than the others. The
+ * optional {@code outlierDetection} object of the config tunes it; see {@link
+ * OutlierDetector.Config#fromJson} for its fields. The optional {@code childPolicy} and {@code
+ * childPolicyConfig} entries replace round_robin, for instance with the policy of {@link
+ * LocalityLoadBalancerProvider}.
  */
 public class ExampleLoadBalancerProvider extends LoadBalancerProvider {
 
@@ -42,21 +68,45 @@ public class ExampleLoadBalancerProvider extends LoadBalancerProvider {
       Map<String, ?> rawLoadBalancingPolicyConfig) {
     ConfigOrError response = null;
     try {
-      LoadBalancerProvider roundRobinProvider = LoadBalancerRegistry.getDefaultRegistry()
-          .getProvider("round_robin");
-      ConfigOrError roundRobinConfig = roundRobinProvider.parseLoadBalancingPolicyConfig(
-          ImmutableMap.of());
-
       // The configuration map should have a "message" entry with a message that is printed out
       // every time this load balancer handles resolved addresses.
       String message = (String) rawLoadBalancingPolicyConfig.get("message");
       if (message == null) {
-        response = NameResolver.ConfigOrError.fromError(
+        return NameResolver.ConfigOrError.fromError(
             Status.UNAVAILABLE.withDescription(
                 "ExampleLoadBalancer configuration missing 'message'"));
       }
+      // The optional "outlierDetection" entry overrides the default outlier detection thresholds.
+      @SuppressWarnings("unchecked")
+      Map<String, ?> outlierDetection =
+          (Map<String, ?>) rawLoadBalancingPolicyConfig.get("outlierDetection");
+      if (outlierDetection == null) {
+        outlierDetection = ImmutableMap.of();
+      }
+      // The optional "childPolicy" entry names the policy that picks among the replicas that are
+      // not ejected, round_robin by default, and "childPolicyConfig" holds its config.
+      String childPolicy = (String) rawLoadBalancingPolicyConfig.get("childPolicy");
+      if (childPolicy == null) {
+        childPolicy = "round_robin";
+      }
+      LoadBalancerProvider childProvider = LoadBalancerRegistry.getDefaultRegistry()
+          .getProvider(childPolicy);
+      if (childProvider == null) {
+        return NameResolver.ConfigOrError.fromError(
+            Status.UNAVAILABLE.withDescription(
+                "ExampleLoadBalancer child policy '" + childPolicy + "' is not registered"));
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, ?> childPolicyConfig =
+          (Map<String, ?>) rawLoadBalancingPolicyConfig.get("childPolicyConfig");
+      ConfigOrError childConfig = childProvider.parseLoadBalancingPolicyConfig(
+          childPolicyConfig == null ? ImmutableMap.<String, Object>of() : childPolicyConfig);
+      if (childConfig.getError() != null) {
+        return childConfig;
+      }
       response = NameResolver.ConfigOrError.fromConfig(
-          new ExampleLoadBalancerConfig(message, roundRobinProvider, roundRobinConfig));
+          new ExampleLoadBalancerConfig(message, childProvider, childConfig.getConfig(),
+              OutlierDetector.Config.fromJson(outlierDetection)));
     } catch (RuntimeException e) {
       response = NameResolver.ConfigOrError.fromError(
           Status.UNAVAILABLE.withDescription("Failed to parse example LB service config")
@@ -95,25 +145,34 @@ public class ExampleLoadBalancerProvider extends LoadBalancerProvider {
   static class ExampleLoadBalancerConfig {
 
     final String message;
-    final LoadBalancerProvider roundRobinProvider;
-    final ConfigOrError roundRobinConfig;
+    final LoadBalancerProvider childProvider;
+    final Object childConfig;
+    final OutlierDetector.Config outlierDetection;
 
-    ExampleLoadBalancerConfig(String message, LoadBalancerProvider roundRobinProvider,
-        ConfigOrError roundRobinConfig) {
+    ExampleLoadBalancerConfig(String message, LoadBalancerProvider childProvider,
+        Object childConfig, OutlierDetector.Config outlierDetection) {
       this.message = message;
-      this.roundRobinProvider = roundRobinProvider;
-      this.roundRobinConfig = roundRobinConfig;
+      this.childProvider = childProvider;
+      this.childConfig = childConfig;
+      this.outlierDetection = outlierDetection;
     }
   }
 
   /**
-   * This example {@code LoadBalancer} simply forwards to another one and prints a custom message
-   * each time newly resolved addresses are handled.
+   * This example {@code LoadBalancer} forwards to a child policy, round_robin unless configured
+   * otherwise, prints a custom message each time newly resolved addresses are handled, and takes
+   * the subchannels that an {@link OutlierDetector} finds to be outliers out of rotation. Every
+   * pick carries a stream tracer that reports how the call ended to the detector, and an ejected
+   * subchannel looks to the child as if it were in TRANSIENT_FAILURE until it is put back.
    */
   static class ExampleLoadBalancer extends ForwardingLoadBalancer {
 
     private final Helper helper;
+    private final Set<OutlierSubchannel> subchannels = new HashSet<>();
+    private LoadBalancerProvider delegateProvider;
     private LoadBalancer delegateLb;
+    private OutlierDetector detector;
+    private ScheduledHandle intervalTimer;
 
     ExampleLoadBalancer(Helper helper) {
       this.helper = helper;
@@ -128,11 +187,293 @@ public class ExampleLoadBalancerProvider extends LoadBalancerProvider {
     public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
       ExampleLoadBalancerConfig config
           = (ExampleLoadBalancerConfig) resolvedAddresses.getLoadBalancingPolicyConfig();
-      this.delegateLb = config.roundRobinProvider.newLoadBalancer(helper);
+      if (detector == null || !detector.config().equals(config.outlierDetection)) {
+        startDetector(config.outlierDetection);
+      }
+      // Keep the same delegate across updates, so that its subchannels and their statistics
+      // survive them.
+      if (delegateProvider != config.childProvider) {
+        if (delegateLb != null) {
+          delegateLb.shutdown();
+        }
+        delegateProvider = config.childProvider;
+        delegateLb = delegateProvider.newLoadBalancer(new OutlierDetectingHelper());
+      }
       System.out.println(
           "ExampleLoadBalancer handling resolved addresses [message: '" + config.message + "']");
       delegateLb.handleResolvedAddresses(resolvedAddresses.toBuilder()
-          .setLoadBalancingPolicyConfig(config.roundRobinConfig).build());
+          .setLoadBalancingPolicyConfig(config.childConfig).build());
+    }
+
+    @Override
+    public void shutdown() {
+      if (intervalTimer != null) {
+        intervalTimer.cancel();
+      }
+      if (delegateLb != null) {
+        delegateLb.shutdown();
+      }
+    }
+
+    /** Judges the current subchannels afresh under {@code config}. */
+    private void startDetector(OutlierDetector.Config config) {
+      if (intervalTimer != null) {
+        intervalTimer.cancel();
+      }
+      detector = new OutlierDetector(config);
+      for (OutlierSubchannel subchannel : subchannels) {
+        subchannel.uneject();
+        subchannel.endpoint = detector.add(subchannel);
+      }
+      scheduleInterval();
+    }
+
+    private void scheduleInterval() {
+      intervalTimer = helper.getSynchronizationContext().schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              detector.runInterval(System.nanoTime());
+              scheduleInterval();
+            }
+          },
+          detector.config().intervalMs,
+          TimeUnit.MILLISECONDS,
+          helper.getScheduledExecutorService());
+    }
+
+    /** Hands the delegate subchannels and pickers that report to the detector. */
+    private final class OutlierDetectingHelper extends ForwardingLoadBalancerHelper {
+
+      @Override
+      protected Helper delegate() {
+        return helper;
+      }
+
+      @Override
+      public Subchannel createSubchannel(CreateSubchannelArgs args) {
+        OutlierSubchannel subchannel = new OutlierSubchannel(helper.createSubchannel(args));
+        subchannel.endpoint = detector.add(subchannel);
+        subchannels.add(subchannel);
+        return subchannel;
+      }
+
+      @Override
+      public void updateBalancingState(ConnectivityState newState, SubchannelPicker newPicker) {
+        helper.updateBalancingState(newState, new OutlierDetectingPicker(newPicker));
+      }
+    }
+
+    /**
+     * A subchannel that can be ejected. While it is, the delegate is told that it is in
+     * TRANSIENT_FAILURE, and its real state is only passed on once it is put back.
+     */
+    private final class OutlierSubchannel extends ForwardingSubchannel
+        implements OutlierDetector.Target {
+
+      private final Subchannel delegate;
+      // Set in the synchronization context, read by pickers.
+      volatile OutlierDetector.Endpoint endpoint;
+      private SubchannelStateListener listener;
+      private ConnectivityStateInfo state = ConnectivityStateInfo.forNonError(IDLE);
+      private boolean ejected;
+
+      OutlierSubchannel(Subchannel delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      protected Subchannel delegate() {
+        return delegate;
+      }
+
+      @Override
+      public void start(final SubchannelStateListener listener) {
+        this.listener = listener;
+        super.start(new SubchannelStateListener() {
+          @Override
+          public void onSubchannelState(ConnectivityStateInfo newState) {
+            state = newState;
+            if (!ejected) {
+              listener.onSubchannelState(newState);
+            }
+          }
+        });
+      }
+
+      @Override
+      public void shutdown() {
+        subchannels.remove(this);
+        detector.remove(endpoint);
+        super.shutdown();
+      }
+
+      @Override
+      public void eject() {
+        ejected = true;
+        if (listener != null) {
+          listener.onSubchannelState(ConnectivityStateInfo.forTransientFailure(
+              Status.UNAVAILABLE.withDescription(
+                  "Ejected as an outlier: " + delegate.getAddresses())));
+        }
+      }
+
+      @Override
+      public void uneject() {
+        if (ejected) {
+          ejected = false;
+          if (listener != null) {
+            listener.onSubchannelState(state);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds a tracer to the picks of the delegate that counts how their calls end, chained after
+   * the delegate's own tracer if it has one.
+   */
+  private static final class OutlierDetectingPicker extends SubchannelPicker {
+
+    private final SubchannelPicker delegate;
+
+    OutlierDetectingPicker(SubchannelPicker delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      PickResult result = delegate.pickSubchannel(args);
+      Subchannel subchannel = result.getSubchannel();
+      if (!(subchannel instanceof ExampleLoadBalancer.OutlierSubchannel)) {
+        return result;
+      }
+      return PickResult.withSubchannel(
+          subchannel,
+          new CallOutcomeTracerFactory(
+              ((ExampleLoadBalancer.OutlierSubchannel) subchannel).endpoint,
+              args.getMethodDescriptor().getType() == MethodDescriptor.MethodType.UNARY,
+              result.getStreamTracerFactory()));
+    }
+  }
+
+  /** Records the outcome, and for unary calls the latency, of each call on one endpoint. */
+  private static final class CallOutcomeTracerFactory extends ClientStreamTracer.Factory {
+
+    private final OutlierDetector.Endpoint endpoint;
+    private final boolean timed;
+    private final ClientStreamTracer.Factory delegate;
+
+    CallOutcomeTracerFactory(
+        OutlierDetector.Endpoint endpoint, boolean timed, ClientStreamTracer.Factory delegate) {
+      this.endpoint = endpoint;
+      this.timed = timed;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public ClientStreamTracer newClientStreamTracer(
+        ClientStreamTracer.StreamInfo info, Metadata headers) {
+      final long startNanos = System.nanoTime();
+      ClientStreamTracer next = delegate == null
+          ? new ClientStreamTracer() {}
+          : delegate.newClientStreamTracer(info, headers);
+      return new ForwardingTracer(next) {
+        @Override
+        public void streamClosed(Status status) {
+          super.streamClosed(status);
+          if (status.getCode() == Status.Code.CANCELLED) {
+            // Cancelled by the caller: says nothing of the endpoint.
+            return;
+          }
+          endpoint.record(
+              !CircuitBreaker.isFailure(status.getCode()),
+              timed ? System.nanoTime() - startNanos : -1);
+        }
+      };
+    }
+  }
+
+  /** Passes every event on to another tracer. */
+  private static class ForwardingTracer extends ClientStreamTracer {
+
+    private final ClientStreamTracer delegate;
+
+    ForwardingTracer(ClientStreamTracer delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void streamCreated(Attributes transportAttrs, Metadata headers) {
+      delegate.streamCreated(transportAttrs, headers);
+    }
+
+    @Override
+    public void createPendingStream() {
+      delegate.createPendingStream();
+    }
+
+    @Override
+    public void outboundHeaders() {
+      delegate.outboundHeaders();
+    }
+
+    @Override
+    public void inboundHeaders() {
+      delegate.inboundHeaders();
+    }
+
+    @Override
+    public void inboundTrailers(Metadata trailers) {
+      delegate.inboundTrailers(trailers);
+    }
+
+    @Override
+    public void streamClosed(Status status) {
+      delegate.streamClosed(status);
+    }
+
+    @Override
+    public void outboundMessage(int seqNo) {
+      delegate.outboundMessage(seqNo);
+    }
+
+    @Override
+    public void inboundMessage(int seqNo) {
+      delegate.inboundMessage(seqNo);
+    }
+
+    @Override
+    public void outboundMessageSent(
+        int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+      delegate.outboundMessageSent(seqNo, optionalWireSize, optionalUncompressedSize);
+    }
+
+    @Override
+    public void inboundMessageRead(
+        int seqNo, long optionalWireSize, long optionalUncompressedSize) {
+      delegate.inboundMessageRead(seqNo, optionalWireSize, optionalUncompressedSize);
+    }
+
+    @Override
+    public void outboundWireSize(long bytes) {
+      delegate.outboundWireSize(bytes);
+    }
+
+    @Override
+    public void outboundUncompressedSize(long bytes) {
+      delegate.outboundUncompressedSize(bytes);
+    }
+
+    @Override
+    public void inboundWireSize(long bytes) {
+      delegate.inboundWireSize(bytes);
+    }
+
+    @Override
+    public void inboundUncompressedSize(long bytes) {
+      delegate.inboundUncompressedSize(bytes);
     }
   }
 }
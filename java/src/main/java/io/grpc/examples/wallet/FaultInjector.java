@@ -0,0 +1,270 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.TextFormat;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.examples.wallet.faults.Fault;
+import io.grpc.examples.wallet.faults.FaultConfig;
+import io.grpc.examples.wallet.faults.FaultInjectionGrpc;
+import io.grpc.examples.wallet.faults.GetFaultsRequest;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Injects delays, errors and stream stalls into the calls of a server, as described by a {@link
+ * FaultConfig}. The config comes from the {@code --faults} flag in protobuf text format, and can
+ * be replaced while the server runs through the {@code FaultInjection} service of {@link
+ * #adminService}. Each call gets the faults of the first entry that matches its method and the
+ * membership header it was sent with.
+ *
+ * <p>Errors fail the call before it reaches its handler, with UNAVAILABLE unless the fault sets
+ * another code. Delays and stalls hold back what the handler sends, without blocking it: a delayed
+ * call sends nothing until its delay is over, and a stalled stream sends nothing for a while once
+ * it has sent its first messages. The call stays ready while held, so that handlers waiting on
+ * flow control keep going; what they send meanwhile is queued. With no faults configured, calls
+ * go straight to their handler.
+ */
+final class FaultInjector implements ServerInterceptor {
+  private static final Logger logger = Logger.getLogger(FaultInjector.class.getName());
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("fault-injector").setDaemon(true).build());
+  private volatile FaultConfig config = FaultConfig.getDefaultInstance();
+
+  /** Parses {@code faults}, a {@link FaultConfig} in protobuf text format. */
+  static FaultConfig parse(String faults) throws TextFormat.ParseException {
+    FaultConfig.Builder builder = FaultConfig.newBuilder();
+    TextFormat.merge(faults, builder);
+    return builder.build();
+  }
+
+  FaultConfig config() {
+    return config;
+  }
+
+  void setConfig(FaultConfig config) {
+    this.config = config;
+    logger.info("Injecting faults: " + TextFormat.shortDebugString(config));
+  }
+
+  /** Returns the service that reads and replaces the faults at runtime. */
+  FaultInjectionGrpc.FaultInjectionImplBase adminService() {
+    return new FaultInjectionGrpc.FaultInjectionImplBase() {
+      @Override
+      public void setFaults(FaultConfig request, StreamObserver<FaultConfig> responseObserver) {
+        setConfig(request);
+        responseObserver.onNext(config);
+        responseObserver.onCompleted();
+      }
+
+      @Override
+      public void getFaults(
+          GetFaultsRequest request, StreamObserver<FaultConfig> responseObserver) {
+        responseObserver.onNext(config);
+        responseObserver.onCompleted();
+      }
+    };
+  }
+
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    FaultConfig current = config;
+    if (current.getFaultsCount() == 0) {
+      return next.startCall(call, requestHeaders);
+    }
+    Fault fault =
+        match(
+            current,
+            call.getMethodDescriptor().getFullMethodName(),
+            requestHeaders.get(WalletInterceptors.MEMBERSHIP_MD_KEY));
+    if (fault == null) {
+      return next.startCall(call, requestHeaders);
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    if (random.nextDouble() * 100 < fault.getErrorPercent()) {
+      // An unset code would be OK, which is no error at all.
+      Status status =
+          fault.getErrorCode() == 0
+              ? Status.UNAVAILABLE
+              : Status.fromCodeValue(fault.getErrorCode());
+      call.close(status.withDescription("Injected fault"), new Metadata());
+      return new ServerCall.Listener<ReqT>() {};
+    }
+    long delayNanos = 0;
+    if (random.nextDouble() * 100 < fault.getDelayPercent()) {
+      delayNanos = delayNanos(fault, random);
+    }
+    boolean stall =
+        !call.getMethodDescriptor().getType().serverSendsOneMessage()
+            && random.nextDouble() * 100 < fault.getStallPercent();
+    if (delayNanos <= 0 && !stall) {
+      return next.startCall(call, requestHeaders);
+    }
+    FaultyCall<ReqT, RespT> faultyCall =
+        new FaultyCall<>(
+            call,
+            stall ? fault.getStallAfterMessages() : -1,
+            MILLISECONDS.toNanos(fault.getStallMs()));
+    if (delayNanos > 0) {
+      faultyCall.holdFor(delayNanos);
+    }
+    return next.startCall(faultyCall, requestHeaders);
+  }
+
+  /** Returns the first fault of {@code config} that applies to the call, or null if none does. */
+  static Fault match(FaultConfig config, String fullMethodName, String membership) {
+    for (Fault fault : config.getFaultsList()) {
+      String method = fault.getMethod();
+      boolean methodMatches =
+          method.isEmpty()
+              || method.equals(fullMethodName)
+              || (method.endsWith("/*")
+                  && fullMethodName.startsWith(method.substring(0, method.length() - 1)));
+      if (methodMatches
+          && (fault.getMembership().isEmpty() || fault.getMembership().equals(membership))) {
+        return fault;
+      }
+    }
+    return null;
+  }
+
+  private static long delayNanos(Fault fault, ThreadLocalRandom random) {
+    double delayMs = fault.getDelayMs();
+    switch (fault.getDelayDistribution()) {
+      case UNIFORM:
+        delayMs *= 2 * random.nextDouble();
+        break;
+      case EXPONENTIAL:
+        delayMs *= -Math.log(1 - random.nextDouble());
+        break;
+      case LOG_NORMAL:
+        double sigma = fault.getDelaySigma() > 0 ? fault.getDelaySigma() : 1;
+        delayMs *= Math.exp(random.nextGaussian() * sigma);
+        break;
+      default:
+        break;
+    }
+    return (long) (delayMs * MILLISECONDS.toNanos(1));
+  }
+
+  /**
+   * Holds back what the handler sends while the call is held, and sends it in order once the hold
+   * is over. Holds start with the call for delays, and after a number of messages for stalls.
+   */
+  private final class FaultyCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+    // Guarded by this.
+    private final Queue<Runnable> held = new ArrayDeque<>();
+    private boolean holding;
+    private int stallAfterMessages;
+    private final long stallNanos;
+
+    FaultyCall(ServerCall<ReqT, RespT> delegate, int stallAfterMessages, long stallNanos) {
+      super(delegate);
+      this.stallAfterMessages = stallAfterMessages;
+      this.stallNanos = stallNanos;
+    }
+
+    synchronized void holdFor(long nanos) {
+      holding = true;
+      scheduler.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              release();
+            }
+          },
+          nanos,
+          NANOSECONDS);
+    }
+
+    private synchronized void release() {
+      holding = false;
+      Runnable operation;
+      while (!holding && (operation = held.poll()) != null) {
+        operation.run();
+      }
+    }
+
+    private synchronized void runOrHold(Runnable operation) {
+      if (holding) {
+        held.add(operation);
+      } else {
+        operation.run();
+      }
+    }
+
+    @Override
+    public void sendHeaders(final Metadata headers) {
+      runOrHold(
+          new Runnable() {
+            @Override
+            public void run() {
+              FaultyCall.super.sendHeaders(headers);
+            }
+          });
+    }
+
+    @Override
+    public void sendMessage(final RespT message) {
+      runOrHold(
+          new Runnable() {
+            @Override
+            public void run() {
+              FaultyCall.super.sendMessage(message);
+              // Runs under the lock of the call, like every held operation.
+              if (stallAfterMessages >= 0 && --stallAfterMessages < 0) {
+                holdFor(stallNanos);
+              }
+            }
+          });
+    }
+
+    @Override
+    public void close(final Status status, final Metadata trailers) {
+      runOrHold(
+          new Runnable() {
+            @Override
+            public void run() {
+              FaultyCall.super.close(status, trailers);
+            }
+          });
+    }
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed-wheel timer sharded across several worker threads. Scheduling and cancelling a task
+ * are O(1); each shard owns a wheel of buckets and advances it once per tick, so the cost of a
+ * tick is proportional to the number of tasks that are due rather than to the total number of
+ * scheduled tasks. Tasks run on the shard's worker thread and must not block.
+ */
+final class HashedWheelTimer {
+  private static final Logger logger = Logger.getLogger(HashedWheelTimer.class.getName());
+
+  /** A handle to a scheduled task. */
+  interface Timeout {
+    /** Cancels the task. Has no effect if the task was already cancelled or has run. */
+    void cancel();
+
+    boolean isCancelled();
+  }
+
+  private final Shard[] shards;
+  private final AtomicInteger nextShard = new AtomicInteger();
+
+  /**
+   * Creates and starts a timer.
+   *
+   * @param name prefix for the names of the worker threads
+   * @param shardCount number of wheels, each with its own worker thread
+   * @param tickDuration resolution of the timer
+   * @param wheelSize number of buckets per wheel, rounded up to a power of two
+   */
+  HashedWheelTimer(String name, int shardCount, long tickDuration, TimeUnit unit, int wheelSize) {
+    if (shardCount <= 0 || tickDuration <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException("shardCount, tickDuration and wheelSize must be positive");
+    }
+    int buckets = Integer.highestOneBit(wheelSize);
+    if (buckets < wheelSize) {
+      buckets <<= 1;
+    }
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(name + "-" + i, unit.toNanos(tickDuration), buckets);
+    }
+  }
+
+  /** Runs {@code task} once after {@code delay}. */
+  Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    return pickShard().add(task, unit.toNanos(delay), 0);
+  }
+
+  /**
+   * Runs {@code task} after {@code initialDelay} and then every {@code period} until the returned
+   * timeout is cancelled. As with {@link java.util.concurrent.ScheduledExecutorService}, runs that
+   * fall behind are not made up in a burst: the next run is scheduled no earlier than the next
+   * tick.
+   */
+  Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("period must be positive");
+    }
+    return pickShard().add(task, unit.toNanos(initialDelay), unit.toNanos(period));
+  }
+
+  /** Stops all worker threads. Pending tasks are discarded. */
+  void stop() {
+    for (Shard shard : shards) {
+      shard.stop();
+    }
+  }
+
+  private Shard pickShard() {
+    return shards[(nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+  }
+
+  private static final class Task implements Timeout {
+    private static final int ST_PENDING = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_DONE = 2;
+    private static final AtomicIntegerFieldUpdater<Task> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+
+    final Shard shard;
+    final Runnable runnable;
+    final long periodNanos;
+    // Deadline relative to the start of the shard.
+    long deadlineNanos;
+    long remainingRounds;
+    volatile int state;
+
+    // Owned by the shard's worker thread.
+    Bucket bucket;
+    Task prev;
+    Task next;
+
+    Task(Shard shard, Runnable runnable, long deadlineNanos, long periodNanos) {
+      this.shard = shard;
+      this.runnable = runnable;
+      this.deadlineNanos = deadlineNanos;
+      this.periodNanos = periodNanos;
+    }
+
+    @Override
+    public void cancel() {
+      if (STATE.compareAndSet(this, ST_PENDING, ST_CANCELLED)) {
+        shard.cancelled.add(this);
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return state == ST_CANCELLED;
+    }
+  }
+
+  /** A doubly-linked list of tasks, so that a cancelled task can be unlinked in O(1). */
+  private static final class Bucket {
+    Task head;
+    Task tail;
+
+    void add(Task task) {
+      task.bucket = this;
+      task.prev = tail;
+      task.next = null;
+      if (tail == null) {
+        head = task;
+      } else {
+        tail.next = task;
+      }
+      tail = task;
+    }
+
+    Task remove(Task task) {
+      Task next = task.next;
+      if (task.prev != null) {
+        task.prev.next = next;
+      } else {
+        head = next;
+      }
+      if (next != null) {
+        next.prev = task.prev;
+      } else {
+        tail = task.prev;
+      }
+      task.bucket = null;
+      task.prev = null;
+      task.next = null;
+      return next;
+    }
+  }
+
+  private static final class Shard implements Runnable {
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Task> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean stopped;
+    // Owned by the worker thread.
+    private long tick;
+    // Periodic tasks that ran in the current tick, placed again once its bucket is expired.
+    private final List<Task> rescheduled = new ArrayList<>();
+
+    Shard(String name, long tickNanos, int wheelSize) {
+      this.tickNanos = tickNanos;
+      this.wheel = new Bucket[wheelSize];
+      for (int i = 0; i < wheelSize; i++) {
+        wheel[i] = new Bucket();
+      }
+      this.mask = wheelSize - 1;
+      thread = new Thread(this, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    Task add(Runnable runnable, long delayNanos, long periodNanos) {
+      long deadline = System.nanoTime() + Math.max(0, delayNanos) - startNanos;
+      Task task = new Task(this, runnable, deadline, periodNanos);
+      pending.add(task);
+      return task;
+    }
+
+    void stop() {
+      stopped = true;
+      LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        long now = waitForNextTick();
+        if (stopped) {
+          break;
+        }
+        processCancelled();
+        transferPending();
+        expire(wheel[(int) (tick & mask)], now);
+        placeRescheduled();
+        tick++;
+      }
+    }
+
+    private long waitForNextTick() {
+      long target = tickNanos * (tick + 1);
+      while (true) {
+        long now = System.nanoTime() - startNanos;
+        long sleep = target - now;
+        if (sleep <= 0 || stopped) {
+          return now;
+        }
+        LockSupport.parkNanos(this, sleep);
+      }
+    }
+
+    private void processCancelled() {
+      Task task;
+      while ((task = cancelled.poll()) != null) {
+        if (task.bucket != null) {
+          task.bucket.remove(task);
+        }
+      }
+    }
+
+    private void transferPending() {
+      Task task;
+      while ((task = pending.poll()) != null) {
+        if (task.state == Task.ST_PENDING) {
+          place(task, tick);
+        }
+      }
+    }
+
+    /**
+     * Adds {@code task} to the bucket of its deadline. {@code earliestTick} must be the first tick
+     * whose bucket is still to be expired, from which the remaining rounds are counted.
+     */
+    private void place(Task task, long earliestTick) {
+      long calculated = task.deadlineNanos / tickNanos;
+      long ticks = Math.max(calculated, earliestTick);
+      task.remainingRounds = (ticks - earliestTick) / wheel.length;
+      wheel[(int) (ticks & mask)].add(task);
+    }
+
+    private void placeRescheduled() {
+      for (Task task : rescheduled) {
+        if (task.state == Task.ST_PENDING) {
+          place(task, tick + 1);
+        }
+      }
+      rescheduled.clear();
+    }
+
+    private void expire(Bucket bucket, long now) {
+      Task task = bucket.head;
+      while (task != null) {
+        if (task.remainingRounds > 0) {
+          task.remainingRounds--;
+          task = task.next;
+          continue;
+        }
+        Task next = bucket.remove(task);
+        if (task.state == Task.ST_PENDING) {
+          runTask(task, now);
+        }
+        task = next;
+      }
+    }
+
+    private void runTask(Task task, long now) {
+      if (task.periodNanos == 0 && !Task.STATE.compareAndSet(task, Task.ST_PENDING, Task.ST_DONE)) {
+        return;
+      }
+      try {
+        task.runnable.run();
+      } catch (Throwable t) {
+        logger.log(Level.WARNING, "Timer task threw an exception", t);
+      }
+      if (task.periodNanos > 0 && task.state == Task.ST_PENDING) {
+        task.deadlineNanos += task.periodNanos;
+        if (task.deadlineNanos < now) {
+          task.deadlineNanos = now;
+        }
+        // Placed once the bucket is expired, so that the scan neither runs the task again in this
+        // tick nor counts this tick against the rounds of a period of whole revolutions.
+        rescheduled.add(task);
+      }
+    }
+  }
+}
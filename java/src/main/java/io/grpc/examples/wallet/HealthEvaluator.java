@@ -0,0 +1,257 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.services.HealthStatusManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Derives the health status of a server from how loaded it is, instead of reporting SERVING
+ * forever. Every interval it checks:
+ *
+ * <ul>
+ *   <li>the unary calls in flight, counted by this interceptor. Streams are long-lived and do not
+ *       count;
+ *   <li>the depth of the queues of the executors that do the work of the calls;
+ *   <li>the lag of its own timer, which grows when the process is short of CPU or paused by GC;
+ *   <li>the state of the channels to the dependencies, which are unreachable in
+ *       TRANSIENT_FAILURE.
+ * </ul>
+ *
+ * <p>Each check gives a load relative to its limit. The server turns NOT_SERVING once some load
+ * has been at or over 1 for {@link #OVERLOADED_INTERVALS} intervals in a row, so that balancers
+ * move traffic away before latency collapses. It turns SERVING again only once every load has
+ * stayed under {@link #RECOVERED_LOAD} for {@link #RECOVERED_INTERVALS} intervals, so that it does
+ * not flap around the limit.
+ */
+final class HealthEvaluator implements ServerInterceptor {
+  private static final Logger logger = Logger.getLogger(HealthEvaluator.class.getName());
+
+  static final int DEFAULT_INTERVAL_MS = 1000;
+  static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+  static final int DEFAULT_MAX_QUEUE_DEPTH = 1000;
+  static final int DEFAULT_MAX_LAG_MS = 200;
+  static final int OVERLOADED_INTERVALS = 2;
+  static final int RECOVERED_INTERVALS = 5;
+  static final double RECOVERED_LOAD = 0.7;
+
+  /** One input of the status, as a load relative to its limit. */
+  abstract static class Check {
+    final String name;
+
+    Check(String name) {
+      this.name = name;
+    }
+
+    /** Returns 1 at the limit of what the server can take, and more over it. */
+    abstract double load();
+  }
+
+  private final HealthStatusManager health;
+  private final List<String> services;
+  private final List<Check> checks = new ArrayList<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("health-evaluator").setDaemon(true).build());
+  private volatile long lagNanos;
+  private boolean serving = true;
+  private int overloadedIntervals;
+  private int recoveredIntervals;
+
+  /**
+   * Creates an evaluator that sets the status of {@code services} and of the server as a whole
+   * in {@code health}. It limits the unary calls in flight to {@code maxInFlight}.
+   */
+  HealthEvaluator(HealthStatusManager health, Collection<String> services, final int maxInFlight) {
+    this.health = health;
+    this.services = new ArrayList<>(services);
+    this.services.add(HealthStatusManager.SERVICE_NAME_ALL_SERVICES);
+    addCheck(
+        new Check("calls in flight") {
+          @Override
+          double load() {
+            return (double) inFlight.get() / maxInFlight;
+          }
+        });
+  }
+
+  void addCheck(Check check) {
+    checks.add(check);
+  }
+
+  /** Limits the number of tasks waiting for a thread of {@code executor}. */
+  void addQueue(String name, final ThreadPoolExecutor executor, final int maxDepth) {
+    addCheck(
+        new Check(name + " queue") {
+          @Override
+          double load() {
+            return (double) executor.getQueue().size() / maxDepth;
+          }
+        });
+  }
+
+  /** Limits the lag of the evaluation timer to {@code maxLagMs}. */
+  void addLagLimit(final long maxLagMs) {
+    addCheck(
+        new Check("timer lag") {
+          @Override
+          double load() {
+            return (double) lagNanos / MILLISECONDS.toNanos(maxLagMs);
+          }
+        });
+  }
+
+  /** Requires the dependency behind {@code channel} to be reachable. */
+  void addDependency(String name, final ManagedChannel channel) {
+    addCheck(
+        new Check(name) {
+          @Override
+          double load() {
+            return channel.getState(false) == ConnectivityState.TRANSIENT_FAILURE
+                ? Double.POSITIVE_INFINITY
+                : 0;
+          }
+        });
+  }
+
+  /**
+   * Reports SERVING, then evaluates the status every {@code intervalMs}, unless it is 0 in which
+   * case the server stays SERVING.
+   */
+  void start(final long intervalMs) {
+    setStatus(ServingStatus.SERVING);
+    if (intervalMs <= 0) {
+      return;
+    }
+    final long intervalNanos = MILLISECONDS.toNanos(intervalMs);
+    final long startNanos = System.nanoTime();
+    scheduler.scheduleAtFixedRate(
+        new Runnable() {
+          private long runs;
+
+          @Override
+          public void run() {
+            runs++;
+            lagNanos = Math.max(0, System.nanoTime() - startNanos - runs * intervalNanos);
+            evaluate();
+          }
+        },
+        intervalMs,
+        intervalMs,
+        MILLISECONDS);
+  }
+
+  void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  synchronized boolean isServing() {
+    return serving;
+  }
+
+  /** Checks the loads once, and updates the status if the hysteresis allows it. */
+  synchronized void evaluate() {
+    Check worst = null;
+    double worstLoad = 0;
+    for (Check check : checks) {
+      double load = check.load();
+      if (worst == null || load > worstLoad) {
+        worst = check;
+        worstLoad = load;
+      }
+    }
+    if (serving) {
+      overloadedIntervals = worstLoad >= 1 ? overloadedIntervals + 1 : 0;
+      if (overloadedIntervals >= OVERLOADED_INTERVALS) {
+        serving = false;
+        recoveredIntervals = 0;
+        logger.warning("Reporting NOT_SERVING, " + describe(worst.name, worstLoad));
+        setStatus(ServingStatus.NOT_SERVING);
+      }
+    } else {
+      recoveredIntervals = worstLoad < RECOVERED_LOAD ? recoveredIntervals + 1 : 0;
+      if (recoveredIntervals >= RECOVERED_INTERVALS) {
+        serving = true;
+        overloadedIntervals = 0;
+        logger.info("Reporting SERVING again, " + describe(worst.name, worstLoad));
+        setStatus(ServingStatus.SERVING);
+      }
+    }
+  }
+
+  private static String describe(String name, double load) {
+    return Double.isInfinite(load)
+        ? name + " unreachable"
+        : name + " at " + Math.round(load * 100) + "% of its limit";
+  }
+
+  private void setStatus(ServingStatus status) {
+    for (String service : services) {
+      health.setStatus(service, status);
+    }
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    if (!call.getMethodDescriptor().getType().serverSendsOneMessage()) {
+      return next.startCall(call, requestHeaders);
+    }
+    inFlight.incrementAndGet();
+    ServerCall.Listener<ReqT> listener;
+    try {
+      listener = next.startCall(call, requestHeaders);
+    } catch (RuntimeException e) {
+      inFlight.decrementAndGet();
+      throw e;
+    }
+    return new SimpleForwardingServerCallListener<ReqT>(listener) {
+      @Override
+      public void onComplete() {
+        inFlight.decrementAndGet();
+        super.onComplete();
+      }
+
+      @Override
+      public void onCancel() {
+        inFlight.decrementAndGet();
+        super.onCancel();
+      }
+    };
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.Attributes;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.ManagedChannel;
+import io.grpc.NameResolver;
+import io.grpc.Server;
+import io.grpc.ServerTransportFilter;
+import io.grpc.Status;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.inprocess.InProcessSocketAddress;
+import io.grpc.stub.StreamObserver;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares load balancing policies offline. For each policy it starts a fresh set of in-process
+ * account backends, each with its own zone, latency distribution, failure rate and restarts, and
+ * all of them with periodic GC-like pauses. It then plays the same seeded workload of Poisson
+ * arrivals through a channel that uses the real {@link io.grpc.LoadBalancerProvider} of the
+ * policy, and reports latency percentiles, errors, the share of calls each backend served and
+ * the number of times clients reconnected, one policy per row.
+ *
+ * <p>Run it with {@code ./gradlew simulateLoadBalancers -PsimArgs="--qps=500 ..."}. No network
+ * is used.
+ */
+public class LoadBalancerSimulator {
+  private static final Logger logger = Logger.getLogger(LoadBalancerSimulator.class.getName());
+
+  /** The configs of the policies the simulator knows, by the label used in reports. */
+  private static final Map<String, Map<String, ?>> POLICIES = new LinkedHashMap<>();
+
+  static {
+    POLICIES.put("round_robin", lbConfig("round_robin", ImmutableMap.<String, Object>of()));
+    POLICIES.put("pick_first", lbConfig("pick_first", ImmutableMap.<String, Object>of()));
+    POLICIES.put(
+        "outlier_detection",
+        lbConfig("example.ExampleLoadBalancer", ImmutableMap.of("message", "simulator")));
+    POLICIES.put(
+        "locality", lbConfig("example.LocalityLoadBalancer", ImmutableMap.of("localZone", "a")));
+    POLICIES.put(
+        "locality_outlier_detection",
+        lbConfig(
+            "example.ExampleLoadBalancer",
+            ImmutableMap.of(
+                "message", "simulator",
+                "childPolicy", "example.LocalityLoadBalancer",
+                "childPolicyConfig", ImmutableMap.of("localZone", "a"))));
+  }
+
+  private String backendSpecs = "a:5,a:5,a:20,b:5,b:5:10,b:5:0:3000";
+  private String policies = String.join(",", POLICIES.keySet());
+  private int qps = 1000;
+  private long durationMs = 10000;
+  private double latencySigma = 0.5;
+  private long gcIntervalMs = 2000;
+  private long gcPauseMs = 100;
+  private long deadlineMs = 1000;
+  private long seed = 1;
+
+  void parseArgs(String[] args) {
+    boolean usage = false;
+    for (String arg : args) {
+      if (!arg.startsWith("--")) {
+        System.err.println("All arguments must start with '--': " + arg);
+        usage = true;
+        break;
+      }
+      String[] parts = arg.substring(2).split("=", 2);
+      String key = parts[0];
+      if ("help".equals(key)) {
+        usage = true;
+        break;
+      }
+      if (parts.length != 2) {
+        System.err.println("All flags must be of the form --arg=value");
+        usage = true;
+        break;
+      }
+      String value = parts[1];
+      if ("backends".equals(key)) {
+        backendSpecs = value;
+      } else if ("policies".equals(key)) {
+        policies = value;
+      } else if ("qps".equals(key)) {
+        qps = Integer.parseInt(value);
+      } else if ("duration_ms".equals(key)) {
+        durationMs = Long.parseLong(value);
+      } else if ("latency_sigma".equals(key)) {
+        latencySigma = Double.parseDouble(value);
+      } else if ("gc_interval_ms".equals(key)) {
+        gcIntervalMs = Long.parseLong(value);
+      } else if ("gc_pause_ms".equals(key)) {
+        gcPauseMs = Long.parseLong(value);
+      } else if ("deadline_ms".equals(key)) {
+        deadlineMs = Long.parseLong(value);
+      } else if ("seed".equals(key)) {
+        seed = Long.parseLong(value);
+      } else {
+        System.err.println("Unknown argument: " + key);
+        usage = true;
+        break;
+      }
+    }
+    if (usage) {
+      LoadBalancerSimulator s = new LoadBalancerSimulator();
+      System.out.println(
+          "Usage: [ARGS...]"
+              + "\n"
+              + "\n  --backends=SPECS       Comma-separated backends, each "
+              + "ZONE:MEDIAN_MS[:FAIL_PERCENT[:RESTART_EVERY_MS]]. Default "
+              + s.backendSpecs
+              + "\n  --policies=LIST        Comma-separated policies to compare, from "
+              + POLICIES.keySet()
+              + ". Default all"
+              + "\n  --qps=INT              Average rate of calls. Default "
+              + s.qps
+              + "\n  --duration_ms=INT      Length of the workload. Default "
+              + s.durationMs
+              + "\n  --latency_sigma=FLOAT  Spread of the log-normal backend latencies. Default "
+              + s.latencySigma
+              + "\n  --gc_interval_ms=INT   How often each backend pauses, 0 for never. Default "
+              + s.gcIntervalMs
+              + "\n  --gc_pause_ms=INT      How long each pause lasts. Default "
+              + s.gcPauseMs
+              + "\n  --deadline_ms=INT      Deadline of each call. Default "
+              + s.deadlineMs
+              + "\n  --seed=INT             Seed of the workload and backends. Default "
+              + s.seed);
+      System.exit(1);
+    }
+  }
+
+  private static Map<String, ?> lbConfig(String policy, Map<String, ?> config) {
+    return ImmutableMap.of(
+        "loadBalancingConfig", ImmutableList.of(ImmutableMap.of(policy, config)));
+  }
+
+  /** A simulated account backend that keeps serving under the same name across restarts. */
+  private static final class Backend extends AccountGrpc.AccountImplBase {
+    final String name = InProcessServerBuilder.generateName();
+    final String zone;
+    final double medianMs;
+    final int failPercent;
+    final long restartEveryMs;
+    final double latencySigma;
+    final ScheduledExecutorService executor;
+    final Random random;
+    final AtomicLong calls = new AtomicLong();
+    final AtomicInteger connections = new AtomicInteger();
+    volatile long pausedUntilNanos;
+    Server server;
+
+    Backend(String spec, double latencySigma, ScheduledExecutorService executor, long seed) {
+      String[] parts = spec.split(":");
+      if (parts.length < 2 || parts.length > 4) {
+        throw new IllegalArgumentException("Bad backend spec: " + spec);
+      }
+      this.zone = parts[0];
+      this.medianMs = Double.parseDouble(parts[1]);
+      this.failPercent = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+      this.restartEveryMs = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+      this.latencySigma = latencySigma;
+      this.executor = executor;
+      this.random = new Random(seed);
+    }
+
+    synchronized void start() throws IOException {
+      server =
+          InProcessServerBuilder.forName(name)
+              .addService(this)
+              .addTransportFilter(
+                  new ServerTransportFilter() {
+                    @Override
+                    public Attributes transportReady(Attributes transportAttrs) {
+                      connections.incrementAndGet();
+                      return transportAttrs;
+                    }
+                  })
+              .build()
+              .start();
+    }
+
+    synchronized void stop() {
+      server.shutdownNow();
+    }
+
+    /** Starts the pauses and restarts of this backend. */
+    void schedule(long gcIntervalMs, final long gcPauseMs) {
+      if (gcIntervalMs > 0) {
+        executor.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                pausedUntilNanos = System.nanoTime() + MILLISECONDS.toNanos(gcPauseMs);
+              }
+            },
+            random.nextInt((int) gcIntervalMs),
+            gcIntervalMs,
+            MILLISECONDS);
+      }
+      if (restartEveryMs > 0) {
+        executor.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                stop();
+                try {
+                  start();
+                } catch (IOException e) {
+                  logger.log(Level.WARNING, "Failed to restart backend " + name, e);
+                }
+              }
+            },
+            restartEveryMs,
+            restartEveryMs,
+            MILLISECONDS);
+      }
+    }
+
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, final StreamObserver<GetUserInfoResponse> responseObserver) {
+      calls.incrementAndGet();
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      if (random.nextInt(100) < failPercent) {
+        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        return;
+      }
+      double latencyMs = medianMs * Math.exp(random.nextGaussian() * latencySigma);
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              long pausedNanos = pausedUntilNanos - System.nanoTime();
+              if (pausedNanos > 0) {
+                // Responses due during a pause go out when it ends.
+                executor.schedule(this, pausedNanos, NANOSECONDS);
+                return;
+              }
+              responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+              responseObserver.onCompleted();
+            }
+          },
+          (long) (latencyMs * 1000),
+          MICROSECONDS);
+    }
+
+  }
+
+  /** The outcome of the workload under one policy. */
+  private static final class Result {
+    final String policy;
+    final long[] latenciesNanos;
+    final int errors;
+    final long[] callsPerBackend;
+    final int reconnections;
+
+    Result(
+        String policy,
+        long[] latenciesNanos,
+        int errors,
+        long[] callsPerBackend,
+        int reconnections) {
+      this.policy = policy;
+      this.latenciesNanos = latenciesNanos;
+      this.errors = errors;
+      this.callsPerBackend = callsPerBackend;
+      this.reconnections = reconnections;
+    }
+
+    double percentileMs(double percentile) {
+      if (latenciesNanos.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.min(latenciesNanos.length - 1, latenciesNanos.length * percentile);
+      return latenciesNanos[index] / 1e6;
+    }
+  }
+
+  /** Arrival times of the workload, from its start. */
+  private long[] workload() {
+    Random random = new Random(seed);
+    long meanGapNanos = 1_000_000_000L / qps;
+    long endNanos = MILLISECONDS.toNanos(durationMs);
+    List<Long> arrivals = new ArrayList<>();
+    for (long t = 0; t < endNanos; ) {
+      arrivals.add(t);
+      // Exponential gaps between arrivals make a Poisson process.
+      t += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+    }
+    long[] result = new long[arrivals.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = arrivals.get(i);
+    }
+    return result;
+  }
+
+  private Result simulate(String policy, long[] arrivals) throws Exception {
+    Map<String, ?> serviceConfig = POLICIES.get(policy);
+    if (serviceConfig == null) {
+      throw new IllegalArgumentException("Unknown policy " + policy + ", not in " + POLICIES);
+    }
+    ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+    final List<Backend> backends = new ArrayList<>();
+    final List<EquivalentAddressGroup> addresses = new ArrayList<>();
+    long backendSeed = seed;
+    for (String spec : backendSpecs.split(",")) {
+      Backend backend = new Backend(spec, latencySigma, executor, backendSeed++);
+      backend.start();
+      backends.add(backend);
+      addresses.add(
+          new EquivalentAddressGroup(
+              new InProcessSocketAddress(backend.name),
+              Attributes.newBuilder()
+                  .set(LocalityLoadBalancerProvider.ZONE, backend.zone)
+                  .build()));
+    }
+    ManagedChannel channel =
+        InProcessChannelBuilder.forTarget("simulator:///account")
+            .nameResolverFactory(new FixedResolverFactory(addresses))
+            .defaultServiceConfig(serviceConfig)
+            .build();
+    try {
+      for (Backend backend : backends) {
+        backend.schedule(gcIntervalMs, gcPauseMs);
+      }
+      final long[] latencies = new long[arrivals.length];
+      final AtomicInteger errors = new AtomicInteger();
+      final CountDownLatch done = new CountDownLatch(arrivals.length);
+      AccountGrpc.AccountStub stub = AccountGrpc.newStub(channel);
+      GetUserInfoRequest request = GetUserInfoRequest.getDefaultInstance();
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < arrivals.length; i++) {
+        long wait;
+        while ((wait = startNanos + arrivals[i] - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        final int call = i;
+        final long callStartNanos = System.nanoTime();
+        stub.withDeadlineAfter(deadlineMs, MILLISECONDS)
+            .getUserInfo(
+                request,
+                new StreamObserver<GetUserInfoResponse>() {
+                  @Override
+                  public void onNext(GetUserInfoResponse response) {}
+
+                  @Override
+                  public void onError(Throwable t) {
+                    latencies[call] = System.nanoTime() - callStartNanos;
+                    errors.incrementAndGet();
+                    done.countDown();
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    latencies[call] = System.nanoTime() - callStartNanos;
+                    done.countDown();
+                  }
+                });
+      }
+      done.await();
+      Arrays.sort(latencies);
+      long[] callsPerBackend = new long[backends.size()];
+      int reconnections = 0;
+      for (int i = 0; i < backends.size(); i++) {
+        callsPerBackend[i] = backends.get(i).calls.get();
+        reconnections += Math.max(0, backends.get(i).connections.get() - 1);
+      }
+      return new Result(policy, latencies, errors.get(), callsPerBackend, reconnections);
+    } finally {
+      channel.shutdownNow();
+      executor.shutdownNow();
+      for (Backend backend : backends) {
+        backend.stop();
+      }
+    }
+  }
+
+  private void run() throws Exception {
+    long[] arrivals = workload();
+    List<Result> results = new ArrayList<>();
+    for (String policy : policies.split(",")) {
+      System.out.println("Simulating " + policy + " with " + arrivals.length + " calls...");
+      results.add(simulate(policy.trim(), arrivals));
+    }
+
+    System.out.println();
+    System.out.printf(
+        "%-28s %8s %7s %8s %8s %8s %8s %10s%n",
+        "policy", "calls", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "reconnects");
+    for (Result result : results) {
+      System.out.printf(
+          "%-28s %8d %7d %8.1f %8.1f %8.1f %8.1f %10d%n",
+          result.policy,
+          result.latenciesNanos.length,
+          result.errors,
+          result.percentileMs(0.5),
+          result.percentileMs(0.9),
+          result.percentileMs(0.99),
+          result.percentileMs(0.999),
+          result.reconnections);
+    }
+
+    String[] specs = backendSpecs.split(",");
+    System.out.println();
+    System.out.println("Share of calls per backend (%):");
+    StringBuilder header = new StringBuilder(String.format("%-28s", "policy"));
+    for (String spec : specs) {
+      header.append(String.format(" %14s", spec));
+    }
+    System.out.println(header);
+    for (Result result : results) {
+      long total = 0;
+      for (long calls : result.callsPerBackend) {
+        total += calls;
+      }
+      StringBuilder row = new StringBuilder(String.format("%-28s", result.policy));
+      for (long calls : result.callsPerBackend) {
+        row.append(String.format(" %14.1f", total == 0 ? 0 : 100.0 * calls / total));
+      }
+      System.out.println(row);
+    }
+  }
+
+  /** Resolves every target to the same addresses. */
+  private static final class FixedResolverFactory extends NameResolver.Factory {
+    private final List<EquivalentAddressGroup> addresses;
+
+    FixedResolverFactory(List<EquivalentAddressGroup> addresses) {
+      this.addresses = addresses;
+    }
+
+    @Override
+    public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+      return new NameResolver() {
+        @Override
+        public String getServiceAuthority() {
+          return "account";
+        }
+
+        @Override
+        public void start(Listener2 listener) {
+          listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+        }
+
+        @Override
+        public void shutdown() {}
+      };
+    }
+
+    @Override
+    public String getDefaultScheme() {
+      return "simulator";
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadBalancerSimulator simulator = new LoadBalancerSimulator();
+    simulator.parseArgs(args);
+    simulator.run();
+  }
+}
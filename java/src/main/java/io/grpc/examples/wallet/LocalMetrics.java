@@ -0,0 +1,304 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps per-method metrics of the calls to a server in memory, and serves them in the Prometheus
+ * text format on {@code /metrics}, without any exporter or network access. It records:
+ *
+ * <ul>
+ *   <li>a latency histogram per method and membership, from the request headers to the close of
+ *       the call;
+ *   <li>the number of calls per method, membership and status code;
+ *   <li>the number of streams open per streaming method;
+ *   <li>the number of outgoing and incoming calls this process skipped because their deadline
+ *       could not be met, as counted by {@link DeadlineInterceptors}.
+ * </ul>
+ *
+ * <p>Every count is a {@link LongAdder}, which spreads concurrent increments over cells instead of
+ * contending on one value, so that recording a call takes no lock and stays well under a
+ * microsecond. Memberships other than premium and normal are counted together, to bound the
+ * number of series.
+ */
+final class LocalMetrics implements ServerInterceptor {
+  /** Upper bounds of the latency buckets, in seconds. The last bucket is unbounded. */
+  static final double[] BUCKET_BOUNDS_SECONDS = {
+    0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5,
+    10
+  };
+
+  private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+
+  static {
+    for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+      BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_SECONDS[i] * SECONDS.toNanos(1));
+    }
+  }
+
+  private static final String[] MEMBERSHIPS = {"premium", "normal", "other"};
+  private static final Status.Code[] CODES = Status.Code.values();
+
+  private final ConcurrentMap<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+
+  /** The histogram and status counts of one method and membership. */
+  static final class Series {
+    final LongAdder[] buckets = newAdders(BUCKET_BOUNDS_NANOS.length + 1);
+    final LongAdder sumNanos = new LongAdder();
+    final LongAdder[] calls = newAdders(CODES.length);
+
+    void record(Status.Code code, long latencyNanos) {
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_NANOS.length && latencyNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sumNanos.add(latencyNanos);
+      calls[code.ordinal()].increment();
+    }
+
+    private static LongAdder[] newAdders(int count) {
+      LongAdder[] adders = new LongAdder[count];
+      for (int i = 0; i < count; i++) {
+        adders[i] = new LongAdder();
+      }
+      return adders;
+    }
+  }
+
+  /** The series of one method, one per membership, and its open streams. */
+  static final class MethodMetrics {
+    final boolean streaming;
+    final Series[] byMembership = new Series[MEMBERSHIPS.length];
+    final LongAdder openStreams = new LongAdder();
+
+    MethodMetrics(boolean streaming) {
+      this.streaming = streaming;
+      for (int i = 0; i < byMembership.length; i++) {
+        byMembership[i] = new Series();
+      }
+    }
+
+    Series series(String membership) {
+      if ("premium".equals(membership)) {
+        return byMembership[0];
+      } else if ("normal".equals(membership)) {
+        return byMembership[1];
+      }
+      return byMembership[2];
+    }
+  }
+
+  private MethodMetrics methodMetrics(String fullMethodName, boolean streaming) {
+    MethodMetrics metrics = methods.get(fullMethodName);
+    if (metrics == null) {
+      MethodMetrics fresh = new MethodMetrics(streaming);
+      metrics = methods.putIfAbsent(fullMethodName, fresh);
+      if (metrics == null) {
+        metrics = fresh;
+      }
+    }
+    return metrics;
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    final long startNanos = System.nanoTime();
+    final MethodMetrics metrics =
+        methodMetrics(
+            call.getMethodDescriptor().getFullMethodName(),
+            !call.getMethodDescriptor().getType().serverSendsOneMessage());
+    final RecordingCall<ReqT, RespT> recordingCall =
+        new RecordingCall<>(
+            call,
+            metrics.series(requestHeaders.get(WalletInterceptors.MEMBERSHIP_MD_KEY)),
+            startNanos);
+    if (metrics.streaming) {
+      metrics.openStreams.increment();
+    }
+    return new SimpleForwardingServerCallListener<ReqT>(
+        next.startCall(recordingCall, requestHeaders)) {
+      @Override
+      public void onComplete() {
+        if (metrics.streaming) {
+          metrics.openStreams.decrement();
+        }
+        super.onComplete();
+      }
+
+      @Override
+      public void onCancel() {
+        if (metrics.streaming) {
+          metrics.openStreams.decrement();
+        }
+        // A call cancelled by its client or deadline is never closed by the handler.
+        recordingCall.record(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  /** Records the latency and status of a call when it closes, or when it is cancelled. */
+  private static final class RecordingCall<ReqT, RespT>
+      extends SimpleForwardingServerCall<ReqT, RespT> {
+    private final Series series;
+    private final long startNanos;
+    private final AtomicBoolean recorded = new AtomicBoolean();
+
+    RecordingCall(ServerCall<ReqT, RespT> delegate, Series series, long startNanos) {
+      super(delegate);
+      this.series = series;
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void close(Status status, Metadata trailers) {
+      record(status.getCode());
+      super.close(status, trailers);
+    }
+
+    /** Records the call once, whether it is closed, cancelled or both. */
+    void record(Status.Code code) {
+      if (recorded.compareAndSet(false, true)) {
+        series.record(code, System.nanoTime() - startNanos);
+      }
+    }
+  }
+
+  /** Returns every metric in the Prometheus text exposition format. */
+  String render() {
+    Map<String, MethodMetrics> sorted = new TreeMap<>(methods);
+    StringBuilder out = new StringBuilder();
+    out.append("# HELP grpc_server_latency_seconds Latency of calls, from headers to close.\n");
+    out.append("# TYPE grpc_server_latency_seconds histogram\n");
+    for (Map.Entry<String, MethodMetrics> method : sorted.entrySet()) {
+      for (int m = 0; m < MEMBERSHIPS.length; m++) {
+        Series series = method.getValue().byMembership[m];
+        String labels = labels(method.getKey(), MEMBERSHIPS[m]);
+        long count = 0;
+        for (int b = 0; b < series.buckets.length; b++) {
+          count += series.buckets[b].sum();
+          String bound =
+              b < BUCKET_BOUNDS_SECONDS.length ? Double.toString(BUCKET_BOUNDS_SECONDS[b]) : "+Inf";
+          out.append("grpc_server_latency_seconds_bucket{")
+              .append(labels)
+              .append(",le=\"")
+              .append(bound)
+              .append("\"} ")
+              .append(count)
+              .append('\n');
+        }
+        out.append("grpc_server_latency_seconds_sum{")
+            .append(labels)
+            .append("} ")
+            .append(series.sumNanos.sum() / 1e9)
+            .append('\n');
+        out.append("grpc_server_latency_seconds_count{")
+            .append(labels)
+            .append("} ")
+            .append(count)
+            .append('\n');
+      }
+    }
+    out.append("# HELP grpc_server_calls_total Calls completed, by status code.\n");
+    out.append("# TYPE grpc_server_calls_total counter\n");
+    for (Map.Entry<String, MethodMetrics> method : sorted.entrySet()) {
+      for (int m = 0; m < MEMBERSHIPS.length; m++) {
+        Series series = method.getValue().byMembership[m];
+        for (int c = 0; c < CODES.length; c++) {
+          long calls = series.calls[c].sum();
+          if (calls == 0) {
+            continue;
+          }
+          out.append("grpc_server_calls_total{")
+              .append(labels(method.getKey(), MEMBERSHIPS[m]))
+              .append(",code=\"")
+              .append(CODES[c])
+              .append("\"} ")
+              .append(calls)
+              .append('\n');
+        }
+      }
+    }
+    out.append("# HELP grpc_server_open_streams Streams currently open.\n");
+    out.append("# TYPE grpc_server_open_streams gauge\n");
+    for (Map.Entry<String, MethodMetrics> method : sorted.entrySet()) {
+      if (method.getValue().streaming) {
+        out.append("grpc_server_open_streams{method=\"")
+            .append(method.getKey())
+            .append("\"} ")
+            .append(method.getValue().openStreams.sum())
+            .append('\n');
+      }
+    }
+    out.append("# HELP grpc_deadline_skipped_calls_total Calls not started for lack of time.\n");
+    out.append("# TYPE grpc_deadline_skipped_calls_total counter\n");
+    out.append("grpc_deadline_skipped_calls_total ")
+        .append(DeadlineInterceptors.skippedCalls())
+        .append('\n');
+    return out.toString();
+  }
+
+  private static String labels(String method, String membership) {
+    return "method=\"" + method + "\",membership=\"" + membership + "\"";
+  }
+
+  /** Starts serving the metrics on {@code /metrics} of {@code port}. */
+  HttpServer serve(int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(
+        "/metrics",
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            byte[] body = render().getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+              out.write(body);
+            }
+          }
+        });
+    server.start();
+    return server;
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static io.grpc.ConnectivityState.CONNECTING;
+import static io.grpc.ConnectivityState.IDLE;
+import static io.grpc.ConnectivityState.READY;
+import static io.grpc.ConnectivityState.TRANSIENT_FAILURE;
+
+import io.grpc.Attributes;
+import io.grpc.ClientStreamTracer;
+import io.grpc.ConnectivityState;
+import io.grpc.ConnectivityStateInfo;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.LoadBalancer;
+import io.grpc.LoadBalancerProvider;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.NameResolver.ConfigOrError;
+import io.grpc.Status;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a {@link LoadBalancer} that keeps calls in the zone of the client. Backends whose
+ * addresses carry the {@link #ZONE} attribute of the local zone, or no zone at all, are preferred;
+ * calls spill over to the other zones only when no local backend is ready, or when every local
+ * backend already has {@code maxOutstandingPerBackend} calls in flight. Within a zone, each call
+ * goes to the less loaded of two random ready backends.
+ *
+ * <p>Only unary calls count as in flight. Streams, such as watches that stay open and idle for the
+ * life of a client, are placed the same way but never count against a backend, so that they
+ * neither push unary calls to other zones nor mask how busy a backend really is.
+ *
+ * <p>The config takes the local zone as {@code localZone}, falling back to the {@code WALLET_ZONE}
+ * environment variable, and the spillover threshold as {@code maxOutstandingPerBackend}. To also
+ * eject outliers, use this policy as the {@code childPolicy} of {@link
+ * ExampleLoadBalancerProvider}.
+ *
+ * <p><b>Only the {@link #ZONE} attribute is read, and no name resolver shipped with gRPC sets
+ * it.</b> The DNS resolver knows no zones, and xDS delivers the locality of each endpoint in its
+ * own internal attribute, which this policy does not map. Behind such a resolver every backend
+ * counts as local and the policy only balances by load. Zones take effect with a name resolver
+ * that tags each address with {@link #ZONE}, as the one of {@code LocalityLoadBalancerTest} and
+ * the backends of {@link LoadBalancerSimulator} do. Under xDS, use its own locality-aware
+ * balancing instead.
+ */
+public class LocalityLoadBalancerProvider extends LoadBalancerProvider {
+
+  /**
+   * The zone of the backend behind an {@link EquivalentAddressGroup}, to be set by the name
+   * resolver. Addresses without it count as local.
+   */
+  public static final Attributes.Key<String> ZONE =
+      Attributes.Key.create("io.grpc.examples.wallet.zone");
+
+  static final int DEFAULT_MAX_OUTSTANDING_PER_BACKEND = 100;
+
+  private static final AtomicLong spilledCalls = new AtomicLong();
+
+  /** Returns the number of calls sent to another zone by the balancers of this process. */
+  static long spilledCalls() {
+    return spilledCalls.get();
+  }
+
+  @Override
+  public ConfigOrError parseLoadBalancingPolicyConfig(
+      Map<String, ?> rawLoadBalancingPolicyConfig) {
+    try {
+      String localZone = (String) rawLoadBalancingPolicyConfig.get("localZone");
+      if (localZone == null) {
+        localZone = System.getenv("WALLET_ZONE");
+      }
+      Number maxOutstanding =
+          (Number) rawLoadBalancingPolicyConfig.get("maxOutstandingPerBackend");
+      int maxOutstandingPerBackend =
+          maxOutstanding == null ? DEFAULT_MAX_OUTSTANDING_PER_BACKEND : maxOutstanding.intValue();
+      if (maxOutstandingPerBackend <= 0) {
+        return ConfigOrError.fromError(
+            Status.UNAVAILABLE.withDescription("maxOutstandingPerBackend must be positive"));
+      }
+      return ConfigOrError.fromConfig(new LocalityConfig(localZone, maxOutstandingPerBackend));
+    } catch (RuntimeException e) {
+      return ConfigOrError.fromError(
+          Status.UNAVAILABLE.withDescription("Failed to parse locality LB config").withCause(e));
+    }
+  }
+
+  @Override
+  public String getPolicyName() {
+    return "example.LocalityLoadBalancer";
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  public int getPriority() {
+    return 5;
+  }
+
+  @Override
+  public LoadBalancer newLoadBalancer(Helper helper) {
+    return new LocalityLoadBalancer(helper);
+  }
+
+  /** Parsed configuration for {@link LocalityLoadBalancer}. */
+  static final class LocalityConfig {
+    // Null if the zone of this client is unknown, in which case every backend is local.
+    final String localZone;
+    final int maxOutstandingPerBackend;
+
+    LocalityConfig(String localZone, int maxOutstandingPerBackend) {
+      this.localZone = localZone;
+      this.maxOutstandingPerBackend = maxOutstandingPerBackend;
+    }
+  }
+
+  /** A subchannel to one backend, with its zone and the number of unary calls in flight on it. */
+  private static final class Backend {
+    final Subchannel subchannel;
+    final AtomicInteger outstanding = new AtomicInteger();
+    String zone;
+    ConnectivityStateInfo state = ConnectivityStateInfo.forNonError(IDLE);
+    boolean removed;
+
+    Backend(Subchannel subchannel, String zone) {
+      this.subchannel = subchannel;
+      this.zone = zone;
+    }
+  }
+
+  /**
+   * Creates a subchannel per resolved address group and picks among the ready ones, preferring
+   * the local zone.
+   */
+  static final class LocalityLoadBalancer extends LoadBalancer {
+    private final Helper helper;
+    private final Map<List<SocketAddress>, Backend> backends = new HashMap<>();
+    private LocalityConfig config;
+
+    LocalityLoadBalancer(Helper helper) {
+      this.helper = helper;
+    }
+
+    @Override
+    public void handleResolvedAddresses(ResolvedAddresses resolvedAddresses) {
+      config = (LocalityConfig) resolvedAddresses.getLoadBalancingPolicyConfig();
+      Map<List<SocketAddress>, Backend> removed = new HashMap<>(backends);
+      for (EquivalentAddressGroup addressGroup : resolvedAddresses.getAddresses()) {
+        String zone = addressGroup.getAttributes().get(ZONE);
+        Backend backend = backends.get(addressGroup.getAddresses());
+        if (backend != null) {
+          removed.remove(addressGroup.getAddresses());
+          backend.zone = zone;
+          continue;
+        }
+        Subchannel subchannel =
+            helper.createSubchannel(
+                CreateSubchannelArgs.newBuilder().setAddresses(addressGroup).build());
+        final Backend added = new Backend(subchannel, zone);
+        backends.put(addressGroup.getAddresses(), added);
+        subchannel.start(
+            new SubchannelStateListener() {
+              @Override
+              public void onSubchannelState(ConnectivityStateInfo newState) {
+                handleSubchannelState(added, newState);
+              }
+            });
+        subchannel.requestConnection();
+      }
+      for (Map.Entry<List<SocketAddress>, Backend> entry : removed.entrySet()) {
+        backends.remove(entry.getKey());
+        entry.getValue().removed = true;
+        entry.getValue().subchannel.shutdown();
+      }
+      updateBalancingState();
+    }
+
+    @Override
+    public void handleNameResolutionError(Status error) {
+      if (backends.isEmpty()) {
+        helper.updateBalancingState(TRANSIENT_FAILURE, new ErrorPicker(error));
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      for (Backend backend : backends.values()) {
+        backend.removed = true;
+        backend.subchannel.shutdown();
+      }
+      backends.clear();
+    }
+
+    private void handleSubchannelState(Backend backend, ConnectivityStateInfo newState) {
+      if (backend.removed || newState.getState() == ConnectivityState.SHUTDOWN) {
+        return;
+      }
+      backend.state = newState;
+      if (newState.getState() == IDLE) {
+        backend.subchannel.requestConnection();
+      }
+      if (newState.getState() == TRANSIENT_FAILURE || newState.getState() == IDLE) {
+        helper.refreshNameResolution();
+      }
+      updateBalancingState();
+    }
+
+    private void updateBalancingState() {
+      List<Backend> local = new ArrayList<>();
+      List<Backend> remote = new ArrayList<>();
+      boolean connecting = false;
+      Status failure = Status.UNAVAILABLE.withDescription("No backends");
+      for (Backend backend : backends.values()) {
+        ConnectivityState state = backend.state.getState();
+        if (state == READY) {
+          if (config.localZone == null
+              || backend.zone == null
+              || backend.zone.equals(config.localZone)) {
+            local.add(backend);
+          } else {
+            remote.add(backend);
+          }
+        } else if (state == CONNECTING || state == IDLE) {
+          connecting = true;
+        } else if (state == TRANSIENT_FAILURE) {
+          failure = backend.state.getStatus();
+        }
+      }
+      if (!local.isEmpty() || !remote.isEmpty()) {
+        helper.updateBalancingState(
+            READY, new LocalityPicker(local, remote, config.maxOutstandingPerBackend));
+      } else if (connecting) {
+        helper.updateBalancingState(CONNECTING, new ErrorPicker(null));
+      } else {
+        helper.updateBalancingState(TRANSIENT_FAILURE, new ErrorPicker(failure));
+      }
+    }
+  }
+
+  /** Fails picks with a status, or queues them if it has none. */
+  private static final class ErrorPicker extends SubchannelPicker {
+    private final Status error;
+
+    ErrorPicker(Status error) {
+      this.error = error;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      return error == null ? PickResult.withNoResult() : PickResult.withError(error);
+    }
+  }
+
+  /** Picks a local backend unless they are all too busy, in which case it spills over. */
+  private static final class LocalityPicker extends SubchannelPicker {
+    private final List<Backend> local;
+    private final List<Backend> remote;
+    private final int maxOutstanding;
+
+    LocalityPicker(List<Backend> local, List<Backend> remote, int maxOutstanding) {
+      this.local = local;
+      this.remote = remote;
+      this.maxOutstanding = maxOutstanding;
+    }
+
+    @Override
+    public PickResult pickSubchannel(PickSubchannelArgs args) {
+      Backend backend = leastLoadedOfTwo(local);
+      if (backend == null || backend.outstanding.get() >= maxOutstanding) {
+        Backend spillover = leastLoadedOfTwo(remote);
+        if (spillover != null
+            && (backend == null || spillover.outstanding.get() < maxOutstanding)) {
+          spilledCalls.incrementAndGet();
+          backend = spillover;
+        }
+      }
+      if (args.getMethodDescriptor().getType() != MethodDescriptor.MethodType.UNARY) {
+        return PickResult.withSubchannel(backend.subchannel);
+      }
+      return PickResult.withSubchannel(backend.subchannel, new OutstandingTracerFactory(backend));
+    }
+
+    private static Backend leastLoadedOfTwo(List<Backend> backends) {
+      if (backends.isEmpty()) {
+        return null;
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Backend a = backends.get(random.nextInt(backends.size()));
+      Backend b = backends.get(random.nextInt(backends.size()));
+      return b.outstanding.get() < a.outstanding.get() ? b : a;
+    }
+  }
+
+  /** Counts the unary calls in flight on a backend. */
+  private static final class OutstandingTracerFactory extends ClientStreamTracer.Factory {
+    private final Backend backend;
+
+    OutstandingTracerFactory(Backend backend) {
+      this.backend = backend;
+    }
+
+    @Override
+    public ClientStreamTracer newClientStreamTracer(
+        ClientStreamTracer.StreamInfo info, Metadata headers) {
+      backend.outstanding.incrementAndGet();
+      return new ClientStreamTracer() {
+        @Override
+        public void streamClosed(Status status) {
+          backend.outstanding.decrementAndGet();
+        }
+      };
+    }
+  }
+}
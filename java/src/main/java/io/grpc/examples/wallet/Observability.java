@@ -21,29 +21,30 @@ import io.opencensus.exporter.stats.stackdriver.StackdriverStatsConfiguration;
 import io.opencensus.exporter.stats.stackdriver.StackdriverStatsExporter;
 import io.opencensus.exporter.trace.stackdriver.StackdriverTraceConfiguration;
 import io.opencensus.exporter.trace.stackdriver.StackdriverTraceExporter;
+import io.opencensus.trace.Sampler;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.config.TraceConfig;
-import io.opencensus.trace.samplers.Samplers;
 
 /** Utilities to configure stats and tracing. */
 public final class Observability {
   private Observability() {}
 
-  static void registerExporters(String gcpProjectId) {
+  /** Registers the exporters to Stackdriver, and samples the traces with {@code sampler}. */
+  static void registerExporters(String gcpProjectId, Sampler sampler) {
     try {
       // Register all the gRPC views and enable stats
       RpcViews.registerAllGrpcViews();
+      DeadlineInterceptors.registerViews();
 
       StackdriverStatsExporter.createAndRegister(
           StackdriverStatsConfiguration.builder()
               .setProjectId(gcpProjectId)
               .build());
 
-      // For demo purposes, always sample
       TraceConfig traceConfig = Tracing.getTraceConfig();
       traceConfig.updateActiveTraceParams(
           traceConfig.getActiveTraceParams().toBuilder()
-              .setSampler(Samplers.alwaysSample())
+              .setSampler(sampler)
               .build());
 
       StackdriverTraceExporter.createAndRegister(
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Finds the endpoints that do worse than their peers and ejects them for a while.
+ *
+ * <p>Each endpoint counts its successes, failures and unary call latencies in a ring of
+ * per-interval atomic counters, so recording a call never takes a lock. Every interval, {@link
+ * #runInterval} judges the endpoints over the whole ring. An endpoint is an outlier when its
+ * share of failed calls reaches {@code failurePercentageThreshold}, or, once at least {@code
+ * minimumHosts} endpoints have enough calls to compare, when its success rate is {@code
+ * successRateStdevFactor} standard deviations below the mean or its mean latency is {@code
+ * latencyFactor} times the median. Each ejection of the same endpoint lasts twice as long as the
+ * one before, up to {@code maxEjectionTimeMs}, and no more than {@code maxEjectionPercent} of the
+ * endpoints are ejected at once.
+ *
+ * <p>Only {@link Endpoint#record} may be called concurrently; everything else must run on one
+ * thread at a time, such as a load balancer's synchronization context.
+ */
+final class OutlierDetector {
+
+  /** Something that can be taken out of and put back into rotation. */
+  interface Target {
+    void eject();
+
+    void uneject();
+  }
+
+  /** Thresholds of an {@link OutlierDetector}. */
+  static final class Config {
+    static final long DEFAULT_INTERVAL_MS = 1000;
+    static final int DEFAULT_WINDOW_INTERVALS = 10;
+    static final long DEFAULT_BASE_EJECTION_TIME_MS = 30000;
+    static final long DEFAULT_MAX_EJECTION_TIME_MS = 300000;
+    static final int DEFAULT_MAX_EJECTION_PERCENT = 10;
+    static final int DEFAULT_MINIMUM_HOSTS = 3;
+    static final int DEFAULT_REQUEST_VOLUME = 20;
+    static final double DEFAULT_SUCCESS_RATE_STDEV_FACTOR = 1.9;
+    static final int DEFAULT_FAILURE_PERCENTAGE_THRESHOLD = 50;
+    static final double DEFAULT_LATENCY_FACTOR = 3;
+
+    final long intervalMs;
+    final int windowIntervals;
+    final long baseEjectionTimeMs;
+    final long maxEjectionTimeMs;
+    final int maxEjectionPercent;
+    final int minimumHosts;
+    final int requestVolume;
+    final double successRateStdevFactor;
+    final int failurePercentageThreshold;
+    final double latencyFactor;
+
+    Config(
+        long intervalMs,
+        int windowIntervals,
+        long baseEjectionTimeMs,
+        long maxEjectionTimeMs,
+        int maxEjectionPercent,
+        int minimumHosts,
+        int requestVolume,
+        double successRateStdevFactor,
+        int failurePercentageThreshold,
+        double latencyFactor) {
+      if (intervalMs <= 0 || windowIntervals <= 0 || baseEjectionTimeMs <= 0) {
+        throw new IllegalArgumentException(
+            "intervalMs, windowIntervals and baseEjectionTimeMs must be positive");
+      }
+      if (maxEjectionPercent < 0 || maxEjectionPercent > 100) {
+        throw new IllegalArgumentException("maxEjectionPercent must be from 0 to 100");
+      }
+      this.intervalMs = intervalMs;
+      this.windowIntervals = windowIntervals;
+      this.baseEjectionTimeMs = baseEjectionTimeMs;
+      this.maxEjectionTimeMs = Math.max(baseEjectionTimeMs, maxEjectionTimeMs);
+      this.maxEjectionPercent = maxEjectionPercent;
+      this.minimumHosts = minimumHosts;
+      this.requestVolume = requestVolume;
+      this.successRateStdevFactor = successRateStdevFactor;
+      this.failurePercentageThreshold = failurePercentageThreshold;
+      this.latencyFactor = latencyFactor;
+    }
+
+    /**
+     * Parses the JSON form of the config, where every field is optional and falls back to its
+     * default. A factor or threshold of 0 turns that check off.
+     */
+    static Config fromJson(Map<String, ?> json) {
+      return new Config(
+          getLong(json, "intervalMs", DEFAULT_INTERVAL_MS),
+          (int) getLong(json, "windowIntervals", DEFAULT_WINDOW_INTERVALS),
+          getLong(json, "baseEjectionTimeMs", DEFAULT_BASE_EJECTION_TIME_MS),
+          getLong(json, "maxEjectionTimeMs", DEFAULT_MAX_EJECTION_TIME_MS),
+          (int) getLong(json, "maxEjectionPercent", DEFAULT_MAX_EJECTION_PERCENT),
+          (int) getLong(json, "minimumHosts", DEFAULT_MINIMUM_HOSTS),
+          (int) getLong(json, "requestVolume", DEFAULT_REQUEST_VOLUME),
+          getDouble(json, "successRateStdevFactor", DEFAULT_SUCCESS_RATE_STDEV_FACTOR),
+          (int) getLong(json, "failurePercentageThreshold", DEFAULT_FAILURE_PERCENTAGE_THRESHOLD),
+          getDouble(json, "latencyFactor", DEFAULT_LATENCY_FACTOR));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Config)) {
+        return false;
+      }
+      Config that = (Config) o;
+      return intervalMs == that.intervalMs
+          && windowIntervals == that.windowIntervals
+          && baseEjectionTimeMs == that.baseEjectionTimeMs
+          && maxEjectionTimeMs == that.maxEjectionTimeMs
+          && maxEjectionPercent == that.maxEjectionPercent
+          && minimumHosts == that.minimumHosts
+          && requestVolume == that.requestVolume
+          && successRateStdevFactor == that.successRateStdevFactor
+          && failurePercentageThreshold == that.failurePercentageThreshold
+          && latencyFactor == that.latencyFactor;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(
+          intervalMs,
+          windowIntervals,
+          baseEjectionTimeMs,
+          maxEjectionTimeMs,
+          maxEjectionPercent,
+          minimumHosts,
+          requestVolume,
+          successRateStdevFactor,
+          failurePercentageThreshold,
+          latencyFactor);
+    }
+
+    private static double getDouble(Map<String, ?> json, String key, double defaultValue) {
+      Object value = json.get(key);
+      if (value == null) {
+        return defaultValue;
+      }
+      if (!(value instanceof Number)) {
+        throw new IllegalArgumentException("'" + key + "' must be a number, not " + value);
+      }
+      return ((Number) value).doubleValue();
+    }
+
+    private static long getLong(Map<String, ?> json, String key, long defaultValue) {
+      double value = getDouble(json, key, defaultValue);
+      if (value != Math.floor(value)) {
+        throw new IllegalArgumentException("'" + key + "' must be an integer, not " + value);
+      }
+      return (long) value;
+    }
+  }
+
+  // Per interval: successes, failures, timed calls, sum of their latencies in nanoseconds.
+  private static final int SUCCESSES = 0;
+  private static final int FAILURES = 1;
+  private static final int TIMED = 2;
+  private static final int LATENCY_NANOS = 3;
+  private static final int FIELDS = 4;
+
+  private final Config config;
+  private final Set<Endpoint> endpoints = new LinkedHashSet<>();
+  // The interval of the ring that calls are counted in.
+  private volatile int current;
+
+  OutlierDetector(Config config) {
+    this.config = config;
+  }
+
+  Config config() {
+    return config;
+  }
+
+  /** Starts judging {@code target}. */
+  Endpoint add(Target target) {
+    Endpoint endpoint = new Endpoint(target);
+    endpoints.add(endpoint);
+    return endpoint;
+  }
+
+  /** Stops judging {@code endpoint}, without putting it back into rotation. */
+  void remove(Endpoint endpoint) {
+    endpoints.remove(endpoint);
+  }
+
+  /**
+   * Puts back the endpoints whose ejection is over, ejects the new outliers, and starts the next
+   * interval of the window.
+   */
+  void runInterval(long nowNanos) {
+    int ejected = 0;
+    List<Endpoint> judged = new ArrayList<>();
+    for (Endpoint endpoint : endpoints) {
+      if (endpoint.ejected && nowNanos - endpoint.ejectedUntilNanos >= 0) {
+        endpoint.ejected = false;
+        endpoint.target.uneject();
+      }
+      if (endpoint.ejected) {
+        ejected++;
+      }
+      endpoint.sum();
+      if (!endpoint.ejected && endpoint.calls >= config.requestVolume) {
+        judged.add(endpoint);
+      }
+    }
+
+    List<Endpoint> outliers = new ArrayList<>();
+    for (Endpoint endpoint : judged) {
+      if (config.failurePercentageThreshold > 0
+          && endpoint.failures * 100 >= endpoint.calls * config.failurePercentageThreshold) {
+        outliers.add(endpoint);
+      }
+    }
+    if (judged.size() >= config.minimumHosts) {
+      if (config.successRateStdevFactor > 0) {
+        addSuccessRateOutliers(judged, outliers);
+      }
+      if (config.latencyFactor > 0) {
+        addLatencyOutliers(judged, outliers);
+      }
+    }
+
+    int total = endpoints.size();
+    for (Endpoint endpoint : outliers) {
+      if (ejected * 100 >= total * config.maxEjectionPercent) {
+        break;
+      }
+      endpoint.ejections++;
+      endpoint.healthyIntervals = 0;
+      long ejectionMs =
+          Math.min(
+              config.maxEjectionTimeMs,
+              config.baseEjectionTimeMs << Math.min(endpoint.ejections - 1, 20));
+      endpoint.ejected = true;
+      // Judge it only on calls made after it is put back.
+      for (int i = 0; i < config.windowIntervals; i++) {
+        endpoint.clear(i);
+      }
+      endpoint.ejectedUntilNanos = nowNanos + MILLISECONDS.toNanos(ejectionMs);
+      endpoint.target.eject();
+      ejected++;
+    }
+    for (Endpoint endpoint : judged) {
+      // Endpoints that keep up for a whole window earn back shorter ejections.
+      if (!endpoint.ejected
+          && endpoint.ejections > 0
+          && ++endpoint.healthyIntervals >= config.windowIntervals) {
+        endpoint.ejections--;
+        endpoint.healthyIntervals = 0;
+      }
+    }
+
+    int next = (current + 1) % config.windowIntervals;
+    for (Endpoint endpoint : endpoints) {
+      endpoint.clear(next);
+    }
+    current = next;
+  }
+
+  private void addSuccessRateOutliers(List<Endpoint> judged, List<Endpoint> outliers) {
+    double mean = 0;
+    for (Endpoint endpoint : judged) {
+      mean += endpoint.successRate();
+    }
+    mean /= judged.size();
+    double variance = 0;
+    for (Endpoint endpoint : judged) {
+      double deviation = endpoint.successRate() - mean;
+      variance += deviation * deviation;
+    }
+    double threshold = mean - config.successRateStdevFactor * Math.sqrt(variance / judged.size());
+    for (Endpoint endpoint : judged) {
+      if (endpoint.successRate() < threshold && !outliers.contains(endpoint)) {
+        outliers.add(endpoint);
+      }
+    }
+  }
+
+  private void addLatencyOutliers(List<Endpoint> judged, List<Endpoint> outliers) {
+    double[] latencies = new double[judged.size()];
+    int timed = 0;
+    for (Endpoint endpoint : judged) {
+      if (endpoint.timed >= config.requestVolume) {
+        latencies[timed++] = endpoint.meanLatencyNanos();
+      }
+    }
+    if (timed < config.minimumHosts) {
+      return;
+    }
+    Arrays.sort(latencies, 0, timed);
+    double median = latencies[timed / 2];
+    for (Endpoint endpoint : judged) {
+      if (endpoint.timed >= config.requestVolume
+          && endpoint.meanLatencyNanos() > median * config.latencyFactor
+          && !outliers.contains(endpoint)) {
+        outliers.add(endpoint);
+      }
+    }
+  }
+
+  /** The counters and ejection state of one target. */
+  final class Endpoint {
+    private final Target target;
+    private final AtomicLongArray counts = new AtomicLongArray(config.windowIntervals * FIELDS);
+
+    // Owned by the thread running runInterval.
+    private boolean ejected;
+    private long ejectedUntilNanos;
+    private int ejections;
+    private int healthyIntervals;
+    // Sums over the window, as of the last runInterval.
+    private long calls;
+    private long failures;
+    private long timed;
+    private long latencyNanos;
+
+    private Endpoint(Target target) {
+      this.target = target;
+    }
+
+    /**
+     * Counts a finished call.
+     *
+     * @param latencyNanos how long the call took, or a negative value if its latency should not be
+     *     judged, as for streaming calls
+     */
+    void record(boolean success, long latencyNanos) {
+      int offset = current * FIELDS;
+      counts.incrementAndGet(offset + (success ? SUCCESSES : FAILURES));
+      if (latencyNanos >= 0) {
+        counts.incrementAndGet(offset + TIMED);
+        counts.addAndGet(offset + LATENCY_NANOS, latencyNanos);
+      }
+    }
+
+    boolean isEjected() {
+      return ejected;
+    }
+
+    private void sum() {
+      long successes = 0;
+      failures = 0;
+      timed = 0;
+      latencyNanos = 0;
+      for (int i = 0; i < config.windowIntervals; i++) {
+        successes += counts.get(i * FIELDS + SUCCESSES);
+        failures += counts.get(i * FIELDS + FAILURES);
+        timed += counts.get(i * FIELDS + TIMED);
+        latencyNanos += counts.get(i * FIELDS + LATENCY_NANOS);
+      }
+      calls = successes + failures;
+    }
+
+    private void clear(int interval) {
+      for (int i = 0; i < FIELDS; i++) {
+        counts.set(interval * FIELDS + i, 0);
+      }
+    }
+
+    private double successRate() {
+      return calls == 0 ? 1 : 1 - failures / (double) calls;
+    }
+
+    private double meanLatencyNanos() {
+      return timed == 0 ? 0 : latencyNanos / (double) timed;
+    }
+  }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A {@link WalletStore} sized for millions of users. All holdings live in a few primitive arrays:
+ * the addresses of user {@code u} occupy {@code [offsets[u], offsets[u + 1])} of {@code
+ * addressIds} and {@code amounts}. Addresses are 32-bit values written as 8 hex digits, the format
+ * used throughout the example. Users are found through an open-addressing table, so a lookup
+ * allocates nothing but the returned view and balances are summed without boxing. Each address
+ * holds a single asset; assets are interned, so a slot costs one more int.
+ *
+ * <p>The set of users and addresses is fixed when the store is built, but amounts may be changed
+ * with {@link #apply}. Readers never block: they read optimistically and retry if a write
+ * intervened, so a view never observes half of a transaction.
+ */
+final class PackedWalletStore implements WalletStore {
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final String[] users;
+  private final int[] offsets;
+  private final int[] addressIds;
+  private final long[] amounts;
+  // Index in assets of the asset held by each slot.
+  private final int[] assetIds;
+  private final String[] assets;
+  // Incremented on every change to a user's amounts.
+  private final long[] versions;
+  // Address IDs in ascending unsigned order, and the index of each in addressIds.
+  private final int[] sortedAddressIds;
+  private final int[] sortedSlots;
+  private final StampedLock lock = new StampedLock();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  // Open-addressing table from user name to index in users; empty slots are null.
+  private final String[] tableKeys;
+  private final int[] tableValues;
+  private final int tableMask;
+
+  private PackedWalletStore(Builder builder) {
+    int userCount = builder.userCount;
+    users = Arrays.copyOf(builder.users, userCount);
+    offsets = Arrays.copyOf(builder.offsets, userCount + 1);
+    addressIds = Arrays.copyOf(builder.addressIds, builder.addressCount);
+    amounts = Arrays.copyOf(builder.amounts, builder.addressCount);
+    assetIds = Arrays.copyOf(builder.assetIds, builder.addressCount);
+    assets = builder.assets.toArray(new String[0]);
+    versions = new long[userCount];
+    // The sign bit of each ID is flipped so that sorting the signed longs orders the IDs unsigned.
+    long[] packed = new long[addressIds.length];
+    for (int i = 0; i < addressIds.length; i++) {
+      packed[i] = ((long) (addressIds[i] ^ Integer.MIN_VALUE) << 32) | i;
+    }
+    Arrays.sort(packed);
+    sortedAddressIds = new int[packed.length];
+    sortedSlots = new int[packed.length];
+    for (int i = 0; i < packed.length; i++) {
+      sortedAddressIds[i] = (int) (packed[i] >>> 32) ^ Integer.MIN_VALUE;
+      sortedSlots[i] = (int) packed[i];
+      if (i > 0 && sortedAddressIds[i] == sortedAddressIds[i - 1]) {
+        throw new IllegalArgumentException(
+            "Duplicate address: " + formatAddress(sortedAddressIds[i]));
+      }
+    }
+    int capacity = Integer.highestOneBit(Math.max(2, userCount) * 2 - 1) << 1;
+    tableKeys = new String[capacity];
+    tableValues = new int[capacity];
+    tableMask = capacity - 1;
+    for (int i = 0; i < userCount; i++) {
+      int slot = slot(users[i]);
+      if (tableKeys[slot] != null) {
+        throw new IllegalArgumentException("Duplicate user: " + users[i]);
+      }
+      tableKeys[slot] = users[i];
+      tableValues[slot] = i;
+    }
+  }
+
+  static Builder newBuilder() {
+    return new Builder();
+  }
+
+  @Override
+  public WalletHoldings get(String user) {
+    int slot = slot(user);
+    if (tableKeys[slot] == null) {
+      return null;
+    }
+    return new Holdings(tableValues[slot]);
+  }
+
+  /** Registers a listener to be called on the thread of each {@link #apply}; see there. */
+  @Override
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /** Returns every asset held by some address. */
+  List<String> assets() {
+    return Arrays.asList(assets.clone());
+  }
+
+  int userCount() {
+    return users.length;
+  }
+
+  /** Returns the total number of addresses, which is also the number of slots. */
+  int slotCount() {
+    return amounts.length;
+  }
+
+  /** Returns the slot holding {@code address}, or -1 if the address is unknown or malformed. */
+  int slotOf(String address) {
+    try {
+      return slotOfAddressId(parseAddress(address));
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  /** Returns the slot holding the address with the given ID, or -1 if there is none. */
+  int slotOfAddressId(int addressId) {
+    int low = 0;
+    int high = sortedAddressIds.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = Integer.compareUnsigned(sortedAddressIds[mid], addressId);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return sortedSlots[mid];
+      }
+    }
+    return -1;
+  }
+
+  int addressIdAt(int slot) {
+    return addressIds[slot];
+  }
+
+  /** Returns the name of the user owning {@code slot}. */
+  String ownerOf(int slot) {
+    return users[userOfSlot(slot)];
+  }
+
+  /** Returns the current amount in {@code slot}. */
+  long amountAt(int slot) {
+    long stamp = lock.tryOptimisticRead();
+    long amount = amounts[slot];
+    if (!lock.validate(stamp)) {
+      stamp = lock.readLock();
+      try {
+        amount = amounts[slot];
+      } finally {
+        lock.unlockRead(stamp);
+      }
+    }
+    return amount;
+  }
+
+  /**
+   * Atomically adds {@code deltas[i]} to the amount in {@code slots[i]} for each {@code i <
+   * count}, and bumps the version of every user touched.
+   *
+   * <p>Listeners are called once per touched user on the calling thread, after the write lock is
+   * released. With a {@link TransactionLedger} that is the ledger's committer thread, so a
+   * listener that blocks holds up every transaction waiting to commit.
+   */
+  void apply(int[] slots, long[] deltas, int count) {
+    int[] touched = new int[count];
+    long stamp = lock.writeLock();
+    try {
+      for (int i = 0; i < count; i++) {
+        amounts[slots[i]] += deltas[i];
+        touched[i] = userOfSlot(slots[i]);
+        versions[touched[i]]++;
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+    if (listeners.isEmpty()) {
+      return;
+    }
+    Arrays.sort(touched);
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || touched[i] != touched[i - 1]) {
+        for (Listener listener : listeners) {
+          listener.onHoldingsChanged(users[touched[i]]);
+        }
+      }
+    }
+  }
+
+  /** Returns a consistent copy of the amounts in every slot. */
+  long[] copyAmounts() {
+    long stamp = lock.readLock();
+    try {
+      return amounts.clone();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** Replaces the amounts in every slot, e.g. when restoring a snapshot. */
+  void restoreAmounts(long[] restored) {
+    if (restored.length != amounts.length) {
+      throw new IllegalArgumentException(
+          "Expected " + amounts.length + " amounts but got " + restored.length);
+    }
+    long stamp = lock.writeLock();
+    try {
+      System.arraycopy(restored, 0, amounts, 0, amounts.length);
+      for (int i = 0; i < versions.length; i++) {
+        versions[i]++;
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private int userOfSlot(int slot) {
+    // offsets is non-decreasing; find the last user whose range starts at or before slot.
+    int low = 0;
+    int high = users.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= slot) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns an estimate of the heap used by the store, including the user names, assuming
+   * compressed references and compact strings.
+   */
+  long estimatedFootprintBytes() {
+    long bytes = 16L * 10; // array headers
+    bytes += 4L * users.length + 4L * offsets.length;
+    bytes += 4L * addressIds.length + 8L * amounts.length + 8L * versions.length;
+    bytes += 4L * assetIds.length + 4L * assets.length;
+    bytes += 4L * sortedAddressIds.length + 4L * sortedSlots.length;
+    bytes += 4L * tableKeys.length + 4L * tableValues.length;
+    for (String user : users) {
+      // String object plus its byte[] (header and contents, 8-byte aligned).
+      bytes += 24 + ((16 + user.length() + 7) & ~7);
+    }
+    return bytes;
+  }
+
+  /** Returns the table slot holding {@code user}, or the empty slot where it would go. */
+  private int slot(String user) {
+    int h = user.hashCode();
+    int slot = (h ^ (h >>> 16)) & tableMask;
+    while (tableKeys[slot] != null && !tableKeys[slot].equals(user)) {
+      slot = (slot + 1) & tableMask;
+    }
+    return slot;
+  }
+
+  static int parseAddress(String address) {
+    if (address.length() != 8) {
+      throw new IllegalArgumentException("Address must be 8 hex digits: " + address);
+    }
+    return Integer.parseUnsignedInt(address, 16);
+  }
+
+  static String formatAddress(int addressId) {
+    char[] chars = new char[8];
+    for (int i = 7; i >= 0; i--) {
+      chars[i] = HEX_DIGITS[addressId & 0xf];
+      addressId >>>= 4;
+    }
+    return new String(chars);
+  }
+
+  /** A live view of one user's slots. */
+  private final class Holdings implements WalletHoldings {
+    private final int user;
+    private final int start;
+    private final int end;
+
+    Holdings(int user) {
+      this.user = user;
+      this.start = offsets[user];
+      this.end = offsets[user + 1];
+    }
+
+    @Override
+    public String user() {
+      return users[user];
+    }
+
+    @Override
+    public long version() {
+      long stamp = lock.tryOptimisticRead();
+      long version = versions[user];
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          version = versions[user];
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return version;
+    }
+
+    @Override
+    public int addressCount() {
+      return end - start;
+    }
+
+    @Override
+    public String address(int index) {
+      return formatAddress(addressIds[start + index]);
+    }
+
+    @Override
+    public String asset(int index) {
+      return assets[assetIds[start + index]];
+    }
+
+    @Override
+    public long amount(int index) {
+      return amountAt(start + index);
+    }
+
+    @Override
+    public long totalAmount() {
+      long stamp = lock.tryOptimisticRead();
+      long total = sum();
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          total = sum();
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return total;
+    }
+
+    @Override
+    public WalletHoldings snapshot() {
+      long stamp = lock.tryOptimisticRead();
+      long version = versions[user];
+      long[] copy = Arrays.copyOfRange(amounts, start, end);
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          version = versions[user];
+          copy = Arrays.copyOfRange(amounts, start, end);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return new Snapshot(user, start, version, copy);
+    }
+
+    private long sum() {
+      long total = 0;
+      for (int i = start; i < end; i++) {
+        total += amounts[i];
+      }
+      return total;
+    }
+  }
+
+  /** An immutable copy of one user's amounts. */
+  private final class Snapshot implements WalletHoldings {
+    private final int user;
+    private final int start;
+    private final long version;
+    private final long[] snapshotAmounts;
+
+    Snapshot(int user, int start, long version, long[] snapshotAmounts) {
+      this.user = user;
+      this.start = start;
+      this.version = version;
+      this.snapshotAmounts = snapshotAmounts;
+    }
+
+    @Override
+    public String user() {
+      return users[user];
+    }
+
+    @Override
+    public long version() {
+      return version;
+    }
+
+    @Override
+    public int addressCount() {
+      return snapshotAmounts.length;
+    }
+
+    @Override
+    public String address(int index) {
+      return formatAddress(addressIds[start + index]);
+    }
+
+    @Override
+    public String asset(int index) {
+      return assets[assetIds[start + index]];
+    }
+
+    @Override
+    public long amount(int index) {
+      return snapshotAmounts[index];
+    }
+
+    @Override
+    public long totalAmount() {
+      long total = 0;
+      for (long amount : snapshotAmounts) {
+        total += amount;
+      }
+      return total;
+    }
+
+    @Override
+    public WalletHoldings snapshot() {
+      return this;
+    }
+  }
+
+  /** Accumulates wallets into growable primitive arrays. */
+  static final class Builder {
+    private String[] users = new String[16];
+    private int[] offsets = new int[17];
+    private int[] addressIds = new int[64];
+    private long[] amounts = new long[64];
+    private int[] assetIds = new int[64];
+    private final List<String> assets = new ArrayList<>();
+    private final Map<String, Integer> assetIndex = new HashMap<>();
+    private int userCount;
+    private int addressCount;
+
+    private Builder() {}
+
+    /**
+     * Adds a wallet with one amount of the default asset per address. Each user may only be
+     * added once.
+     */
+    Builder addWallet(String user, String[] addresses, long[] walletAmounts) {
+      String[] walletAssets = new String[addresses.length];
+      Arrays.fill(walletAssets, PriceTable.DEFAULT_SYMBOL);
+      return addWallet(user, addresses, walletAssets, walletAmounts);
+    }
+
+    /** Adds a wallet with one asset and amount per address. Each user may only be added once. */
+    Builder addWallet(
+        String user, String[] addresses, String[] walletAssets, long[] walletAmounts) {
+      if (addresses.length != walletAmounts.length || addresses.length != walletAssets.length) {
+        throw new IllegalArgumentException(
+            "addresses, assets and amounts must have the same length");
+      }
+      if (userCount == users.length) {
+        users = Arrays.copyOf(users, userCount * 2);
+        offsets = Arrays.copyOf(offsets, userCount * 2 + 1);
+      }
+      int needed = addressCount + addresses.length;
+      if (needed > addressIds.length) {
+        int capacity = Math.max(needed, addressIds.length * 2);
+        addressIds = Arrays.copyOf(addressIds, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        assetIds = Arrays.copyOf(assetIds, capacity);
+      }
+      for (int i = 0; i < addresses.length; i++) {
+        addressIds[addressCount] = parseAddress(addresses[i]);
+        amounts[addressCount] = walletAmounts[i];
+        assetIds[addressCount] = internAsset(walletAssets[i]);
+        addressCount++;
+      }
+      users[userCount++] = user;
+      offsets[userCount] = addressCount;
+      return this;
+    }
+
+    private int internAsset(String asset) {
+      Integer id = assetIndex.get(asset);
+      if (id == null) {
+        id = assets.size();
+        assets.add(asset);
+        assetIndex.put(asset, id);
+      }
+      return id;
+    }
+
+    PackedWalletStore build() {
+      return new PackedWalletStore(this);
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import io.grpc.examples.wallet.WalletStore.WalletHoldings;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Values a wallet whose addresses hold different assets. The addresses are grouped by asset when
+ * the valuation is created, so a new price of one asset only revisits the addresses holding it.
+ * Amounts, prices and values are kept in primitive arrays and recomputed in plain counted loops.
+ *
+ * <p>Not thread-safe.
+ */
+final class PortfolioValuation {
+
+  /** The prices of a set of assets, as returned by the stats server. Immutable. */
+  static final class Prices {
+    private final Map<String, PriceResponse> bySymbol;
+    private final long version;
+    private final long fingerprint;
+
+    private Prices(Map<String, PriceResponse> bySymbol, long version, long fingerprint) {
+      this.bySymbol = bySymbol;
+      this.version = version;
+      this.fingerprint = fingerprint;
+    }
+
+    static Prices of(Collection<PriceResponse> responses) {
+      Map<String, PriceResponse> bySymbol = new HashMap<>();
+      long version = 0;
+      long fingerprint = 1;
+      for (PriceResponse response : responses) {
+        bySymbol.put(symbolOf(response), response);
+        version += response.getVersion();
+        fingerprint = fingerprint * 31 + response.getPrice();
+      }
+      return new Prices(bySymbol, version, fingerprint);
+    }
+
+    /** Returns the price of {@code symbol}, or null if it was not fetched. */
+    PriceResponse get(String symbol) {
+      return bySymbol.get(symbol);
+    }
+
+    /**
+     * Returns the sum of the versions of the prices. For a fixed set of assets it increases
+     * whenever any of the prices changes.
+     */
+    long version() {
+      return version;
+    }
+
+    /** Returns a hash of the prices, to tell apart prices that share a version. */
+    long fingerprint() {
+      return fingerprint;
+    }
+  }
+
+  /** Returns the symbol of a price, treating a server that does not set one as the default. */
+  static String symbolOf(PriceResponse response) {
+    return response.getSymbol().isEmpty() ? PriceTable.DEFAULT_SYMBOL : response.getSymbol();
+  }
+
+  /** Returns the distinct assets held by {@code wallet}, in order of first appearance. */
+  static List<String> assetsOf(WalletHoldings wallet) {
+    Set<String> assets = new LinkedHashSet<>();
+    for (int i = 0; i < wallet.addressCount(); i++) {
+      assets.add(wallet.asset(i));
+    }
+    return new ArrayList<>(assets);
+  }
+
+  private final List<String> assets;
+  // Addresses holding asset a are addressesByAsset[assetStarts[a], assetStarts[a + 1]).
+  private final int[] assetStarts;
+  private final int[] addressesByAsset;
+  private final long[] amounts;
+  private final long[] assetPrices;
+  private final boolean[] priced;
+  private final long[] values;
+  private final BitSet changed;
+  private long walletVersion;
+  private int pricedCount;
+  private long total;
+
+  /** Creates an unpriced valuation of {@code wallet}, which must be a snapshot. */
+  PortfolioValuation(WalletHoldings wallet) {
+    int addressCount = wallet.addressCount();
+    assets = assetsOf(wallet);
+    Map<String, Integer> assetIndex = new HashMap<>();
+    for (int a = 0; a < assets.size(); a++) {
+      assetIndex.put(assets.get(a), a);
+    }
+    int[] assetOfAddress = new int[addressCount];
+    assetStarts = new int[assets.size() + 1];
+    amounts = new long[addressCount];
+    for (int i = 0; i < addressCount; i++) {
+      assetOfAddress[i] = assetIndex.get(wallet.asset(i));
+      assetStarts[assetOfAddress[i] + 1]++;
+      amounts[i] = wallet.amount(i);
+    }
+    for (int a = 0; a < assets.size(); a++) {
+      assetStarts[a + 1] += assetStarts[a];
+    }
+    addressesByAsset = new int[addressCount];
+    int[] next = Arrays.copyOf(assetStarts, assets.size());
+    for (int i = 0; i < addressCount; i++) {
+      addressesByAsset[next[assetOfAddress[i]]++] = i;
+    }
+    assetPrices = new long[assets.size()];
+    priced = new boolean[assets.size()];
+    values = new long[addressCount];
+    changed = new BitSet(addressCount);
+    walletVersion = wallet.version();
+  }
+
+  /** Returns the distinct assets of the wallet. Their positions are the asset indexes. */
+  List<String> assets() {
+    return assets;
+  }
+
+  /** Returns the index of {@code symbol} in {@link #assets}, or -1 if the wallet has none. */
+  int assetIndex(String symbol) {
+    return assets.indexOf(symbol);
+  }
+
+  /** Prices every asset from {@code prices}. Assets missing from {@code prices} stay unpriced. */
+  void setPrices(Prices prices) {
+    for (int a = 0; a < assets.size(); a++) {
+      PriceResponse price = prices.get(assets.get(a));
+      if (price != null) {
+        setPrice(a, price.getPrice());
+      }
+    }
+  }
+
+  /**
+   * Sets the price of one asset and revalues only the addresses holding it. Returns false if the
+   * price is unchanged.
+   */
+  boolean setPrice(int asset, long price) {
+    if (priced[asset] && assetPrices[asset] == price) {
+      return false;
+    }
+    if (!priced[asset]) {
+      priced[asset] = true;
+      pricedCount++;
+    }
+    assetPrices[asset] = price;
+    long delta = 0;
+    for (int k = assetStarts[asset]; k < assetStarts[asset + 1]; k++) {
+      int i = addressesByAsset[k];
+      long value = amounts[i] * price;
+      if (value != values[i]) {
+        delta += value - values[i];
+        values[i] = value;
+        changed.set(i);
+      }
+    }
+    total += delta;
+    return true;
+  }
+
+  /**
+   * Replaces the amounts with those of {@code wallet}, a newer snapshot of the same user, and
+   * revalues the addresses whose amount changed.
+   */
+  void setAmounts(WalletHoldings wallet) {
+    for (int a = 0; a < assets.size(); a++) {
+      long price = assetPrices[a];
+      for (int k = assetStarts[a]; k < assetStarts[a + 1]; k++) {
+        int i = addressesByAsset[k];
+        long amount = wallet.amount(i);
+        if (amount != amounts[i]) {
+          amounts[i] = amount;
+          long value = amount * price;
+          total += value - values[i];
+          values[i] = value;
+          changed.set(i);
+        }
+      }
+    }
+    walletVersion = wallet.version();
+  }
+
+  /** Returns the version of the holdings the amounts were taken from. */
+  long walletVersion() {
+    return walletVersion;
+  }
+
+  /** Returns true once every asset of the wallet has a price. */
+  boolean fullyPriced() {
+    return pricedCount == assets.size();
+  }
+
+  long value(int address) {
+    return values[address];
+  }
+
+  long total() {
+    return total;
+  }
+
+  /** Returns the addresses whose value changed since the last {@link #clearChanged}. */
+  BitSet changed() {
+    return changed;
+  }
+
+  void clearChanged() {
+    changed.clear();
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.MessageLite;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A protobuf message that has already been serialized. Sending the same instance on many calls
+ * encodes the message once instead of once per call. Instances are immutable and may be shared
+ * between threads.
+ */
+final class PreEncodedMessage {
+  private static final Marshaller MARSHALLER = new Marshaller();
+
+  private final byte[] bytes;
+
+  private PreEncodedMessage(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  static PreEncodedMessage of(MessageLite message) {
+    return new PreEncodedMessage(message.toByteArray());
+  }
+
+  int size() {
+    return bytes.length;
+  }
+
+  /** A marshaller that writes the pre-encoded bytes to the transport as they are. */
+  static MethodDescriptor.Marshaller<PreEncodedMessage> marshaller() {
+    return MARSHALLER;
+  }
+
+  private static final class Marshaller implements MethodDescriptor.Marshaller<PreEncodedMessage> {
+    @Override
+    public InputStream stream(PreEncodedMessage value) {
+      return new EncodedStream(value.bytes);
+    }
+
+    @Override
+    public PreEncodedMessage parse(InputStream stream) {
+      try {
+        return new PreEncodedMessage(ByteStreams.toByteArray(stream));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Lets the transport learn the message size up front and copy the bytes in a single write.
+   */
+  private static final class EncodedStream extends ByteArrayInputStream
+      implements KnownLength, Drainable {
+    EncodedStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      int length = count - pos;
+      target.write(buf, pos, length);
+      pos = count;
+      return length;
+    }
+  }
+}
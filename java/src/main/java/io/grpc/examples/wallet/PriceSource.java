@@ -0,0 +1,33 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+/**
+ * Feeds prices into a {@link PriceTable}. All updates of a source are made from a single thread,
+ * as the table requires, and reach subscribers through the table like any other update.
+ */
+interface PriceSource {
+
+  /** Returns the symbols this source prices. The first is served for requests naming none. */
+  String[] symbols();
+
+  /** Starts updating {@code table}, which must have been built from {@link #symbols}. */
+  void start(PriceTable table);
+
+  /** Stops updating the table. Updates in progress may still complete. */
+  void stop();
+}
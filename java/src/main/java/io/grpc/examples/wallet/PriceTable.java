@@ -0,0 +1,192 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import io.grpc.examples.wallet.stats.PriceResponse;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The current price of every symbol. Symbols are interned to dense IDs when the table is built,
+ * and prices and versions are kept in primitive arrays indexed by ID. Subscribers are registered
+ * per symbol, so an update only reaches the subscribers of the symbol that changed.
+ *
+ * <p>Updates must come from a single thread. Reads may come from any thread.
+ */
+final class PriceTable {
+  /** The symbol served when a request does not name one. */
+  static final String DEFAULT_SYMBOL = "GRPC";
+
+  /** An immutable price together with its pre-built and pre-serialized response. */
+  static final class Snapshot {
+    final int symbolId;
+    final long version;
+    final long price;
+    final PriceResponse response;
+    final PreEncodedMessage encoded;
+
+    private Snapshot(int symbolId, String symbol, long version, long price) {
+      this.symbolId = symbolId;
+      this.version = version;
+      this.price = price;
+      this.response =
+          PriceResponse.newBuilder().setPrice(price).setVersion(version).setSymbol(symbol).build();
+      this.encoded = PreEncodedMessage.of(response);
+    }
+  }
+
+  /** Receives new prices of a symbol. Called on the updating thread, so it must not block. */
+  interface Subscriber {
+    void onPrice(Snapshot snapshot);
+  }
+
+  /** Stops delivery to a subscriber. */
+  interface Subscription {
+    void cancel();
+  }
+
+  private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+  private final String[] symbols;
+  private final Map<String, Integer> ids;
+  // Per-symbol sequence lock: odd while the price is being written, version is sequence / 2.
+  private final AtomicLongArray sequences;
+  private final AtomicLongArray prices;
+  private final AtomicReferenceArray<Snapshot> snapshots;
+  private final AtomicReferenceArray<Subscriber[]> subscribers;
+
+  /** Creates a table for {@code symbols}. The first symbol is served for an empty symbol. */
+  PriceTable(String[] symbols) {
+    this.symbols = symbols.clone();
+    this.ids = new HashMap<>(symbols.length * 2);
+    for (int i = 0; i < symbols.length; i++) {
+      if (ids.put(symbols[i], i) != null) {
+        throw new IllegalArgumentException("Duplicate symbol: " + symbols[i]);
+      }
+    }
+    this.sequences = new AtomicLongArray(symbols.length);
+    this.prices = new AtomicLongArray(symbols.length);
+    this.snapshots = new AtomicReferenceArray<>(symbols.length);
+    this.subscribers = new AtomicReferenceArray<>(symbols.length);
+    for (int i = 0; i < symbols.length; i++) {
+      subscribers.set(i, NO_SUBSCRIBERS);
+    }
+  }
+
+  /**
+   * Returns the name of the {@code index}th generated asset, used by the stats and wallet servers
+   * to agree on symbols in tests. The first is {@link #DEFAULT_SYMBOL}.
+   */
+  static String syntheticSymbol(int index) {
+    return index == 0 ? DEFAULT_SYMBOL : String.format("SYM%05d", index);
+  }
+
+  int size() {
+    return symbols.length;
+  }
+
+  String symbol(int symbolId) {
+    return symbols[symbolId];
+  }
+
+  /** Returns the ID of {@code symbol}, or -1 if the table has no such symbol. */
+  int symbolId(String symbol) {
+    if (symbol.isEmpty()) {
+      return 0;
+    }
+    Integer id = ids.get(symbol);
+    return id == null ? -1 : id;
+  }
+
+  /** Sets the price of a symbol and notifies its subscribers if the price changed. */
+  void update(int symbolId, long price) {
+    if (prices.get(symbolId) == price && sequences.get(symbolId) != 0) {
+      return;
+    }
+    long sequence = sequences.get(symbolId);
+    sequences.set(symbolId, sequence + 1);
+    prices.set(symbolId, price);
+    sequences.set(symbolId, sequence + 2);
+    Subscriber[] targets = subscribers.get(symbolId);
+    if (targets.length == 0) {
+      return;
+    }
+    Snapshot snapshot = new Snapshot(symbolId, symbols[symbolId], sequence / 2 + 1, price);
+    snapshots.set(symbolId, snapshot);
+    for (Subscriber subscriber : targets) {
+      subscriber.onPrice(snapshot);
+    }
+  }
+
+  /** Returns the latest price of a symbol. */
+  Snapshot current(int symbolId) {
+    Snapshot cached = snapshots.get(symbolId);
+    long sequence;
+    long price;
+    do {
+      sequence = sequences.get(symbolId);
+      price = prices.get(symbolId);
+    } while ((sequence & 1) != 0 || sequence != sequences.get(symbolId));
+    long version = sequence / 2;
+    if (cached != null && cached.version == version) {
+      return cached;
+    }
+    Snapshot fresh = new Snapshot(symbolId, symbols[symbolId], version, price);
+    // Losing the race means someone installed a snapshot at least as new; either way, ours is
+    // correct for the version we read.
+    snapshots.compareAndSet(symbolId, cached, fresh);
+    return fresh;
+  }
+
+  /**
+   * Registers {@code subscriber} for the updates of one symbol. The subscriber may still see an
+   * update that races with registration or cancellation, and should ignore versions it has
+   * already seen.
+   */
+  Subscription subscribe(final int symbolId, final Subscriber subscriber) {
+    synchronized (subscribers) {
+      Subscriber[] current = subscribers.get(symbolId);
+      Subscriber[] updated = Arrays.copyOf(current, current.length + 1);
+      updated[current.length] = subscriber;
+      subscribers.set(symbolId, updated);
+    }
+    return new Subscription() {
+      @Override
+      public void cancel() {
+        unsubscribe(symbolId, subscriber);
+      }
+    };
+  }
+
+  private void unsubscribe(int symbolId, Subscriber subscriber) {
+    synchronized (subscribers) {
+      Subscriber[] current = subscribers.get(symbolId);
+      for (int i = 0; i < current.length; i++) {
+        if (current[i] == subscriber) {
+          Subscriber[] updated = new Subscriber[current.length - 1];
+          System.arraycopy(current, 0, updated, 0, i);
+          System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+          subscribers.set(symbolId, updated.length == 0 ? NO_SUBSCRIBERS : updated);
+          return;
+        }
+      }
+    }
+  }
+}
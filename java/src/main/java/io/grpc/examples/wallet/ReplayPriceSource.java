@@ -0,0 +1,251 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a recorded tick file into a {@link PriceTable}, preserving the gaps and bursts of the
+ * recording, optionally sped up and looped. The records are read through memory-mapped windows,
+ * so replaying a large recording neither copies it onto the heap nor allocates per tick.
+ *
+ * <p>A tick file is a header followed by fixed-size records, all big-endian:
+ *
+ * <pre>
+ *   int   magic ("TICK")
+ *   int   format version (1)
+ *   int   symbol count
+ *   per symbol: unsigned short length, UTF-8 bytes
+ *   per tick:   long microseconds since the start of the recording,
+ *               int index of the symbol in the header, long price
+ * </pre>
+ *
+ * <p>Ticks must be in non-decreasing time order. Use {@link Writer} to produce a file.
+ */
+final class ReplayPriceSource implements PriceSource {
+  private static final Logger logger = Logger.getLogger(ReplayPriceSource.class.getName());
+
+  static final int MAGIC = 0x5449434b;
+  static final int FORMAT_VERSION = 1;
+  static final int RECORD_SIZE = 20;
+  static final double MAX_SPEEDUP = 100;
+  // Mapped at most this much at a time, so recordings larger than 2 GiB can be replayed.
+  private static final long WINDOW_SIZE = (256L << 20) / RECORD_SIZE * RECORD_SIZE;
+
+  private final Path file;
+  private final String[] symbols;
+  private final long dataStart;
+  private final long recordCount;
+  private final double speedup;
+  private final boolean loop;
+  private volatile boolean stopped;
+  private Thread thread;
+
+  private ReplayPriceSource(
+      Path file, String[] symbols, long dataStart, long recordCount, double speedup, boolean loop) {
+    this.file = file;
+    this.symbols = symbols;
+    this.dataStart = dataStart;
+    this.recordCount = recordCount;
+    this.speedup = speedup;
+    this.loop = loop;
+  }
+
+  /**
+   * Opens a tick file and reads its header.
+   *
+   * @param speedup how many times faster than real time to replay, from 1 to {@link
+   *     #MAX_SPEEDUP}
+   * @param loop whether to start over at the end of the recording; a looped recording must span
+   *     some time, or the replay would spin
+   */
+  static ReplayPriceSource open(Path file, double speedup, boolean loop) throws IOException {
+    if (!(speedup >= 1 && speedup <= MAX_SPEEDUP)) {
+      throw new IllegalArgumentException("speedup must be between 1 and " + MAX_SPEEDUP);
+    }
+    long size = Files.size(file);
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(file + " is not a tick file");
+      }
+      int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        throw new IOException("Unsupported tick file version " + version);
+      }
+      int symbolCount = in.readInt();
+      if (symbolCount <= 0) {
+        throw new IOException("Tick file has no symbols");
+      }
+      String[] symbols = new String[symbolCount];
+      long dataStart = 12;
+      for (int i = 0; i < symbolCount; i++) {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        symbols[i] = new String(bytes, UTF_8);
+        dataStart += 2 + bytes.length;
+      }
+      if ((size - dataStart) % RECORD_SIZE != 0) {
+        throw new IOException(file + " ends with a partial tick");
+      }
+      long recordCount = (size - dataStart) / RECORD_SIZE;
+      if (loop && recordCount > 0 && lastOffsetMicros(file, size) <= 0) {
+        throw new IllegalArgumentException(file + " has all ticks at offset 0 and cannot loop");
+      }
+      return new ReplayPriceSource(file, symbols, dataStart, recordCount, speedup, loop);
+    }
+  }
+
+  private static long lastOffsetMicros(Path file, long size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long position = size - RECORD_SIZE;
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException(file + " was truncated");
+        }
+      }
+    }
+    buffer.flip();
+    return buffer.getLong();
+  }
+
+  @Override
+  public String[] symbols() {
+    return symbols.clone();
+  }
+
+  long recordCount() {
+    return recordCount;
+  }
+
+  @Override
+  public void start(final PriceTable table) {
+    final int[] ids = new int[symbols.length];
+    for (int i = 0; i < symbols.length; i++) {
+      ids[i] = table.symbolId(symbols[i]);
+    }
+    thread =
+        new Thread("price-replay") {
+          @Override
+          public void run() {
+            try {
+              replay(table, ids);
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Replay of " + file + " failed", e);
+            }
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    if (thread != null) {
+      // Not interrupt(): that would close the channel under a map() in progress.
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void replay(PriceTable table, int[] ids) throws IOException {
+    long end = dataStart + recordCount * RECORD_SIZE;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      do {
+        long startNanos = System.nanoTime();
+        for (long position = dataStart; position < end && !stopped; position += WINDOW_SIZE) {
+          MappedByteBuffer window =
+              channel.map(
+                  FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, end - position));
+          while (window.hasRemaining() && !stopped) {
+            long offsetMicros = window.getLong();
+            int symbol = window.getInt();
+            long price = window.getLong();
+            long due = startNanos + (long) (offsetMicros * 1000 / speedup);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0 && !stopped) {
+              LockSupport.parkNanos(wait);
+            }
+            if (symbol >= 0 && symbol < ids.length && ids[symbol] >= 0) {
+              table.update(ids[symbol], price);
+            }
+          }
+        }
+      } while (loop && !stopped && recordCount > 0);
+    }
+  }
+
+  /** Writes a tick file, e.g. when converting recorded market data. */
+  static final class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final int symbolCount;
+    private long lastOffsetMicros;
+
+    Writer(Path file, String[] symbols) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+      symbolCount = symbols.length;
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(symbols.length);
+      for (String symbol : symbols) {
+        byte[] bytes = symbol.getBytes(UTF_8);
+        if (bytes.length > 0xffff) {
+          throw new IllegalArgumentException("Symbol too long: " + symbol);
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+      }
+    }
+
+    /** Appends a tick of the {@code symbol}th symbol of the header. */
+    void append(long offsetMicros, int symbol, long price) throws IOException {
+      if (offsetMicros < lastOffsetMicros) {
+        throw new IllegalArgumentException("Ticks must be appended in time order");
+      }
+      if (symbol < 0 || symbol >= symbolCount) {
+        throw new IllegalArgumentException("No symbol " + symbol);
+      }
+      lastOffsetMicros = offsetMicros;
+      out.writeLong(offsetMicros);
+      out.writeInt(symbol);
+      out.writeLong(price);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -17,14 +17,12 @@
 package io.grpc.examples.wallet;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-import com.google.common.util.concurrent.ListenableScheduledFuture;
-import com.google.common.util.concurrent.ListeningScheduledExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
+import com.sun.net.httpserver.HttpServer;
 import io.grpc.ChannelCredentials;
-import io.grpc.examples.wallet.account.AccountGrpc;
-import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.ClientInterceptor;
 import io.grpc.examples.wallet.account.GetUserInfoResponse;
 import io.grpc.examples.wallet.account.MembershipType;
 import io.grpc.examples.wallet.stats.PriceRequest;
@@ -35,22 +33,29 @@ import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.InsecureChannelCredentials;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerCredentials;
 import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.ServiceDescriptor;
 import io.grpc.services.AdminInterface;
 import io.grpc.services.HealthStatusManager;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import io.grpc.xds.XdsChannelCredentials;
 import io.grpc.xds.XdsServerBuilder;
 import io.grpc.xds.XdsServerCredentials;
 import java.io.IOException;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,14 +72,49 @@ public class StatsServer {
 
   private int port = 18882;
   private int adminPort = 28882;
+  private int metricsPort = 38882;
   private String accountServer = "localhost:18883";
   private String hostnameSuffix = "";
   private String gcpClientProject = "";
+  private String traceSampling = "";
+  private TraceSampler traceSampler;
   private boolean premiumOnly;
+  private int symbolCount = 1;
+  private String replayFile = "";
+  private double replaySpeedup = 1;
+  private boolean replayLoop = true;
+  private int hedgePercentile = AccountLookup.DEFAULT_HEDGE_PERCENTILE;
+  private int retryBudgetPercent = AccountLookup.DEFAULT_BUDGET_PERCENT;
+  private double deadlineReserve = DeadlineInterceptors.DEFAULT_RESERVE;
+  private int minHopBudgetMs = DeadlineInterceptors.DEFAULT_MIN_BUDGET_MS;
+  private int defaultDeadlineMs = DeadlineInterceptors.DEFAULT_DEADLINE_MS;
+  private double breakerFailureRate = CircuitBreaker.DEFAULT_FAILURE_RATE;
+  private long breakerSlowCallMs = CircuitBreaker.DEFAULT_SLOW_CALL_MS;
+  private long breakerOpenMs = CircuitBreaker.DEFAULT_OPEN_MS;
+  private int accountFallbackCacheSize;
+  private int warmupCalls = Warmup.DEFAULT_CALLS;
+  private int warmupTimeoutMs = Warmup.DEFAULT_TIMEOUT_MS;
+  private int drainWindowMs = StreamDrainer.DEFAULT_WINDOW_MS;
+  private int healthIntervalMs = HealthEvaluator.DEFAULT_INTERVAL_MS;
+  private int healthMaxInFlight = HealthEvaluator.DEFAULT_MAX_IN_FLIGHT;
+  private int healthMaxLagMs = HealthEvaluator.DEFAULT_MAX_LAG_MS;
+  private String captureFile = "";
+  private double captureSampleRate = 0.01;
   private CredentialsType credentialsType = CredentialsType.INSECURE;
 
   private ManagedChannel accountChannel;
-  private ListeningScheduledExecutorService exec;
+  private HashedWheelTimer timer;
+  private HashedWheelTimer hedgeTimer;
+  private PriceTable prices;
+  private PriceSource priceSource;
+  private TrafficRecorder recorder;
+  private String faults = "";
+  private final FaultInjector faultInjector = new FaultInjector();
+  private HealthEvaluator healthEvaluator;
+  private final LocalMetrics localMetrics = new LocalMetrics();
+  private HttpServer metricsServer;
+  private final StreamDrainer streamDrainer = new StreamDrainer();
+  private HealthStatusManager health;
 
   void parseArgs(String[] args) {
     boolean usage = false;
@@ -100,14 +140,62 @@ public class StatsServer {
         port = Integer.parseInt(value);
       } else if ("admin_port".equals(key)) {
         adminPort = Integer.parseInt(value);
+      } else if ("metrics_port".equals(key)) {
+        metricsPort = Integer.parseInt(value);
       } else if ("account_server".equals(key)) {
         accountServer = value;
       } else if ("hostname_suffix".equals(key)) {
         hostnameSuffix = value;
       } else if ("gcp_client_project".equals(key)) {
         gcpClientProject = value;
+      } else if ("trace_sampling".equals(key)) {
+        traceSampling = value;
       } else if ("premium_only".equals(key)) {
         premiumOnly = Boolean.parseBoolean(value);
+      } else if ("symbols".equals(key)) {
+        symbolCount = Integer.parseInt(value);
+      } else if ("replay_file".equals(key)) {
+        replayFile = value;
+      } else if ("replay_speedup".equals(key)) {
+        replaySpeedup = Double.parseDouble(value);
+      } else if ("replay_loop".equals(key)) {
+        replayLoop = Boolean.parseBoolean(value);
+      } else if ("hedge_percentile".equals(key)) {
+        hedgePercentile = Integer.parseInt(value);
+      } else if ("retry_budget_percent".equals(key)) {
+        retryBudgetPercent = Integer.parseInt(value);
+      } else if ("deadline_reserve".equals(key)) {
+        deadlineReserve = Double.parseDouble(value);
+      } else if ("min_hop_budget_ms".equals(key)) {
+        minHopBudgetMs = Integer.parseInt(value);
+      } else if ("default_deadline_ms".equals(key)) {
+        defaultDeadlineMs = Integer.parseInt(value);
+      } else if ("breaker_failure_rate".equals(key)) {
+        breakerFailureRate = Double.parseDouble(value);
+      } else if ("breaker_slow_call_ms".equals(key)) {
+        breakerSlowCallMs = Long.parseLong(value);
+      } else if ("breaker_open_ms".equals(key)) {
+        breakerOpenMs = Long.parseLong(value);
+      } else if ("account_fallback_cache_size".equals(key)) {
+        accountFallbackCacheSize = Integer.parseInt(value);
+      } else if ("warmup_calls".equals(key)) {
+        warmupCalls = Integer.parseInt(value);
+      } else if ("warmup_timeout_ms".equals(key)) {
+        warmupTimeoutMs = Integer.parseInt(value);
+      } else if ("drain_window_ms".equals(key)) {
+        drainWindowMs = Integer.parseInt(value);
+      } else if ("health_interval_ms".equals(key)) {
+        healthIntervalMs = Integer.parseInt(value);
+      } else if ("health_max_in_flight".equals(key)) {
+        healthMaxInFlight = Integer.parseInt(value);
+      } else if ("health_max_lag_ms".equals(key)) {
+        healthMaxLagMs = Integer.parseInt(value);
+      } else if ("faults".equals(key)) {
+        faults = value;
+      } else if ("capture_file".equals(key)) {
+        captureFile = value;
+      } else if ("capture_sample_rate".equals(key)) {
+        captureSampleRate = Double.parseDouble(value);
       } else if ("creds".equals(key)) {
         credentialsType = CredentialsType.valueOf(value.toUpperCase());
       } else {
@@ -125,6 +213,9 @@ public class StatsServer {
               + s.port
               + "\n  --admin_port=PORT          The admin port to listen on. Default "
               + s.adminPort
+              + "\n  --metrics_port=PORT        The port to serve metrics on in the Prometheus "
+              + "text format, under /metrics. 0 disables it. Default "
+              + s.metricsPort
               + "\n  --account_server=HOST      Address of the account server. Default "
               + s.accountServer
               + "\n  --hostname_suffix=STR      Suffix to append to hostname in response header. "
@@ -133,9 +224,78 @@ public class StatsServer {
               + "\""
               + "\n  --gcp_client_project=STR GCP project. If set, metrics and traces will be "
               + "sent to Stackdriver. Default \"" + s.gcpClientProject + "\""
+              + "\n  --trace_sampling=SPEC      Traces to sample, as comma-separated settings: "
+              + "rate=FLOAT, method:SERVICE/METHOD=FLOAT, membership:NAME=FLOAT, "
+              + "max_per_second=INT, keep_errors=BOOL and keep_slow_ms=INT. Default samples "
+              + "every trace."
               + "\n  --premium_only=true|false  If true, all non-premium RPCs are rejected. "
               + "Default "
               + s.premiumOnly
+              + "\n  --symbols=INT              Number of assets to price. The first is "
+              + PriceTable.DEFAULT_SYMBOL
+              + ". Default "
+              + s.symbolCount
+              + "\n  --replay_file=PATH         Tick file to replay instead of generating prices."
+              + " Its symbols replace --symbols. Default \""
+              + s.replayFile
+              + "\""
+              + "\n  --replay_speedup=FLOAT     Replay speed relative to the recording, from 1"
+              + " to 100. Default "
+              + s.replaySpeedup
+              + "\n  --replay_loop=true|false   Restart the replay at the end of the file. "
+              + "Default "
+              + s.replayLoop
+              + "\n  --hedge_percentile=INT     Percentile of account lookup latency after which a "
+              + "second attempt is sent. 0 disables hedging. Default "
+              + s.hedgePercentile
+              + "\n  --retry_budget_percent=INT Most hedged and retried account lookups, as a "
+              + "percentage of lookups. Default "
+              + s.retryBudgetPercent
+              + "\n  --deadline_reserve=FLOAT   Fraction of the remaining deadline kept for this "
+              + "server when calling downstream. Default "
+              + s.deadlineReserve
+              + "\n  --min_hop_budget_ms=INT    Downstream calls with less time left fail without "
+              + "being sent. Default "
+              + s.minHopBudgetMs
+              + "\n  --default_deadline_ms=INT  Deadline of downstream unary calls made without "
+              + "one. 0 for none. Default "
+              + s.defaultDeadlineMs
+              + "\n  --breaker_failure_rate=FLOAT Share of failed downstream calls that opens "
+              + "the circuit to that server. 0 disables the breakers. Default "
+              + s.breakerFailureRate
+              + "\n  --breaker_slow_call_ms=INT Downstream calls slower than this count towards "
+              + "opening the circuit. Default "
+              + s.breakerSlowCallMs
+              + "\n  --breaker_open_ms=INT      How long an open circuit fails calls before "
+              + "probing. Default "
+              + s.breakerOpenMs
+              + "\n  --account_fallback_cache_size=INT Accounts remembered to serve while the "
+              + "circuit to the account server is open. 0 disables. Default "
+              + s.accountFallbackCacheSize
+              + "\n  --warmup_calls=INT         Synthetic calls to send through the service before "
+              + "reporting SERVING. Default "
+              + s.warmupCalls
+              + "\n  --warmup_timeout_ms=INT    Time allowed to connect to the dependencies and "
+              + "send the warmup calls. 0 skips the warmup. Default "
+              + s.warmupTimeoutMs
+              + "\n  --drain_window_ms=INT      Time over which to end the open watch streams on "
+              + "shutdown, so that their clients reconnect gradually. Default "
+              + s.drainWindowMs
+              + "\n  --health_interval_ms=INT   Interval between evaluations of the load to report "
+              + "in health checks. 0 always reports SERVING. Default "
+              + s.healthIntervalMs
+              + "\n  --health_max_in_flight=INT Unary calls in flight over which to report "
+              + "NOT_SERVING. Default "
+              + s.healthMaxInFlight
+              + "\n  --health_max_lag_ms=INT    Timer lag over which to report NOT_SERVING. "
+              + "Default "
+              + s.healthMaxLagMs
+              + "\n  --faults=TEXT              Faults to inject into incoming calls, as a "
+              + "FaultConfig in protobuf text format. Can be changed at runtime on the admin port."
+              + "\n  --capture_file=PATH        Record a sample of incoming calls to this file for "
+              + "replay with the client. Default \"" + s.captureFile + "\""
+              + "\n  --capture_sample_rate=FLOAT Fraction of calls to record. Default "
+              + s.captureSampleRate
               + "\n  --creds=insecure|xds  . Type of credentials to use on the client & server. "
               + "Default "
               + s.credentialsType.toString().toLowerCase());
@@ -144,23 +304,84 @@ public class StatsServer {
   }
 
   private void start() throws IOException {
+    traceSampler = TraceSampler.parse(traceSampling);
     if (!gcpClientProject.isEmpty()) {
-      Observability.registerExporters(gcpClientProject);
+      Observability.registerExporters(gcpClientProject, traceSampler);
+    }
+    if (!faults.isEmpty()) {
+      faultInjector.setConfig(FaultInjector.parse(faults));
     }
-    HealthStatusManager health = new HealthStatusManager();
+    health = new HealthStatusManager();
+    // Reported until the warmup is over.
+    health.setStatus("", ServingStatus.NOT_SERVING);
     // start an admin+health server in plaintext mode
     adminServer = ServerBuilder.forPort(adminPort)
         .addServices(AdminInterface.getStandardServices())
+        .addService(faultInjector.adminService())
         .addService(health.getHealthService())
         .build()
         .start();
     logger.info("Admin & health server started, listening on " + adminPort);
+    if (metricsPort != 0) {
+      metricsServer = localMetrics.serve(metricsPort);
+      logger.info("Metrics served on " + metricsPort + "/metrics");
+    }
     ChannelCredentials channelCredentials =
         credentialsType == CredentialsType.XDS
             ? XdsChannelCredentials.create(InsecureChannelCredentials.create())
             : InsecureChannelCredentials.create();
-    accountChannel = Grpc.newChannelBuilder(accountServer, channelCredentials).build();
-    exec = MoreExecutors.listeningDecorator(Executors.newSingleThreadScheduledExecutor());
+    ClientInterceptor deadlineBudget =
+        new DeadlineInterceptors.BudgetInterceptor(
+            deadlineReserve, minHopBudgetMs, defaultDeadlineMs);
+    accountChannel =
+        downstreamChannel(accountServer, "account server", channelCredentials, deadlineBudget);
+    hedgeTimer = new HashedWheelTimer("account-hedge-timer", 1, 1, MILLISECONDS, 512);
+    AccountLookup accountLookup =
+        new AccountLookup(
+            accountChannel,
+            hedgeTimer,
+            hedgePercentile,
+            retryBudgetPercent,
+            accountFallbackCacheSize);
+    timer =
+        new HashedWheelTimer(
+            "stats-price-timer", Runtime.getRuntime().availableProcessors(), 5, MILLISECONDS, 512);
+    if (replayFile.isEmpty()) {
+      priceSource = new SyntheticPriceSource(timer, symbolCount, 5);
+    } else {
+      ReplayPriceSource replay =
+          ReplayPriceSource.open(Paths.get(replayFile), replaySpeedup, replayLoop);
+      logger.info("Replaying " + replay.recordCount() + " ticks from " + replayFile);
+      priceSource = replay;
+    }
+    prices = new PriceTable(priceSource.symbols());
+    priceSource.start(prices);
+    if (!captureFile.isEmpty()) {
+      recorder = new TrafficRecorder(Paths.get(captureFile), captureSampleRate);
+      logger.info("Capturing " + captureSampleRate + " of calls to " + captureFile);
+    }
+    healthEvaluator =
+        new HealthEvaluator(
+            health, Collections.singletonList(StatsGrpc.SERVICE_NAME), healthMaxInFlight);
+    healthEvaluator.addLagLimit(healthMaxLagMs);
+    healthEvaluator.addDependency("account server", accountChannel);
+    ServerServiceDefinition service =
+        ServerInterceptors.intercept(
+            new StatsImpl(accountLookup, timer, prices, premiumOnly),
+            faultInjector,
+            new WalletInterceptors.HostnameInterceptor(),
+            new WalletInterceptors.AuthInterceptor(),
+            new DeadlineInterceptors.ExpiredCallInterceptor(),
+            streamDrainer,
+            healthEvaluator);
+    // Warmup calls go through the service before the metrics and the recorder, so that they are
+    // neither counted nor captured.
+    ServerServiceDefinition warmupService = service;
+    service = ServerInterceptors.intercept(service, localMetrics, traceSampler);
+    if (recorder != null) {
+      // Outermost, so the recorded latency covers the other interceptors too.
+      service = ServerInterceptors.intercept(service, recorder);
+    }
     ServerCredentials serverCredentials =
         credentialsType == CredentialsType.XDS
             ? XdsServerCredentials.create(InsecureServerCredentials.create())
@@ -168,11 +389,7 @@ public class StatsServer {
     if (credentialsType == CredentialsType.XDS) {
       server =
           XdsServerBuilder.forPort(port, serverCredentials)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new StatsImpl(accountChannel, exec, premiumOnly),
-                      new WalletInterceptors.HostnameInterceptor(),
-                      new WalletInterceptors.AuthInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
@@ -180,18 +397,17 @@ public class StatsServer {
     } else {
       server =
           ServerBuilder.forPort(port)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new StatsImpl(accountChannel, exec, premiumOnly),
-                      new WalletInterceptors.HostnameInterceptor(),
-                      new WalletInterceptors.AuthInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
               .start();
     }
-    health.setStatus("", ServingStatus.SERVING);
     logger.info("Server started, listening on " + port);
+    if (warmupTimeoutMs > 0) {
+      warmUp(warmupService);
+    }
+    healthEvaluator.start(healthIntervalMs);
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread() {
@@ -208,18 +424,102 @@ public class StatsServer {
             });
   }
 
+  /**
+   * Creates a channel to a dependency. Calls first get their share of the deadline, then go
+   * through a circuit breaker unless breakers are disabled.
+   */
+  private ManagedChannel downstreamChannel(
+      String target,
+      String name,
+      ChannelCredentials credentials,
+      ClientInterceptor deadlineBudget) {
+    ManagedChannelBuilder<?> builder = Grpc.newChannelBuilder(target, credentials);
+    if (breakerFailureRate > 0) {
+      builder.intercept(
+          new CircuitBreaker(name, breakerFailureRate, breakerSlowCallMs, breakerOpenMs));
+    }
+    // The interceptor added last runs first.
+    return builder.intercept(deadlineBudget).build();
+  }
+
+  /**
+   * Connects to the account server, then sends price requests as both users, before the server
+   * reports SERVING.
+   */
+  private void warmUp(ServerServiceDefinition service) throws IOException {
+    Warmup warmup = new Warmup(warmupTimeoutMs);
+    try {
+      warmup.connect(accountChannel, "account server");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (warmupCalls > 0) {
+      warmup.run(
+          service,
+          warmupCalls,
+          new Warmup.CallFactory() {
+            @Override
+            public Callable<?> newCall(ManagedChannel channel) {
+              final StatsGrpc.StatsBlockingStub premium =
+                  Warmup.asUser(StatsGrpc.newBlockingStub(channel), true);
+              final StatsGrpc.StatsBlockingStub normal =
+                  Warmup.asUser(StatsGrpc.newBlockingStub(channel), false);
+              return new Callable<PriceResponse>() {
+                private int calls;
+
+                @Override
+                public PriceResponse call() {
+                  StatsGrpc.StatsBlockingStub stub = calls++ % 2 == 0 ? premium : normal;
+                  return stub.withDeadlineAfter(1, SECONDS)
+                      .fetchPrice(PriceRequest.getDefaultInstance());
+                }
+              };
+            }
+          });
+    }
+    warmup.finish();
+  }
+
   private void stop() throws InterruptedException {
+    if (healthEvaluator != null) {
+      healthEvaluator.shutdown();
+    }
+    if (health != null) {
+      // Tells load balancers and health checkers to stop sending new calls here.
+      health.enterTerminalState();
+    }
     if (server != null) {
-      server.shutdown().awaitTermination(30, SECONDS);
+      // Sends GOAWAY, so clients open their new streams elsewhere, then ends the open ones.
+      server.shutdown();
+      streamDrainer.drain(drainWindowMs);
+      server.awaitTermination(30, SECONDS);
     }
     if (adminServer != null) {
       adminServer.shutdown().awaitTermination(30, SECONDS);
     }
+    if (metricsServer != null) {
+      metricsServer.stop(0);
+    }
+    faultInjector.shutdown();
     if (accountChannel != null) {
       accountChannel.shutdownNow().awaitTermination(5, SECONDS);
     }
-    if (exec != null) {
-      exec.shutdownNow();
+    if (priceSource != null) {
+      priceSource.stop();
+    }
+    if (timer != null) {
+      timer.stop();
+    }
+    if (hedgeTimer != null) {
+      hedgeTimer.stop();
+    }
+    if (recorder != null) {
+      try {
+        recorder.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close traffic capture", e);
+      }
     }
   }
 
@@ -237,24 +537,26 @@ public class StatsServer {
   }
 
   private static class StatsImpl extends StatsGrpc.StatsImplBase {
-    private final AccountGrpc.AccountBlockingStub blockingStub;
-    private final ListeningScheduledExecutorService exec;
+    private final AccountLookup accountLookup;
+    private final HashedWheelTimer timer;
+    private final PriceTable prices;
     private final boolean premiumOnly;
 
     private StatsImpl(
-        ManagedChannel accountChannel,
-        ListeningScheduledExecutorService exec,
+        AccountLookup accountLookup,
+        HashedWheelTimer timer,
+        PriceTable prices,
         boolean premiumOnly) {
-      this.blockingStub = AccountGrpc.newBlockingStub(accountChannel);
-      this.exec = exec;
+      this.accountLookup = accountLookup;
+      this.timer = timer;
+      this.prices = prices;
       this.premiumOnly = premiumOnly;
     }
 
     private boolean validateMembership(
-        String token, String membership, StreamObserver<PriceResponse> responseObserver) {
+        String token, String membership, StreamObserver<?> responseObserver) {
       try {
-        GetUserInfoResponse response =
-            blockingStub.getUserInfo(GetUserInfoRequest.newBuilder().setToken(token).build());
+        GetUserInfoResponse response = accountLookup.getUserInfo(token);
         MembershipType type = response.getMembership();
         if ("premium".equals(membership) && type != MembershipType.PREMIUM) {
           responseObserver.onError(
@@ -281,48 +583,155 @@ public class StatsServer {
       return true;
     }
 
-    private long getPrice() {
-      return Double.valueOf(Math.sin(System.currentTimeMillis() / 173) * 1000 + 10000).longValue();
+    /**
+     * Binds both methods with a marshaller that passes pre-encoded responses through, so that a
+     * price is serialized once no matter how many calls it is sent on.
+     */
+    @Override
+    public ServerServiceDefinition bindService() {
+      MethodDescriptor<PriceRequest, PreEncodedMessage> fetchPriceMethod =
+          StatsGrpc.getFetchPriceMethod()
+              .toBuilder(
+                  StatsGrpc.getFetchPriceMethod().getRequestMarshaller(),
+                  PreEncodedMessage.marshaller())
+              .build();
+      MethodDescriptor<PriceRequest, PreEncodedMessage> watchPriceMethod =
+          StatsGrpc.getWatchPriceMethod()
+              .toBuilder(
+                  StatsGrpc.getWatchPriceMethod().getRequestMarshaller(),
+                  PreEncodedMessage.marshaller())
+              .build();
+      ServiceDescriptor serviceDescriptor =
+          ServiceDescriptor.newBuilder(StatsGrpc.SERVICE_NAME)
+              .setSchemaDescriptor(StatsGrpc.getServiceDescriptor().getSchemaDescriptor())
+              .addMethod(fetchPriceMethod)
+              .addMethod(watchPriceMethod)
+              .build();
+      return ServerServiceDefinition.builder(serviceDescriptor)
+          .addMethod(
+              fetchPriceMethod,
+              ServerCalls.asyncUnaryCall(
+                  new ServerCalls.UnaryMethod<PriceRequest, PreEncodedMessage>() {
+                    @Override
+                    public void invoke(
+                        PriceRequest request, StreamObserver<PreEncodedMessage> responseObserver) {
+                      fetchEncodedPrice(request, responseObserver);
+                    }
+                  }))
+          .addMethod(
+              watchPriceMethod,
+              ServerCalls.asyncServerStreamingCall(
+                  new ServerCalls.ServerStreamingMethod<PriceRequest, PreEncodedMessage>() {
+                    @Override
+                    public void invoke(
+                        PriceRequest request, StreamObserver<PreEncodedMessage> responseObserver) {
+                      watchEncodedPrice(request, responseObserver);
+                    }
+                  }))
+          .build();
     }
 
-    @Override
-    public void watchPrice(PriceRequest req, final StreamObserver<PriceResponse> responseObserver) {
+    private void watchEncodedPrice(
+        PriceRequest req, final StreamObserver<PreEncodedMessage> responseObserver) {
       String token = WalletInterceptors.TOKEN_KEY.get();
       String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
       if (!validateMembership(token, membership, responseObserver)) {
         return;
       }
       int millisecondsBetweenUpdates;
-      if ("premium".equals(membership)) {
-        millisecondsBetweenUpdates = 100;
-      } else {
-        millisecondsBetweenUpdates = 1000;
+      try {
+        millisecondsBetweenUpdates =
+            UpdateIntervals.resolve(membership, req.getUpdateIntervalMs());
+      } catch (StatusRuntimeException e) {
+        responseObserver.onError(e);
+        return;
       }
-      final ListenableScheduledFuture<?> future =
-          exec.scheduleAtFixedRate(
-              new Runnable() {
-                @Override
-                public void run() {
-                  PriceResponse response = PriceResponse.newBuilder().setPrice(getPrice()).build();
-                  responseObserver.onNext(response);
-                }
-              },
-              0,
-              millisecondsBetweenUpdates,
-              MILLISECONDS);
-
+      int symbolId = prices.symbolId(req.getSymbol());
+      if (symbolId < 0) {
+        responseObserver.onError(unknownSymbol(req.getSymbol()));
+        return;
+      }
+      final PriceWatch watch =
+          new PriceWatch(
+              MILLISECONDS.toNanos(millisecondsBetweenUpdates),
+              (ServerCallStreamObserver<PreEncodedMessage>) responseObserver);
+      final PriceTable.Subscription subscription = prices.subscribe(symbolId, watch);
       ((ServerCallStreamObserver) responseObserver)
           .setOnCancelHandler(
               new Runnable() {
                 @Override
                 public void run() {
-                  future.cancel(true);
+                  subscription.cancel();
+                  watch.cancel();
                 }
               });
+      watch.onPrice(prices.current(symbolId));
     }
 
-    @Override
-    public void fetchPrice(PriceRequest req, StreamObserver<PriceResponse> responseObserver) {
+    /**
+     * Sends the prices of one symbol to a WatchPrice stream as they change, at most once per
+     * update interval. A price that arrives too early is held and sent when the interval ends,
+     * replaced by any newer one in the meantime.
+     */
+    private final class PriceWatch implements PriceTable.Subscriber, Runnable {
+      private final long intervalNanos;
+      private final ServerCallStreamObserver<PreEncodedMessage> responseObserver;
+      private long lastVersion = -1;
+      private long lastSentNanos;
+      private PriceTable.Snapshot pending;
+      private boolean flushScheduled;
+      private boolean cancelled;
+
+      PriceWatch(long intervalNanos, ServerCallStreamObserver<PreEncodedMessage> responseObserver) {
+        this.intervalNanos = intervalNanos;
+        this.responseObserver = responseObserver;
+      }
+
+      @Override
+      public synchronized void onPrice(PriceTable.Snapshot snapshot) {
+        if (cancelled
+            || snapshot.version <= lastVersion
+            || (pending != null && snapshot.version <= pending.version)) {
+          return;
+        }
+        long now = System.nanoTime();
+        long wait = lastSentNanos + intervalNanos - now;
+        if (lastVersion < 0 || wait <= 0) {
+          send(snapshot, now);
+          return;
+        }
+        pending = snapshot;
+        if (!flushScheduled) {
+          flushScheduled = true;
+          timer.schedule(this, wait, NANOSECONDS);
+        }
+      }
+
+      /** Sends the held price once the interval has passed. */
+      @Override
+      public synchronized void run() {
+        flushScheduled = false;
+        if (cancelled || pending == null) {
+          return;
+        }
+        send(pending, System.nanoTime());
+      }
+
+      synchronized void cancel() {
+        cancelled = true;
+        pending = null;
+      }
+
+      private void send(PriceTable.Snapshot snapshot, long now) {
+        pending = null;
+        lastVersion = snapshot.version;
+        lastSentNanos = now;
+        responseObserver.onNext(snapshot.encoded);
+      }
+    }
+
+    private void fetchEncodedPrice(
+        PriceRequest req, StreamObserver<PreEncodedMessage> responseObserver) {
       String token = WalletInterceptors.TOKEN_KEY.get();
       String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
 
@@ -330,9 +739,17 @@ public class StatsServer {
         return;
       }
 
-      PriceResponse response = PriceResponse.newBuilder().setPrice(getPrice()).build();
-      responseObserver.onNext(response);
+      int symbolId = prices.symbolId(req.getSymbol());
+      if (symbolId < 0) {
+        responseObserver.onError(unknownSymbol(req.getSymbol()));
+        return;
+      }
+      responseObserver.onNext(prices.current(symbolId).encoded);
       responseObserver.onCompleted();
     }
+
+    private static StatusRuntimeException unknownSymbol(String symbol) {
+      return Status.NOT_FOUND.withDescription("Unknown symbol: " + symbol).asRuntimeException();
+    }
   }
 }
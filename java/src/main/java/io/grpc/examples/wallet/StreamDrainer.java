@@ -0,0 +1,182 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Ends the long-lived streams of a server gradually when it shuts down, so that their clients do
+ * not all reconnect to the remaining replicas at once. Streams are ended one after the other, at
+ * even intervals over the drain window, with an UNAVAILABLE status that tells clients to reconnect,
+ * which their channel does to another replica once the server has sent GOAWAY.
+ *
+ * <p>The handler of a drained stream sees it as cancelled, so it stops sending and cleans up the
+ * way it does when the client goes away.
+ */
+final class StreamDrainer implements ServerInterceptor {
+  private static final Logger logger = Logger.getLogger(StreamDrainer.class.getName());
+
+  static final int DEFAULT_WINDOW_MS = 10000;
+  static final String DRAINING = "Server is draining, reconnect to another replica";
+  /** Width of the buckets in which the peak rate of ended streams is counted. */
+  static final long PEAK_BUCKET_MS = 100;
+
+  private final Set<DrainableCall<?, ?>> streams =
+      Collections.newSetFromMap(new ConcurrentHashMap<DrainableCall<?, ?>, Boolean>());
+
+  int activeStreams() {
+    return streams.size();
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    if (call.getMethodDescriptor().getType().serverSendsOneMessage()) {
+      return next.startCall(call, requestHeaders);
+    }
+    final DrainableCall<ReqT, RespT> drainable = new DrainableCall<>(call);
+    streams.add(drainable);
+    return new SimpleForwardingServerCallListener<ReqT>(
+        next.startCall(drainable, requestHeaders)) {
+      @Override
+      public void onComplete() {
+        streams.remove(drainable);
+        if (drainable.drained) {
+          // The client did not go away, but the handler should stop as if it had.
+          super.onCancel();
+        } else {
+          super.onComplete();
+        }
+      }
+
+      @Override
+      public void onCancel() {
+        streams.remove(drainable);
+        super.onCancel();
+      }
+    };
+  }
+
+  /**
+   * Ends every active stream over {@code windowMs}, or at once if it is 0, and returns the
+   * largest number of streams this server ended within {@link #PEAK_BUCKET_MS}. That bounds the
+   * reconnects its clients send elsewhere only as far as they reconnect right away; {@code
+   * StreamDrainerBenchmark} measures the reconnects arriving at another replica, with and
+   * without draining. Streams started after the call are not ended, so the server should have
+   * stopped taking new ones.
+   */
+  int drain(long windowMs) throws InterruptedException {
+    List<DrainableCall<?, ?>> draining = new ArrayList<>(streams);
+    long startNanos = System.nanoTime();
+    long windowNanos = MILLISECONDS.toNanos(windowMs);
+    long bucketNanos = MILLISECONDS.toNanos(PEAK_BUCKET_MS);
+    long bucket = -1;
+    int inBucket = 0;
+    int peak = 0;
+    for (int i = 0; i < draining.size(); i++) {
+      long waitNanos = startNanos + windowNanos * i / draining.size() - System.nanoTime();
+      if (waitNanos > 0) {
+        NANOSECONDS.sleep(waitNanos);
+      }
+      if (!draining.get(i).drain()) {
+        continue;
+      }
+      long current = (System.nanoTime() - startNanos) / bucketNanos;
+      inBucket = current == bucket ? inBucket + 1 : 1;
+      bucket = current;
+      peak = Math.max(peak, inBucket);
+    }
+    logger.info(
+        "Drained "
+            + draining.size()
+            + " streams in "
+            + NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+            + " ms, ending at most "
+            + peak
+            + " per "
+            + PEAK_BUCKET_MS
+            + " ms");
+    return peak;
+  }
+
+  /** A stream that the drainer can end while its handler is still sending. */
+  private static final class DrainableCall<ReqT, RespT>
+      extends SimpleForwardingServerCall<ReqT, RespT> {
+    // Guarded by this.
+    private boolean closed;
+    private volatile boolean drained;
+
+    DrainableCall(ServerCall<ReqT, RespT> delegate) {
+      super(delegate);
+    }
+
+    /** Ends the stream unless the handler already did, and returns whether it did. */
+    synchronized boolean drain() {
+      if (closed) {
+        return false;
+      }
+      closed = true;
+      drained = true;
+      super.close(Status.UNAVAILABLE.withDescription(DRAINING), new Metadata());
+      return true;
+    }
+
+    @Override
+    public synchronized void sendHeaders(Metadata headers) {
+      if (!closed) {
+        super.sendHeaders(headers);
+      }
+    }
+
+    @Override
+    public synchronized void sendMessage(RespT message) {
+      if (!closed) {
+        super.sendMessage(message);
+      }
+    }
+
+    @Override
+    public synchronized void close(Status status, Metadata trailers) {
+      if (!closed) {
+        closed = true;
+        super.close(status, trailers);
+      }
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return drained || super.isCancelled();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/** Moves every symbol along its own phase of the same sine wave, refreshed on a timer tick. */
+final class SyntheticPriceSource implements PriceSource {
+  private final HashedWheelTimer timer;
+  private final int symbolCount;
+  private final long tickMs;
+  private HashedWheelTimer.Timeout refresh;
+
+  SyntheticPriceSource(HashedWheelTimer timer, int symbolCount, long tickMs) {
+    this.timer = timer;
+    this.symbolCount = symbolCount;
+    this.tickMs = tickMs;
+  }
+
+  @Override
+  public String[] symbols() {
+    String[] symbols = new String[symbolCount];
+    for (int i = 0; i < symbolCount; i++) {
+      symbols[i] = PriceTable.syntheticSymbol(i);
+    }
+    return symbols;
+  }
+
+  @Override
+  public void start(final PriceTable table) {
+    refresh(table);
+    // A single periodic task, so there is a single writer.
+    refresh =
+        timer.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                refresh(table);
+              }
+            },
+            tickMs,
+            tickMs,
+            MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (refresh != null) {
+      refresh.cancel();
+    }
+  }
+
+  private static void refresh(PriceTable table) {
+    long step = System.currentTimeMillis() / 173;
+    for (int i = 0; i < table.size(); i++) {
+      table.update(i, Double.valueOf(Math.sin(step + i) * 1000 + 10000).longValue());
+    }
+  }
+}
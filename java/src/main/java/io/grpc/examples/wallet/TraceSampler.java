@@ -0,0 +1,264 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.opencensus.trace.AttributeValue;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.Tracing;
+import io.opencensus.trace.samplers.Samplers;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which traces to sample, from a spec of comma-separated settings:
+ *
+ * <ul>
+ *   <li>{@code rate=FLOAT}: the probability to sample a trace. Default 1;
+ *   <li>{@code method:SERVICE/METHOD=FLOAT}: the probability for the traces started by calls to
+ *       that method;
+ *   <li>{@code membership:NAME=FLOAT}: the probability for the traces of the outgoing calls made
+ *       within the calls of users with that membership, such as the calls from the wallet server
+ *       to its backends. It does not apply to the span of the incoming call itself, which gRPC
+ *       starts before the membership header is read, nor to the calls of the client, which carry
+ *       no membership in their context;
+ *   <li>{@code max_per_second=INT}: the most traces to start per second, on top of the
+ *       probability. 0 does not limit them;
+ *   <li>{@code keep_errors=BOOL}: marks failed calls whose trace was not sampled;
+ *   <li>{@code keep_slow_ms=INT}: marks calls that took at least that long and whose trace was not
+ *       sampled. 0 does not mark them.
+ * </ul>
+ *
+ * <p>A span whose parent is sampled is always sampled too, so traces are never cut in the middle
+ * and the servers follow the decision of their clients. Like {@link Samplers#probabilitySampler},
+ * the decision for a probability depends on the trace ID, so that the processes of a trace which
+ * did not start sampled agree with each other. Each process limits its own rate, though, so it may
+ * sample part of a trace that an earlier process skipped for lack of permits.
+ *
+ * <p>OpenCensus decides to sample a span when it starts, before the call fails or gets slow. So, as
+ * an interceptor, this marks kept calls with a sampled {@code Kept.} span in their trace, which
+ * carries the status and latency of the call, instead of the whole trace.
+ */
+final class TraceSampler extends Sampler implements ServerInterceptor {
+  static final String KEPT_SPAN_PREFIX = "Kept.";
+  private static final String METHOD_PREFIX = "method:";
+  private static final String MEMBERSHIP_PREFIX = "membership:";
+  // gRPC names the spans of outgoing calls "Sent." and those of incoming calls "Recv.".
+  private static final String CLIENT_SPAN_PREFIX = "Sent.";
+
+  private final String spec;
+  private final long defaultBound;
+  /** The bounds of the overridden methods, keyed by the name of their spans without prefix. */
+  private final Map<String, Long> methodBounds = new HashMap<>();
+  private final Map<String, Long> membershipBounds = new HashMap<>();
+  private final long permitIntervalNanos;
+  private final AtomicLong nextPermitNanos = new AtomicLong(Long.MIN_VALUE);
+  private final boolean keepErrors;
+  private final long keepSlowNanos;
+
+  private TraceSampler(
+      String spec,
+      double rate,
+      Map<String, Double> methodRates,
+      Map<String, Double> membershipRates,
+      int maxPerSecond,
+      boolean keepErrors,
+      long keepSlowMs) {
+    this.spec = spec;
+    this.defaultBound = bound(rate);
+    for (Map.Entry<String, Double> entry : methodRates.entrySet()) {
+      methodBounds.put(entry.getKey().replace('/', '.'), bound(entry.getValue()));
+    }
+    for (Map.Entry<String, Double> entry : membershipRates.entrySet()) {
+      membershipBounds.put(entry.getKey(), bound(entry.getValue()));
+    }
+    this.permitIntervalNanos = maxPerSecond > 0 ? SECONDS.toNanos(1) / maxPerSecond : 0;
+    this.keepErrors = keepErrors;
+    this.keepSlowNanos = MILLISECONDS.toNanos(keepSlowMs);
+  }
+
+  /** Parses {@code spec}. An empty spec samples every trace. */
+  static TraceSampler parse(String spec) {
+    double rate = 1;
+    Map<String, Double> methodRates = new HashMap<>();
+    Map<String, Double> membershipRates = new HashMap<>();
+    int maxPerSecond = 0;
+    boolean keepErrors = false;
+    long keepSlowMs = 0;
+    for (String setting : spec.split(",")) {
+      if (setting.trim().isEmpty()) {
+        continue;
+      }
+      String[] parts = setting.trim().split("=", 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Trace sampling settings must be KEY=VALUE: " + setting);
+      }
+      String key = parts[0];
+      String value = parts[1];
+      if ("rate".equals(key)) {
+        rate = parseRate(value);
+      } else if (key.startsWith(METHOD_PREFIX)) {
+        methodRates.put(key.substring(METHOD_PREFIX.length()), parseRate(value));
+      } else if (key.startsWith(MEMBERSHIP_PREFIX)) {
+        membershipRates.put(key.substring(MEMBERSHIP_PREFIX.length()), parseRate(value));
+      } else if ("max_per_second".equals(key)) {
+        maxPerSecond = Integer.parseInt(value);
+      } else if ("keep_errors".equals(key)) {
+        keepErrors = Boolean.parseBoolean(value);
+      } else if ("keep_slow_ms".equals(key)) {
+        keepSlowMs = Long.parseLong(value);
+      } else {
+        throw new IllegalArgumentException("Unknown trace sampling setting: " + key);
+      }
+    }
+    return new TraceSampler(
+        spec, rate, methodRates, membershipRates, maxPerSecond, keepErrors, keepSlowMs);
+  }
+
+  private static double parseRate(String value) {
+    double rate = Double.parseDouble(value);
+    if (rate < 0 || rate > 1) {
+      throw new IllegalArgumentException("Trace sampling rates must be in [0, 1]: " + value);
+    }
+    return rate;
+  }
+
+  /** Returns the bound under which the lower long of a trace ID is sampled, as OpenCensus does. */
+  private static long bound(double rate) {
+    if (rate == 0) {
+      return Long.MIN_VALUE;
+    } else if (rate == 1) {
+      return Long.MAX_VALUE;
+    }
+    return (long) (rate * Long.MAX_VALUE);
+  }
+
+  @Override
+  public boolean shouldSample(
+      SpanContext parentContext,
+      Boolean hasRemoteParent,
+      TraceId traceId,
+      SpanId spanId,
+      String name,
+      List<Span> parentLinks) {
+    if (parentContext != null && parentContext.getTraceOptions().isSampled()) {
+      return true;
+    }
+    if (Math.abs(traceId.getLowerLong()) >= boundFor(name)) {
+      return false;
+    }
+    return permitIntervalNanos == 0 || tryAcquirePermit();
+  }
+
+  private long boundFor(String name) {
+    if (!methodBounds.isEmpty()) {
+      Long bound = methodBounds.get(name.substring(name.indexOf('.') + 1));
+      if (bound != null) {
+        return bound;
+      }
+    }
+    // The membership is only known once AuthInterceptor has run, after the "Recv." span started.
+    if (!membershipBounds.isEmpty() && name.startsWith(CLIENT_SPAN_PREFIX)) {
+      String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
+      Long bound = membership == null ? null : membershipBounds.get(membership);
+      if (bound != null) {
+        return bound;
+      }
+    }
+    return defaultBound;
+  }
+
+  /**
+   * Takes one of the permits that are handed out every {@link #permitIntervalNanos}, up to a
+   * second's worth at once after an idle period.
+   */
+  private boolean tryAcquirePermit() {
+    long nowNanos = System.nanoTime();
+    long next = nextPermitNanos.get();
+    if (nowNanos < next) {
+      return false;
+    }
+    long earliest = nowNanos - SECONDS.toNanos(1);
+    // Losing the race to another thread means its trace took the permit.
+    return nextPermitNanos.compareAndSet(
+        next, (next > earliest ? next : earliest) + permitIntervalNanos);
+  }
+
+  @Override
+  public String getDescription() {
+    return "TraceSampler{" + spec + "}";
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    if (!keepErrors && keepSlowNanos == 0) {
+      return next.startCall(call, requestHeaders);
+    }
+    final Span span = Tracing.getTracer().getCurrentSpan();
+    if (!span.getContext().isValid() || span.getContext().getTraceOptions().isSampled()) {
+      return next.startCall(call, requestHeaders);
+    }
+    final long startNanos = System.nanoTime();
+    return next.startCall(
+        new SimpleForwardingServerCall<ReqT, RespT>(call) {
+          @Override
+          public void close(Status status, Metadata trailers) {
+            long latencyNanos = System.nanoTime() - startNanos;
+            if ((keepErrors && !status.isOk())
+                || (keepSlowNanos > 0 && latencyNanos >= keepSlowNanos)) {
+              keep(span, getMethodDescriptor().getFullMethodName(), status, latencyNanos);
+            }
+            super.close(status, trailers);
+          }
+        },
+        requestHeaders);
+  }
+
+  private static void keep(Span parent, String fullMethodName, Status status, long latencyNanos) {
+    Span kept =
+        Tracing.getTracer()
+            .spanBuilderWithExplicitParent(
+                KEPT_SPAN_PREFIX + fullMethodName.replace('/', '.'), parent)
+            .setSampler(Samplers.alwaysSample())
+            .setRecordEvents(true)
+            .startSpan();
+    Map<String, AttributeValue> attributes = new HashMap<>();
+    attributes.put("status", AttributeValue.stringAttributeValue(status.getCode().toString()));
+    attributes.put(
+        "latency_ms", AttributeValue.longAttributeValue(NANOSECONDS.toMillis(latencyNanos)));
+    kept.putAttributes(attributes);
+    kept.end();
+  }
+}
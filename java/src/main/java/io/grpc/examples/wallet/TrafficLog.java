@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static io.grpc.Metadata.ASCII_STRING_MARSHALLER;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.Metadata;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary format of captured RPCs, written by {@link TrafficRecorder} and read back by the
+ * client's replay mode. A log is a header followed by one record per call:
+ *
+ * <pre>
+ *   int   magic ("WCAP"), int format version (1)
+ *   per call:
+ *     long  nanoseconds from the start of the capture to the start of the call
+ *     UTF   full method name
+ *     byte  header count, then per header: UTF key, UTF value
+ *     int   request count, then per request: int length, serialized message
+ *     int   status code the server closed the call with, or CANCELLED if it was cancelled
+ *     long  nanoseconds until the call was closed or cancelled
+ * </pre>
+ *
+ * <p>Records are written as calls end, so they are not in the order the calls started.
+ */
+final class TrafficLog {
+  static final int MAGIC = 0x57434150;
+  static final int FORMAT_VERSION = 1;
+
+  /** The request headers worth replaying. Others are regenerated by the transport. */
+  static final List<Metadata.Key<String>> CAPTURED_HEADERS =
+      ImmutableList.of(
+          WalletInterceptors.TOKEN_MD_KEY,
+          WalletInterceptors.MEMBERSHIP_MD_KEY,
+          WalletInterceptors.ROUTE_MD_KEY,
+          Metadata.Key.of("session_id", ASCII_STRING_MARSHALLER));
+
+  /** One captured call. */
+  static final class Record {
+    final long startNanos;
+    final String method;
+    final List<String[]> headers;
+    final List<byte[]> requests;
+    final int statusCode;
+    final long latencyNanos;
+
+    Record(
+        long startNanos,
+        String method,
+        List<String[]> headers,
+        List<byte[]> requests,
+        int statusCode,
+        long latencyNanos) {
+      this.startNanos = startNanos;
+      this.method = method;
+      this.headers = headers;
+      this.requests = requests;
+      this.statusCode = statusCode;
+      this.latencyNanos = latencyNanos;
+    }
+
+    /** Returns the captured headers as metadata to send on a replayed call. */
+    Metadata metadata() {
+      Metadata metadata = new Metadata();
+      for (String[] header : headers) {
+        metadata.put(Metadata.Key.of(header[0], ASCII_STRING_MARSHALLER), header[1]);
+      }
+      return metadata;
+    }
+  }
+
+  /** Appends records to a new log. Not thread-safe. */
+  static final class Writer implements Closeable {
+    private final DataOutputStream out;
+
+    Writer(Path file) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+    }
+
+    void write(Record record) throws IOException {
+      out.writeLong(record.startNanos);
+      out.writeUTF(record.method);
+      out.writeByte(record.headers.size());
+      for (String[] header : record.headers) {
+        out.writeUTF(header[0]);
+        out.writeUTF(header[1]);
+      }
+      out.writeInt(record.requests.size());
+      for (byte[] request : record.requests) {
+        out.writeInt(request.length);
+        out.write(request);
+      }
+      out.writeInt(record.statusCode);
+      out.writeLong(record.latencyNanos);
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /** Reads the records of a log in order. */
+  static final class Reader implements Closeable {
+    private final DataInputStream in;
+
+    Reader(Path file) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+      if (in.readInt() != MAGIC) {
+        in.close();
+        throw new IOException(file + " is not a traffic log");
+      }
+      int version = in.readInt();
+      if (version != FORMAT_VERSION) {
+        in.close();
+        throw new IOException("Unsupported traffic log version " + version);
+      }
+    }
+
+    /** Returns the next record, or null at the end of the log. */
+    Record read() throws IOException {
+      long startNanos;
+      try {
+        startNanos = in.readLong();
+      } catch (EOFException e) {
+        return null;
+      }
+      String method = in.readUTF();
+      int headerCount = in.readUnsignedByte();
+      List<String[]> headers = new ArrayList<>(headerCount);
+      for (int i = 0; i < headerCount; i++) {
+        headers.add(new String[] {in.readUTF(), in.readUTF()});
+      }
+      int requestCount = in.readInt();
+      List<byte[]> requests = new ArrayList<>(requestCount);
+      for (int i = 0; i < requestCount; i++) {
+        byte[] request = new byte[in.readInt()];
+        in.readFully(request);
+        requests.add(request);
+      }
+      return new Record(startNanos, method, headers, requests, in.readInt(), in.readLong());
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private TrafficLog() {}
+}
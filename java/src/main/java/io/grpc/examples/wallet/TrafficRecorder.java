@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Captures a sample of incoming calls to a {@link TrafficLog}. Calls that are not sampled pass
+ * straight through. Sampled calls are handed to a background thread through a bounded queue, and
+ * dropped rather than delaying the call when the queue is full, so the cost on the serving path
+ * stays bounded whatever the disk does.
+ */
+final class TrafficRecorder implements ServerInterceptor, Closeable {
+  private static final Logger logger = Logger.getLogger(TrafficRecorder.class.getName());
+  private static final int QUEUE_CAPACITY = 4096;
+  private static final TrafficLog.Record STOP =
+      new TrafficLog.Record(0, "", null, null, 0, 0);
+
+  private final double sampleRate;
+  private final long startNanos = System.nanoTime();
+  private final BlockingQueue<TrafficLog.Record> queue =
+      new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicLong dropped = new AtomicLong();
+  private final TrafficLog.Writer writer;
+  private final Thread thread;
+
+  /**
+   * Starts capturing to {@code file}.
+   *
+   * @param sampleRate the fraction of calls to capture, from 0 to 1
+   */
+  TrafficRecorder(Path file, double sampleRate) throws IOException {
+    if (!(sampleRate >= 0 && sampleRate <= 1)) {
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+    }
+    this.sampleRate = sampleRate;
+    this.writer = new TrafficLog.Writer(file);
+    this.thread =
+        new Thread("traffic-recorder") {
+          @Override
+          public void run() {
+            drain();
+          }
+        };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      final ServerCall<ReqT, RespT> call,
+      Metadata requestHeaders,
+      ServerCallHandler<ReqT, RespT> next) {
+    if (sampleRate == 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return next.startCall(call, requestHeaders);
+    }
+    List<String[]> headers = new ArrayList<>(TrafficLog.CAPTURED_HEADERS.size());
+    for (Metadata.Key<String> key : TrafficLog.CAPTURED_HEADERS) {
+      String value = requestHeaders.get(key);
+      if (value != null) {
+        headers.add(new String[] {key.name(), value});
+      }
+    }
+    final CapturedCall captured =
+        new CapturedCall(call.getMethodDescriptor().getFullMethodName(), headers);
+    ServerCall<ReqT, RespT> recordingCall =
+        new SimpleForwardingServerCall<ReqT, RespT>(call) {
+          @Override
+          public void close(Status status, Metadata trailers) {
+            captured.finish(status.getCode());
+            super.close(status, trailers);
+          }
+        };
+    return new SimpleForwardingServerCallListener<ReqT>(
+        next.startCall(recordingCall, requestHeaders)) {
+      @Override
+      public void onMessage(ReqT message) {
+        byte[] bytes = serialize(call, message);
+        if (bytes != null) {
+          captured.add(bytes);
+        }
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onCancel() {
+        // A call cancelled by the client or its deadline is never closed by the server.
+        captured.finish(Status.Code.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  /** Stops capturing and writes out the calls already captured. */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (queue.offer(STOP, 5, TimeUnit.SECONDS)) {
+        thread.join(TimeUnit.SECONDS.toMillis(5));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer.close();
+    if (dropped.get() > 0) {
+      logger.warning("Dropped " + dropped.get() + " captured calls because the log fell behind");
+    }
+  }
+
+  private static <ReqT> byte[] serialize(ServerCall<ReqT, ?> call, ReqT message) {
+    try (InputStream stream = call.getMethodDescriptor().streamRequest(message)) {
+      return ByteStreams.toByteArray(stream);
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Failed to capture request", e);
+      return null;
+    }
+  }
+
+  private void offer(TrafficLog.Record record) {
+    if (!queue.offer(record)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        TrafficLog.Record record = queue.poll(1, TimeUnit.SECONDS);
+        if (record == null) {
+          writer.flush();
+          continue;
+        }
+        if (record == STOP) {
+          return;
+        }
+        writer.write(record);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to write traffic log; capture stopped", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The parts of a sampled call captured so far. */
+  private final class CapturedCall {
+    final long callStartNanos = System.nanoTime();
+    final String method;
+    final List<String[]> headers;
+    // Guarded by this.
+    final List<byte[]> requests = new ArrayList<>(1);
+    boolean finished;
+
+    CapturedCall(String method, List<String[]> headers) {
+      this.method = method;
+      this.headers = headers;
+    }
+
+    synchronized void add(byte[] request) {
+      requests.add(request);
+    }
+
+    /** Queues the record of the call, once, when it is closed or cancelled. */
+    synchronized void finish(Status.Code code) {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      offer(
+          new TrafficLog.Record(
+              callStartNanos - startNanos,
+              method,
+              headers,
+              new ArrayList<>(requests),
+              code.value(),
+              System.nanoTime() - callStartNanos));
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServiceDescriptor;
+import io.grpc.Status;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link TrafficLog} back against a server, keeping the original spacing between calls
+ * divided by a speedup, and compares the latency of each method with the captured one. Calls are
+ * started without waiting for earlier ones to finish, as they arrived in the capture. The report
+ * also counts calls that ended with a different status than when captured.
+ *
+ * <p>Streaming calls of the wallet, stats and account services are held open for as long as they
+ * were captured, divided by the speedup, and then cancelled. Every call also has a deadline of
+ * {@link #DEADLINE_MARGIN_MS} beyond its captured length, so a call that never ends cannot stall
+ * the replay.
+ */
+final class TrafficReplayer {
+  static final long DEADLINE_MARGIN_MS = 10_000;
+
+  private static final Map<String, MethodDescriptor.MethodType> METHOD_TYPES =
+      methodTypes(
+          WalletGrpc.getServiceDescriptor(),
+          StatsGrpc.getServiceDescriptor(),
+          AccountGrpc.getServiceDescriptor());
+
+  private final Channel channel;
+  private final double speedup;
+  private final Map<String, MethodStats> stats = new TreeMap<>();
+
+  TrafficReplayer(Channel channel, double speedup) {
+    if (!(speedup > 0)) {
+      throw new IllegalArgumentException("speedup must be positive");
+    }
+    this.channel = channel;
+    this.speedup = speedup;
+  }
+
+  /** Replays every call of {@code file} and waits for them to complete. */
+  void replay(Path file) throws IOException {
+    List<TrafficLog.Record> records = readCalls(file);
+    if (records.isEmpty()) {
+      return;
+    }
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("traffic-replayer").setDaemon(true).build());
+    try {
+      Phaser outstanding = new Phaser(1);
+      long replayStartNanos = System.nanoTime();
+      long firstCallNanos = records.get(0).startNanos;
+      for (TrafficLog.Record record : records) {
+        long due =
+            replayStartNanos + (long) ((record.startNanos - firstCallNanos) / speedup);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        outstanding.register();
+        start(record, outstanding, scheduler);
+      }
+      outstanding.arriveAndAwaitAdvance();
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /** Reads the calls of {@code file} in the order they were started. */
+  static List<TrafficLog.Record> readCalls(Path file) throws IOException {
+    List<TrafficLog.Record> records = new ArrayList<>();
+    try (TrafficLog.Reader reader = new TrafficLog.Reader(file)) {
+      TrafficLog.Record record;
+      while ((record = reader.read()) != null) {
+        records.add(record);
+      }
+    }
+    // The recorder writes calls as they end, so a long call follows shorter ones started after it.
+    Collections.sort(
+        records,
+        new Comparator<TrafficLog.Record>() {
+          @Override
+          public int compare(TrafficLog.Record a, TrafficLog.Record b) {
+            return Long.compare(a.startNanos, b.startNanos);
+          }
+        });
+    return records;
+  }
+
+  private void start(
+      final TrafficLog.Record record,
+      final Phaser outstanding,
+      ScheduledExecutorService scheduler) {
+    MethodDescriptor.MethodType type = METHOD_TYPES.get(record.method);
+    if (type == null) {
+      type = MethodDescriptor.MethodType.UNKNOWN;
+    }
+    MethodDescriptor<byte[], byte[]> method =
+        MethodDescriptor.<byte[], byte[]>newBuilder()
+            .setType(type)
+            .setFullMethodName(record.method)
+            .setRequestMarshaller(BytesMarshaller.INSTANCE)
+            .setResponseMarshaller(BytesMarshaller.INSTANCE)
+            .build();
+    long replayedNanos = (long) (record.latencyNanos / speedup);
+    final ClientCall<byte[], byte[]> call =
+        channel.newCall(
+            method,
+            CallOptions.DEFAULT.withDeadlineAfter(
+                Math.max(record.latencyNanos, replayedNanos)
+                    + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MARGIN_MS),
+                TimeUnit.NANOSECONDS));
+    final long startNanos = System.nanoTime();
+    call.start(
+        new ClientCall.Listener<byte[]>() {
+          @Override
+          public void onClose(Status status, Metadata trailers) {
+            recordLatency(record, status, System.nanoTime() - startNanos);
+            outstanding.arriveAndDeregister();
+          }
+        },
+        record.metadata());
+    call.request(Integer.MAX_VALUE);
+    for (byte[] request : record.requests) {
+      call.sendMessage(request);
+    }
+    call.halfClose();
+    if (type != MethodDescriptor.MethodType.UNARY && type != MethodDescriptor.MethodType.UNKNOWN) {
+      // A watch never ends by itself; the captured one was held open this long.
+      scheduler.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              call.cancel("Held open as long as when captured", null);
+            }
+          },
+          replayedNanos,
+          TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static Map<String, MethodDescriptor.MethodType> methodTypes(
+      ServiceDescriptor... services) {
+    Map<String, MethodDescriptor.MethodType> types = new HashMap<>();
+    for (ServiceDescriptor service : services) {
+      for (MethodDescriptor<?, ?> method : service.getMethods()) {
+        types.put(method.getFullMethodName(), method.getType());
+      }
+    }
+    return types;
+  }
+
+  private synchronized void recordLatency(
+      TrafficLog.Record record, Status status, long latencyNanos) {
+    MethodStats methodStats = stats.get(record.method);
+    if (methodStats == null) {
+      methodStats = new MethodStats();
+      stats.put(record.method, methodStats);
+    }
+    methodStats.add(
+        record.latencyNanos, latencyNanos, status.getCode().value() == record.statusCode);
+  }
+
+  /** Returns one line per method comparing captured and replayed latency percentiles. */
+  synchronized String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(
+        String.format(
+            "%-45s %7s %9s %9s %9s %9s %9s%n",
+            "method", "calls", "p50 orig", "p50 now", "p99 orig", "p99 now", "status"));
+    for (Map.Entry<String, MethodStats> entry : stats.entrySet()) {
+      MethodStats methodStats = entry.getValue();
+      long[] captured = Arrays.copyOf(methodStats.captured, methodStats.count);
+      long[] replayed = Arrays.copyOf(methodStats.replayed, methodStats.count);
+      Arrays.sort(captured);
+      Arrays.sort(replayed);
+      report.append(
+          String.format(
+              "%-45s %7d %7.2fms %7.2fms %7.2fms %7.2fms %9d%n",
+              entry.getKey(),
+              methodStats.count,
+              millis(percentile(captured, 50)),
+              millis(percentile(replayed, 50)),
+              millis(percentile(captured, 99)),
+              millis(percentile(replayed, 99)),
+              methodStats.statusMismatches));
+    }
+    return report.toString();
+  }
+
+  private static long percentile(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * percentile / 100))];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static final class MethodStats {
+    long[] captured = new long[16];
+    long[] replayed = new long[16];
+    int count;
+    int statusMismatches;
+
+    void add(long capturedNanos, long replayedNanos, boolean sameStatus) {
+      if (count == captured.length) {
+        captured = Arrays.copyOf(captured, count * 2);
+        replayed = Arrays.copyOf(replayed, count * 2);
+      }
+      captured[count] = capturedNanos;
+      replayed[count] = replayedNanos;
+      count++;
+      if (!sameStatus) {
+        statusMismatches++;
+      }
+    }
+  }
+
+  /** Passes requests and responses through as bytes, without parsing them. */
+  private static final class BytesMarshaller implements MethodDescriptor.Marshaller<byte[]> {
+    static final BytesMarshaller INSTANCE = new BytesMarshaller();
+
+    @Override
+    public InputStream stream(byte[] value) {
+      return new ByteArrayInputStream(value);
+    }
+
+    @Override
+    public byte[] parse(InputStream stream) {
+      try {
+        return ByteStreams.toByteArray(stream);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
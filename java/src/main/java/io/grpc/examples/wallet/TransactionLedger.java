@@ -0,0 +1,562 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.Status;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of deposits and transfers applied to a {@link PackedWalletStore}.
+ *
+ * <p>Transactions are written by a single committer thread to memory-mapped segment files. The
+ * committer drains every transaction queued while the previous batch was being flushed, so one
+ * {@code fsync} covers a whole batch (group commit). Once a batch is durable its deltas are applied
+ * to the store in place and the callers' futures complete, which is when the new balances become
+ * visible. Every {@code snapshotEvery} transactions the amounts are written to a snapshot file in
+ * the background, and segments the snapshot covers are deleted, so that startup replays only the
+ * tail of the log.
+ */
+final class TransactionLedger implements Closeable {
+  private static final Logger logger = Logger.getLogger(TransactionLedger.class.getName());
+
+  private static final int RECORD_SIZE = 32;
+  private static final int TYPE_DEPOSIT = 1;
+  private static final int TYPE_TRANSFER = 2;
+  private static final long SNAPSHOT_MAGIC = 0x57414c4c45540001L;
+  private static final int MAX_BATCH = 4096;
+  private static final String SEGMENT_PREFIX = "ledger-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+
+  private final Path dir;
+  private final PackedWalletStore store;
+  private final int segmentSize;
+  private final int snapshotEvery;
+  // Most records in a batch, which never spans segments so that a failed one can be rolled back.
+  private final int maxBatch;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  // Closed segments by first sequence, deleted once a snapshot covers them.
+  private final ConcurrentSkipListMap<Long, Path> closedSegments = new ConcurrentSkipListMap<>();
+  private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor();
+  private final Thread committer;
+  private volatile boolean closed;
+
+  // Owned by the committer thread after open().
+  private FileChannel segmentChannel;
+  private MappedByteBuffer segment;
+  // Also read by the snapshot thread.
+  private volatile long segmentFirstSequence;
+  private long nextSequence = 1;
+  private int sinceSnapshot;
+  private Status failure;
+
+  private TransactionLedger(Path dir, PackedWalletStore store, int segmentSize, int snapshotEvery) {
+    this.dir = dir;
+    this.store = store;
+    this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+    if (this.segmentSize <= 0) {
+      throw new IllegalArgumentException("segmentSize must hold at least one record");
+    }
+    this.snapshotEvery = snapshotEvery;
+    this.maxBatch = Math.min(MAX_BATCH, this.segmentSize / RECORD_SIZE);
+    this.committer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                runCommitter();
+              }
+            },
+            "ledger-committer");
+    committer.setDaemon(true);
+  }
+
+  /**
+   * Opens the ledger in {@code dir}, restoring {@code store} from the latest snapshot and
+   * replaying the log written after it.
+   *
+   * @param segmentSize size of each memory-mapped segment file, in bytes
+   * @param snapshotEvery number of transactions between snapshots
+   */
+  static TransactionLedger open(
+      Path dir, PackedWalletStore store, int segmentSize, int snapshotEvery) throws IOException {
+    Files.createDirectories(dir);
+    TransactionLedger ledger = new TransactionLedger(dir, store, segmentSize, snapshotEvery);
+    ledger.recover();
+    ledger.committer.start();
+    return ledger;
+  }
+
+  /**
+   * Deposits {@code amount} into an address owned by {@code user}. The returned future completes
+   * with the transaction's sequence once it is durable and visible, or fails with a {@link
+   * io.grpc.StatusRuntimeException}.
+   */
+  ListenableFuture<Long> deposit(String user, String address, long amount) {
+    int toSlot = store.slotOf(address);
+    Pending pending = new Pending(TYPE_DEPOSIT, -1, toSlot, amount);
+    if (toSlot < 0) {
+      pending.reject(Status.NOT_FOUND.withDescription("unknown address " + address));
+    } else if (!store.ownerOf(toSlot).equals(user)) {
+      pending.reject(Status.PERMISSION_DENIED.withDescription("address is not in your wallet"));
+    } else {
+      submit(pending);
+    }
+    return pending.future;
+  }
+
+  /**
+   * Moves {@code amount} from an address owned by {@code user} to any other address. Fails with
+   * {@code FAILED_PRECONDITION} if the source does not hold enough funds when the transfer
+   * commits.
+   */
+  ListenableFuture<Long> transfer(String user, String fromAddress, String toAddress, long amount) {
+    int fromSlot = store.slotOf(fromAddress);
+    int toSlot = store.slotOf(toAddress);
+    Pending pending = new Pending(TYPE_TRANSFER, fromSlot, toSlot, amount);
+    if (fromSlot < 0) {
+      pending.reject(Status.NOT_FOUND.withDescription("unknown address " + fromAddress));
+    } else if (toSlot < 0) {
+      pending.reject(Status.NOT_FOUND.withDescription("unknown address " + toAddress));
+    } else if (fromSlot == toSlot) {
+      pending.reject(Status.INVALID_ARGUMENT.withDescription("cannot transfer to same address"));
+    } else if (!store.ownerOf(fromSlot).equals(user)) {
+      pending.reject(Status.PERMISSION_DENIED.withDescription("address is not in your wallet"));
+    } else {
+      submit(pending);
+    }
+    return pending.future;
+  }
+
+  private void submit(Pending pending) {
+    if (pending.amount <= 0) {
+      pending.future.setException(
+          Status.INVALID_ARGUMENT.withDescription("amount must be positive").asRuntimeException());
+    } else if (closed) {
+      pending.future.setException(
+          Status.UNAVAILABLE.withDescription("ledger is closed").asRuntimeException());
+    } else {
+      queue.add(pending);
+      // The committer may have swept the queue for the last time between the check and the add.
+      // Whoever removes the transaction from the queue completes it.
+      if (closed && queue.remove(pending)) {
+        pending.future.setException(
+            Status.UNAVAILABLE.withDescription("ledger is closed").asRuntimeException());
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // The committer is not interrupted, since that would close the segment's channel under it;
+    // it notices the flag within one poll interval after committing everything already queued.
+    closed = true;
+    try {
+      committer.join(TimeUnit.SECONDS.toMillis(30));
+      // The committer schedules the snapshots, so the last one is known once it has stopped.
+      snapshotExecutor.shutdown();
+      snapshotExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      snapshotExecutor.shutdown();
+      Thread.currentThread().interrupt();
+    }
+    if (committer.isAlive()) {
+      // The segment still belongs to the committer, which forces it after each batch anyway.
+      logger.warning("Ledger committer did not stop; leaving its segment open");
+      return;
+    }
+    if (segmentChannel != null) {
+      segment.force();
+      segmentChannel.close();
+    }
+  }
+
+  private void runCommitter() {
+    List<Pending> batch = new ArrayList<>();
+    while (true) {
+      try {
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          if (closed) {
+            break;
+          }
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, maxBatch - 1);
+      } catch (InterruptedException e) {
+        break;
+      }
+      commit(batch);
+      batch.clear();
+    }
+    Pending pending;
+    while ((pending = queue.poll()) != null) {
+      pending.future.setException(
+          Status.UNAVAILABLE.withDescription("ledger is closed").asRuntimeException());
+    }
+  }
+
+  private void commit(List<Pending> batch) {
+    if (failure != null) {
+      failAll(batch, failure);
+      return;
+    }
+    int[] slots = new int[batch.size() * 2];
+    long[] deltas = new long[batch.size() * 2];
+    long[] sequences = new long[batch.size()];
+    int deltaCount = 0;
+    // Deltas accepted earlier in this batch but not yet applied to the store.
+    Map<Integer, Long> unapplied = new HashMap<>();
+    long batchFirstSequence = nextSequence;
+    int batchStart = -1;
+    try {
+      if (segment.remaining() < batch.size() * RECORD_SIZE) {
+        rollSegment();
+      }
+      batchStart = segment.position();
+      for (int i = 0; i < batch.size(); i++) {
+        Pending p = batch.get(i);
+        long target = store.amountAt(p.toSlot) + unappliedDelta(unapplied, p.toSlot);
+        if (target > Long.MAX_VALUE - p.amount) {
+          p.reject(Status.FAILED_PRECONDITION.withDescription("balance would overflow"));
+          continue;
+        }
+        if (p.type == TYPE_TRANSFER) {
+          long available = store.amountAt(p.fromSlot) + unappliedDelta(unapplied, p.fromSlot);
+          if (available < p.amount) {
+            p.reject(Status.FAILED_PRECONDITION.withDescription("insufficient funds"));
+            continue;
+          }
+          slots[deltaCount] = p.fromSlot;
+          deltas[deltaCount++] = -p.amount;
+          unapplied.put(p.fromSlot, unappliedDelta(unapplied, p.fromSlot) - p.amount);
+        }
+        slots[deltaCount] = p.toSlot;
+        deltas[deltaCount++] = p.amount;
+        unapplied.put(p.toSlot, unappliedDelta(unapplied, p.toSlot) + p.amount);
+        sequences[i] = nextSequence;
+        append(nextSequence++, p);
+      }
+      segment.force();
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.SEVERE, "Ledger write failed; rejecting all further transactions", e);
+      failure = Status.INTERNAL.withDescription("ledger write failed").withCause(e);
+      if (batchStart >= 0) {
+        rollBack(batchStart, batchFirstSequence);
+      }
+      failAll(batch, failure);
+      return;
+    }
+    store.apply(slots, deltas, deltaCount);
+    int committed = 0;
+    for (int i = 0; i < batch.size(); i++) {
+      if (sequences[i] != 0) {
+        batch.get(i).future.set(sequences[i]);
+        committed++;
+      }
+    }
+    sinceSnapshot += committed;
+    if (sinceSnapshot >= snapshotEvery) {
+      sinceSnapshot = 0;
+      scheduleSnapshot(nextSequence - 1, store.copyAmounts());
+    }
+  }
+
+  private static long unappliedDelta(Map<Integer, Long> unapplied, int slot) {
+    Long delta = unapplied.get(slot);
+    return delta == null ? 0 : delta;
+  }
+
+  private static void failAll(List<Pending> batch, Status status) {
+    for (Pending pending : batch) {
+      pending.future.setException(status.asRuntimeException());
+    }
+  }
+
+  /**
+   * Erases the records of a failed batch, which starts at {@code batchStart} in the current
+   * segment, so that recovery does not replay transactions whose callers were told they failed.
+   */
+  private void rollBack(int batchStart, long batchFirstSequence) {
+    for (int i = batchStart; i < segment.position(); i++) {
+      segment.put(i, (byte) 0);
+    }
+    segment.position(batchStart);
+    nextSequence = batchFirstSequence;
+    try {
+      segment.force();
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Failed to flush the rollback of a failed ledger batch", e);
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    segment.force();
+    segmentChannel.close();
+    closedSegments.put(segmentFirstSequence, segmentPath(segmentFirstSequence));
+    openSegment(nextSequence, 0);
+  }
+
+  private void append(long sequence, Pending p) {
+    int start = segment.position();
+    segment.putLong(sequence);
+    segment.putInt(p.type);
+    segment.putInt(p.fromSlot < 0 ? 0 : store.addressIdAt(p.fromSlot));
+    segment.putInt(store.addressIdAt(p.toSlot));
+    segment.putLong(p.amount);
+    segment.putInt(checksum(segment, start));
+  }
+
+  private static int checksum(ByteBuffer buffer, int start) {
+    CRC32 crc = new CRC32();
+    for (int i = start; i < start + RECORD_SIZE - 4; i++) {
+      crc.update(buffer.get(i));
+    }
+    return (int) crc.getValue();
+  }
+
+  private void openSegment(long firstSequence, int position) throws IOException {
+    segmentFirstSequence = firstSequence;
+    segmentChannel =
+        FileChannel.open(
+            segmentPath(firstSequence),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    segment.position(position);
+  }
+
+  private Path segmentPath(long firstSequence) {
+    return dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+  }
+
+  private void scheduleSnapshot(final long sequence, final long[] amounts) {
+    snapshotExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              writeSnapshot(sequence, amounts);
+            } catch (IOException e) {
+              logger.log(Level.WARNING, "Failed to write ledger snapshot", e);
+            }
+          }
+        });
+  }
+
+  private void writeSnapshot(long sequence, long[] amounts) throws IOException {
+    Path target =
+        dir.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+    Path temp = dir.resolve(target.getFileName() + ".tmp");
+    try (FileChannel channel =
+            FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        DataOutputStream out =
+            new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+      out.writeLong(SNAPSHOT_MAGIC);
+      out.writeLong(sequence);
+      out.writeInt(amounts.length);
+      for (long amount : amounts) {
+        out.writeLong(amount);
+      }
+      out.flush();
+      channel.force(true);
+    }
+    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+    // A segment is covered if every record in it, i.e. everything before the first sequence of
+    // the following segment, is at or before the snapshot.
+    for (Map.Entry<Long, Path> entry : closedSegments.entrySet()) {
+      Long following = closedSegments.higherKey(entry.getKey());
+      long nextFirst = following != null ? following : segmentFirstSequence;
+      if (nextFirst > sequence + 1) {
+        break;
+      }
+      Files.deleteIfExists(entry.getValue());
+      closedSegments.remove(entry.getKey());
+    }
+    try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(dir, SNAPSHOT_PREFIX + "*")) {
+      for (Path snapshot : snapshots) {
+        if (!snapshot.equals(target)) {
+          Files.deleteIfExists(snapshot);
+        }
+      }
+    }
+    logger.info("Wrote ledger snapshot at sequence " + sequence);
+  }
+
+  private void recover() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    TreeMap<Long, Path> snapshots = new TreeMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          segments.put(parseSequence(name, SEGMENT_PREFIX, SEGMENT_SUFFIX), file);
+        } else if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+          snapshots.put(parseSequence(name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX), file);
+        }
+      }
+    }
+    long[] amounts = store.copyAmounts();
+    long applied = 0;
+    if (!snapshots.isEmpty()) {
+      applied = readSnapshot(snapshots.lastEntry().getValue(), amounts);
+    }
+    long replayed = 0;
+    int tailPosition = 0;
+    for (Map.Entry<Long, Path> entry : segments.entrySet()) {
+      boolean last = entry.getKey().equals(segments.lastKey());
+      try (FileChannel channel = FileChannel.open(entry.getValue(), StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int position = 0;
+        while (position + RECORD_SIZE <= buffer.limit()) {
+          long sequence = buffer.getLong(position);
+          if (sequence == 0 || buffer.getInt(position + 28) != checksum(buffer, position)) {
+            // A zero or torn record marks the end of the log.
+            break;
+          }
+          if (sequence > applied) {
+            if (sequence != applied + 1) {
+              throw new IOException("Ledger gap before sequence " + sequence);
+            }
+            replay(buffer, position, amounts);
+            applied = sequence;
+            replayed++;
+          }
+          position += RECORD_SIZE;
+        }
+        if (last) {
+          tailPosition = position;
+        } else {
+          closedSegments.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    store.restoreAmounts(amounts);
+    nextSequence = applied + 1;
+    if (!segments.isEmpty() && tailPosition + RECORD_SIZE <= segmentSize) {
+      openSegment(segments.lastKey(), tailPosition);
+      // Clear anything after the tail: records from a batch that was never acknowledged may have
+      // reached the disk out of order and must not be replayed after later appends.
+      for (int i = tailPosition; i < segmentSize; i++) {
+        segment.put(i, (byte) 0);
+      }
+      segment.force();
+    } else {
+      if (!segments.isEmpty()) {
+        closedSegments.put(segments.lastKey(), segments.lastEntry().getValue());
+      }
+      openSegment(nextSequence, 0);
+    }
+    logger.info(
+        "Ledger recovered at sequence " + applied + " after replaying " + replayed + " records");
+  }
+
+  private void replay(ByteBuffer buffer, int position, long[] amounts) throws IOException {
+    int type = buffer.getInt(position + 8);
+    int toSlot = store.slotOfAddressId(buffer.getInt(position + 16));
+    long amount = buffer.getLong(position + 20);
+    if (toSlot < 0) {
+      throw new IOException("Ledger references an unknown address");
+    }
+    if (type == TYPE_TRANSFER) {
+      int fromSlot = store.slotOfAddressId(buffer.getInt(position + 12));
+      if (fromSlot < 0) {
+        throw new IOException("Ledger references an unknown address");
+      }
+      amounts[fromSlot] -= amount;
+    }
+    amounts[toSlot] += amount;
+  }
+
+  private static long readSnapshot(Path file, long[] amounts) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readLong() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a ledger snapshot: " + file);
+      }
+      long sequence = in.readLong();
+      if (in.readInt() != amounts.length) {
+        throw new IOException("Snapshot " + file + " does not match the wallet store");
+      }
+      for (int i = 0; i < amounts.length; i++) {
+        amounts[i] = in.readLong();
+      }
+      return sequence;
+    }
+  }
+
+  private static long parseSequence(String name, String prefix, String suffix) {
+    return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+  }
+
+  private static final class Pending {
+    final int type;
+    final int fromSlot;
+    final int toSlot;
+    final long amount;
+    final SettableFuture<Long> future = SettableFuture.create();
+
+    Pending(int type, int fromSlot, int toSlot, long amount) {
+      this.type = type;
+      this.fromSlot = fromSlot;
+      this.toSlot = toSlot;
+      this.amount = amount;
+    }
+
+    void reject(Status status) {
+      future.setException(status.asRuntimeException());
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import io.grpc.Status;
+
+/** Limits on the update interval that a client may request for a watch RPC. */
+final class UpdateIntervals {
+  static final int PREMIUM_DEFAULT_MS = 100;
+  static final int PREMIUM_MIN_MS = 50;
+  static final int NORMAL_DEFAULT_MS = 1000;
+  static final int NORMAL_MIN_MS = 1000;
+  static final int MAX_MS = 60_000;
+
+  private UpdateIntervals() {}
+
+  /**
+   * Returns the interval to use for a watch RPC, in milliseconds.
+   *
+   * @param membership the membership from the request metadata
+   * @param requestedMs the interval requested by the client, or 0 for the default
+   * @throws io.grpc.StatusRuntimeException with {@code INVALID_ARGUMENT} if the requested interval
+   *     is outside the limits for the membership
+   */
+  static int resolve(String membership, int requestedMs) {
+    boolean premium = "premium".equals(membership);
+    if (requestedMs == 0) {
+      return premium ? PREMIUM_DEFAULT_MS : NORMAL_DEFAULT_MS;
+    }
+    int min = premium ? PREMIUM_MIN_MS : NORMAL_MIN_MS;
+    if (requestedMs < min || requestedMs > MAX_MS) {
+      throw Status.INVALID_ARGUMENT
+          .withDescription(
+              "update_interval_ms must be between " + min + " and " + MAX_MS + " for "
+                  + membership + " members")
+          .asRuntimeException();
+    }
+    return requestedMs;
+  }
+}
@@ -16,14 +16,22 @@
 
 package io.grpc.examples.wallet;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpServer;
 import io.grpc.ChannelCredentials;
+import io.grpc.ClientInterceptor;
+import io.grpc.examples.wallet.PortfolioValuation.Prices;
 import io.grpc.examples.wallet.WalletInterceptors.RouteHeaderInterceptor;
-import io.grpc.examples.wallet.account.AccountGrpc;
-import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.WalletStore.WalletHoldings;
 import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.account.GetUserInfosResponse;
 import io.grpc.examples.wallet.account.MembershipType;
 import io.grpc.examples.wallet.stats.PriceRequest;
 import io.grpc.examples.wallet.stats.PriceResponse;
@@ -33,26 +41,43 @@ import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
 import io.grpc.InsecureChannelCredentials;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
 import io.grpc.Metadata;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
 import io.grpc.ServerCredentials;
 import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
 import io.grpc.services.AdminInterface;
 import io.grpc.services.HealthStatusManager;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.xds.XdsChannelCredentials;
 import io.grpc.xds.XdsServerBuilder;
 import io.grpc.xds.XdsServerCredentials;
 import java.io.IOException;
-import java.util.Iterator;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.Map;
 
 /** Wallet server for the gRPC Wallet example. */
 public class WalletServer {
@@ -66,15 +91,53 @@ public class WalletServer {
   private Server adminServer;
   private int port = 18881;
   private int adminPort = 28881;
+  private int metricsPort = 38881;
   private String accountServer = "localhost:18883";
   private String statsServer = "localhost:18882";
   private String hostnameSuffix = "";
   private String gcpClientProject = "";
+  private String traceSampling = "";
+  private TraceSampler traceSampler;
   private boolean v1Behavior;
+  private int balanceCacheSize = 10000;
+  private int syntheticWallets;
+  private int addressesPerWallet = 10;
+  private int syntheticAssets = 1;
+  private String ledgerDir = "";
+  private int ledgerSnapshotEvery = 100000;
+  private int hedgePercentile = AccountLookup.DEFAULT_HEDGE_PERCENTILE;
+  private int retryBudgetPercent = AccountLookup.DEFAULT_BUDGET_PERCENT;
+  private double deadlineReserve = DeadlineInterceptors.DEFAULT_RESERVE;
+  private int minHopBudgetMs = DeadlineInterceptors.DEFAULT_MIN_BUDGET_MS;
+  private int defaultDeadlineMs = DeadlineInterceptors.DEFAULT_DEADLINE_MS;
+  private double breakerFailureRate = CircuitBreaker.DEFAULT_FAILURE_RATE;
+  private long breakerSlowCallMs = CircuitBreaker.DEFAULT_SLOW_CALL_MS;
+  private long breakerOpenMs = CircuitBreaker.DEFAULT_OPEN_MS;
+  private int accountFallbackCacheSize;
+  private int warmupCalls = Warmup.DEFAULT_CALLS;
+  private int warmupTimeoutMs = Warmup.DEFAULT_TIMEOUT_MS;
+  private int drainWindowMs = StreamDrainer.DEFAULT_WINDOW_MS;
+  private int healthIntervalMs = HealthEvaluator.DEFAULT_INTERVAL_MS;
+  private int healthMaxInFlight = HealthEvaluator.DEFAULT_MAX_IN_FLIGHT;
+  private int healthMaxQueueDepth = HealthEvaluator.DEFAULT_MAX_QUEUE_DEPTH;
+  private int healthMaxLagMs = HealthEvaluator.DEFAULT_MAX_LAG_MS;
+  private String captureFile = "";
+  private double captureSampleRate = 0.01;
   private CredentialsType credentialsType = CredentialsType.INSECURE;
 
   private ManagedChannel accountChannel;
   private ManagedChannel statsChannel;
+  private HashedWheelTimer hedgeTimer;
+  private TransactionLedger ledger;
+  private ExecutorService computeExecutor;
+  private TrafficRecorder recorder;
+  private String faults = "";
+  private final FaultInjector faultInjector = new FaultInjector();
+  private HealthEvaluator healthEvaluator;
+  private final LocalMetrics localMetrics = new LocalMetrics();
+  private HttpServer metricsServer;
+  private final StreamDrainer streamDrainer = new StreamDrainer();
+  private HealthStatusManager health;
 
   void parseArgs(String[] args) {
     boolean usage = false;
@@ -100,6 +163,8 @@ public class WalletServer {
         port = Integer.parseInt(value);
       } else if ("admin_port".equals(key)) {
         adminPort = Integer.parseInt(value);
+      } else if ("metrics_port".equals(key)) {
+        metricsPort = Integer.parseInt(value);
       } else if ("account_server".equals(key)) {
         accountServer = value;
       } else if ("stats_server".equals(key)) {
@@ -108,8 +173,60 @@ public class WalletServer {
         hostnameSuffix = value;
       } else if ("gcp_client_project".equals(key)) {
         gcpClientProject = value;
+      } else if ("trace_sampling".equals(key)) {
+        traceSampling = value;
       } else if ("v1_behavior".equals(key)) {
         v1Behavior = Boolean.parseBoolean(value);
+      } else if ("balance_cache_size".equals(key)) {
+        balanceCacheSize = Integer.parseInt(value);
+      } else if ("synthetic_wallets".equals(key)) {
+        syntheticWallets = Integer.parseInt(value);
+      } else if ("addresses_per_wallet".equals(key)) {
+        addressesPerWallet = Integer.parseInt(value);
+      } else if ("synthetic_assets".equals(key)) {
+        syntheticAssets = Integer.parseInt(value);
+      } else if ("ledger_dir".equals(key)) {
+        ledgerDir = value;
+      } else if ("ledger_snapshot_every".equals(key)) {
+        ledgerSnapshotEvery = Integer.parseInt(value);
+      } else if ("hedge_percentile".equals(key)) {
+        hedgePercentile = Integer.parseInt(value);
+      } else if ("retry_budget_percent".equals(key)) {
+        retryBudgetPercent = Integer.parseInt(value);
+      } else if ("deadline_reserve".equals(key)) {
+        deadlineReserve = Double.parseDouble(value);
+      } else if ("min_hop_budget_ms".equals(key)) {
+        minHopBudgetMs = Integer.parseInt(value);
+      } else if ("default_deadline_ms".equals(key)) {
+        defaultDeadlineMs = Integer.parseInt(value);
+      } else if ("breaker_failure_rate".equals(key)) {
+        breakerFailureRate = Double.parseDouble(value);
+      } else if ("breaker_slow_call_ms".equals(key)) {
+        breakerSlowCallMs = Long.parseLong(value);
+      } else if ("breaker_open_ms".equals(key)) {
+        breakerOpenMs = Long.parseLong(value);
+      } else if ("account_fallback_cache_size".equals(key)) {
+        accountFallbackCacheSize = Integer.parseInt(value);
+      } else if ("warmup_calls".equals(key)) {
+        warmupCalls = Integer.parseInt(value);
+      } else if ("warmup_timeout_ms".equals(key)) {
+        warmupTimeoutMs = Integer.parseInt(value);
+      } else if ("drain_window_ms".equals(key)) {
+        drainWindowMs = Integer.parseInt(value);
+      } else if ("health_interval_ms".equals(key)) {
+        healthIntervalMs = Integer.parseInt(value);
+      } else if ("health_max_in_flight".equals(key)) {
+        healthMaxInFlight = Integer.parseInt(value);
+      } else if ("health_max_queue_depth".equals(key)) {
+        healthMaxQueueDepth = Integer.parseInt(value);
+      } else if ("health_max_lag_ms".equals(key)) {
+        healthMaxLagMs = Integer.parseInt(value);
+      } else if ("faults".equals(key)) {
+        faults = value;
+      } else if ("capture_file".equals(key)) {
+        captureFile = value;
+      } else if ("capture_sample_rate".equals(key)) {
+        captureSampleRate = Double.parseDouble(value);
       }  else if ("creds".equals(key)) {
         credentialsType = CredentialsType.valueOf(value.toUpperCase());
       } else {
@@ -127,6 +244,9 @@ public class WalletServer {
               + s.port
               + "\n  --admin_port=PORT          The admin port to listen on. Default "
               + s.adminPort
+              + "\n  --metrics_port=PORT        The port to serve metrics on in the Prometheus "
+              + "text format, under /metrics. 0 disables it. Default "
+              + s.metricsPort
               + "\n  --account_server=HOST      Address of the account server. Default "
               + s.accountServer
               + "\n  --stats_server=HOST        Address of the stats server. Default "
@@ -139,9 +259,84 @@ public class WalletServer {
               + "sent to Stackdriver. Default \""
               + s.gcpClientProject
               + "\""
+              + "\n  --trace_sampling=SPEC      Traces to sample, as comma-separated settings: "
+              + "rate=FLOAT, method:SERVICE/METHOD=FLOAT, membership:NAME=FLOAT, "
+              + "max_per_second=INT, keep_errors=BOOL and keep_slow_ms=INT. Default samples "
+              + "every trace."
               + "\n  --v1_behavior=true|false   If true, only aggregate balance is reported. "
               + "Default "
               + s.v1Behavior
+              + "\n  --balance_cache_size=INT   Max number of cached balance responses. Default "
+              + s.balanceCacheSize
+              + "\n  --synthetic_wallets=INT    Number of generated wallets to load in addition to"
+              + " Alice's and Bob's, for capacity testing. Default "
+              + s.syntheticWallets
+              + "\n  --addresses_per_wallet=INT Number of addresses in each generated wallet. "
+              + "Default "
+              + s.addressesPerWallet
+              + "\n  --synthetic_assets=INT     Number of assets spread over the addresses of "
+              + "generated wallets. Must not exceed the stats server's --symbols. Default "
+              + s.syntheticAssets
+              + "\n  --ledger_dir=DIR           Directory of the transaction ledger. Deposit and "
+              + "Transfer are rejected if unset. Default \""
+              + s.ledgerDir
+              + "\""
+              + "\n  --ledger_snapshot_every=INT Transactions between ledger snapshots. Default "
+              + s.ledgerSnapshotEvery
+              + "\n  --hedge_percentile=INT     Percentile of account lookup latency after which a "
+              + "second attempt is sent. 0 disables hedging. Default "
+              + s.hedgePercentile
+              + "\n  --retry_budget_percent=INT Most hedged and retried account lookups, as a "
+              + "percentage of lookups. Default "
+              + s.retryBudgetPercent
+              + "\n  --deadline_reserve=FLOAT   Fraction of the remaining deadline kept for this "
+              + "server when calling downstream. Default "
+              + s.deadlineReserve
+              + "\n  --min_hop_budget_ms=INT    Downstream calls with less time left fail without "
+              + "being sent. Default "
+              + s.minHopBudgetMs
+              + "\n  --default_deadline_ms=INT  Deadline of downstream unary calls made without "
+              + "one. 0 for none. Default "
+              + s.defaultDeadlineMs
+              + "\n  --breaker_failure_rate=FLOAT Share of failed downstream calls that opens "
+              + "the circuit to that server. 0 disables the breakers. Default "
+              + s.breakerFailureRate
+              + "\n  --breaker_slow_call_ms=INT Downstream calls slower than this count towards "
+              + "opening the circuit. Default "
+              + s.breakerSlowCallMs
+              + "\n  --breaker_open_ms=INT      How long an open circuit fails calls before "
+              + "probing. Default "
+              + s.breakerOpenMs
+              + "\n  --account_fallback_cache_size=INT Accounts remembered to serve while the "
+              + "circuit to the account server is open. 0 disables. Default "
+              + s.accountFallbackCacheSize
+              + "\n  --warmup_calls=INT         Synthetic calls to send through the service before "
+              + "reporting SERVING. Default "
+              + s.warmupCalls
+              + "\n  --warmup_timeout_ms=INT    Time allowed to connect to the dependencies and "
+              + "send the warmup calls. 0 skips the warmup. Default "
+              + s.warmupTimeoutMs
+              + "\n  --drain_window_ms=INT      Time over which to end the open watch streams on "
+              + "shutdown, so that their clients reconnect gradually. Default "
+              + s.drainWindowMs
+              + "\n  --health_interval_ms=INT   Interval between evaluations of the load to report "
+              + "in health checks. 0 always reports SERVING. Default "
+              + s.healthIntervalMs
+              + "\n  --health_max_in_flight=INT Unary calls in flight over which to report "
+              + "NOT_SERVING. Default "
+              + s.healthMaxInFlight
+              + "\n  --health_max_queue_depth=INT Tasks waiting for a compute thread over which "
+              + "to report NOT_SERVING. Default "
+              + s.healthMaxQueueDepth
+              + "\n  --health_max_lag_ms=INT    Timer lag over which to report NOT_SERVING. "
+              + "Default "
+              + s.healthMaxLagMs
+              + "\n  --faults=TEXT              Faults to inject into incoming calls, as a "
+              + "FaultConfig in protobuf text format. Can be changed at runtime on the admin port."
+              + "\n  --capture_file=PATH        Record a sample of incoming calls to this file for "
+              + "replay with the client. Default \"" + s.captureFile + "\""
+              + "\n  --capture_sample_rate=FLOAT Fraction of calls to record. Default "
+              + s.captureSampleRate
               + "\n  --creds=insecure|xds  . Type of credentials to use on the client & server. "
               + "Default "
               + s.credentialsType.toString().toLowerCase());
@@ -150,23 +345,98 @@ public class WalletServer {
   }
 
   private void start() throws IOException {
+    traceSampler = TraceSampler.parse(traceSampling);
     if (!gcpClientProject.isEmpty()) {
-      Observability.registerExporters(gcpClientProject);
+      Observability.registerExporters(gcpClientProject, traceSampler);
+    }
+    if (!faults.isEmpty()) {
+      faultInjector.setConfig(FaultInjector.parse(faults));
     }
-    HealthStatusManager health = new HealthStatusManager();
+    health = new HealthStatusManager();
+    // Reported until the warmup is over.
+    health.setStatus("", ServingStatus.NOT_SERVING);
     // start an admin+health server in plaintext mode
     adminServer = ServerBuilder.forPort(adminPort)
         .addServices(AdminInterface.getStandardServices())
+        .addService(faultInjector.adminService())
         .addService(health.getHealthService())
         .build()
         .start();
     logger.info("Admin & health server started, listening on " + adminPort);
+    if (metricsPort != 0) {
+      metricsServer = localMetrics.serve(metricsPort);
+      logger.info("Metrics served on " + metricsPort + "/metrics");
+    }
     ChannelCredentials channelCredentials =
         credentialsType == CredentialsType.XDS
             ? XdsChannelCredentials.create(InsecureChannelCredentials.create())
             : InsecureChannelCredentials.create();
-    accountChannel = Grpc.newChannelBuilder(accountServer, channelCredentials).build();
-    statsChannel = Grpc.newChannelBuilder(statsServer, channelCredentials).build();
+    ClientInterceptor deadlineBudget =
+        new DeadlineInterceptors.BudgetInterceptor(
+            deadlineReserve, minHopBudgetMs, defaultDeadlineMs);
+    accountChannel =
+        downstreamChannel(accountServer, "account server", channelCredentials, deadlineBudget);
+    statsChannel =
+        downstreamChannel(statsServer, "stats server", channelCredentials, deadlineBudget);
+    hedgeTimer = new HashedWheelTimer("account-hedge-timer", 1, 1, MILLISECONDS, 512);
+    AccountLookup accountLookup =
+        new AccountLookup(
+            accountChannel,
+            hedgeTimer,
+            hedgePercentile,
+            retryBudgetPercent,
+            accountFallbackCacheSize);
+    PackedWalletStore walletStore = createWalletStore();
+    int computeThreads = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor computePool =
+        new ThreadPoolExecutor(
+            computeThreads,
+            computeThreads,
+            0,
+            MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("wallet-compute-%d").setDaemon(true).build());
+    computeExecutor = computePool;
+    if (!ledgerDir.isEmpty()) {
+      ledger =
+          TransactionLedger.open(Paths.get(ledgerDir), walletStore, 64 << 20, ledgerSnapshotEvery);
+    }
+    if (!captureFile.isEmpty()) {
+      recorder = new TrafficRecorder(Paths.get(captureFile), captureSampleRate);
+      logger.info("Capturing " + captureSampleRate + " of calls to " + captureFile);
+    }
+    healthEvaluator =
+        new HealthEvaluator(
+            health, Collections.singletonList(WalletGrpc.SERVICE_NAME), healthMaxInFlight);
+    healthEvaluator.addLagLimit(healthMaxLagMs);
+    healthEvaluator.addQueue("compute executor", computePool, healthMaxQueueDepth);
+    healthEvaluator.addDependency("account server", accountChannel);
+    healthEvaluator.addDependency("stats server", statsChannel);
+    ServerServiceDefinition service =
+        ServerInterceptors.intercept(
+            new WalletImpl(
+                accountLookup,
+                statsChannel,
+                walletStore,
+                ledger,
+                computeExecutor,
+                v1Behavior,
+                balanceCacheSize),
+            faultInjector,
+            new WalletInterceptors.HostnameInterceptor(),
+            new WalletInterceptors.AuthInterceptor(),
+            new RouteHeaderInterceptor(),
+            new DeadlineInterceptors.ExpiredCallInterceptor(),
+            streamDrainer,
+            healthEvaluator);
+    // Warmup calls go through the service before the metrics and the recorder, so that they are
+    // neither counted nor captured.
+    ServerServiceDefinition warmupService = service;
+    service = ServerInterceptors.intercept(service, localMetrics, traceSampler);
+    if (recorder != null) {
+      // Outermost, so the recorded latency covers the other interceptors too.
+      service = ServerInterceptors.intercept(service, recorder);
+    }
     ServerCredentials serverCredentials =
         credentialsType == CredentialsType.XDS
             ? XdsServerCredentials.create(InsecureServerCredentials.create())
@@ -174,12 +444,7 @@ public class WalletServer {
     if (credentialsType == CredentialsType.XDS) {
       server =
           XdsServerBuilder.forPort(port, serverCredentials)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new WalletImpl(accountChannel, statsChannel, v1Behavior),
-                      new WalletInterceptors.HostnameInterceptor(),
-                      new WalletInterceptors.AuthInterceptor(),
-                      new RouteHeaderInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
@@ -187,19 +452,17 @@ public class WalletServer {
     } else {
       server =
           ServerBuilder.forPort(port)
-              .addService(
-                  ServerInterceptors.intercept(
-                      new WalletImpl(accountChannel, statsChannel, v1Behavior),
-                      new WalletInterceptors.HostnameInterceptor(),
-                      new WalletInterceptors.AuthInterceptor(),
-                      new RouteHeaderInterceptor()))
+              .addService(service)
               .addService(ProtoReflectionService.newInstance())
               .addService(health.getHealthService())
               .build()
               .start();
     }
-    health.setStatus("", ServingStatus.SERVING);
     logger.info("Server started, listening on " + port);
+    if (warmupTimeoutMs > 0) {
+      warmUp(warmupService);
+    }
+    healthEvaluator.start(healthIntervalMs);
     Runtime.getRuntime()
         .addShutdownHook(
             new Thread() {
@@ -216,19 +479,139 @@ public class WalletServer {
             });
   }
 
+  private PackedWalletStore createWalletStore() {
+    PackedWalletStore.Builder builder =
+        PackedWalletStore.newBuilder()
+            .addWallet("Alice", new String[] {"cd0aa985", "454349e4"}, new long[] {314L, 159L})
+            .addWallet("Bob", new String[] {"148de9c5", "2e7d2c03"}, new long[] {271L, 828L});
+    String[] addresses = new String[addressesPerWallet];
+    String[] assets = new String[addressesPerWallet];
+    long[] amounts = new long[addressesPerWallet];
+    int nextAddress = 0;
+    for (int i = 0; i < syntheticWallets; i++) {
+      for (int j = 0; j < addressesPerWallet; j++) {
+        addresses[j] = PackedWalletStore.formatAddress(nextAddress++);
+        assets[j] = PriceTable.syntheticSymbol((i + j) % syntheticAssets);
+        amounts[j] = (i + j) % 1000;
+      }
+      builder.addWallet("user-" + i, addresses, assets, amounts);
+    }
+    PackedWalletStore store = builder.build();
+    logger.info(
+        "Loaded "
+            + store.userCount()
+            + " wallets, estimated footprint "
+            + (store.estimatedFootprintBytes() >> 10)
+            + " KiB");
+    return store;
+  }
+
+  /**
+   * Creates a channel to a dependency. Calls first get their share of the deadline, then go
+   * through a circuit breaker unless breakers are disabled.
+   */
+  private ManagedChannel downstreamChannel(
+      String target,
+      String name,
+      ChannelCredentials credentials,
+      ClientInterceptor deadlineBudget) {
+    ManagedChannelBuilder<?> builder = Grpc.newChannelBuilder(target, credentials);
+    if (breakerFailureRate > 0) {
+      builder.intercept(
+          new CircuitBreaker(name, breakerFailureRate, breakerSlowCallMs, breakerOpenMs));
+    }
+    // The interceptor added last runs first.
+    return builder.intercept(deadlineBudget).build();
+  }
+
+  /**
+   * Connects to the account and stats servers, then sends balance requests as both users, before
+   * the server reports SERVING.
+   */
+  private void warmUp(ServerServiceDefinition service) throws IOException {
+    Warmup warmup = new Warmup(warmupTimeoutMs);
+    try {
+      warmup.connect(accountChannel, "account server");
+      warmup.connect(statsChannel, "stats server");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    if (warmupCalls > 0) {
+      warmup.run(
+          service,
+          warmupCalls,
+          new Warmup.CallFactory() {
+            @Override
+            public Callable<?> newCall(ManagedChannel channel) {
+              final WalletGrpc.WalletBlockingStub premium =
+                  Warmup.asUser(WalletGrpc.newBlockingStub(channel), true);
+              final WalletGrpc.WalletBlockingStub normal =
+                  Warmup.asUser(WalletGrpc.newBlockingStub(channel), false);
+              final BalanceRequest request =
+                  BalanceRequest.newBuilder().setIncludeBalancePerAddress(true).build();
+              return new Callable<BalanceResponse>() {
+                private int calls;
+
+                @Override
+                public BalanceResponse call() {
+                  WalletGrpc.WalletBlockingStub stub = calls++ % 2 == 0 ? premium : normal;
+                  return stub.withDeadlineAfter(1, SECONDS).fetchBalance(request);
+                }
+              };
+            }
+          });
+    }
+    warmup.finish();
+  }
+
   private void stop() throws InterruptedException {
+    if (healthEvaluator != null) {
+      healthEvaluator.shutdown();
+    }
+    if (health != null) {
+      // Tells load balancers and health checkers to stop sending new calls here.
+      health.enterTerminalState();
+    }
     if (server != null) {
-      server.shutdown().awaitTermination(30, SECONDS);
+      // Sends GOAWAY, so clients open their new streams elsewhere, then ends the open ones.
+      server.shutdown();
+      streamDrainer.drain(drainWindowMs);
+      server.awaitTermination(30, SECONDS);
     }
     if (adminServer != null) {
       adminServer.shutdown().awaitTermination(30, SECONDS);
     }
+    if (metricsServer != null) {
+      metricsServer.stop(0);
+    }
+    faultInjector.shutdown();
     if (accountChannel != null) {
       accountChannel.shutdownNow().awaitTermination(5, SECONDS);
     }
     if (statsChannel != null) {
       statsChannel.shutdownNow().awaitTermination(5, SECONDS);
     }
+    if (hedgeTimer != null) {
+      hedgeTimer.stop();
+    }
+    if (computeExecutor != null) {
+      computeExecutor.shutdownNow();
+    }
+    if (recorder != null) {
+      try {
+        recorder.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close traffic capture", e);
+      }
+    }
+    if (ledger != null) {
+      try {
+        ledger.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to close ledger", e);
+      }
+    }
   }
 
   private void blockUntilShutdown() throws InterruptedException {
@@ -244,37 +627,55 @@ public class WalletServer {
     server.blockUntilShutdown();
   }
 
-  private static class WalletImpl extends WalletGrpc.WalletImplBase {
-    private final AccountGrpc.AccountBlockingStub accountBlockingStub;
-    private final StatsGrpc.StatsBlockingStub statsBlockingStub;
+  static class WalletImpl extends WalletGrpc.WalletImplBase {
+    static final int MAX_BATCH_SIZE = 10000;
+    private static final int MIN_ACCOUNTS_PER_TASK = 64;
+
+    private final AccountLookup accountLookup;
+    private final StatsGrpc.StatsStub statsStub;
+    private final StatsGrpc.StatsFutureStub statsFutureStub;
     private final boolean v1Behavior;
-    private final ImmutableMap<String, Long> alicesWallet =
-        ImmutableMap.<String, Long>builder().put("cd0aa985", 314L).put("454349e4", 159L).build();
-    private final ImmutableMap<String, Long> bobsWallet =
-        ImmutableMap.<String, Long>builder().put("148de9c5", 271L).put("2e7d2c03", 828L).build();
-
-    private WalletImpl(
-        ManagedChannel accountChannel, ManagedChannel statsChannel, boolean v1Behavior) {
-      this.accountBlockingStub = AccountGrpc.newBlockingStub(accountChannel);
-      this.statsBlockingStub = StatsGrpc.newBlockingStub(statsChannel);
+    private final BalanceCache balanceCache;
+    private final WalletStore walletStore;
+    private final TransactionLedger ledger;
+    private final ExecutorService computeExecutor;
+    private final ConcurrentMap<String, Set<BalanceWatch>> watches = new ConcurrentHashMap<>();
+
+    WalletImpl(
+        AccountLookup accountLookup,
+        ManagedChannel statsChannel,
+        WalletStore walletStore,
+        TransactionLedger ledger,
+        ExecutorService computeExecutor,
+        boolean v1Behavior,
+        int balanceCacheSize) {
+      this.accountLookup = accountLookup;
+      this.statsStub = StatsGrpc.newStub(statsChannel);
+      this.statsFutureStub = StatsGrpc.newFutureStub(statsChannel);
+      this.walletStore = walletStore;
+      this.ledger = ledger;
+      this.computeExecutor = computeExecutor;
       this.v1Behavior = v1Behavior;
+      this.balanceCache = new BalanceCache(balanceCacheSize);
+      walletStore.addListener(
+          new WalletStore.Listener() {
+            @Override
+            public void onHoldingsChanged(String user) {
+              Set<BalanceWatch> userWatches = watches.get(user);
+              if (userWatches != null) {
+                for (BalanceWatch watch : userWatches) {
+                  watch.update();
+                }
+              }
+            }
+          });
     }
 
-    private ImmutableMap<String, Long> validateMembershipAndGetWallet(
+    private WalletHoldings validateMembershipAndGetWallet(
         String token, String membership) {
       GetUserInfoResponse userInfo;
-      AccountGrpc.AccountBlockingStub accountBlockingStub = this.accountBlockingStub;
-      String routeVal = WalletInterceptors.ROUTE_KEY.get();
-      if (routeVal != null) {
-        Metadata headers = new Metadata();
-        headers.put(WalletInterceptors.ROUTE_MD_KEY, routeVal);
-        accountBlockingStub = accountBlockingStub.withInterceptors(
-            MetadataUtils.newAttachHeadersInterceptor(headers));
-      }
       try {
-        userInfo =
-            accountBlockingStub.getUserInfo(
-                GetUserInfoRequest.newBuilder().setToken(token).build());
+        userInfo = accountLookup.getUserInfo(token);
       } catch (StatusRuntimeException e) {
         logger.log(Level.WARNING, "Account RPC failed: {0}", e.getStatus());
         throw e;
@@ -284,28 +685,82 @@ public class WalletServer {
             .withDescription("Token does not belong to a premium member")
             .asRuntimeException();
       }
-      if ("Alice".equals(userInfo.getName())) {
-        return alicesWallet;
-      } else if ("Bob".equals(userInfo.getName())) {
-        return bobsWallet;
-      } else {
+      WalletHoldings wallet = walletStore.get(userInfo.getName());
+      if (wallet == null) {
         throw Status.NOT_FOUND.withDescription("User not found").asRuntimeException();
       }
+      return wallet;
     }
 
     private BalanceResponse buildBalanceResponse(
-        Map<String, Long> wallet, long price, boolean includeBalancePerAddress) {
+        WalletHoldings wallet, PortfolioValuation valuation, boolean includeBalancePerAddress) {
       BalanceResponse.Builder response = BalanceResponse.newBuilder();
-      long totalBalance = 0;
-      for (Map.Entry<String, Long> entry : wallet.entrySet()) {
-        long balance = entry.getValue() * price;
-        totalBalance += balance;
-        if (!v1Behavior && includeBalancePerAddress) {
+      if (!v1Behavior && includeBalancePerAddress) {
+        for (int i = 0; i < wallet.addressCount(); i++) {
           response.addAddresses(
-              BalancePerAddress.newBuilder().setAddress(entry.getKey()).setBalance(balance));
+              BalancePerAddress.newBuilder()
+                  .setAddress(wallet.address(i))
+                  .setBalance(valuation.value(i)));
         }
       }
-      return response.setBalance(totalBalance).build();
+      return response.setBalance(valuation.total()).build();
+    }
+
+    /** Returns {@code wallet} valued at {@code prices}, which must cover all of its assets. */
+    private static PortfolioValuation value(WalletHoldings wallet, Prices prices) {
+      PortfolioValuation valuation = new PortfolioValuation(wallet);
+      valuation.setPrices(prices);
+      return valuation;
+    }
+
+    /** Returns the balance from the cache, building it only if the wallet or prices changed. */
+    private BalanceResponse getBalanceResponse(
+        final WalletHoldings wallet,
+        final Prices prices,
+        final boolean includeBalancePerAddress) {
+      return balanceCache.get(
+          wallet.user(),
+          includeBalancePerAddress,
+          wallet.version(),
+          prices.version(),
+          prices.fingerprint(),
+          new BalanceCache.Loader() {
+            @Override
+            public BalanceResponse load() {
+              WalletHoldings snapshot = wallet.snapshot();
+              return buildBalanceResponse(
+                  snapshot, value(snapshot, prices), includeBalancePerAddress);
+            }
+          });
+    }
+
+    /**
+     * Fetches the prices of {@code symbols} from the stats server, with one call per symbol made
+     * in parallel.
+     */
+    private Prices fetchPrices(Collection<String> symbols, String token, String membership) {
+      Metadata headers = new Metadata();
+      headers.put(WalletInterceptors.TOKEN_MD_KEY, token);
+      headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, membership);
+
+      StatsGrpc.StatsFutureStub stubWithHeaders =
+          MetadataUtils.attachHeaders(statsFutureStub, headers);
+      List<ListenableFuture<PriceResponse>> responses = new ArrayList<>(symbols.size());
+      for (String symbol : symbols) {
+        responses.add(
+            stubWithHeaders.fetchPrice(PriceRequest.newBuilder().setSymbol(symbol).build()));
+      }
+      try {
+        return Prices.of(Futures.allAsList(responses).get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Status.CANCELLED.withCause(e).asRuntimeException();
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Stats RPC failed: {0}", Status.fromThrowable(e.getCause()));
+        throw Status.INTERNAL
+            .withDescription("RPC to stats server failed: " + e.getCause().getMessage())
+            .asRuntimeException();
+      }
     }
 
     @Override
@@ -314,8 +769,10 @@ public class WalletServer {
       String token = WalletInterceptors.TOKEN_KEY.get();
       String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
 
-      Map<String, Long> wallet;
+      WalletHoldings wallet;
+      int updateIntervalMs;
       try {
+        updateIntervalMs = UpdateIntervals.resolve(membership, request.getUpdateIntervalMs());
         wallet = validateMembershipAndGetWallet(token, membership);
       } catch (StatusRuntimeException e) {
         responseObserver.onError(e);
@@ -326,22 +783,201 @@ public class WalletServer {
       headers.put(WalletInterceptors.TOKEN_MD_KEY, token);
       headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, membership);
 
-      StatsGrpc.StatsBlockingStub stubWithHeaders =
-          MetadataUtils.attachHeaders(statsBlockingStub, headers);
-      try {
-        Iterator<PriceResponse> prices =
-            stubWithHeaders.watchPrice(PriceRequest.getDefaultInstance());
-        while (prices.hasNext()) {
-          responseObserver.onNext(
-              buildBalanceResponse(
-                  wallet, prices.next().getPrice(), request.getIncludeBalancePerAddress()));
+      final BalanceWatch watch =
+          new BalanceWatch(
+              wallet,
+              request.getIncludeBalancePerAddress(),
+              request.getDeltaUpdates(),
+              (ServerCallStreamObserver<BalanceResponse>) responseObserver);
+      watch.register();
+      // One upstream call per asset held. They inherit this call's context and are cancelled
+      // along with it.
+      StatsGrpc.StatsStub stubWithHeaders = MetadataUtils.attachHeaders(statsStub, headers);
+      for (String asset : watch.assets()) {
+        watchPrice(
+            stubWithHeaders,
+            PriceRequest.newBuilder()
+                .setUpdateIntervalMs(updateIntervalMs)
+                .setSymbol(asset)
+                .build(),
+            watch);
+      }
+    }
+
+    /**
+     * Sends the prices of one asset to {@code watch}. If the stats server drains the stream, the
+     * asset is watched again on another one, without the client noticing.
+     */
+    private void watchPrice(
+        final StatsGrpc.StatsStub stub, final PriceRequest request, final BalanceWatch watch) {
+      stub.watchPrice(
+          request,
+          new StreamObserver<PriceResponse>() {
+            @Override
+            public void onNext(PriceResponse price) {
+              watch.onPrice(price);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+              Status status = Status.fromThrowable(t);
+              if (status.getCode() == Status.Code.UNAVAILABLE
+                  && StreamDrainer.DRAINING.equals(status.getDescription())) {
+                // Still in the context of this call, so it is cancelled along with it.
+                watchPrice(stub, request, watch);
+                return;
+              }
+              watch.fail(
+                  Status.INTERNAL
+                      .withDescription("RPC to stats server failed: " + t.getMessage())
+                      .asRuntimeException());
+            }
+
+            @Override
+            public void onCompleted() {
+              watch.complete();
+            }
+          });
+    }
+
+    /**
+     * A single WatchBalance stream. A new price of an asset revalues only the addresses holding
+     * it, and a change to the holdings only the addresses whose amount changed. An update is sent
+     * once every asset is priced, and skipped if no balance changed since the previous one.
+     */
+    private final class BalanceWatch {
+      private final WalletHoldings wallet;
+      private final boolean includeBalancePerAddress;
+      private final boolean deltaUpdates;
+      private final ServerCallStreamObserver<BalanceResponse> responseObserver;
+      private final PortfolioValuation valuation;
+      private final WalletHoldings addresses;
+      private boolean sentFirst;
+      private long lastSentTotal;
+      private boolean done;
+
+      BalanceWatch(
+          WalletHoldings wallet,
+          boolean includeBalancePerAddress,
+          boolean deltaUpdates,
+          ServerCallStreamObserver<BalanceResponse> responseObserver) {
+        this.wallet = wallet;
+        this.includeBalancePerAddress = includeBalancePerAddress && !v1Behavior;
+        this.deltaUpdates = deltaUpdates;
+        this.responseObserver = responseObserver;
+        this.addresses = wallet.snapshot();
+        this.valuation = new PortfolioValuation(addresses);
+      }
+
+      List<String> assets() {
+        return valuation.assets();
+      }
+
+      void register() {
+        Set<BalanceWatch> userWatches = watches.get(wallet.user());
+        if (userWatches == null) {
+          Set<BalanceWatch> fresh = ConcurrentHashMap.newKeySet();
+          userWatches = watches.putIfAbsent(wallet.user(), fresh);
+          if (userWatches == null) {
+            userWatches = fresh;
+          }
         }
-      } catch (StatusRuntimeException e) {
-        responseObserver.onError(
-            Status.INTERNAL
-                .withDescription("RPC to stats server failed: " + e.getMessage())
-                .asRuntimeException());
-        return;
+        userWatches.add(this);
+        responseObserver.setOnCancelHandler(
+            new Runnable() {
+              @Override
+              public void run() {
+                finish();
+              }
+            });
+        // The holdings may have changed between the snapshot and the registration, with nobody
+        // yet listening for it.
+        update();
+      }
+
+      synchronized void onPrice(PriceResponse price) {
+        int asset = valuation.assetIndex(PortfolioValuation.symbolOf(price));
+        if (done || asset < 0) {
+          return;
+        }
+        if (valuation.setPrice(asset, price.getPrice())) {
+          send();
+        }
+      }
+
+      synchronized void update() {
+        if (done) {
+          return;
+        }
+        WalletHoldings snapshot = wallet.snapshot();
+        if (snapshot.version() != valuation.walletVersion()) {
+          valuation.setAmounts(snapshot);
+          send();
+        }
+      }
+
+      private void send() {
+        if (!valuation.fullyPriced()) {
+          return;
+        }
+        BitSet changed = valuation.changed();
+        boolean unchanged =
+            valuation.total() == lastSentTotal
+                && (!includeBalancePerAddress || changed.isEmpty());
+        if (sentFirst && unchanged) {
+          valuation.clearChanged();
+          return;
+        }
+        BalanceResponse.Builder response =
+            BalanceResponse.newBuilder().setBalance(valuation.total());
+        if (includeBalancePerAddress) {
+          if (deltaUpdates && sentFirst) {
+            response.setDelta(true);
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+              addAddress(response, i);
+            }
+          } else {
+            for (int i = 0; i < addresses.addressCount(); i++) {
+              addAddress(response, i);
+            }
+          }
+        }
+        valuation.clearChanged();
+        sentFirst = true;
+        lastSentTotal = valuation.total();
+        responseObserver.onNext(response.build());
+      }
+
+      private void addAddress(BalanceResponse.Builder response, int i) {
+        response.addAddresses(
+            BalancePerAddress.newBuilder()
+                .setAddress(addresses.address(i))
+                .setBalance(valuation.value(i)));
+      }
+
+      synchronized void fail(StatusRuntimeException e) {
+        if (finish()) {
+          responseObserver.onError(e);
+        }
+      }
+
+      synchronized void complete() {
+        if (finish()) {
+          responseObserver.onCompleted();
+        }
+      }
+
+      /** Stops updates and returns true if the stream was still open. */
+      private synchronized boolean finish() {
+        if (done) {
+          return false;
+        }
+        done = true;
+        Set<BalanceWatch> userWatches = watches.get(wallet.user());
+        if (userWatches != null) {
+          userWatches.remove(this);
+        }
+        return true;
       }
     }
 
@@ -351,35 +987,305 @@ public class WalletServer {
       String token = WalletInterceptors.TOKEN_KEY.get();
       String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
 
-      Map<String, Long> wallet;
       try {
-        wallet = validateMembershipAndGetWallet(token, membership);
+        WalletHoldings wallet = validateMembershipAndGetWallet(token, membership);
+        Prices prices = fetchPrices(PortfolioValuation.assetsOf(wallet), token, membership);
+        responseObserver.onNext(
+            getBalanceResponse(wallet, prices, request.getIncludeBalancePerAddress()));
+        responseObserver.onCompleted();
       } catch (StatusRuntimeException e) {
         responseObserver.onError(e);
-        return;
       }
+    }
 
-      Metadata headers = new Metadata();
-      headers.put(WalletInterceptors.TOKEN_MD_KEY, token);
-      headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, membership);
+    @Override
+    public void listBalances(
+        BalanceRequest request, StreamObserver<BalancePage> responseObserver) {
+      String token = WalletInterceptors.TOKEN_KEY.get();
+      String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
 
-      StatsGrpc.StatsBlockingStub stubWithHeaders =
-          MetadataUtils.attachHeaders(statsBlockingStub, headers);
+      WalletHoldings snapshot;
+      Prices prices;
+      try {
+        if (request.getPageSize() < 0) {
+          throw Status.INVALID_ARGUMENT
+              .withDescription("page_size must not be negative")
+              .asRuntimeException();
+        }
+        snapshot = validateMembershipAndGetWallet(token, membership).snapshot();
+        prices = fetchPrices(PortfolioValuation.assetsOf(snapshot), token, membership);
+      } catch (StatusRuntimeException e) {
+        responseObserver.onError(e);
+        return;
+      }
+      if (v1Behavior) {
+        responseObserver.onNext(
+            BalancePage.newBuilder()
+                .setOffset(snapshot.addressCount())
+                .setLast(true)
+                .setBalance(value(snapshot, prices).total())
+                .build());
+        responseObserver.onCompleted();
+        return;
+      }
+      // The pages are valued on the compute executor as they are sent.
+      new BalancePageStream(
+              snapshot,
+              prices,
+              request.getPageSize(),
+              Runtime.getRuntime().availableProcessors(),
+              computeExecutor,
+              (ServerCallStreamObserver<BalancePage>) responseObserver)
+          .start();
+    }
 
+    @Override
+    public void fetchBalances(
+        BatchBalanceRequest request, StreamObserver<BatchBalanceResponse> responseObserver) {
       try {
-        PriceResponse response = stubWithHeaders.fetchPrice(PriceRequest.getDefaultInstance());
         responseObserver.onNext(
-            buildBalanceResponse(
-                wallet, response.getPrice(), request.getIncludeBalancePerAddress()));
+            computeBatch(
+                request,
+                WalletInterceptors.TOKEN_KEY.get(),
+                WalletInterceptors.MEMBERSHIP_KEY.get()));
         responseObserver.onCompleted();
       } catch (StatusRuntimeException e) {
-        logger.log(Level.WARNING, "Stats RPC failed: {0}", e.getStatus());
-        responseObserver.onError(
-            Status.INTERNAL
-                .withDescription("RPC to stats server failed: " + e.getMessage())
-                .asRuntimeException());
+        responseObserver.onError(e);
+      }
+    }
+
+    @Override
+    public StreamObserver<BatchBalanceRequest> streamBalances(
+        final StreamObserver<BatchBalanceResponse> responseObserver) {
+      final String token = WalletInterceptors.TOKEN_KEY.get();
+      final String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
+      // Requests on a call are delivered one at a time, so responses keep the request order.
+      return new StreamObserver<BatchBalanceRequest>() {
+        private boolean failed;
+
+        @Override
+        public void onNext(BatchBalanceRequest request) {
+          if (failed) {
+            return;
+          }
+          try {
+            responseObserver.onNext(computeBatch(request, token, membership));
+          } catch (StatusRuntimeException e) {
+            failed = true;
+            responseObserver.onError(e);
+          }
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {
+          if (!failed) {
+            responseObserver.onCompleted();
+          }
+        }
+      };
+    }
+
+    /**
+     * Answers a batch with one account lookup for all tokens and one price lookup per asset held
+     * in the batch, then computes the balances in parallel on the compute pool. Per-account
+     * failures, including accounts that do not match a premium membership header, are reported in
+     * the results; a failed account or stats RPC fails the whole batch.
+     */
+    private BatchBalanceResponse computeBatch(
+        BatchBalanceRequest request, String token, String membership) {
+      final int size = request.getRequestsCount();
+      if (size > MAX_BATCH_SIZE) {
+        throw Status.INVALID_ARGUMENT
+            .withDescription("At most " + MAX_BATCH_SIZE + " accounts per batch")
+            .asRuntimeException();
+      }
+      List<String> tokens = new ArrayList<>(size);
+      for (AccountBalanceRequest account : request.getRequestsList()) {
+        tokens.add(account.getToken());
+      }
+      GetUserInfosResponse users;
+      try {
+        users = accountLookup.getUserInfos(tokens);
+      } catch (StatusRuntimeException e) {
+        logger.log(Level.WARNING, "Account RPC failed: {0}", e.getStatus());
+        throw e;
+      }
+      if (users.getUsersCount() != size) {
+        throw Status.INTERNAL
+            .withDescription("Account server returned " + users.getUsersCount() + " users")
+            .asRuntimeException();
+      }
+
+      final boolean premiumOnly = "premium".equals(membership);
+      final WalletHoldings[] wallets = new WalletHoldings[size];
+      Set<String> assets = new LinkedHashSet<>();
+      for (int i = 0; i < size; i++) {
+        GetUserInfoResponse user = users.getUsers(i);
+        wallets[i] =
+            user.getName().isEmpty()
+                    || (premiumOnly && user.getMembership() != MembershipType.PREMIUM)
+                ? null
+                : walletStore.get(user.getName());
+        if (wallets[i] != null) {
+          assets.addAll(PortfolioValuation.assetsOf(wallets[i]));
+        }
+      }
+      final Prices prices = fetchPrices(assets, token, membership);
+
+      final AccountBalanceResult[] results = new AccountBalanceResult[size];
+      final List<AccountBalanceRequest> accounts = request.getRequestsList();
+      final List<GetUserInfoResponse> userInfos = users.getUsersList();
+      int tasks =
+          Math.max(
+              1,
+              Math.min(
+                  Runtime.getRuntime().availableProcessors(), size / MIN_ACCOUNTS_PER_TASK));
+      List<Callable<Void>> work = new ArrayList<>(tasks);
+      for (int t = 0; t < tasks; t++) {
+        final int start = (int) ((long) size * t / tasks);
+        final int end = (int) ((long) size * (t + 1) / tasks);
+        work.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() {
+                for (int i = start; i < end; i++) {
+                  results[i] =
+                      computeAccount(
+                          accounts.get(i), userInfos.get(i), premiumOnly, wallets[i], prices);
+                }
+                return null;
+              }
+            });
+      }
+      try {
+        if (tasks == 1) {
+          work.get(0).call();
+        } else {
+          for (Future<Void> done : computeExecutor.invokeAll(work)) {
+            done.get();
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Status.CANCELLED.withCause(e).asRuntimeException();
+      } catch (ExecutionException e) {
+        throw Status.INTERNAL.withCause(e.getCause()).asRuntimeException();
+      } catch (Exception e) {
+        throw Status.INTERNAL.withCause(e).asRuntimeException();
+      }
+
+      BatchBalanceResponse.Builder response = BatchBalanceResponse.newBuilder();
+      for (AccountBalanceResult result : results) {
+        response.addResults(result);
+      }
+      return response.build();
+    }
+
+    private AccountBalanceResult computeAccount(
+        AccountBalanceRequest account,
+        GetUserInfoResponse user,
+        boolean premiumOnly,
+        WalletHoldings wallet,
+        Prices prices) {
+      if (user.getName().isEmpty()) {
+        return AccountBalanceResult.newBuilder()
+            .setCode(Status.Code.NOT_FOUND.value())
+            .setMessage("Unknown token")
+            .build();
+      }
+      // The same check as validateMembershipAndGetWallet, for each account of the batch.
+      if (premiumOnly && user.getMembership() != MembershipType.PREMIUM) {
+        return AccountBalanceResult.newBuilder()
+            .setCode(Status.Code.UNAUTHENTICATED.value())
+            .setMessage("Token does not belong to a premium member")
+            .build();
+      }
+      if (wallet == null) {
+        return AccountBalanceResult.newBuilder()
+            .setCode(Status.Code.NOT_FOUND.value())
+            .setMessage("User not found")
+            .build();
+      }
+      return AccountBalanceResult.newBuilder()
+          .setBalance(getBalanceResponse(wallet, prices, account.getIncludeBalancePerAddress()))
+          .build();
+    }
+
+    @Override
+    public void deposit(
+        DepositRequest request, StreamObserver<TransactionResponse> responseObserver) {
+      String token = WalletInterceptors.TOKEN_KEY.get();
+      String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
+
+      WalletHoldings wallet;
+      try {
+        wallet = validateMembershipAndGetWallet(token, membership);
+      } catch (StatusRuntimeException e) {
+        responseObserver.onError(e);
+        return;
+      }
+      if (ledger == null) {
+        responseObserver.onError(ledgerNotConfigured());
+        return;
+      }
+      respondWhenCommitted(
+          ledger.deposit(wallet.user(), request.getAddress(), request.getAmount()),
+          responseObserver);
+    }
+
+    @Override
+    public void transfer(
+        TransferRequest request, StreamObserver<TransactionResponse> responseObserver) {
+      String token = WalletInterceptors.TOKEN_KEY.get();
+      String membership = WalletInterceptors.MEMBERSHIP_KEY.get();
+
+      WalletHoldings wallet;
+      try {
+        wallet = validateMembershipAndGetWallet(token, membership);
+      } catch (StatusRuntimeException e) {
+        responseObserver.onError(e);
+        return;
+      }
+      if (ledger == null) {
+        responseObserver.onError(ledgerNotConfigured());
         return;
       }
+      respondWhenCommitted(
+          ledger.transfer(
+              wallet.user(),
+              request.getFromAddress(),
+              request.getToAddress(),
+              request.getAmount()),
+          responseObserver);
+    }
+
+    private static StatusRuntimeException ledgerNotConfigured() {
+      return Status.UNIMPLEMENTED
+          .withDescription("Writes are disabled because --ledger_dir is not set")
+          .asRuntimeException();
+    }
+
+    private static void respondWhenCommitted(
+        ListenableFuture<Long> sequence,
+        final StreamObserver<TransactionResponse> responseObserver) {
+      Futures.addCallback(
+          sequence,
+          new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long result) {
+              responseObserver.onNext(TransactionResponse.newBuilder().setSequence(result).build());
+              responseObserver.onCompleted();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              responseObserver.onError(Status.fromThrowable(t).asRuntimeException());
+            }
+          },
+          MoreExecutors.directExecutor());
     }
   }
 }
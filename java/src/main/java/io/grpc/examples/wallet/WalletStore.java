@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+/** Resolves users to the holdings in their wallet. */
+interface WalletStore {
+
+  /** Returns the holdings of {@code user}, or {@code null} if the user has no wallet. */
+  WalletHoldings get(String user);
+
+  /** Registers a listener to be called after the holdings of any user change. */
+  void addListener(Listener listener);
+
+  /** Notified of changes to holdings. Must not block. */
+  interface Listener {
+    void onHoldingsChanged(String user);
+  }
+
+  /** A read-only view of the addresses and amounts held by one user. */
+  interface WalletHoldings {
+    String user();
+
+    /**
+     * Identifies the contents of the holdings: two views of the same user with the same version
+     * hold the same amounts.
+     */
+    long version();
+
+    int addressCount();
+
+    String address(int index);
+
+    /** Returns the symbol of the asset held at the address. */
+    String asset(int index);
+
+    long amount(int index);
+
+    /** Returns the sum of {@link #amount} over all addresses. */
+    long totalAmount();
+
+    /**
+     * Returns holdings whose amounts, total and version are mutually consistent and never change.
+     * Implementations whose holdings are already immutable may return {@code this}.
+     */
+    WalletHoldings snapshot();
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2022 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.MetadataUtils;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+/**
+ * Warms up a server before it reports SERVING, so that the first calls of real clients do not pay
+ * for name resolution, connection setup and cold code. It connects the channels to the
+ * dependencies, then sends synthetic calls through the service, interceptors included, over an
+ * in-process channel. Every step shares a single timeout, after which the server starts serving
+ * anyway.
+ */
+final class Warmup {
+  private static final Logger logger = Logger.getLogger(Warmup.class.getName());
+
+  static final int DEFAULT_CALLS = 1000;
+  static final int DEFAULT_TIMEOUT_MS = 30000;
+  /** Number of calls averaged to report the latency at the start and at the end. */
+  static final int SAMPLE_CALLS = 20;
+
+  /** Makes one synthetic call on a channel to the service. */
+  interface CallFactory {
+    Callable<?> newCall(ManagedChannel channel);
+  }
+
+  /** Outcome of the synthetic calls. */
+  static final class Report {
+    final int calls;
+    final int failures;
+    final long firstCallsNanos;
+    final long lastCallsNanos;
+
+    Report(int calls, int failures, long firstCallsNanos, long lastCallsNanos) {
+      this.calls = calls;
+      this.failures = failures;
+      this.firstCallsNanos = firstCallsNanos;
+      this.lastCallsNanos = lastCallsNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d calls, %d failed, mean latency of the first %d %.2f ms, of the last %d %.2f ms",
+          calls,
+          failures,
+          SAMPLE_CALLS,
+          firstCallsNanos / 1e6,
+          SAMPLE_CALLS,
+          lastCallsNanos / 1e6);
+    }
+  }
+
+  /** Returns {@code stub} calling as the premium user Alice, or as the normal user Bob. */
+  static <T extends AbstractStub<T>> T asUser(T stub, boolean premium) {
+    Metadata headers = new Metadata();
+    headers.put(WalletInterceptors.TOKEN_MD_KEY, premium ? Client.ALICE_TOKEN : Client.BOB_TOKEN);
+    headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, premium ? "premium" : "normal");
+    return stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+  }
+
+  private final long startNanos = System.nanoTime();
+  private final long deadlineNanos;
+
+  Warmup(long timeoutMs) {
+    deadlineNanos = startNanos + MILLISECONDS.toNanos(timeoutMs);
+  }
+
+  private long remainingNanos() {
+    return deadlineNanos - System.nanoTime();
+  }
+
+  /** Connects {@code channel}, and returns whether it got ready in time. */
+  boolean connect(ManagedChannel channel, String name) throws InterruptedException {
+    long connectStart = System.nanoTime();
+    ConnectivityState state = channel.getState(true);
+    while (state != ConnectivityState.READY && remainingNanos() > 0) {
+      final CountDownLatch changed = new CountDownLatch(1);
+      channel.notifyWhenStateChanged(
+          state,
+          new Runnable() {
+            @Override
+            public void run() {
+              changed.countDown();
+            }
+          });
+      changed.await(remainingNanos(), NANOSECONDS);
+      state = channel.getState(true);
+    }
+    long elapsedMs = NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+    if (state == ConnectivityState.READY) {
+      logger.info("Connected to " + name + " in " + elapsedMs + " ms");
+      return true;
+    }
+    logger.warning("Gave up connecting to " + name + " after " + elapsedMs + " ms: " + state);
+    return false;
+  }
+
+  /**
+   * Sends up to {@code calls} synthetic calls, one after the other, through {@code service}, and
+   * returns how fast they got.
+   */
+  Report run(ServerServiceDefinition service, int calls, CallFactory callFactory)
+      throws IOException {
+    String serverName = InProcessServerBuilder.generateName();
+    Server server =
+        InProcessServerBuilder.forName(serverName).addService(service).build().start();
+    ManagedChannel channel = InProcessChannelBuilder.forName(serverName).build();
+    long[] latencies = new long[calls];
+    int completed = 0;
+    int failures = 0;
+    try {
+      Callable<?> call = callFactory.newCall(channel);
+      for (; completed < calls && remainingNanos() > 0; completed++) {
+        long callStart = System.nanoTime();
+        try {
+          call.call();
+        } catch (Exception e) {
+          failures++;
+        }
+        latencies[completed] = System.nanoTime() - callStart;
+      }
+    } finally {
+      channel.shutdownNow();
+      server.shutdownNow();
+    }
+    int sample = Math.min(SAMPLE_CALLS, completed);
+    long first = 0;
+    long last = 0;
+    for (int i = 0; i < sample; i++) {
+      first += latencies[i];
+      last += latencies[completed - 1 - i];
+    }
+    Report report =
+        new Report(
+            completed, failures, sample == 0 ? 0 : first / sample, sample == 0 ? 0 : last / sample);
+    logger.info("Warmup traffic: " + report);
+    return report;
+  }
+
+  /** Logs the duration of the warmup, and returns it. */
+  long finish() {
+    long elapsedMs = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    logger.info("Warmed up in " + elapsedMs + " ms");
+    return elapsedMs;
+  }
+}
@@ -0,0 +1,142 @@
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the lookup latency percentiles of an {@link AccountLookup} with and without hedging,
+ * against an in-process account replica that answers in 1ms except for 3% of calls that take
+ * 50ms. The hedging lookup learns the latency distribution in a first, unmeasured run.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=AccountLookupBenchmark}.
+ */
+public final class AccountLookupBenchmark {
+  private static final int THREADS = 8;
+  private static final int LOOKUPS_PER_THREAD = 250;
+  private static final int SLOW_PERCENT = 3;
+
+  private AccountLookupBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    ScheduledExecutorService replicaExecutor = Executors.newScheduledThreadPool(4);
+    HashedWheelTimer timer =
+        new HashedWheelTimer("benchmark-hedge-timer", 1, 1, MILLISECONDS, 512);
+    String name = InProcessServerBuilder.generateName();
+    Server server =
+        InProcessServerBuilder.forName(name)
+            .addService(new SlowReplica(replicaExecutor))
+            .build()
+            .start();
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    try {
+      AccountLookup plain =
+          new AccountLookup(channel, timer, 0, AccountLookup.DEFAULT_BUDGET_PERCENT, 0);
+      AccountLookup hedged =
+          new AccountLookup(
+              channel,
+              timer,
+              AccountLookup.DEFAULT_HEDGE_PERCENTILE,
+              AccountLookup.DEFAULT_BUDGET_PERCENT,
+              0);
+      run(hedged);
+
+      long[] plainLatencies = run(plain);
+      long[] hedgedLatencies = run(hedged);
+      System.out.printf(
+          "p50/p99 without hedging %.1f/%.1f ms, with hedging %.1f/%.1f ms after %d ms (%s)%n",
+          millis(plainLatencies, 50),
+          millis(plainLatencies, 99),
+          millis(hedgedLatencies, 50),
+          millis(hedgedLatencies, 99),
+          hedged.hedgeDelay(MILLISECONDS),
+          hedged.stats());
+    } finally {
+      channel.shutdownNow();
+      server.shutdownNow();
+      replicaExecutor.shutdownNow();
+      timer.stop();
+    }
+  }
+
+  /** Runs lookups from several threads and returns their sorted latencies. */
+  private static long[] run(final AccountLookup lookup) throws Exception {
+    ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+    try {
+      Callable<long[]> client =
+          new Callable<long[]>() {
+            @Override
+            public long[] call() {
+              long[] latencies = new long[LOOKUPS_PER_THREAD];
+              for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                long start = System.nanoTime();
+                lookup.getUserInfo("token");
+                latencies[i] = System.nanoTime() - start;
+              }
+              return latencies;
+            }
+          };
+      List<Future<long[]>> futures = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        futures.add(clients.submit(client));
+      }
+      long[] all = new long[0];
+      for (Future<long[]> future : futures) {
+        long[] latencies = future.get();
+        int offset = all.length;
+        all = Arrays.copyOf(all, offset + latencies.length);
+        System.arraycopy(latencies, 0, all, offset, latencies.length);
+      }
+      Arrays.sort(all);
+      return all;
+    } finally {
+      clients.shutdownNow();
+    }
+  }
+
+  private static double millis(long[] sorted, int percentile) {
+    return sorted[sorted.length * percentile / 100] / (double) MILLISECONDS.toNanos(1);
+  }
+
+  /** Answers in 1ms, except for SLOW_PERCENT of calls that take 50ms. */
+  private static final class SlowReplica extends AccountGrpc.AccountImplBase {
+    private final ScheduledExecutorService executor;
+
+    SlowReplica(ScheduledExecutorService executor) {
+      this.executor = executor;
+    }
+
+    @Override
+    public void getUserInfo(
+        final GetUserInfoRequest request,
+        final StreamObserver<GetUserInfoResponse> responseObserver) {
+      executor.schedule(
+          new Runnable() {
+            @Override
+            public void run() {
+              responseObserver.onNext(
+                  GetUserInfoResponse.newBuilder().setName(request.getToken()).build());
+              responseObserver.onCompleted();
+            }
+          },
+          ThreadLocalRandom.current().nextInt(100) < SLOW_PERCENT ? 50 : 1,
+          MILLISECONDS);
+    }
+  }
+}
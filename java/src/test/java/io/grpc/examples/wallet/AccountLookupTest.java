@@ -0,0 +1,200 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Ticker;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AccountLookupTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final HashedWheelTimer timer =
+      new HashedWheelTimer("test-hedge-timer", 1, 1, MILLISECONDS, 512);
+
+  @After
+  public void tearDown() {
+    timer.stop();
+  }
+
+  /**
+   * An account replica that answers at once, except that it fails {@code failPercent} of calls
+   * with UNAVAILABLE, and that the calls the test picks by index stall or fail.
+   */
+  private static final class FakeReplica extends AccountGrpc.AccountImplBase {
+    final int failPercent;
+    final AtomicInteger calls = new AtomicInteger();
+    // The call never answered, and counted down when its caller cancels it.
+    volatile int stallCall = -1;
+    final CountDownLatch stallCancelled = new CountDownLatch(1);
+    volatile int failCall = -1;
+    volatile Status failStatus;
+
+    FakeReplica(int failPercent) {
+      this.failPercent = failPercent;
+    }
+
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      int call = calls.getAndIncrement();
+      if (call == stallCall) {
+        ((ServerCallStreamObserver<GetUserInfoResponse>) responseObserver)
+            .setOnCancelHandler(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    stallCancelled.countDown();
+                  }
+                });
+        return;
+      }
+      if (call == failCall) {
+        responseObserver.onError(failStatus.asRuntimeException());
+        return;
+      }
+      if (ThreadLocalRandom.current().nextInt(100) < failPercent) {
+        responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(GetUserInfoResponse.newBuilder().setName(request.getToken()).build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  private ManagedChannel start(FakeReplica replica) throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name).addService(replica).build().start());
+    return grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  /** Returns a hedging lookup that has seen enough latencies to hedge. */
+  private AccountLookup startHedging(FakeReplica replica) throws Exception {
+    AccountLookup lookup =
+        new AccountLookup(
+            start(replica),
+            timer,
+            AccountLookup.DEFAULT_HEDGE_PERCENTILE,
+            AccountLookup.DEFAULT_BUDGET_PERCENT,
+            0);
+    for (int i = 0; i < AccountLookup.MIN_SAMPLES; i++) {
+      lookup.getUserInfo("token");
+    }
+    assertThat(lookup.hedgeDelay(MILLISECONDS)).isAtLeast(0L);
+    return lookup;
+  }
+
+  @Test
+  public void testHedgeAnswersForStalledAttempt() throws Exception {
+    FakeReplica replica = new FakeReplica(0);
+    AccountLookup lookup = startHedging(replica);
+    replica.stallCall = replica.calls.get();
+
+    assertThat(lookup.getUserInfo("token").getName()).isEqualTo("token");
+    assertThat(replica.stallCancelled.await(5, SECONDS)).isTrue();
+    assertThat(lookup.stats()).contains(" hedges=1 hedgeWins=1 ");
+  }
+
+  @Test
+  public void testNonRetryableFailureCancelsOtherAttempt() throws Exception {
+    FakeReplica replica = new FakeReplica(0);
+    AccountLookup lookup = startHedging(replica);
+    replica.failStatus = Status.INTERNAL;
+    replica.stallCall = replica.calls.get();
+    replica.failCall = replica.stallCall + 1;
+
+    try {
+      lookup.getUserInfo("token");
+      fail("Expected the lookup to fail");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INTERNAL);
+    }
+    assertThat(replica.stallCancelled.await(5, SECONDS)).isTrue();
+  }
+
+  @Test
+  public void testBudgetBoundsExtraAttemptsDuringOutage() throws Exception {
+    FakeReplica replica = new FakeReplica(100);
+    AccountLookup lookup = new AccountLookup(start(replica), timer, 95, 10, 0);
+    int lookups = 1000;
+    for (int i = 0; i < lookups; i++) {
+      try {
+        lookup.getUserInfo("token");
+      } catch (StatusRuntimeException e) {
+        assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+      }
+    }
+    assertThat(replica.calls.get()).isAtMost(lookups + lookups / 10 + AccountLookup.MAX_BURST);
+  }
+
+  @Test
+  public void testRetriesUnavailable() throws Exception {
+    FakeReplica replica = new FakeReplica(20);
+    AccountLookup lookup = new AccountLookup(start(replica), timer, 0, 100, 0);
+    int failures = 0;
+    for (int i = 0; i < 500; i++) {
+      try {
+        lookup.getUserInfo("token");
+      } catch (StatusRuntimeException e) {
+        failures++;
+      }
+    }
+    // 20% of lookups fail their first attempt, but only 4% fail both.
+    assertThat(failures).isLessThan(50);
+  }
+
+  @Test
+  public void testFallbackKeepsMostRecentAccounts() throws Exception {
+    FakeReplica replica = new FakeReplica(0);
+    // Opens on the first failure among the three calls, and stays open.
+    CircuitBreaker breaker =
+        new CircuitBreaker("account", 0.3, 0.8, 60_000, 1, 60_000, 1, Ticker.systemTicker());
+    AccountLookup lookup =
+        new AccountLookup(
+            ClientInterceptors.intercept(start(replica), breaker), timer, 0, 0, 1);
+    lookup.getUserInfo("alice");
+    // The cache is full, so alice makes room for bob.
+    lookup.getUserInfo("bob");
+    replica.failStatus = Status.UNAVAILABLE;
+    replica.failCall = replica.calls.get();
+    try {
+      lookup.getUserInfo("carol");
+      fail("Expected the lookup to fail");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    assertThat(lookup.getUserInfo("bob").getName()).isEqualTo("bob");
+    try {
+      lookup.getUserInfo("alice");
+      fail("Expected alice to have been evicted");
+    } catch (StatusRuntimeException e) {
+      assertThat(CircuitBreaker.isRejection(e.getStatus())).isTrue();
+    }
+    assertThat(lookup.stats()).contains(" fallbacks=1");
+  }
+}
@@ -0,0 +1,78 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BalanceCacheTest {
+
+  private final BalanceCache cache = new BalanceCache(100);
+  private int loads;
+
+  /** Builds a distinct response on every call, and counts the calls. */
+  private final BalanceCache.Loader loader =
+      new BalanceCache.Loader() {
+        @Override
+        public BalanceResponse load() {
+          loads++;
+          return BalanceResponse.newBuilder().setBalance(loads).build();
+        }
+      };
+
+  private BalanceResponse get(String user, long walletVersion, long priceVersion) {
+    return cache.get(user, false, walletVersion, priceVersion, 42, loader);
+  }
+
+  @Test
+  public void testReusesResponseForSameWalletAndPrices() {
+    BalanceResponse first = get("alice", 1, 1);
+
+    assertThat(get("alice", 1, 1)).isSameInstanceAs(first);
+    assertThat(loads).isEqualTo(1);
+  }
+
+  @Test
+  public void testRebuildsWhenWalletOrPricesChange() {
+    BalanceResponse first = get("alice", 1, 1);
+
+    BalanceResponse newHoldings = get("alice", 2, 1);
+    assertThat(newHoldings).isNotSameInstanceAs(first);
+    BalanceResponse newPrices = get("alice", 2, 2);
+    assertThat(newPrices).isNotSameInstanceAs(newHoldings);
+    BalanceResponse newFingerprint = cache.get("alice", false, 2, 2, 43, loader);
+    assertThat(newFingerprint).isNotSameInstanceAs(newPrices);
+    assertThat(loads).isEqualTo(4);
+
+    assertThat(cache.get("alice", false, 2, 2, 43, loader)).isSameInstanceAs(newFingerprint);
+  }
+
+  @Test
+  public void testKeepsDetailLevelsApart() {
+    BalanceResponse total = get("alice", 1, 1);
+    BalanceResponse perAddress = cache.get("alice", true, 1, 1, 42, loader);
+
+    assertThat(perAddress).isNotSameInstanceAs(total);
+    assertThat(get("alice", 1, 1)).isSameInstanceAs(total);
+    assertThat(cache.get("alice", true, 1, 1, 42, loader)).isSameInstanceAs(perAddress);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedUsersAtCapacity() {
+    for (int i = 0; i < 1000; i++) {
+      get("user" + i, 1, 1);
+    }
+    assertThat(loads).isEqualTo(1000);
+
+    // Users first seen after the cache filled up are still cached.
+    BalanceResponse latecomer = get("latecomer", 1, 1);
+    assertThat(get("latecomer", 1, 1)).isSameInstanceAs(latecomer);
+    assertThat(loads).isEqualTo(1001);
+
+    // The users not seen for longest made room for them.
+    get("user0", 1, 1);
+    assertThat(loads).isEqualTo(1002);
+  }
+}
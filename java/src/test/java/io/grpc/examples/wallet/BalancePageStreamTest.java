@@ -0,0 +1,242 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.grpc.Status;
+import io.grpc.examples.wallet.PortfolioValuation.Prices;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BalancePageStreamTest {
+  private static final int ADDRESSES = 25;
+
+  private final Queue<Runnable> tasks = new ArrayDeque<>();
+  private final Executor executor =
+      new Executor() {
+        @Override
+        public void execute(Runnable task) {
+          tasks.add(task);
+        }
+      };
+  private final FakeObserver observer = new FakeObserver();
+  private PackedWalletStore.Builder builder;
+  private Prices prices;
+
+  @Before
+  public void setUp() {
+    // Addresses 0..24, alternately holding AAA and BBB, each holding its index.
+    String[] addresses = new String[ADDRESSES];
+    String[] assets = new String[ADDRESSES];
+    long[] amounts = new long[ADDRESSES];
+    for (int i = 0; i < ADDRESSES; i++) {
+      addresses[i] = PackedWalletStore.formatAddress(i);
+      assets[i] = i % 2 == 0 ? "AAA" : "BBB";
+      amounts[i] = i;
+    }
+    builder = PackedWalletStore.newBuilder().addWallet("Alice", addresses, assets, amounts);
+    prices =
+        Prices.of(
+            Arrays.asList(
+                PriceResponse.newBuilder().setSymbol("AAA").setPrice(10).build(),
+                PriceResponse.newBuilder().setSymbol("BBB").setPrice(100).build()));
+  }
+
+  private BalancePageStream stream(int pageSize, int parallelism) {
+    return new BalancePageStream(
+        builder.build().get("Alice").snapshot(),
+        prices,
+        pageSize,
+        parallelism,
+        executor,
+        observer);
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      task.run();
+    }
+  }
+
+  @Test
+  public void testSendsValuedPagesThenTotal() {
+    stream(10, 2).start();
+    assertThat(tasks).hasSize(2);
+    runTasks();
+
+    assertThat(observer.completed).isTrue();
+    List<BalancePage> pages = observer.pages;
+    assertThat(pages).hasSize(4);
+    assertThat(pages.get(0).getOffset()).isEqualTo(0);
+    assertThat(pages.get(0).getAddressesCount()).isEqualTo(10);
+    assertThat(pages.get(1).getOffset()).isEqualTo(10);
+    assertThat(pages.get(2).getOffset()).isEqualTo(20);
+    assertThat(pages.get(2).getAddressesCount()).isEqualTo(5);
+    BalancePerAddress odd = pages.get(1).getAddresses(3);
+    assertThat(odd.getAddress()).isEqualTo(PackedWalletStore.formatAddress(13));
+    assertThat(odd.getBalance()).isEqualTo(1300);
+    assertThat(pages.get(2).getAddresses(4).getBalance()).isEqualTo(240);
+
+    BalancePage last = pages.get(3);
+    assertThat(last.getLast()).isTrue();
+    assertThat(last.getOffset()).isEqualTo(ADDRESSES);
+    long total = 0;
+    for (int i = 0; i < ADDRESSES; i++) {
+      total += i * (i % 2 == 0 ? 10 : 100);
+    }
+    assertThat(last.getBalance()).isEqualTo(total);
+  }
+
+  @Test
+  public void testZeroPageSizeSelectsDefault() {
+    stream(0, 1).start();
+    runTasks();
+
+    assertThat(observer.pages).hasSize(2);
+    assertThat(observer.pages.get(0).getAddressesCount()).isEqualTo(ADDRESSES);
+  }
+
+  @Test
+  public void testWaitsForTransportToBeReady() {
+    observer.ready = false;
+    stream(5, 2).start();
+    assertThat(tasks).isEmpty();
+
+    observer.ready = true;
+    observer.onReadyHandler.run();
+    assertThat(tasks).hasSize(2);
+
+    // A page that makes the transport busy stops new pages from being started.
+    observer.readyAfterNext = false;
+    tasks.poll().run();
+    assertThat(tasks).hasSize(1);
+    tasks.poll().run();
+    assertThat(tasks).isEmpty();
+    assertThat(observer.pages).hasSize(2);
+    assertThat(observer.completed).isFalse();
+
+    observer.ready = true;
+    observer.readyAfterNext = true;
+    observer.onReadyHandler.run();
+    runTasks();
+    assertThat(observer.pages).hasSize(6);
+    assertThat(observer.completed).isTrue();
+  }
+
+  @Test
+  public void testStopsWhenCancelled() {
+    stream(5, 2).start();
+    observer.onCancelHandler.run();
+    runTasks();
+
+    assertThat(observer.pages).isEmpty();
+    assertThat(observer.completed).isFalse();
+  }
+
+  @Test
+  public void testFailsWhenPageCannotBeBuilt() {
+    // BBB has no price.
+    prices =
+        Prices.of(
+            Arrays.asList(PriceResponse.newBuilder().setSymbol("AAA").setPrice(10).build()));
+    stream(10, 2).start();
+    runTasks();
+
+    assertThat(Status.fromThrowable(observer.error).getCode()).isEqualTo(Status.Code.INTERNAL);
+    assertThat(observer.pages).isEmpty();
+    assertThat(observer.completed).isFalse();
+  }
+
+  @Test
+  public void testFailsWhenExecutorRejectsPage() {
+    new BalancePageStream(
+            builder.build().get("Alice").snapshot(),
+            prices,
+            10,
+            2,
+            new Executor() {
+              @Override
+              public void execute(Runnable task) {
+                throw new RejectedExecutionException("shut down");
+              }
+            },
+            observer)
+        .start();
+
+    assertThat(Status.fromThrowable(observer.error).getCode()).isEqualTo(Status.Code.INTERNAL);
+    assertThat(observer.completed).isFalse();
+  }
+
+  /** Records pages, and lets the test drive flow control. */
+  private static final class FakeObserver extends ServerCallStreamObserver<BalancePage> {
+    final List<BalancePage> pages = new ArrayList<>();
+    boolean ready = true;
+    // The readiness of the transport after each page sent.
+    boolean readyAfterNext = true;
+    boolean completed;
+    Throwable error;
+    Runnable onReadyHandler;
+    Runnable onCancelHandler;
+
+    @Override
+    public void onNext(BalancePage page) {
+      pages.add(page);
+      ready = readyAfterNext;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      assertThat(error).isNull();
+      error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+      completed = true;
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+      this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+      this.onCancelHandler = onCancelHandler;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setCompression(String compression) {}
+
+    @Override
+    public void disableAutoInboundFlowControl() {}
+
+    @Override
+    public void request(int count) {}
+
+    @Override
+    public void setMessageCompression(boolean enable) {}
+  }
+}
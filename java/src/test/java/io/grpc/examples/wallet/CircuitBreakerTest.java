@@ -0,0 +1,239 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.base.Ticker;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptors;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+  private static final long OPEN_MS = 200;
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final AtomicBoolean down = new AtomicBoolean();
+  // Makes the server leave calls unanswered.
+  private final AtomicBoolean hang = new AtomicBoolean();
+  private final AtomicInteger calls = new AtomicInteger();
+  private final FakeTicker ticker = new FakeTicker();
+  private final CircuitBreaker breaker =
+      new CircuitBreaker(
+          "account server",
+          0.5,
+          CircuitBreaker.DEFAULT_SLOW_CALL_RATE,
+          1000,
+          CircuitBreaker.DEFAULT_MIN_CALLS,
+          OPEN_MS,
+          CircuitBreaker.DEFAULT_HALF_OPEN_PROBES,
+          ticker);
+  private Channel channel;
+  private AccountGrpc.AccountBlockingStub stub;
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(
+                new AccountGrpc.AccountImplBase() {
+                  @Override
+                  public void getUserInfo(
+                      GetUserInfoRequest request,
+                      StreamObserver<GetUserInfoResponse> responseObserver) {
+                    calls.incrementAndGet();
+                    if (hang.get()) {
+                      return;
+                    }
+                    if (down.get()) {
+                      responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+                      return;
+                    }
+                    responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                  }
+                })
+            .build()
+            .start());
+    channel =
+        ClientInterceptors.intercept(
+            grpcCleanup.register(InProcessChannelBuilder.forName(name).build()), breaker);
+    stub = AccountGrpc.newBlockingStub(channel);
+  }
+
+  /** Makes a call and returns the status it ended with. */
+  private Status call() {
+    try {
+      stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+      return Status.OK;
+    } catch (StatusRuntimeException e) {
+      return e.getStatus();
+    }
+  }
+
+  /** Starts a call without waiting for it, and counts down {@code closed} once it closes. */
+  private ClientCall<GetUserInfoRequest, GetUserInfoResponse> startCall(
+      final CountDownLatch closed) {
+    ClientCall<GetUserInfoRequest, GetUserInfoResponse> call =
+        channel.newCall(AccountGrpc.getGetUserInfoMethod(), CallOptions.DEFAULT);
+    call.start(
+        new ClientCall.Listener<GetUserInfoResponse>() {
+          @Override
+          public void onClose(Status status, Metadata trailers) {
+            closed.countDown();
+          }
+        },
+        new Metadata());
+    call.sendMessage(GetUserInfoRequest.getDefaultInstance());
+    call.halfClose();
+    call.request(1);
+    return call;
+  }
+
+  private void openCircuit() {
+    down.set(true);
+    for (int i = 0; i < CircuitBreaker.DEFAULT_MIN_CALLS; i++) {
+      call();
+    }
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void testOpensAndFailsFast() {
+    openCircuit();
+    int sent = calls.get();
+
+    Status status = call();
+    assertThat(status.getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    assertThat(CircuitBreaker.isRejection(status)).isTrue();
+    assertThat(calls.get()).isEqualTo(sent);
+    assertThat(breaker.rejectedCalls()).isEqualTo(1);
+  }
+
+  @Test
+  public void testStaysClosedBelowMinimumCalls() {
+    down.set(true);
+    for (int i = 0; i < CircuitBreaker.DEFAULT_MIN_CALLS - 1; i++) {
+      assertThat(CircuitBreaker.isRejection(call())).isFalse();
+    }
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testClosesAfterSuccessfulProbes() {
+    openCircuit();
+    down.set(false);
+    ticker.advanceMillis(OPEN_MS);
+
+    for (int i = 0; i < CircuitBreaker.DEFAULT_HALF_OPEN_PROBES; i++) {
+      assertThat(call().isOk()).isTrue();
+    }
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void testReopensAfterFailedProbe() {
+    openCircuit();
+    ticker.advanceMillis(OPEN_MS);
+
+    // The first call after the open period is a probe, and fails.
+    assertThat(CircuitBreaker.isRejection(call())).isFalse();
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(CircuitBreaker.isRejection(call())).isTrue();
+  }
+
+  @Test
+  public void testCancelledProbeFreesItsSlot() throws Exception {
+    openCircuit();
+    down.set(false);
+    ticker.advanceMillis(OPEN_MS);
+    hang.set(true);
+    List<ClientCall<GetUserInfoRequest, GetUserInfoResponse>> probes = new ArrayList<>();
+    CountDownLatch cancelled = new CountDownLatch(1);
+    probes.add(startCall(cancelled));
+    for (int i = 1; i < CircuitBreaker.DEFAULT_HALF_OPEN_PROBES; i++) {
+      probes.add(startCall(new CountDownLatch(1)));
+    }
+    // Calls beyond the probes are rejected, however many of them there are.
+    for (int i = 0; i < 5; i++) {
+      assertThat(CircuitBreaker.isRejection(call())).isTrue();
+    }
+
+    probes.get(0).cancel("lost the hedge", null);
+    assertThat(cancelled.await(5, SECONDS)).isTrue();
+    hang.set(false);
+
+    assertThat(call().isOk()).isTrue();
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    for (ClientCall<GetUserInfoRequest, GetUserInfoResponse> probe : probes) {
+      probe.cancel("done", null);
+    }
+  }
+
+  @Test
+  public void testReopensWhenProbesDoNotFinish() {
+    openCircuit();
+    down.set(false);
+    ticker.advanceMillis(OPEN_MS);
+    hang.set(true);
+    List<ClientCall<GetUserInfoRequest, GetUserInfoResponse>> probes = new ArrayList<>();
+    for (int i = 0; i < CircuitBreaker.DEFAULT_HALF_OPEN_PROBES; i++) {
+      probes.add(startCall(new CountDownLatch(1)));
+    }
+    assertThat(CircuitBreaker.isRejection(call())).isTrue();
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+
+    ticker.advanceMillis(OPEN_MS);
+    assertThat(CircuitBreaker.isRejection(call())).isTrue();
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+    // After another pause it probes afresh, and the stuck probes no longer count.
+    ticker.advanceMillis(OPEN_MS);
+    hang.set(false);
+    assertThat(call().isOk()).isTrue();
+    for (ClientCall<GetUserInfoRequest, GetUserInfoResponse> probe : probes) {
+      probe.cancel("done", null);
+    }
+    assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+  }
+
+  /** A clock that only moves when the test advances it. */
+  private static final class FakeTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+
+    void advanceMillis(long millis) {
+      nanos.addAndGet(MILLISECONDS.toNanos(millis));
+    }
+  }
+}
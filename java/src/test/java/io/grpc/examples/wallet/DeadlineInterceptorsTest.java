@@ -0,0 +1,164 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+
+@RunWith(JUnit4.class)
+public class DeadlineInterceptorsTest {
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final AtomicInteger calls = new AtomicInteger();
+  // Remaining time of the last call seen downstream, or -1 if it had no deadline.
+  private final AtomicLong remainingMs = new AtomicLong();
+  private Channel downstream;
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(
+                new AccountGrpc.AccountImplBase() {
+                  @Override
+                  public void getUserInfo(
+                      GetUserInfoRequest request,
+                      StreamObserver<GetUserInfoResponse> responseObserver) {
+                    calls.incrementAndGet();
+                    Deadline deadline = Context.current().getDeadline();
+                    remainingMs.set(deadline == null ? -1 : deadline.timeRemaining(MILLISECONDS));
+                    responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+                    responseObserver.onCompleted();
+                  }
+                })
+            .build()
+            .start());
+    downstream = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  private AccountGrpc.AccountBlockingStub stub(double reserve, long minBudgetMs, long defaultMs) {
+    return AccountGrpc.newBlockingStub(
+        ClientInterceptors.intercept(
+            downstream,
+            new DeadlineInterceptors.BudgetInterceptor(reserve, minBudgetMs, defaultMs)));
+  }
+
+  /** Calls {@code stub} from a context whose deadline is {@code deadlineMs} away. */
+  private void callWithin(final AccountGrpc.AccountBlockingStub stub, long deadlineMs)
+      throws Exception {
+    Context.CancellableContext context =
+        Context.current().withDeadline(Deadline.after(deadlineMs, MILLISECONDS), scheduler);
+    try {
+      context.call(
+          new Callable<Void>() {
+            @Override
+            public Void call() {
+              stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+              return null;
+            }
+          });
+    } finally {
+      context.cancel(null);
+    }
+  }
+
+  @Test
+  public void testKeepsReserveOfIncomingDeadline() throws Exception {
+    callWithin(stub(0.5, 5, 0), 10000);
+    assertThat(remainingMs.get()).isAtMost(5000L);
+    assertThat(remainingMs.get()).isAtLeast(4000L);
+  }
+
+  @Test
+  public void testFailsFastWhenBudgetTooShort() throws Exception {
+    long skipped = DeadlineInterceptors.skippedCalls();
+    try {
+      callWithin(stub(0.1, 50, 0), 20);
+      fail("Expected DEADLINE_EXCEEDED");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+    }
+    assertThat(calls.get()).isEqualTo(0);
+    assertThat(DeadlineInterceptors.skippedCalls()).isEqualTo(skipped + 1);
+    assertThat(new LocalMetrics().render())
+        .contains("grpc_deadline_skipped_calls_total " + (skipped + 1) + "\n");
+  }
+
+  @Test
+  public void testDefaultDeadlineWithoutIncomingOne() {
+    stub(0.1, 5, 2000).getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    assertThat(remainingMs.get()).isAtMost(2000L);
+    assertThat(remainingMs.get()).isAtLeast(0L);
+
+    stub(0.1, 5, 0).getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    assertThat(remainingMs.get()).isEqualTo(-1L);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRejectsExpiredCall() {
+    final ServerCall<Object, Object> call = mock(ServerCall.class);
+    doReturn(AccountGrpc.getGetUserInfoMethod()).when(call).getMethodDescriptor();
+    final ServerCallHandler<Object, Object> handler = mock(ServerCallHandler.class);
+    long skipped = DeadlineInterceptors.skippedCalls();
+
+    Context.CancellableContext context =
+        Context.current().withDeadline(Deadline.after(-1, MILLISECONDS), scheduler);
+    context.run(
+        new Runnable() {
+          @Override
+          public void run() {
+            new DeadlineInterceptors.ExpiredCallInterceptor()
+                .interceptCall(call, new Metadata(), handler);
+          }
+        });
+
+    ArgumentCaptor<Status> status = ArgumentCaptor.forClass(Status.class);
+    verify(call).close(status.capture(), any(Metadata.class));
+    assertThat(status.getValue().getCode()).isEqualTo(Status.Code.DEADLINE_EXCEEDED);
+    verify(handler, never()).startCall(same(call), any(Metadata.class));
+    assertThat(DeadlineInterceptors.skippedCalls()).isEqualTo(skipped + 1);
+  }
+}
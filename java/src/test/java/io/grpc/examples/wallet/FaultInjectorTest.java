@@ -0,0 +1,215 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.faults.Fault;
+import io.grpc.examples.wallet.faults.FaultConfig;
+import io.grpc.examples.wallet.faults.FaultInjectionGrpc;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.Iterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FaultInjectorTest {
+  private static final String FETCH_PRICE = "grpc.examples.wallet.stats.Stats/FetchPrice";
+  private static final String PACED = "paced";
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final FaultInjector injector = new FaultInjector();
+  private ManagedChannel channel;
+
+  /** Answers at once, and streams five prices. */
+  private static final class FakeStats extends StatsGrpc.StatsImplBase {
+    @Override
+    public void fetchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      responseObserver.onNext(PriceResponse.newBuilder().setPrice(1).build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void watchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      if (PACED.equals(request.getSymbol())) {
+        watchPaced((ServerCallStreamObserver<PriceResponse>) responseObserver);
+        return;
+      }
+      for (int i = 0; i < 5; i++) {
+        responseObserver.onNext(PriceResponse.newBuilder().setPrice(i).build());
+      }
+      responseObserver.onCompleted();
+    }
+
+    /** Sends the prices only while the call is ready, like ListBalances. */
+    private void watchPaced(final ServerCallStreamObserver<PriceResponse> responseObserver) {
+      responseObserver.setOnReadyHandler(
+          new Runnable() {
+            int sent;
+
+            @Override
+            public void run() {
+              while (sent < 5 && responseObserver.isReady()) {
+                responseObserver.onNext(PriceResponse.newBuilder().setPrice(sent++).build());
+                if (sent == 5) {
+                  responseObserver.onCompleted();
+                }
+              }
+            }
+          });
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(new FakeStats(), injector))
+            .addService(injector.adminService())
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  @After
+  public void tearDown() {
+    injector.shutdown();
+  }
+
+  private StatsGrpc.StatsBlockingStub stub(String membership) {
+    Metadata headers = new Metadata();
+    headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, membership);
+    return StatsGrpc.newBlockingStub(channel)
+        .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+  }
+
+  @Test
+  public void testMatchesMethodAndMembership() throws Exception {
+    FaultConfig config =
+        FaultInjector.parse(
+            "faults { method: 'grpc.examples.wallet.stats.Stats/WatchPrice' delay_ms: 1 }"
+                + " faults { method: 'grpc.examples.wallet.stats.Stats/*' membership: 'normal'"
+                + "   delay_ms: 2 }"
+                + " faults { delay_ms: 3 }");
+
+    assertThat(
+            FaultInjector.match(config, "grpc.examples.wallet.stats.Stats/WatchPrice", "normal")
+                .getDelayMs())
+        .isEqualTo(1L);
+    assertThat(FaultInjector.match(config, FETCH_PRICE, "normal").getDelayMs()).isEqualTo(2L);
+    assertThat(FaultInjector.match(config, FETCH_PRICE, "premium").getDelayMs()).isEqualTo(3L);
+    assertThat(FaultInjector.match(config, FETCH_PRICE, null).getDelayMs()).isEqualTo(3L);
+    assertThat(FaultInjector.match(FaultConfig.getDefaultInstance(), FETCH_PRICE, null)).isNull();
+  }
+
+  @Test
+  public void testInjectsErrors() throws Exception {
+    injector.setConfig(
+        FaultInjector.parse(
+            "faults { membership: 'normal' error_percent: 100 error_code: 14 }"));
+
+    try {
+      stub("normal").fetchPrice(PriceRequest.getDefaultInstance());
+      fail("Expected an injected error");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+      assertThat(e.getStatus().getDescription()).isEqualTo("Injected fault");
+    }
+    assertThat(stub("premium").fetchPrice(PriceRequest.getDefaultInstance()).getPrice())
+        .isEqualTo(1L);
+  }
+
+  @Test
+  public void testErrorsWithoutCodeAreUnavailable() throws Exception {
+    injector.setConfig(FaultInjector.parse("faults { error_percent: 100 }"));
+
+    try {
+      stub("normal").fetchPrice(PriceRequest.getDefaultInstance());
+      fail("Expected an injected error");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+  }
+
+  @Test
+  public void testDelaysFlowControlledStream() throws Exception {
+    injector.setConfig(FaultInjector.parse("faults { delay_percent: 100 delay_ms: 100 }"));
+
+    Iterator<PriceResponse> responses =
+        stub("normal").watchPrice(PriceRequest.newBuilder().setSymbol(PACED).build());
+    for (int i = 0; i < 5; i++) {
+      assertThat(responses.next().getPrice()).isEqualTo((long) i);
+    }
+    assertThat(responses.hasNext()).isFalse();
+  }
+
+  @Test
+  public void testDelaysResponses() throws Exception {
+    injector.setConfig(
+        FaultInjector.parse(
+            "faults { method: '" + FETCH_PRICE + "' delay_percent: 100 delay_ms: 200 }"));
+
+    long start = System.nanoTime();
+    assertThat(stub("normal").fetchPrice(PriceRequest.getDefaultInstance()).getPrice())
+        .isEqualTo(1L);
+    assertThat(System.nanoTime() - start).isAtLeast(200_000_000L);
+  }
+
+  @Test
+  public void testStallsStreams() throws Exception {
+    injector.setConfig(
+        FaultInjector.parse(
+            "faults { stall_percent: 100 stall_after_messages: 2 stall_ms: 200 }"));
+
+    long start = System.nanoTime();
+    Iterator<PriceResponse> responses =
+        stub("normal").watchPrice(PriceRequest.getDefaultInstance());
+    responses.next();
+    responses.next();
+    assertThat(responses.next().getPrice()).isEqualTo(2L);
+    assertThat(System.nanoTime() - start).isAtLeast(200_000_000L);
+    responses.next();
+    responses.next();
+    assertThat(responses.hasNext()).isFalse();
+  }
+
+  @Test
+  public void testAdminServiceReplacesFaults() throws Exception {
+    FaultInjectionGrpc.FaultInjectionBlockingStub admin =
+        FaultInjectionGrpc.newBlockingStub(channel);
+    FaultConfig config =
+        FaultConfig.newBuilder()
+            .addFaults(Fault.newBuilder().setErrorPercent(100).setErrorCode(8))
+            .build();
+    assertThat(admin.setFaults(config)).isEqualTo(config);
+
+    try {
+      stub("premium").fetchPrice(PriceRequest.getDefaultInstance());
+      fail("Expected an injected error");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    }
+
+    admin.setFaults(FaultConfig.getDefaultInstance());
+    assertThat(stub("premium").fetchPrice(PriceRequest.getDefaultInstance()).getPrice())
+        .isEqualTo(1L);
+  }
+}
@@ -0,0 +1,117 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Range;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HashedWheelTimerTest {
+
+  private HashedWheelTimer timer;
+
+  @Before
+  public void setUp() {
+    // A small wheel so that delays longer than one revolution are exercised.
+    timer = new HashedWheelTimer("test-timer", 2, 1, TimeUnit.MILLISECONDS, 8);
+  }
+
+  @After
+  public void tearDown() {
+    timer.stop();
+  }
+
+  @Test
+  public void testSchedule() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    long start = System.nanoTime();
+    timer.schedule(
+        new Runnable() {
+          @Override
+          public void run() {
+            latch.countDown();
+          }
+        },
+        50,
+        TimeUnit.MILLISECONDS);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(System.nanoTime() - start).isAtLeast(TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    HashedWheelTimer.Timeout timeout =
+        timer.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                runs.incrementAndGet();
+              }
+            },
+            20,
+            TimeUnit.MILLISECONDS);
+    timeout.cancel();
+    assertThat(timeout.isCancelled()).isTrue();
+    Thread.sleep(100);
+    assertThat(runs.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testScheduleAtFixedRate() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(5);
+    HashedWheelTimer.Timeout timeout =
+        timer.scheduleAtFixedRate(
+            new Runnable() {
+              @Override
+              public void run() {
+                latch.countDown();
+              }
+            },
+            0,
+            10,
+            TimeUnit.MILLISECONDS);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    timeout.cancel();
+  }
+
+  @Test
+  public void testScheduleAtFixedRateOfWholeRevolutions() throws Exception {
+    // The task is alone in its bucket, which it comes back to after each run.
+    HashedWheelTimer revolutionTimer =
+        new HashedWheelTimer("revolution-timer", 1, 20, TimeUnit.MILLISECONDS, 4);
+    final List<Long> runNanos = new CopyOnWriteArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(5);
+    try {
+      revolutionTimer.scheduleAtFixedRate(
+          new Runnable() {
+            @Override
+            public void run() {
+              runNanos.add(System.nanoTime());
+              latch.countDown();
+            }
+          },
+          0,
+          80,
+          TimeUnit.MILLISECONDS);
+      assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    } finally {
+      revolutionTimer.stop();
+    }
+    // A run a revolution late takes twice the period, and the run after it catches up at once.
+    Range<Long> onTime =
+        Range.closed(TimeUnit.MILLISECONDS.toNanos(40), TimeUnit.MILLISECONDS.toNanos(120));
+    for (int i = 1; i < runNanos.size(); i++) {
+      assertThat(runNanos.get(i) - runNanos.get(i - 1)).isIn(onTime);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.health.v1.HealthCheckRequest;
+import io.grpc.health.v1.HealthCheckResponse.ServingStatus;
+import io.grpc.health.v1.HealthGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.services.HealthStatusManager;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class HealthEvaluatorTest {
+  private static final String SERVICE = AccountGrpc.SERVICE_NAME;
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final HealthStatusManager health = new HealthStatusManager();
+  private final HealthEvaluator evaluator =
+      new HealthEvaluator(health, ImmutableList.of(SERVICE), 2);
+  private final List<StreamObserver<GetUserInfoResponse>> held = new CopyOnWriteArrayList<>();
+  private volatile double load;
+  private ManagedChannel channel;
+
+  /** Holds every call until released. */
+  private final class HoldingAccount extends AccountGrpc.AccountImplBase {
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      held.add(responseObserver);
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    evaluator.addCheck(
+        new HealthEvaluator.Check("test load") {
+          @Override
+          double load() {
+            return load;
+          }
+        });
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(new HoldingAccount(), evaluator))
+            .addService(health.getHealthService())
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+    evaluator.start(0);
+  }
+
+  @After
+  public void tearDown() {
+    evaluator.shutdown();
+  }
+
+  private ServingStatus status(String service) {
+    return HealthGrpc.newBlockingStub(channel)
+        .check(HealthCheckRequest.newBuilder().setService(service).build())
+        .getStatus();
+  }
+
+  private void evaluate(int times) {
+    for (int i = 0; i < times; i++) {
+      evaluator.evaluate();
+    }
+  }
+
+  @Test
+  public void testTurnsNotServingOnlyAfterSustainedOverload() {
+    load = 1.5;
+    evaluate(HealthEvaluator.OVERLOADED_INTERVALS - 1);
+    load = 0.5;
+    evaluate(1);
+    load = 1.5;
+    evaluate(HealthEvaluator.OVERLOADED_INTERVALS - 1);
+    assertThat(evaluator.isServing()).isTrue();
+    assertThat(status(SERVICE)).isEqualTo(ServingStatus.SERVING);
+
+    evaluate(1);
+    assertThat(evaluator.isServing()).isFalse();
+    assertThat(status(SERVICE)).isEqualTo(ServingStatus.NOT_SERVING);
+    assertThat(status("")).isEqualTo(ServingStatus.NOT_SERVING);
+  }
+
+  @Test
+  public void testRecoversOnlyWellUnderLimit() {
+    load = 2;
+    evaluate(HealthEvaluator.OVERLOADED_INTERVALS);
+    assertThat(evaluator.isServing()).isFalse();
+
+    // Just under the limit is not enough to serve again.
+    load = 0.9;
+    evaluate(HealthEvaluator.RECOVERED_INTERVALS * 2);
+    assertThat(evaluator.isServing()).isFalse();
+
+    load = HealthEvaluator.RECOVERED_LOAD / 2;
+    evaluate(HealthEvaluator.RECOVERED_INTERVALS - 1);
+    assertThat(evaluator.isServing()).isFalse();
+    evaluate(1);
+    assertThat(evaluator.isServing()).isTrue();
+    assertThat(status(SERVICE)).isEqualTo(ServingStatus.SERVING);
+  }
+
+  @Test
+  public void testCountsUnaryCallsInFlight() throws Exception {
+    AccountGrpc.AccountFutureStub stub = AccountGrpc.newFutureStub(channel);
+    List<Future<GetUserInfoResponse>> calls = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      calls.add(stub.getUserInfo(GetUserInfoRequest.getDefaultInstance()));
+    }
+    while (held.size() < 2) {
+      Thread.sleep(1);
+    }
+    evaluate(HealthEvaluator.OVERLOADED_INTERVALS);
+    assertThat(evaluator.isServing()).isFalse();
+
+    for (StreamObserver<GetUserInfoResponse> responseObserver : held) {
+      responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+    for (Future<GetUserInfoResponse> call : calls) {
+      call.get();
+    }
+    // The server may still be closing the calls after the client got their responses.
+    while (!evaluator.isServing()) {
+      evaluate(1);
+      Thread.sleep(1);
+    }
+  }
+}
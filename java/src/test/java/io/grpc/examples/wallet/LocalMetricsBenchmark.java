@@ -0,0 +1,104 @@
+package io.grpc.examples.wallet;
+
+import io.grpc.Attributes;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+
+/**
+ * Measures the cost {@link LocalMetrics} adds to each call, by driving unary calls through its
+ * interceptor without a transport from several threads at once, half of them as premium members.
+ * Each thread runs twice, so that the second run measures compiled code.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=LocalMetricsBenchmark}.
+ */
+public final class LocalMetricsBenchmark {
+  private static final int CALLS = 1_000_000;
+
+  private static final ServerCallHandler<GetUserInfoRequest, GetUserInfoResponse> CLOSING_HANDLER =
+      new ServerCallHandler<GetUserInfoRequest, GetUserInfoResponse>() {
+        @Override
+        public ServerCall.Listener<GetUserInfoRequest> startCall(
+            ServerCall<GetUserInfoRequest, GetUserInfoResponse> call, Metadata headers) {
+          call.close(Status.OK, new Metadata());
+          return new ServerCall.Listener<GetUserInfoRequest>() {};
+        }
+      };
+
+  private LocalMetricsBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    final LocalMetrics metrics = new LocalMetrics();
+    int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    final long[] nanosPerCall = new long[threads];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      workers[t] =
+          new Thread() {
+            @Override
+            public void run() {
+              Metadata headers = new Metadata();
+              headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, index % 2 == 0 ? "premium" : "");
+              for (int run = 0; run < 2; run++) {
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < CALLS; i++) {
+                  recordOneCall(metrics, headers);
+                }
+                nanosPerCall[index] = (System.nanoTime() - startNanos) / CALLS;
+              }
+            }
+          };
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    for (int t = 0; t < threads; t++) {
+      System.out.printf("thread %d: %d ns per call%n", t, nanosPerCall[t]);
+    }
+  }
+
+  /** Goes through the interceptor the way a unary call does. */
+  private static void recordOneCall(LocalMetrics metrics, Metadata headers) {
+    ServerCall.Listener<GetUserInfoRequest> listener =
+        metrics.interceptCall(new NoopCall(), headers, CLOSING_HANDLER);
+    listener.onHalfClose();
+    listener.onComplete();
+  }
+
+  private static final class NoopCall extends ServerCall<GetUserInfoRequest, GetUserInfoResponse> {
+    @Override
+    public void request(int numMessages) {}
+
+    @Override
+    public void sendHeaders(Metadata headers) {}
+
+    @Override
+    public void sendMessage(GetUserInfoResponse message) {}
+
+    @Override
+    public void close(Status status, Metadata trailers) {}
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public Attributes getAttributes() {
+      return Attributes.EMPTY;
+    }
+
+    @Override
+    public MethodDescriptor<GetUserInfoRequest, GetUserInfoResponse> getMethodDescriptor() {
+      return AccountGrpc.getGetUserInfoMethod();
+    }
+  }
+}
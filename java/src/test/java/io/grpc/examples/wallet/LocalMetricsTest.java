@@ -0,0 +1,157 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalMetricsTest {
+  private static final String GET_USER_INFO = "grpc.examples.wallet.account.Account/GetUserInfo";
+  private static final String WATCH_PRICE = "grpc.examples.wallet.stats.Stats/WatchPrice";
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final LocalMetrics metrics = new LocalMetrics();
+  private final CountDownLatch watching = new CountDownLatch(1);
+  private ManagedChannel channel;
+
+  /** Fails the calls of unknown users. */
+  private static final class FakeAccount extends AccountGrpc.AccountImplBase {
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      if (request.getToken().isEmpty()) {
+        responseObserver.onError(Status.UNAUTHENTICATED.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+  }
+
+  /** Keeps every watch open until the client cancels it. */
+  private final class EndlessStats extends StatsGrpc.StatsImplBase {
+    @Override
+    public void watchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      responseObserver.onNext(PriceResponse.getDefaultInstance());
+      watching.countDown();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(new FakeAccount(), metrics))
+            .addService(ServerInterceptors.intercept(new EndlessStats(), metrics))
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  @Test
+  public void testCountsCallsByMembershipAndStatus() {
+    AccountGrpc.AccountBlockingStub premium =
+        Warmup.asUser(AccountGrpc.newBlockingStub(channel), true);
+    premium.getUserInfo(GetUserInfoRequest.newBuilder().setToken(Client.ALICE_TOKEN).build());
+    premium.getUserInfo(GetUserInfoRequest.newBuilder().setToken(Client.ALICE_TOKEN).build());
+    try {
+      AccountGrpc.newBlockingStub(channel).getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    } catch (StatusRuntimeException expected) {
+      // Counted as UNAUTHENTICATED.
+    }
+
+    String text = metrics.render();
+    assertThat(text)
+        .contains(
+            "grpc_server_calls_total{method=\"" + GET_USER_INFO
+                + "\",membership=\"premium\",code=\"OK\"} 2\n");
+    assertThat(text)
+        .contains(
+            "grpc_server_calls_total{method=\"" + GET_USER_INFO
+                + "\",membership=\"other\",code=\"UNAUTHENTICATED\"} 1\n");
+    assertThat(text)
+        .contains(
+            "grpc_server_latency_seconds_bucket{method=\"" + GET_USER_INFO
+                + "\",membership=\"premium\",le=\"+Inf\"} 2\n");
+    assertThat(text)
+        .contains(
+            "grpc_server_latency_seconds_count{method=\"" + GET_USER_INFO
+                + "\",membership=\"normal\"} 0\n");
+  }
+
+  @Test
+  public void testTracksOpenStreams() throws Exception {
+    Iterator<PriceResponse> prices =
+        StatsGrpc.newBlockingStub(channel).watchPrice(PriceRequest.getDefaultInstance());
+    prices.next();
+    watching.await();
+    assertThat(metrics.render())
+        .contains("grpc_server_open_streams{method=\"" + WATCH_PRICE + "\"} 1\n");
+
+    channel.shutdownNow().awaitTermination(5, SECONDS);
+    String cancelled =
+        "grpc_server_calls_total{method=\"" + WATCH_PRICE
+            + "\",membership=\"other\",code=\"CANCELLED\"} 1\n";
+    while (!metrics.render().contains(cancelled)) {
+      Thread.sleep(1);
+    }
+    assertThat(metrics.render())
+        .contains("grpc_server_open_streams{method=\"" + WATCH_PRICE + "\"} 0\n");
+  }
+
+  @Test
+  public void testServesPrometheusText() throws Exception {
+    Warmup.asUser(AccountGrpc.newBlockingStub(channel), false)
+        .getUserInfo(GetUserInfoRequest.newBuilder().setToken(Client.BOB_TOKEN).build());
+    HttpServer server = metrics.serve(0);
+    try {
+      HttpURLConnection connection =
+          (HttpURLConnection)
+              new URL("http://localhost:" + server.getAddress().getPort() + "/metrics")
+                  .openConnection();
+      assertThat(connection.getResponseCode()).isEqualTo(200);
+      assertThat(connection.getContentType()).startsWith("text/plain");
+      String body;
+      try (InputStream in = connection.getInputStream()) {
+        body = new String(ByteStreams.toByteArray(in), UTF_8);
+      }
+      assertThat(body).startsWith("# HELP grpc_server_latency_seconds");
+      assertThat(body).contains("# TYPE grpc_server_latency_seconds histogram\n");
+      assertThat(body)
+          .contains(
+              "grpc_server_calls_total{method=\"" + GET_USER_INFO
+                  + "\",membership=\"normal\",code=\"OK\"} 1\n");
+    } finally {
+      server.stop(0);
+    }
+  }
+}
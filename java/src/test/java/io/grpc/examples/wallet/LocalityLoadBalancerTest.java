@@ -0,0 +1,272 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.Attributes;
+import io.grpc.CallOptions;
+import io.grpc.EquivalentAddressGroup;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.NameResolver;
+import io.grpc.Server;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.inprocess.InProcessSocketAddress;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class LocalityLoadBalancerTest {
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  /** An account replica in a simulated zone, which can hold calls instead of answering them. */
+  private final class ZoneReplica extends AccountGrpc.AccountImplBase {
+    // Null for a replica whose address the resolver does not tag, as DNS and xDS resolve them.
+    final String zone;
+    final String name = InProcessServerBuilder.generateName();
+    final AtomicInteger calls = new AtomicInteger();
+    final List<StreamObserver<GetUserInfoResponse>> held = new CopyOnWriteArrayList<>();
+    volatile boolean hold;
+    final Server server;
+
+    ZoneReplica(String zone) throws Exception {
+      this.zone = zone;
+      server =
+          grpcCleanup.register(
+              InProcessServerBuilder.forName(name).addService(this).build().start());
+    }
+
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      calls.incrementAndGet();
+      if (hold) {
+        held.add(responseObserver);
+        return;
+      }
+      responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    void release() {
+      hold = false;
+      for (StreamObserver<GetUserInfoResponse> responseObserver : held) {
+        responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+        responseObserver.onCompleted();
+      }
+      held.clear();
+    }
+  }
+
+  /** Creates a channel whose name resolver returns the replicas, tagged with their zones. */
+  private ManagedChannel channel(String localZone, int maxOutstanding, ZoneReplica... replicas) {
+    final List<EquivalentAddressGroup> addresses = new ArrayList<>();
+    for (ZoneReplica replica : replicas) {
+      Attributes.Builder attributes = Attributes.newBuilder();
+      if (replica.zone != null) {
+        attributes.set(LocalityLoadBalancerProvider.ZONE, replica.zone);
+      }
+      addresses.add(
+          new EquivalentAddressGroup(
+              new InProcessSocketAddress(replica.name), attributes.build()));
+    }
+    NameResolver.Factory resolverFactory =
+        new NameResolver.Factory() {
+          @Override
+          public NameResolver newNameResolver(URI targetUri, NameResolver.Args args) {
+            return new NameResolver() {
+              @Override
+              public String getServiceAuthority() {
+                return "account";
+              }
+
+              @Override
+              public void start(Listener2 listener) {
+                listener.onResult(ResolutionResult.newBuilder().setAddresses(addresses).build());
+              }
+
+              @Override
+              public void shutdown() {}
+            };
+          }
+
+          @Override
+          public String getDefaultScheme() {
+            return "fake";
+          }
+        };
+    Map<String, ?> serviceConfig =
+        ImmutableMap.of(
+            "loadBalancingConfig",
+            ImmutableList.of(
+                ImmutableMap.of(
+                    "example.LocalityLoadBalancer",
+                    ImmutableMap.of(
+                        "localZone", localZone,
+                        "maxOutstandingPerBackend", (double) maxOutstanding))));
+    return grpcCleanup.register(
+        InProcessChannelBuilder.forTarget("fake:///account")
+            .nameResolverFactory(resolverFactory)
+            .defaultServiceConfig(serviceConfig)
+            .build());
+  }
+
+  /** Calls until one lands in the local zone, so that its replica is known to be ready. */
+  private static void warmUp(AccountGrpc.AccountBlockingStub stub, ZoneReplica... replicas) {
+    while (replicas[0].calls.get() == 0) {
+      stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    }
+    for (ZoneReplica replica : replicas) {
+      replica.calls.set(0);
+    }
+  }
+
+  @Test
+  public void testPrefersLocalZone() throws Exception {
+    ZoneReplica local = new ZoneReplica("zone-a");
+    ZoneReplica otherLocal = new ZoneReplica("zone-a");
+    ZoneReplica remote = new ZoneReplica("zone-b");
+    AccountGrpc.AccountBlockingStub stub =
+        AccountGrpc.newBlockingStub(channel("zone-a", 10, local, otherLocal, remote));
+    warmUp(stub, local, otherLocal, remote);
+
+    for (int i = 0; i < 100; i++) {
+      stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    }
+    assertThat(local.calls.get() + otherLocal.calls.get()).isEqualTo(100);
+    assertThat(remote.calls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testUntaggedAddressesCountAsLocal() throws Exception {
+    ZoneReplica local = new ZoneReplica("zone-a");
+    ZoneReplica untagged = new ZoneReplica(null);
+    ZoneReplica remote = new ZoneReplica("zone-b");
+    AccountGrpc.AccountBlockingStub stub =
+        AccountGrpc.newBlockingStub(channel("zone-a", 10, local, untagged, remote));
+    warmUp(stub, local, untagged, remote);
+    // The untagged replica shares the calls with the local one once it is ready.
+    for (int i = 0; i < 1000 && untagged.calls.get() == 0; i++) {
+      stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    }
+    assertThat(untagged.calls.get()).isGreaterThan(0);
+    assertThat(remote.calls.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSpillsOverWhenLocalReplicasAreBusy() throws Exception {
+    ZoneReplica local = new ZoneReplica("zone-a");
+    ZoneReplica remote = new ZoneReplica("zone-b");
+    ManagedChannel channel = channel("zone-a", 2, local, remote);
+    warmUp(AccountGrpc.newBlockingStub(channel), local, remote);
+    long spilled = LocalityLoadBalancerProvider.spilledCalls();
+
+    local.hold = true;
+    AccountGrpc.AccountFutureStub stub = AccountGrpc.newFutureStub(channel);
+    Future<GetUserInfoResponse> first = stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    Future<GetUserInfoResponse> second = stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    stub.getUserInfo(GetUserInfoRequest.getDefaultInstance()).get();
+    while (local.held.size() < 2) {
+      Thread.sleep(1);
+    }
+
+    assertThat(local.calls.get()).isEqualTo(2);
+    assertThat(remote.calls.get()).isEqualTo(1);
+    assertThat(LocalityLoadBalancerProvider.spilledCalls()).isEqualTo(spilled + 1);
+
+    // Once the local replica has room again, calls stay in the zone.
+    local.release();
+    first.get();
+    second.get();
+    AccountGrpc.newBlockingStub(channel).getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    assertThat(remote.calls.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testOpenStreamsDoNotCountAsOutstanding() throws Exception {
+    ZoneReplica local = new ZoneReplica("zone-a");
+    ZoneReplica remote = new ZoneReplica("zone-b");
+    ManagedChannel channel = channel("zone-a", 2, local, remote);
+    warmUp(AccountGrpc.newBlockingStub(channel), local, remote);
+    long spilled = LocalityLoadBalancerProvider.spilledCalls();
+
+    // Held open like idle watches, more of them than the spillover threshold.
+    local.hold = true;
+    MethodDescriptor<GetUserInfoRequest, GetUserInfoResponse> streaming =
+        AccountGrpc.getGetUserInfoMethod().toBuilder()
+            .setType(MethodDescriptor.MethodType.SERVER_STREAMING)
+            .build();
+    for (int i = 0; i < 3; i++) {
+      ClientCalls.asyncServerStreamingCall(
+          channel.newCall(streaming, CallOptions.DEFAULT),
+          GetUserInfoRequest.getDefaultInstance(),
+          new StreamObserver<GetUserInfoResponse>() {
+            @Override
+            public void onNext(GetUserInfoResponse value) {}
+
+            @Override
+            public void onError(Throwable t) {}
+
+            @Override
+            public void onCompleted() {}
+          });
+    }
+    while (local.held.size() < 3) {
+      Thread.sleep(1);
+    }
+
+    Future<GetUserInfoResponse> unary =
+        AccountGrpc.newFutureStub(channel).getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    while (local.held.size() < 4 && remote.calls.get() == 0) {
+      Thread.sleep(1);
+    }
+    assertThat(remote.calls.get()).isEqualTo(0);
+    assertThat(LocalityLoadBalancerProvider.spilledCalls()).isEqualTo(spilled);
+    local.release();
+    unary.get();
+  }
+
+  @Test
+  public void testSpillsOverWhenLocalReplicaIsDown() throws Exception {
+    ZoneReplica local = new ZoneReplica("zone-a");
+    ZoneReplica remote = new ZoneReplica("zone-b");
+    AccountGrpc.AccountBlockingStub stub =
+        AccountGrpc.newBlockingStub(channel("zone-a", 10, local, remote));
+    warmUp(stub, local, remote);
+
+    local.server.shutdownNow();
+    // Calls racing with the shutdown may fail; wait for the balancer to notice it.
+    while (true) {
+      try {
+        stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+        break;
+      } catch (StatusRuntimeException e) {
+        // Retry.
+      }
+    }
+    remote.calls.set(0);
+    for (int i = 0; i < 10; i++) {
+      stub.getUserInfo(GetUserInfoRequest.getDefaultInstance());
+    }
+    assertThat(remote.calls.get()).isEqualTo(10);
+  }
+}
@@ -0,0 +1,76 @@
+package io.grpc.examples.wallet;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.samplers.Samplers;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the mean latency of an RPC over a local channel, spans included, with each way to
+ * sample traces. Only sampled spans are recorded, so their cost shows in the mean. The server is
+ * set up as in {@link ObservabilityTest}.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=ObservabilityBenchmark}.
+ */
+public final class ObservabilityBenchmark {
+  private static final int WARMUP_RPCS = 500;
+  private static final int RPCS = 2000;
+
+  private ObservabilityBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    Map<String, Sampler> modes = new LinkedHashMap<>();
+    modes.put("always", Samplers.alwaysSample());
+    modes.put("never", Samplers.neverSample());
+    modes.put("rate=0.01", TraceSampler.parse("rate=0.01"));
+    modes.put("max_per_second=10", TraceSampler.parse("max_per_second=10"));
+    modes.put(
+        "method override",
+        TraceSampler.parse("rate=0,method:grpc.examples.wallet.Wallet/FetchBalance=0.01"));
+    modes.put(
+        "keep errors and slow",
+        TraceSampler.parse("rate=0.01,keep_errors=true,keep_slow_ms=100"));
+
+    Server server =
+        NettyServerBuilder.forPort(0)
+            .addService(
+                ServerInterceptors.intercept(
+                    new ObservabilityTest.WalletImpl(), TraceSampler.parse("keep_errors=true")))
+            .build()
+            .start();
+    ManagedChannel channel =
+        NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
+    try {
+      WalletGrpc.WalletBlockingStub stub = WalletGrpc.newBlockingStub(channel);
+      System.out.println("Per-RPC latency by trace sampling mode:");
+      for (Map.Entry<String, Sampler> mode : modes.entrySet()) {
+        ObservabilityTest.CountingSampler sampler =
+            new ObservabilityTest.CountingSampler(mode.getValue());
+        ObservabilityTest.setSampler(sampler);
+        for (int i = 0; i < WARMUP_RPCS; i++) {
+          stub.fetchBalance(BalanceRequest.getDefaultInstance());
+        }
+        sampler.decisions.set(0);
+        sampler.sampled.set(0);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < RPCS; i++) {
+          stub.fetchBalance(BalanceRequest.getDefaultInstance());
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.printf(
+            "  %-22s %8.1f us/rpc, %5.1f%% of spans sampled%n",
+            mode.getKey(),
+            elapsedNanos / 1000.0 / RPCS,
+            100.0 * sampler.sampled.get() / sampler.decisions.get());
+      }
+    } finally {
+      channel.shutdownNow();
+      server.shutdownNow();
+    }
+  }
+}
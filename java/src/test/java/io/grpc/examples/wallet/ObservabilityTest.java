@@ -5,6 +5,9 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.collect.ImmutableSet;
 import io.grpc.ManagedChannel;
 import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
 import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -16,6 +19,11 @@ import io.opencensus.exporter.metrics.util.MetricReader;
 import io.opencensus.metrics.Metrics;
 import io.opencensus.metrics.export.Metric;
 import io.opencensus.metrics.export.MetricDescriptor;
+import io.opencensus.trace.Sampler;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
 import io.opencensus.trace.Tracing;
 import io.opencensus.trace.config.TraceConfig;
 import io.opencensus.trace.export.SpanData;
@@ -23,9 +31,14 @@ import io.opencensus.trace.export.SpanExporter;
 import io.opencensus.trace.samplers.Samplers;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,6 +49,7 @@ import org.junit.runners.JUnit4;
 public class ObservabilityTest {
 
   private static final int EXPORT_WAIT_SEC = 15;
+  private static final int SAMPLED_RPCS = 200;
 
   private static final Set<String> METRICS =
       ImmutableSet.of(
@@ -70,7 +84,12 @@ public class ObservabilityTest {
         .getSpanExporter()
         .registerHandler(RecordingTraceExporter.class.getName(), recordingTraceExporter);
 
-    server = NettyServerBuilder.forPort(0).addService(new WalletImpl()).build();
+    server =
+        NettyServerBuilder.forPort(0)
+            .addService(
+                ServerInterceptors.intercept(
+                    new WalletImpl(), TraceSampler.parse("keep_errors=true")))
+            .build();
     server.start();
     channel = NettyChannelBuilder.forAddress("localhost", server.getPort()).usePlaintext().build();
   }
@@ -100,10 +119,115 @@ public class ObservabilityTest {
         .isEqualTo(recordingTraceExporter.clientSpanData.getContext().getSpanId());
   }
 
-  private static class WalletImpl extends WalletGrpc.WalletImplBase {
+  @Test
+  public void testKeepsUnsampledErrorTraces() throws Exception {
+    setSampler(TraceSampler.parse("rate=0"));
+    KeptSpanExporter keptSpanExporter = new KeptSpanExporter();
+    Tracing.getExportComponent()
+        .getSpanExporter()
+        .registerHandler(KeptSpanExporter.class.getName(), keptSpanExporter);
+    try {
+      WalletGrpc.newBlockingStub(channel)
+          .fetchBalance(BalanceRequest.newBuilder().setPageSize(-1).build());
+    } catch (StatusRuntimeException expected) {
+      // The failed call is kept.
+    }
+
+    try {
+      assertThat(keptSpanExporter.latch.await(EXPORT_WAIT_SEC, TimeUnit.SECONDS)).isTrue();
+      SpanData kept = keptSpanExporter.spans.get(0);
+      assertThat(kept.getName())
+          .isEqualTo(TraceSampler.KEPT_SPAN_PREFIX + "grpc.examples.wallet.Wallet.FetchBalance");
+      assertThat(kept.getAttributes().getAttributeMap().get("status").toString())
+          .contains("INVALID_ARGUMENT");
+    } finally {
+      Tracing.getExportComponent()
+          .getSpanExporter()
+          .unregisterHandler(KeptSpanExporter.class.getName());
+    }
+  }
+
+  /**
+   * Checks that each trace sampler decides for both spans of every RPC and samples few of them.
+   * Their cost is measured by {@link ObservabilityBenchmark}.
+   */
+  @Test
+  public void testSamplersSampleFewSpans() {
+    // It expects the spans of a single RPC.
+    Tracing.getExportComponent()
+        .getSpanExporter()
+        .unregisterHandler(RecordingTraceExporter.class.getName());
+    Map<String, Sampler> modes = new LinkedHashMap<>();
+    modes.put("rate=0.01", TraceSampler.parse("rate=0.01"));
+    modes.put("max_per_second=10", TraceSampler.parse("max_per_second=10"));
+    modes.put(
+        "method override",
+        TraceSampler.parse("rate=0,method:grpc.examples.wallet.Wallet/FetchBalance=0.01"));
+    modes.put(
+        "keep errors and slow",
+        TraceSampler.parse("rate=0.01,keep_errors=true,keep_slow_ms=100"));
+
+    WalletGrpc.WalletBlockingStub stub = WalletGrpc.newBlockingStub(channel);
+    for (Map.Entry<String, Sampler> mode : modes.entrySet()) {
+      CountingSampler sampler = new CountingSampler(mode.getValue());
+      setSampler(sampler);
+      for (int i = 0; i < SAMPLED_RPCS; i++) {
+        stub.fetchBalance(BalanceRequest.getDefaultInstance());
+      }
+
+      // A client and a server span per RPC.
+      assertThat(sampler.decisions.get()).isEqualTo(2 * SAMPLED_RPCS);
+      assertThat(sampler.sampled.get()).isLessThan(SAMPLED_RPCS / 5);
+    }
+  }
+
+  static void setSampler(Sampler sampler) {
+    TraceConfig traceConfig = Tracing.getTraceConfig();
+    traceConfig.updateActiveTraceParams(
+        traceConfig.getActiveTraceParams().toBuilder().setSampler(sampler).build());
+  }
+
+  /** Counts the decisions of a sampler. */
+  static final class CountingSampler extends Sampler {
+    private final Sampler delegate;
+    final AtomicInteger decisions = new AtomicInteger();
+    final AtomicInteger sampled = new AtomicInteger();
+
+    CountingSampler(Sampler delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean shouldSample(
+        SpanContext parentContext,
+        Boolean hasRemoteParent,
+        TraceId traceId,
+        SpanId spanId,
+        String name,
+        List<Span> parentLinks) {
+      decisions.incrementAndGet();
+      boolean sample =
+          delegate.shouldSample(parentContext, hasRemoteParent, traceId, spanId, name, parentLinks);
+      if (sample) {
+        sampled.incrementAndGet();
+      }
+      return sample;
+    }
+
+    @Override
+    public String getDescription() {
+      return delegate.getDescription();
+    }
+  }
+
+  static class WalletImpl extends WalletGrpc.WalletImplBase {
     @Override
     public void fetchBalance(
         BalanceRequest request, StreamObserver<BalanceResponse> responseObserver) {
+      if (request.getPageSize() < 0) {
+        responseObserver.onError(Status.INVALID_ARGUMENT.asRuntimeException());
+        return;
+      }
       responseObserver.onNext(BalanceResponse.getDefaultInstance());
       responseObserver.onCompleted();
     }
@@ -131,6 +255,22 @@ public class ObservabilityTest {
     }
   }
 
+  /** Collects the spans that mark kept calls. */
+  private static class KeptSpanExporter extends SpanExporter.Handler {
+    final List<SpanData> spans = new CopyOnWriteArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    @Override
+    public void export(Collection<SpanData> spanDataList) {
+      for (SpanData sd : spanDataList) {
+        if (sd.getName().startsWith(TraceSampler.KEPT_SPAN_PREFIX)) {
+          spans.add(sd);
+          latch.countDown();
+        }
+      }
+    }
+  }
+
   private class RecordingMetricsExporter extends MetricExporter {
     private final Set<String> metrics = new HashSet<>();
     private final CountDownLatch latch = new CountDownLatch(1);
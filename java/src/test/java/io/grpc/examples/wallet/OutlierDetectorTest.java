@@ -0,0 +1,154 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OutlierDetectorTest {
+  private static final long INTERVAL_NANOS = MILLISECONDS.toNanos(1000);
+  private static final long BASE_EJECTION_NANOS = MILLISECONDS.toNanos(5000);
+
+  private final List<String> events = new ArrayList<>();
+  private long nowNanos;
+
+  private OutlierDetector detector(int maxEjectionPercent) {
+    return new OutlierDetector(
+        OutlierDetector.Config.fromJson(
+            ImmutableMap.of(
+                "baseEjectionTimeMs", 5000.0,
+                "maxEjectionTimeMs", 20000.0,
+                "maxEjectionPercent", (double) maxEjectionPercent)));
+  }
+
+  private OutlierDetector.Endpoint add(OutlierDetector detector, final String name) {
+    return detector.add(
+        new OutlierDetector.Target() {
+          @Override
+          public void eject() {
+            events.add("eject " + name);
+          }
+
+          @Override
+          public void uneject() {
+            events.add("uneject " + name);
+          }
+        });
+  }
+
+  /** Records {@code calls} unary calls of 1ms on each endpoint, failing the given share. */
+  private void record(OutlierDetector.Endpoint endpoint, int calls, int failPercent) {
+    for (int i = 0; i < calls; i++) {
+      endpoint.record(i * 100 >= calls * failPercent, MILLISECONDS.toNanos(1));
+    }
+  }
+
+  private void advance(OutlierDetector detector) {
+    nowNanos += INTERVAL_NANOS;
+    detector.runInterval(nowNanos);
+  }
+
+  @Test
+  public void testEjectsFailingEndpoint() {
+    OutlierDetector detector = detector(50);
+    OutlierDetector.Endpoint good = add(detector, "good");
+    OutlierDetector.Endpoint bad = add(detector, "bad");
+    record(good, 50, 0);
+    record(bad, 50, 60);
+    advance(detector);
+
+    assertThat(events).containsExactly("eject bad");
+    assertThat(bad.isEjected()).isTrue();
+    assertThat(good.isEjected()).isFalse();
+  }
+
+  @Test
+  public void testEjectsSlowEndpoint() {
+    OutlierDetector detector = detector(50);
+    OutlierDetector.Endpoint[] endpoints = new OutlierDetector.Endpoint[4];
+    for (int i = 0; i < endpoints.length; i++) {
+      endpoints[i] = add(detector, "e" + i);
+      for (int j = 0; j < 50; j++) {
+        endpoints[i].record(true, MILLISECONDS.toNanos(i == 2 ? 10 : 1));
+      }
+    }
+    advance(detector);
+
+    assertThat(events).containsExactly("eject e2");
+  }
+
+  @Test
+  public void testEjectionTimeDoublesUpToMaximum() {
+    OutlierDetector detector = detector(50);
+    OutlierDetector.Endpoint good = add(detector, "good");
+    OutlierDetector.Endpoint bad = add(detector, "bad");
+    List<Long> ejectionNanos = new ArrayList<>();
+    long ejectedAt = 0;
+    for (int i = 0; i < 200 && ejectionNanos.size() < 4; i++) {
+      record(good, 50, 0);
+      if (!bad.isEjected()) {
+        record(bad, 50, 100);
+      }
+      advance(detector);
+      for (String event : events) {
+        if (event.equals("eject bad")) {
+          ejectedAt = nowNanos;
+        } else if (event.equals("uneject bad")) {
+          ejectionNanos.add(nowNanos - ejectedAt);
+        }
+      }
+      events.clear();
+    }
+
+    assertThat(ejectionNanos)
+        .containsExactly(
+            BASE_EJECTION_NANOS, 2 * BASE_EJECTION_NANOS, 4 * BASE_EJECTION_NANOS,
+            4 * BASE_EJECTION_NANOS)
+        .inOrder();
+  }
+
+  @Test
+  public void testCapsEjectedPercentage() {
+    OutlierDetector detector = detector(10);
+    for (int i = 0; i < 10; i++) {
+      record(add(detector, "e" + i), 50, i < 5 ? 100 : 0);
+    }
+    advance(detector);
+
+    assertThat(events).hasSize(1);
+  }
+
+  @Test
+  public void testIgnoresEndpointsWithTooFewCalls() {
+    OutlierDetector detector = detector(50);
+    OutlierDetector.Endpoint good = add(detector, "good");
+    OutlierDetector.Endpoint bad = add(detector, "bad");
+    record(good, 50, 0);
+    record(bad, OutlierDetector.Config.DEFAULT_REQUEST_VOLUME - 1, 100);
+    advance(detector);
+
+    assertThat(events).isEmpty();
+  }
+
+  @Test
+  public void testWindowForgetsOldFailures() {
+    OutlierDetector detector = detector(50);
+    OutlierDetector.Endpoint good = add(detector, "good");
+    OutlierDetector.Endpoint recovered = add(detector, "recovered");
+    record(recovered, 15, 100);
+    for (int i = 0; i < OutlierDetector.Config.DEFAULT_WINDOW_INTERVALS; i++) {
+      record(good, 5, 0);
+      advance(detector);
+    }
+    record(recovered, 15, 0);
+    advance(detector);
+
+    assertThat(events).isEmpty();
+  }
+}
@@ -0,0 +1,67 @@
+package io.grpc.examples.wallet;
+
+/**
+ * Compares the heap actually retained by a {@link PackedWalletStore} with its {@link
+ * PackedWalletStore#estimatedFootprintBytes estimate}, and measures the time to look up a user
+ * and sum their holdings. Pass the number of users and of addresses per user as arguments.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=PackedWalletStoreBenchmark
+ * -PbenchmarkArgs="1000000 4"}.
+ */
+public final class PackedWalletStoreBenchmark {
+  private static final int LOOKUPS = 10_000_000;
+
+  private PackedWalletStoreBenchmark() {}
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int addressesPerUser = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    String[] names = new String[users];
+    for (int i = 0; i < users; i++) {
+      names[i] = String.format("user%07d", i);
+    }
+
+    long before = usedHeap();
+    PackedWalletStore.Builder builder = PackedWalletStore.newBuilder();
+    int address = 0;
+    for (int user = 0; user < users; user++) {
+      String[] addresses = new String[addressesPerUser];
+      long[] amounts = new long[addressesPerUser];
+      for (int i = 0; i < addressesPerUser; i++) {
+        addresses[i] = PackedWalletStore.formatAddress(address++);
+        amounts[i] = i;
+      }
+      builder.addWallet(names[user], addresses, amounts);
+    }
+    PackedWalletStore store = builder.build();
+    builder = null;
+    // The names were allocated before the baseline, so count them in the estimate's terms.
+    long nameBytes = 0;
+    for (String name : names) {
+      nameBytes += 24 + ((16 + name.length() + 7) & ~7);
+    }
+    long retained = usedHeap() - before + nameBytes;
+    long estimated = store.estimatedFootprintBytes();
+    System.out.printf(
+        "%d users x %d addresses: retained %d KiB (%.1f bytes/user), estimated %d KiB%n",
+        users, addressesPerUser, retained >> 10, (double) retained / users, estimated >> 10);
+
+    long total = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < LOOKUPS; i++) {
+      total += store.get(names[(int) ((i * 2654435761L) % users)]).totalAmount();
+    }
+    long nanos = System.nanoTime() - start;
+    System.out.printf(
+        "get + totalAmount: %.1f ns (checksum %d)%n", (double) nanos / LOOKUPS, total);
+  }
+}
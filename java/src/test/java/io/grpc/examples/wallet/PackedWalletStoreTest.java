@@ -0,0 +1,188 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import io.grpc.examples.wallet.WalletStore.WalletHoldings;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PackedWalletStoreTest {
+
+  private PackedWalletStore store;
+
+  @Before
+  public void setUp() {
+    store =
+        PackedWalletStore.newBuilder()
+            .addWallet("Alice", new String[] {"0000000a", "0000000b"}, new long[] {10, 20})
+            .addWallet(
+                "Bob",
+                new String[] {"ffffffff", "00000001", "80000000"},
+                new String[] {"AAA", "BBB", "AAA"},
+                new long[] {1, 2, 3})
+            .build();
+  }
+
+  @Test
+  public void testGet() {
+    assertThat(store.get("Carol")).isNull();
+
+    WalletHoldings bob = store.get("Bob");
+    assertThat(bob.user()).isEqualTo("Bob");
+    assertThat(bob.addressCount()).isEqualTo(3);
+    assertThat(bob.address(0)).isEqualTo("ffffffff");
+    assertThat(bob.asset(1)).isEqualTo("BBB");
+    assertThat(bob.amount(2)).isEqualTo(3);
+    assertThat(bob.totalAmount()).isEqualTo(6);
+
+    WalletHoldings alice = store.get("Alice");
+    assertThat(alice.asset(0)).isEqualTo(PriceTable.DEFAULT_SYMBOL);
+    assertThat(alice.totalAmount()).isEqualTo(30);
+    assertThat(store.userCount()).isEqualTo(2);
+    assertThat(store.slotCount()).isEqualTo(5);
+    assertThat(store.assets()).containsExactly(PriceTable.DEFAULT_SYMBOL, "AAA", "BBB").inOrder();
+  }
+
+  @Test
+  public void testSlotLookup() {
+    int slot = store.slotOf("80000000");
+    assertThat(slot).isEqualTo(4);
+    assertThat(store.ownerOf(slot)).isEqualTo("Bob");
+    assertThat(store.addressIdAt(slot)).isEqualTo(0x80000000);
+    assertThat(store.slotOfAddressId(0xffffffff)).isEqualTo(2);
+    assertThat(store.ownerOf(store.slotOf("0000000b"))).isEqualTo("Alice");
+
+    assertThat(store.slotOf("00000002")).isEqualTo(-1);
+    assertThat(store.slotOf("123")).isEqualTo(-1);
+    assertThat(store.slotOf("not-hex!")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testApplyBumpsVersionsAndNotifiesTouchedUsersOnce() {
+    final List<String> notified = new ArrayList<>();
+    store.addListener(
+        new WalletStore.Listener() {
+          @Override
+          public void onHoldingsChanged(String user) {
+            notified.add(user);
+          }
+        });
+    WalletHoldings alice = store.get("Alice");
+    WalletHoldings bob = store.get("Bob");
+    WalletHoldings bobBefore = bob.snapshot();
+    long aliceVersion = alice.version();
+
+    store.apply(new int[] {2, 4, 3}, new long[] {-1, 7, 5}, 3);
+
+    assertThat(notified).containsExactly("Bob");
+    assertThat(alice.version()).isEqualTo(aliceVersion);
+    assertThat(bob.version()).isGreaterThan(bobBefore.version());
+    assertThat(bob.amount(0)).isEqualTo(0);
+    assertThat(bob.totalAmount()).isEqualTo(17);
+    // Snapshots keep the amounts of their version.
+    assertThat(bobBefore.totalAmount()).isEqualTo(6);
+    assertThat(bobBefore.amount(2)).isEqualTo(3);
+  }
+
+  @Test
+  public void testApplyOnlyUsesFirstCountEntries() {
+    store.apply(new int[] {0, 1}, new long[] {1, 1}, 1);
+
+    assertThat(store.amountAt(0)).isEqualTo(11);
+    assertThat(store.amountAt(1)).isEqualTo(20);
+  }
+
+  @Test
+  public void testCopyAndRestoreAmounts() {
+    long[] copy = store.copyAmounts();
+    assertThat(copy).asList().containsExactly(10L, 20L, 1L, 2L, 3L).inOrder();
+    copy[0] = 99;
+    assertThat(store.amountAt(0)).isEqualTo(10);
+
+    long version = store.get("Alice").version();
+    store.restoreAmounts(copy);
+    assertThat(store.get("Alice").totalAmount()).isEqualTo(119);
+    assertThat(store.get("Alice").version()).isGreaterThan(version);
+
+    try {
+      store.restoreAmounts(new long[2]);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("Expected 5 amounts");
+    }
+  }
+
+  @Test
+  public void testBuilderGrowsPastInitialCapacity() {
+    PackedWalletStore.Builder builder = PackedWalletStore.newBuilder();
+    int address = 0;
+    for (int user = 0; user < 100; user++) {
+      String[] addresses = new String[10];
+      long[] amounts = new long[10];
+      for (int i = 0; i < addresses.length; i++) {
+        addresses[i] = PackedWalletStore.formatAddress(address++);
+        amounts[i] = user;
+      }
+      builder.addWallet("user" + user, addresses, amounts);
+    }
+    PackedWalletStore big = builder.build();
+
+    assertThat(big.userCount()).isEqualTo(100);
+    assertThat(big.slotCount()).isEqualTo(1000);
+    for (int user = 0; user < 100; user++) {
+      assertThat(big.get("user" + user).totalAmount()).isEqualTo(10L * user);
+    }
+    assertThat(big.ownerOf(big.slotOf(PackedWalletStore.formatAddress(999)))).isEqualTo("user99");
+  }
+
+  @Test
+  public void testBuilderRejectsInvalidWallets() {
+    try {
+      PackedWalletStore.newBuilder()
+          .addWallet("Alice", new String[] {"00000001"}, new long[] {1})
+          .addWallet("Alice", new String[] {"00000002"}, new long[] {1})
+          .build();
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("Duplicate user");
+    }
+    try {
+      PackedWalletStore.newBuilder()
+          .addWallet("Alice", new String[] {"00000001"}, new long[] {1})
+          .addWallet("Bob", new String[] {"00000001"}, new long[] {1})
+          .build();
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("Duplicate address");
+    }
+    try {
+      PackedWalletStore.newBuilder().addWallet("Alice", new String[] {"00000001"}, new long[0]);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessageThat().contains("same length");
+    }
+  }
+
+  @Test
+  public void testEstimatedFootprintStaysCompact() {
+    PackedWalletStore.Builder builder = PackedWalletStore.newBuilder();
+    int users = 10000;
+    int address = 0;
+    for (int user = 0; user < users; user++) {
+      String[] addresses = new String[4];
+      for (int i = 0; i < addresses.length; i++) {
+        addresses[i] = PackedWalletStore.formatAddress(address++);
+      }
+      builder.addWallet(String.format("user%06d", user), addresses, new long[4]);
+    }
+
+    // 24 bytes per address, plus about 100 for the name, table entry and version of each user.
+    assertThat(builder.build().estimatedFootprintBytes()).isLessThan(256L * users);
+  }
+}
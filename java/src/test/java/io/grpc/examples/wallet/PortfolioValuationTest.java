@@ -0,0 +1,72 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.grpc.examples.wallet.WalletStore.WalletHoldings;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PortfolioValuationTest {
+
+  private PackedWalletStore store;
+
+  @Before
+  public void setUp() {
+    store =
+        PackedWalletStore.newBuilder()
+            .addWallet(
+                "Carol",
+                new String[] {"00000001", "00000002", "00000003"},
+                new String[] {"AAA", "BBB", "AAA"},
+                new long[] {1, 2, 3})
+            .build();
+  }
+
+  @Test
+  public void testValuesOnlyOnceFullyPriced() {
+    PortfolioValuation valuation = new PortfolioValuation(store.get("Carol").snapshot());
+    assertThat(valuation.assets()).containsExactly("AAA", "BBB").inOrder();
+
+    valuation.setPrice(valuation.assetIndex("AAA"), 10);
+    assertThat(valuation.fullyPriced()).isFalse();
+    assertThat(valuation.total()).isEqualTo(40);
+
+    valuation.setPrice(valuation.assetIndex("BBB"), 100);
+    assertThat(valuation.fullyPriced()).isTrue();
+    assertThat(valuation.total()).isEqualTo(240);
+    assertThat(valuation.value(1)).isEqualTo(200);
+  }
+
+  @Test
+  public void testPriceChangeOnlyRevaluesAddressesOfAsset() {
+    PortfolioValuation valuation = new PortfolioValuation(store.get("Carol").snapshot());
+    valuation.setPrice(0, 10);
+    valuation.setPrice(1, 100);
+    valuation.clearChanged();
+
+    assertThat(valuation.setPrice(1, 100)).isFalse();
+    assertThat(valuation.setPrice(1, 50)).isTrue();
+    assertThat(valuation.changed().cardinality()).isEqualTo(1);
+    assertThat(valuation.changed().get(1)).isTrue();
+    assertThat(valuation.total()).isEqualTo(140);
+  }
+
+  @Test
+  public void testSetAmounts() {
+    WalletHoldings wallet = store.get("Carol");
+    PortfolioValuation valuation = new PortfolioValuation(wallet.snapshot());
+    valuation.setPrice(0, 10);
+    valuation.setPrice(1, 100);
+    valuation.clearChanged();
+
+    store.apply(new int[] {2}, new long[] {4}, 1);
+    valuation.setAmounts(wallet.snapshot());
+    assertThat(valuation.walletVersion()).isEqualTo(wallet.version());
+    assertThat(valuation.changed().cardinality()).isEqualTo(1);
+    assertThat(valuation.value(2)).isEqualTo(70);
+    assertThat(valuation.total()).isEqualTo(280);
+  }
+}
@@ -0,0 +1,105 @@
+package io.grpc.examples.wallet;
+
+import com.google.common.io.ByteStreams;
+import io.grpc.Drainable;
+import io.grpc.MethodDescriptor;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.protobuf.ProtoUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the CPU time and the bytes allocated per WatchPrice tick when each subscriber's call
+ * serializes the response, as the generated protobuf marshaller does, and when the tick is
+ * serialized once and its bytes are shared by every subscriber. Each subscriber's message is
+ * drained to a discarding stream, the way the transport reads it.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=PriceEncodingBenchmark}.
+ */
+public final class PriceEncodingBenchmark {
+  private static final int[] SUBSCRIBERS = {10, 100, 1000, 10000};
+  private static final int TICKS = 1000;
+  private static final int WARMUP_TICKS = 200;
+
+  private static final MethodDescriptor.Marshaller<PriceResponse> PROTO_MARSHALLER =
+      ProtoUtils.marshaller(PriceResponse.getDefaultInstance());
+  private static final OutputStream TRANSPORT = ByteStreams.nullOutputStream();
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private PriceEncodingBenchmark() {}
+
+  /** Sends one tick to every subscriber. */
+  private abstract static class Mode {
+    final String name;
+
+    Mode(String name) {
+      this.name = name;
+    }
+
+    abstract void tick(PriceResponse response, int subscribers) throws IOException;
+  }
+
+  private static final Mode PER_SUBSCRIBER =
+      new Mode("encode per subscriber") {
+        @Override
+        void tick(PriceResponse response, int subscribers) throws IOException {
+          for (int i = 0; i < subscribers; i++) {
+            drain(PROTO_MARSHALLER.stream(response));
+          }
+        }
+      };
+
+  private static final Mode ONCE =
+      new Mode("encode once") {
+        @Override
+        void tick(PriceResponse response, int subscribers) throws IOException {
+          PreEncodedMessage encoded = PreEncodedMessage.of(response);
+          for (int i = 0; i < subscribers; i++) {
+            drain(PreEncodedMessage.marshaller().stream(encoded));
+          }
+        }
+      };
+
+  private static void drain(InputStream stream) throws IOException {
+    if (stream instanceof Drainable) {
+      ((Drainable) stream).drainTo(TRANSPORT);
+    } else {
+      ByteStreams.copy(stream, TRANSPORT);
+    }
+  }
+
+  private static void run(Mode mode, int subscribers, int ticks) throws IOException {
+    for (int tick = 0; tick < ticks; tick++) {
+      mode.tick(
+          PriceResponse.newBuilder()
+              .setPrice(5_000_000 + tick)
+              .setVersion(tick)
+              .setSymbol(PriceTable.DEFAULT_SYMBOL)
+              .build(),
+          subscribers);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    long threadId = Thread.currentThread().getId();
+    System.out.printf(
+        "%-22s %11s %14s %16s%n", "mode", "subscribers", "cpu us/tick", "bytes/tick");
+    for (int subscribers : SUBSCRIBERS) {
+      for (Mode mode : new Mode[] {PER_SUBSCRIBER, ONCE}) {
+        run(mode, subscribers, WARMUP_TICKS);
+        long startCpuNanos = THREADS.getThreadCpuTime(threadId);
+        long startBytes = THREADS.getThreadAllocatedBytes(threadId);
+        run(mode, subscribers, TICKS);
+        long cpuNanos = THREADS.getThreadCpuTime(threadId) - startCpuNanos;
+        long bytes = THREADS.getThreadAllocatedBytes(threadId) - startBytes;
+        System.out.printf(
+            "%-22s %11d %14.1f %16d%n",
+            mode.name, subscribers, cpuNanos / 1000.0 / TICKS, bytes / TICKS);
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package io.grpc.examples.wallet;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tick throughput of a {@link PriceTable} with 10k symbols and 100k subscriptions
+ * spread evenly over them, each round updating every symbol once after a warmup round.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=PriceTableBenchmark}.
+ */
+public final class PriceTableBenchmark {
+  private static final int SYMBOLS = 10000;
+  private static final int SUBSCRIPTIONS = 100000;
+  private static final int ROUNDS = 50;
+
+  private PriceTableBenchmark() {}
+
+  public static void main(String[] args) {
+    String[] symbols = new String[SYMBOLS];
+    for (int i = 0; i < SYMBOLS; i++) {
+      symbols[i] = "SYM" + i;
+    }
+    PriceTable table = new PriceTable(symbols);
+    CountingSubscriber[] subscribers = new CountingSubscriber[SUBSCRIPTIONS];
+    for (int i = 0; i < SUBSCRIPTIONS; i++) {
+      subscribers[i] = new CountingSubscriber();
+      table.subscribe(i % SYMBOLS, subscribers[i]);
+    }
+
+    for (int i = 0; i < SYMBOLS; i++) {
+      table.update(i, -1);
+    }
+    for (CountingSubscriber subscriber : subscribers) {
+      subscriber.count = 0;
+    }
+    long start = System.nanoTime();
+    for (int round = 1; round <= ROUNDS; round++) {
+      for (int i = 0; i < SYMBOLS; i++) {
+        table.update(i, round);
+      }
+    }
+    long elapsedNanos = System.nanoTime() - start;
+
+    long ticks = (long) ROUNDS * SYMBOLS;
+    long notifications = 0;
+    for (CountingSubscriber subscriber : subscribers) {
+      notifications += subscriber.count;
+    }
+    if (notifications != (long) ROUNDS * SUBSCRIPTIONS) {
+      throw new AssertionError("Expected " + ROUNDS * SUBSCRIPTIONS + " notifications");
+    }
+    double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    System.out.printf(
+        "%d ticks, %d notifications in %.1f ms: %.0f ticks/s, %.0f notifications/s%n",
+        ticks, notifications, seconds * 1000, ticks / seconds, notifications / seconds);
+  }
+
+  private static final class CountingSubscriber implements PriceTable.Subscriber {
+    int count;
+
+    @Override
+    public void onPrice(PriceTable.Snapshot snapshot) {
+      count++;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PriceTableTest {
+
+  private PriceTable table;
+
+  @Before
+  public void setUp() {
+    table = new PriceTable(new String[] {PriceTable.DEFAULT_SYMBOL, "AAA", "BBB"});
+  }
+
+  @Test
+  public void testSymbolIds() {
+    assertThat(table.symbolId("")).isEqualTo(0);
+    assertThat(table.symbolId(PriceTable.DEFAULT_SYMBOL)).isEqualTo(0);
+    assertThat(table.symbolId("BBB")).isEqualTo(2);
+    assertThat(table.symbolId("CCC")).isEqualTo(-1);
+  }
+
+  @Test
+  public void testCurrentReflectsUpdates() {
+    table.update(1, 100);
+    PriceTable.Snapshot first = table.current(1);
+    assertThat(first.price).isEqualTo(100);
+    assertThat(first.response.getSymbol()).isEqualTo("AAA");
+    assertThat(table.current(1)).isSameInstanceAs(first);
+
+    table.update(1, 100);
+    assertThat(table.current(1).version).isEqualTo(first.version);
+
+    table.update(1, 101);
+    assertThat(table.current(1).price).isEqualTo(101);
+    assertThat(table.current(1).version).isEqualTo(first.version + 1);
+  }
+
+  @Test
+  public void testUpdateOnlyNotifiesSymbolSubscribers() {
+    CountingSubscriber a = new CountingSubscriber();
+    CountingSubscriber b = new CountingSubscriber();
+    table.subscribe(1, a);
+    PriceTable.Subscription subscription = table.subscribe(2, b);
+
+    table.update(1, 5);
+    assertThat(a.count).isEqualTo(1);
+    assertThat(b.count).isEqualTo(0);
+
+    table.update(2, 7);
+    assertThat(b.count).isEqualTo(1);
+    assertThat(b.last.price).isEqualTo(7);
+
+    subscription.cancel();
+    table.update(2, 8);
+    assertThat(b.count).isEqualTo(1);
+  }
+
+  private static final class CountingSubscriber implements PriceTable.Subscriber {
+    int count;
+    PriceTable.Snapshot last;
+
+    @Override
+    public void onPrice(PriceTable.Snapshot snapshot) {
+      count++;
+      last = snapshot;
+    }
+  }
+}
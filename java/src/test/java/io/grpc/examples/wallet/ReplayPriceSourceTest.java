@@ -0,0 +1,107 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class ReplayPriceSourceTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path writeTicks() throws Exception {
+    Path file = folder.newFile("ticks.bin").toPath();
+    try (ReplayPriceSource.Writer writer =
+        new ReplayPriceSource.Writer(file, new String[] {"AAA", "BBB"})) {
+      writer.append(0, 0, 100);
+      writer.append(0, 1, 200);
+      writer.append(100_000, 0, 101);
+      writer.append(200_000, 1, 201);
+    }
+    return file;
+  }
+
+  @Test
+  public void testReplaysInOrderAtSpeedup() throws Exception {
+    ReplayPriceSource source = ReplayPriceSource.open(writeTicks(), 100, false);
+    assertThat(source.symbols()).asList().containsExactly("AAA", "BBB").inOrder();
+    assertThat(source.recordCount()).isEqualTo(4);
+
+    PriceTable table = new PriceTable(source.symbols());
+    final List<Long> prices = new ArrayList<>();
+    final CountDownLatch latch = new CountDownLatch(4);
+    PriceTable.Subscriber subscriber =
+        new PriceTable.Subscriber() {
+          @Override
+          public void onPrice(PriceTable.Snapshot snapshot) {
+            synchronized (prices) {
+              prices.add(snapshot.price);
+            }
+            latch.countDown();
+          }
+        };
+    table.subscribe(0, subscriber);
+    table.subscribe(1, subscriber);
+
+    long start = System.nanoTime();
+    source.start(table);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    // 200ms of recording at 100x.
+    assertThat(System.nanoTime() - start).isAtLeast(TimeUnit.MILLISECONDS.toNanos(2));
+    source.stop();
+    synchronized (prices) {
+      assertThat(prices).containsExactly(100L, 200L, 101L, 201L).inOrder();
+    }
+    assertThat(table.current(1).price).isEqualTo(201);
+  }
+
+  @Test
+  public void testLoops() throws Exception {
+    ReplayPriceSource source = ReplayPriceSource.open(writeTicks(), 100, true);
+    PriceTable table = new PriceTable(source.symbols());
+    final CountDownLatch latch = new CountDownLatch(6);
+    table.subscribe(
+        0,
+        new PriceTable.Subscriber() {
+          @Override
+          public void onPrice(PriceTable.Snapshot snapshot) {
+            latch.countDown();
+          }
+        });
+    source.start(table);
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    source.stop();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSlowdown() throws Exception {
+    ReplayPriceSource.open(writeTicks(), 0.5, false);
+  }
+
+  @Test
+  public void testRejectsLoopingInstantRecording() throws Exception {
+    Path file = folder.newFile("instant.bin").toPath();
+    try (ReplayPriceSource.Writer writer =
+        new ReplayPriceSource.Writer(file, new String[] {"AAA"})) {
+      writer.append(0, 0, 100);
+      writer.append(0, 0, 101);
+    }
+    // Played once it is fine; looped it would never wait.
+    assertThat(ReplayPriceSource.open(file, 1, false).recordCount()).isEqualTo(2L);
+    try {
+      ReplayPriceSource.open(file, 1, true);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package io.grpc.examples.wallet;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.util.Arrays;
+
+/**
+ * Measures the reconnect storm that a replica shutting down causes on the replica its clients move
+ * to, with and without a {@link StreamDrainer}. Each client holds a WatchPrice stream to the old
+ * replica and opens a new one to the other replica as soon as its stream ends, which is when a
+ * client without backoff reconnects. The peak is the most streams arriving at the other replica
+ * within {@link StreamDrainer#PEAK_BUCKET_MS}, next to the peak of streams ended that {@link
+ * StreamDrainer#drain} reports. Connections are in-process, so the cost of establishing real ones
+ * is not part of the storm.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=StreamDrainerBenchmark}.
+ */
+public final class StreamDrainerBenchmark {
+  private static final int STREAMS = 2000;
+  // 0 shuts the old replica down without draining.
+  private static final long[] WINDOWS_MS = {0, 1000, 5000};
+
+  private StreamDrainerBenchmark() {}
+
+  public static void main(String[] args) throws Exception {
+    System.out.printf(
+        "%-22s %12s %12s %12s%n", "shutdown", "ended peak", "client peak", "span ms");
+    for (long windowMs : WINDOWS_MS) {
+      run(windowMs);
+    }
+  }
+
+  private static void run(long windowMs) throws Exception {
+    StreamDrainer drainer = new StreamDrainer();
+    HeldStats oldReplica = new HeldStats();
+    HeldStats newReplica = new HeldStats();
+    String oldName = InProcessServerBuilder.generateName();
+    String newName = InProcessServerBuilder.generateName();
+    Server oldServer =
+        InProcessServerBuilder.forName(oldName)
+            .addService(ServerInterceptors.intercept(oldReplica, drainer))
+            .build()
+            .start();
+    Server newServer =
+        InProcessServerBuilder.forName(newName).addService(newReplica).build().start();
+    ManagedChannel oldChannel = InProcessChannelBuilder.forName(oldName).build();
+    final ManagedChannel newChannel = InProcessChannelBuilder.forName(newName).build();
+    try {
+      for (int i = 0; i < STREAMS; i++) {
+        StatsGrpc.newStub(oldChannel)
+            .watchPrice(
+                PriceRequest.getDefaultInstance(),
+                new Ignoring() {
+                  @Override
+                  public void onError(Throwable t) {
+                    StatsGrpc.newStub(newChannel)
+                        .watchPrice(PriceRequest.getDefaultInstance(), new Ignoring());
+                  }
+                });
+      }
+      while (oldReplica.count() < STREAMS) {
+        Thread.sleep(1);
+      }
+
+      String endedPeak = windowMs > 0 ? Integer.toString(drainer.drain(windowMs)) : "-";
+      oldServer.shutdownNow();
+      long deadline = System.nanoTime() + SECONDS.toNanos(30) + MILLISECONDS.toNanos(windowMs);
+      while (newReplica.count() < STREAMS && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+
+      long[] arrivals = newReplica.arrivals();
+      System.out.printf(
+          "%-22s %12s %12d %12d%n",
+          windowMs > 0 ? "drain over " + windowMs + " ms" : "without draining",
+          endedPeak,
+          peak(arrivals),
+          arrivals.length == 0
+              ? 0
+              : NANOSECONDS.toMillis(arrivals[arrivals.length - 1] - arrivals[0]));
+    } finally {
+      oldChannel.shutdownNow();
+      newChannel.shutdownNow();
+      oldServer.shutdownNow();
+      newServer.shutdownNow();
+    }
+  }
+
+  /** Returns the most of the sorted {@code arrivals} within one peak bucket of the first. */
+  private static int peak(long[] arrivals) {
+    long bucketNanos = MILLISECONDS.toNanos(StreamDrainer.PEAK_BUCKET_MS);
+    long bucket = -1;
+    int inBucket = 0;
+    int peak = 0;
+    for (long arrival : arrivals) {
+      long current = (arrival - arrivals[0]) / bucketNanos;
+      inBucket = current == bucket ? inBucket + 1 : 1;
+      bucket = current;
+      peak = Math.max(peak, inBucket);
+    }
+    return peak;
+  }
+
+  /** Keeps every WatchPrice stream open, and notes when each started. */
+  private static final class HeldStats extends StatsGrpc.StatsImplBase {
+    // Guarded by this.
+    private final long[] startNanos = new long[STREAMS];
+    private int count;
+
+    @Override
+    public synchronized void watchPrice(
+        PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      if (count < STREAMS) {
+        startNanos[count++] = System.nanoTime();
+      }
+    }
+
+    synchronized int count() {
+      return count;
+    }
+
+    synchronized long[] arrivals() {
+      long[] arrivals = Arrays.copyOf(startNanos, count);
+      Arrays.sort(arrivals);
+      return arrivals;
+    }
+  }
+
+  private static class Ignoring implements StreamObserver<PriceResponse> {
+    @Override
+    public void onNext(PriceResponse response) {}
+
+    @Override
+    public void onError(Throwable t) {}
+
+    @Override
+    public void onCompleted() {}
+  }
+}
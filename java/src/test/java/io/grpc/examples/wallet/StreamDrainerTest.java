@@ -0,0 +1,146 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class StreamDrainerTest {
+  private static final int STREAMS = 4;
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final StreamDrainer drainer = new StreamDrainer();
+  private final AtomicInteger startedHandlers = new AtomicInteger();
+  private final AtomicInteger cancelledHandlers = new AtomicInteger();
+  private final List<Status> statuses = new CopyOnWriteArrayList<>();
+  private final List<Long> closedNanos = new CopyOnWriteArrayList<>();
+  private final CountDownLatch closed = new CountDownLatch(STREAMS);
+  private ManagedChannel channel;
+
+  /** Sends one price per stream, then keeps it open until it is cancelled. */
+  private final class EndlessStats extends StatsGrpc.StatsImplBase {
+    @Override
+    public void fetchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      responseObserver.onNext(PriceResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void watchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      ((ServerCallStreamObserver<PriceResponse>) responseObserver)
+          .setOnCancelHandler(
+              new Runnable() {
+                @Override
+                public void run() {
+                  cancelledHandlers.incrementAndGet();
+                }
+              });
+      responseObserver.onNext(PriceResponse.getDefaultInstance());
+      startedHandlers.incrementAndGet();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(new EndlessStats(), drainer))
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  private void openStreams() throws Exception {
+    for (int i = 0; i < STREAMS; i++) {
+      StatsGrpc.newStub(channel)
+          .watchPrice(
+              PriceRequest.getDefaultInstance(),
+              new StreamObserver<PriceResponse>() {
+                @Override
+                public void onNext(PriceResponse response) {}
+
+                @Override
+                public void onError(Throwable t) {
+                  closedNanos.add(System.nanoTime());
+                  statuses.add(Status.fromThrowable(t));
+                  closed.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                  closed.countDown();
+                }
+              });
+    }
+    while (startedHandlers.get() < STREAMS) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void testSpreadsStreamEndsOverWindow() throws Exception {
+    openStreams();
+
+    assertThat(drainer.drain(1000)).isEqualTo(1);
+    assertThat(closed.await(5, SECONDS)).isTrue();
+    for (Status status : statuses) {
+      assertThat(status.getCode()).isEqualTo(Status.Code.UNAVAILABLE);
+      assertThat(status.getDescription()).isEqualTo(StreamDrainer.DRAINING);
+    }
+    assertThat(statuses).hasSize(STREAMS);
+    assertThat(closedNanos.get(STREAMS - 1) - closedNanos.get(0))
+        .isAtLeast(MILLISECONDS.toNanos(700));
+  }
+
+  @Test
+  public void testEndsAllStreamsAtOnceWithoutWindow() throws Exception {
+    openStreams();
+
+    assertThat(drainer.drain(0)).isEqualTo(STREAMS);
+    assertThat(closed.await(5, SECONDS)).isTrue();
+    assertThat(statuses).hasSize(STREAMS);
+  }
+
+  @Test
+  public void testHandlersSeeDrainedStreamsAsCancelled() throws Exception {
+    openStreams();
+
+    drainer.drain(0);
+    assertThat(closed.await(5, SECONDS)).isTrue();
+    while (cancelledHandlers.get() < STREAMS) {
+      Thread.sleep(1);
+    }
+    assertThat(drainer.activeStreams()).isEqualTo(0);
+  }
+
+  @Test
+  public void testIgnoresUnaryCalls() throws Exception {
+    StatsGrpc.newBlockingStub(channel).fetchPrice(PriceRequest.getDefaultInstance());
+
+    assertThat(drainer.activeStreams()).isEqualTo(0);
+    assertThat(drainer.drain(0)).isEqualTo(0);
+  }
+}
@@ -0,0 +1,132 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Range;
+import io.grpc.Context;
+import io.opencensus.trace.Span;
+import io.opencensus.trace.SpanContext;
+import io.opencensus.trace.SpanId;
+import io.opencensus.trace.TraceId;
+import io.opencensus.trace.TraceOptions;
+import io.opencensus.trace.Tracestate;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TraceSamplerTest {
+  private static final String FETCH_BALANCE_SPAN = "Sent.grpc.examples.wallet.Wallet.FetchBalance";
+  private static final String FETCH_PRICE_SPAN = "Recv.grpc.examples.wallet.stats.Stats.FetchPrice";
+  private static final String SENT_FETCH_PRICE_SPAN =
+      "Sent.grpc.examples.wallet.stats.Stats.FetchPrice";
+
+  private final Random random = new Random(1);
+
+  private boolean sample(TraceSampler sampler, String name) {
+    return sampler.shouldSample(
+        null,
+        null,
+        TraceId.generateRandomId(random),
+        SpanId.generateRandomId(random),
+        name,
+        Collections.<Span>emptyList());
+  }
+
+  private int sampled(TraceSampler sampler, String name, int traces) {
+    int sampled = 0;
+    for (int i = 0; i < traces; i++) {
+      if (sample(sampler, name)) {
+        sampled++;
+      }
+    }
+    return sampled;
+  }
+
+  @Test
+  public void testSamplesEveryTraceByDefault() {
+    assertThat(sampled(TraceSampler.parse(""), FETCH_BALANCE_SPAN, 1000)).isEqualTo(1000);
+  }
+
+  @Test
+  public void testSamplesByProbability() {
+    assertThat(sampled(TraceSampler.parse("rate=0.25"), FETCH_BALANCE_SPAN, 10000))
+        .isIn(Range.closed(2200, 2800));
+    assertThat(sampled(TraceSampler.parse("rate=0"), FETCH_BALANCE_SPAN, 1000)).isEqualTo(0);
+  }
+
+  @Test
+  public void testFollowsSampledParent() {
+    TraceId traceId = TraceId.generateRandomId(random);
+    SpanContext parent =
+        SpanContext.create(
+            traceId,
+            SpanId.generateRandomId(random),
+            TraceOptions.builder().setIsSampled(true).build(),
+            Tracestate.builder().build());
+
+    assertThat(
+            TraceSampler.parse("rate=0")
+                .shouldSample(
+                    parent,
+                    true,
+                    traceId,
+                    SpanId.generateRandomId(random),
+                    FETCH_PRICE_SPAN,
+                    Collections.<Span>emptyList()))
+        .isTrue();
+  }
+
+  @Test
+  public void testOverridesRateOfMethod() {
+    TraceSampler sampler =
+        TraceSampler.parse("rate=0,method:grpc.examples.wallet.Wallet/FetchBalance=1");
+
+    assertThat(sampled(sampler, FETCH_BALANCE_SPAN, 100)).isEqualTo(100);
+    assertThat(sampled(sampler, FETCH_PRICE_SPAN, 100)).isEqualTo(0);
+  }
+
+  @Test
+  public void testOverridesRateOfMembershipForOutgoingCalls() {
+    TraceSampler sampler = TraceSampler.parse("rate=0,membership:premium=1");
+
+    assertThat(sampled(sampler, SENT_FETCH_PRICE_SPAN, 100)).isEqualTo(0);
+    // As in the handler of a premium user's call, once AuthInterceptor has run.
+    Context premium = Context.current().withValue(WalletInterceptors.MEMBERSHIP_KEY, "premium");
+    Context previous = premium.attach();
+    try {
+      assertThat(sampled(sampler, SENT_FETCH_PRICE_SPAN, 100)).isEqualTo(100);
+      // Incoming calls start their span before their membership is known.
+      assertThat(sampled(sampler, FETCH_PRICE_SPAN, 100)).isEqualTo(0);
+    } finally {
+      premium.detach(previous);
+    }
+  }
+
+  @Test
+  public void testLimitsTracesPerSecond() {
+    TraceSampler sampler = TraceSampler.parse("max_per_second=10");
+
+    long startNanos = System.nanoTime();
+    int sampled = sampled(sampler, FETCH_BALANCE_SPAN, 100000);
+    long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+    // A second's worth at once, then one every 100 ms.
+    assertThat(sampled).isAtLeast(10);
+    assertThat(sampled).isAtMost(10 + (int) (elapsedMs / 100) + 1);
+  }
+
+  @Test
+  public void testRejectsInvalidSpecs() {
+    for (String spec : new String[] {"rate", "rate=2", "sample=1"}) {
+      try {
+        TraceSampler.parse(spec);
+        fail("Expected " + spec + " to be rejected");
+      } catch (IllegalArgumentException expected) {
+        // Expected.
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TrafficRecorderTest {
+  private static final String HANG_TOKEN = "hang";
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final CountDownLatch hanging = new CountDownLatch(1);
+  private final CountDownLatch cancelled = new CountDownLatch(1);
+
+  private ManagedChannel start(TrafficRecorder recorder) throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(ServerInterceptors.intercept(new FakeAccount(), recorder))
+            .build()
+            .start());
+    return grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  private static GetUserInfoRequest request(String token) {
+    return GetUserInfoRequest.newBuilder().setToken(token).build();
+  }
+
+  @Test
+  public void testRecordedCallsReadBack() throws Exception {
+    Path file = tempFolder.newFile().toPath();
+    TrafficRecorder recorder = new TrafficRecorder(file, 1);
+    ManagedChannel channel = start(recorder);
+    Metadata headers = new Metadata();
+    headers.put(WalletInterceptors.TOKEN_MD_KEY, "alice");
+    headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, "premium");
+    headers.put(Metadata.Key.of("ignored", Metadata.ASCII_STRING_MARSHALLER), "x");
+    AccountGrpc.newBlockingStub(channel)
+        .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers))
+        .getUserInfo(request("alice"));
+    ListenableFuture<GetUserInfoResponse> call =
+        AccountGrpc.newFutureStub(channel).getUserInfo(request(HANG_TOKEN));
+    assertThat(hanging.await(5, SECONDS)).isTrue();
+    call.cancel(true);
+    assertThat(cancelled.await(5, SECONDS)).isTrue();
+    recorder.close();
+
+    try (TrafficLog.Reader reader = new TrafficLog.Reader(file)) {
+      TrafficLog.Record completed = reader.read();
+      assertThat(completed.method)
+          .isEqualTo(AccountGrpc.getGetUserInfoMethod().getFullMethodName());
+      assertThat(completed.statusCode).isEqualTo(Status.Code.OK.value());
+      assertThat(completed.latencyNanos).isGreaterThan(0L);
+      Metadata replayed = completed.metadata();
+      assertThat(replayed.keys()).containsExactly("authorization", "membership");
+      assertThat(replayed.get(WalletInterceptors.MEMBERSHIP_MD_KEY)).isEqualTo("premium");
+      assertThat(completed.requests).hasSize(1);
+      assertThat(GetUserInfoRequest.parseFrom(completed.requests.get(0)).getToken())
+          .isEqualTo("alice");
+
+      TrafficLog.Record cancelledCall = reader.read();
+      assertThat(cancelledCall.statusCode).isEqualTo(Status.Code.CANCELLED.value());
+      assertThat(cancelledCall.startNanos).isAtLeast(completed.startNanos);
+      assertThat(GetUserInfoRequest.parseFrom(cancelledCall.requests.get(0)).getToken())
+          .isEqualTo(HANG_TOKEN);
+      assertThat(reader.read()).isNull();
+    }
+  }
+
+  @Test
+  public void testZeroSampleRateRecordsNothing() throws Exception {
+    Path file = tempFolder.newFile().toPath();
+    TrafficRecorder recorder = new TrafficRecorder(file, 0);
+    AccountGrpc.newBlockingStub(start(recorder)).getUserInfo(request("alice"));
+    recorder.close();
+
+    try (TrafficLog.Reader reader = new TrafficLog.Reader(file)) {
+      assertThat(reader.read()).isNull();
+    }
+  }
+
+  /** Answers with the token as the name, except for HANG_TOKEN, which is never answered. */
+  private final class FakeAccount extends AccountGrpc.AccountImplBase {
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      if (HANG_TOKEN.equals(request.getToken())) {
+        ((ServerCallStreamObserver<GetUserInfoResponse>) responseObserver)
+            .setOnCancelHandler(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    cancelled.countDown();
+                  }
+                });
+        hanging.countDown();
+        return;
+      }
+      responseObserver.onNext(GetUserInfoResponse.newBuilder().setName(request.getToken()).build());
+      responseObserver.onCompleted();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TrafficReplayerTest {
+  private static final String METHOD = AccountGrpc.getGetUserInfoMethod().getFullMethodName();
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  // Guarded by itself.
+  private final List<String> received = new ArrayList<>();
+  private ManagedChannel channel;
+
+  @Before
+  public void setUp() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerInterceptors.intercept(
+                    new AccountGrpc.AccountImplBase() {
+                      @Override
+                      public void getUserInfo(
+                          GetUserInfoRequest request,
+                          StreamObserver<GetUserInfoResponse> responseObserver) {
+                        responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+                        responseObserver.onCompleted();
+                      }
+                    },
+                    new ServerInterceptor() {
+                      @Override
+                      public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+                          ServerCall<ReqT, RespT> call,
+                          Metadata headers,
+                          ServerCallHandler<ReqT, RespT> next) {
+                        synchronized (received) {
+                          received.add(headers.get(WalletInterceptors.MEMBERSHIP_MD_KEY));
+                        }
+                        return next.startCall(call, headers);
+                      }
+                    }))
+            .addService(
+                new StatsGrpc.StatsImplBase() {
+                  @Override
+                  public void watchPrice(
+                      PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+                    // Like a real watch, never ends by itself.
+                  }
+                })
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  private static TrafficLog.Record record(
+      long startMillis, List<String[]> headers, String token, Status.Code code, long millis) {
+    return new TrafficLog.Record(
+        TimeUnit.MILLISECONDS.toNanos(startMillis),
+        METHOD,
+        headers,
+        Collections.singletonList(
+            GetUserInfoRequest.newBuilder().setToken(token).build().toByteArray()),
+        code.value(),
+        TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  @Test
+  public void testReplaysCapturedCallsAndComparesThem() throws Exception {
+    Path file = tempFolder.newFile().toPath();
+    try (TrafficLog.Writer writer = new TrafficLog.Writer(file)) {
+      List<String[]> premium = new ArrayList<>();
+      premium.add(new String[] {"membership", "premium"});
+      writer.write(record(0, premium, "alice", Status.Code.OK, 1));
+      // Captured while the account did not exist, so it now ends with another status.
+      writer.write(record(5, new ArrayList<String[]>(), "bob", Status.Code.NOT_FOUND, 2));
+    }
+
+    TrafficReplayer replayer = new TrafficReplayer(channel, 10);
+    replayer.replay(file);
+
+    synchronized (received) {
+      assertThat(received).containsExactly("premium", null);
+    }
+    String[] lines = replayer.report().split("\n");
+    assertThat(lines).hasLength(2);
+    String[] columns = lines[1].trim().split("\\s+");
+    assertThat(columns[0]).isEqualTo(METHOD);
+    assertThat(columns[1]).isEqualTo("2");
+    assertThat(columns[2]).isEqualTo("2.00ms");
+    assertThat(columns[columns.length - 1]).isEqualTo("1");
+  }
+
+  @Test
+  public void testHoldsStreamsOpenAsLongAsCaptured() throws Exception {
+    Path file = tempFolder.newFile().toPath();
+    try (TrafficLog.Writer writer = new TrafficLog.Writer(file)) {
+      writer.write(
+          new TrafficLog.Record(
+              0,
+              StatsGrpc.getWatchPriceMethod().getFullMethodName(),
+              new ArrayList<String[]>(),
+              Collections.singletonList(PriceRequest.getDefaultInstance().toByteArray()),
+              Status.Code.CANCELLED.value(),
+              TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    TrafficReplayer replayer = new TrafficReplayer(channel, 10);
+    replayer.replay(file);
+
+    String[] columns = replayer.report().split("\n")[1].trim().split("\\s+");
+    assertThat(columns[1]).isEqualTo("1");
+    assertThat(columns[columns.length - 1]).isEqualTo("0");
+  }
+
+  @Test
+  public void testReplaysOverlappingCallsInStartOrder() throws Exception {
+    final CountDownLatch longStarted = new CountDownLatch(1);
+    final CountDownLatch shortDone = new CountDownLatch(1);
+    Path file = tempFolder.newFile().toPath();
+    TrafficRecorder recorder = new TrafficRecorder(file, 1);
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerInterceptors.intercept(
+                    new AccountGrpc.AccountImplBase() {
+                      @Override
+                      public void getUserInfo(
+                          GetUserInfoRequest request,
+                          StreamObserver<GetUserInfoResponse> responseObserver) {
+                        if ("long".equals(request.getToken())) {
+                          longStarted.countDown();
+                          try {
+                            shortDone.await(5, SECONDS);
+                          } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                          }
+                        }
+                        responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+                        responseObserver.onCompleted();
+                      }
+                    },
+                    recorder))
+            .build()
+            .start());
+    ManagedChannel captureChannel =
+        grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+    // The long call starts first and ends last.
+    ListenableFuture<GetUserInfoResponse> longCall =
+        AccountGrpc.newFutureStub(captureChannel)
+            .getUserInfo(GetUserInfoRequest.newBuilder().setToken("long").build());
+    assertThat(longStarted.await(5, SECONDS)).isTrue();
+    AccountGrpc.newBlockingStub(captureChannel)
+        .getUserInfo(GetUserInfoRequest.newBuilder().setToken("short").build());
+    shortDone.countDown();
+    longCall.get(5, SECONDS);
+    recorder.close();
+
+    try (TrafficLog.Reader reader = new TrafficLog.Reader(file)) {
+      assertThat(token(reader.read())).isEqualTo("short");
+    }
+    List<TrafficLog.Record> calls = TrafficReplayer.readCalls(file);
+    assertThat(calls).hasSize(2);
+    assertThat(token(calls.get(0))).isEqualTo("long");
+    assertThat(token(calls.get(1))).isEqualTo("short");
+    assertThat(calls.get(1).startNanos).isAtLeast(calls.get(0).startNanos);
+
+    TrafficReplayer replayer = new TrafficReplayer(channel, 10);
+    replayer.replay(file);
+    String[] columns = replayer.report().split("\n")[1].trim().split("\\s+");
+    assertThat(columns[1]).isEqualTo("2");
+    assertThat(columns[columns.length - 1]).isEqualTo("0");
+  }
+
+  private static String token(TrafficLog.Record record) throws Exception {
+    return GetUserInfoRequest.parseFrom(record.requests.get(0)).getToken();
+  }
+}
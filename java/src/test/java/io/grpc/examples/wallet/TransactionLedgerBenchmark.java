@@ -0,0 +1,106 @@
+package io.grpc.examples.wallet;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the transactions per second and the commit latency of a {@link TransactionLedger} as
+ * the number of concurrent writers grows. Each writer deposits into its own address and waits for
+ * the deposit to commit before sending the next one, so the throughput above one writer comes from
+ * group commit sharing each {@code fsync}. The ledger lives in a temporary directory, or in the
+ * directory given as the first argument, which should be on the disk of interest.
+ *
+ * <p>Run with {@code ./gradlew benchmark -Pbenchmark=TransactionLedgerBenchmark}.
+ */
+public final class TransactionLedgerBenchmark {
+  private static final int[] WRITERS = {1, 4, 16, 64};
+  private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final int MAX_SAMPLES = 1_000_000;
+
+  private TransactionLedgerBenchmark() {}
+
+  private static PackedWalletStore newStore(int writers) {
+    PackedWalletStore.Builder builder = PackedWalletStore.newBuilder();
+    for (int i = 0; i < writers; i++) {
+      builder.addWallet(
+          "user" + i, new String[] {PackedWalletStore.formatAddress(i)}, new long[1]);
+    }
+    return builder.build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    Path parent = args.length > 0 ? Files.createDirectories(Paths.get(args[0])) : null;
+    System.out.printf("%7s %10s %10s %10s %10s%n", "writers", "tps", "p50 us", "p99 us", "max us");
+    for (int writers : WRITERS) {
+      Path dir =
+          parent != null
+              ? Files.createTempDirectory(parent, "ledger")
+              : Files.createTempDirectory("ledger");
+      TransactionLedger ledger =
+          TransactionLedger.open(dir, newStore(writers), 64 << 20, Integer.MAX_VALUE);
+      try {
+        run(ledger, writers);
+      } finally {
+        ledger.close();
+      }
+    }
+  }
+
+  private static void run(final TransactionLedger ledger, int writers) throws Exception {
+    final long[][] latencies = new long[writers][MAX_SAMPLES / writers];
+    final int[] counts = new int[writers];
+    final CountDownLatch done = new CountDownLatch(writers);
+    final long start = System.nanoTime();
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  String user = "user" + writer;
+                  String address = PackedWalletStore.formatAddress(writer);
+                  try {
+                    long now;
+                    while ((now = System.nanoTime()) - start < DURATION_NANOS
+                        && counts[writer] < latencies[writer].length) {
+                      ListenableFuture<Long> future = ledger.deposit(user, address, 1);
+                      future.get();
+                      latencies[writer][counts[writer]++] = System.nanoTime() - now;
+                    }
+                  } catch (Exception e) {
+                    e.printStackTrace();
+                  } finally {
+                    done.countDown();
+                  }
+                }
+              })
+          .start();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+
+    int total = 0;
+    for (int count : counts) {
+      total += count;
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (int w = 0; w < writers; w++) {
+      System.arraycopy(latencies[w], 0, all, offset, counts[w]);
+      offset += counts[w];
+    }
+    Arrays.sort(all);
+    System.out.printf(
+        "%7d %10.0f %10d %10d %10d%n",
+        writers,
+        total * 1e9 / elapsed,
+        all[total / 2] / 1000,
+        all[(int) (total * 0.99)] / 1000,
+        all[total - 1] / 1000);
+  }
+}
@@ -0,0 +1,195 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Status;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class TransactionLedgerTest {
+  private static final String ALICE_1 = "00000001";
+  private static final String ALICE_2 = "00000002";
+  private static final String BOB = "00000003";
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Path dir;
+  private PackedWalletStore store;
+  private TransactionLedger ledger;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = tempFolder.getRoot().toPath();
+    store = newStore();
+    ledger = TransactionLedger.open(dir, store, 1 << 16, 1000);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    ledger.close();
+  }
+
+  private static PackedWalletStore newStore() {
+    return PackedWalletStore.newBuilder()
+        .addWallet("Alice", new String[] {ALICE_1, ALICE_2}, new long[2])
+        .addWallet("Bob", new String[] {BOB}, new long[1])
+        .build();
+  }
+
+  /** Closes the ledger and opens it again over a store that only holds the initial amounts. */
+  private void reopen(int segmentSize, int snapshotEvery) throws Exception {
+    ledger.close();
+    store = newStore();
+    ledger = TransactionLedger.open(dir, store, segmentSize, snapshotEvery);
+  }
+
+  private static long sequenceOf(ListenableFuture<Long> future) throws Exception {
+    return future.get(5, SECONDS);
+  }
+
+  private static Status statusOf(ListenableFuture<Long> future) throws Exception {
+    try {
+      future.get(5, SECONDS);
+      fail("Expected the transaction to fail");
+      return null;
+    } catch (ExecutionException e) {
+      return Status.fromThrowable(e.getCause());
+    }
+  }
+
+  @Test
+  public void testReplaysCommittedTransactionsAfterReopen() throws Exception {
+    assertThat(sequenceOf(ledger.deposit("Alice", ALICE_1, 100))).isEqualTo(1);
+    assertThat(sequenceOf(ledger.transfer("Alice", ALICE_1, BOB, 30))).isEqualTo(2);
+    assertThat(store.get("Alice").totalAmount()).isEqualTo(70);
+
+    reopen(1 << 16, 1000);
+
+    assertThat(store.get("Alice").amount(0)).isEqualTo(70);
+    assertThat(store.get("Bob").totalAmount()).isEqualTo(30);
+    assertThat(sequenceOf(ledger.deposit("Bob", BOB, 1))).isEqualTo(3);
+  }
+
+  @Test
+  public void testTransactionsOfOneBatchSeeEachOther() throws Exception {
+    // Queued without waiting, so the committer may take them in a single batch.
+    ListenableFuture<Long> deposit = ledger.deposit("Alice", ALICE_1, 50);
+    ListenableFuture<Long> transfer = ledger.transfer("Alice", ALICE_1, ALICE_2, 50);
+    ListenableFuture<Long> overdraft = ledger.transfer("Alice", ALICE_1, BOB, 1);
+
+    assertThat(sequenceOf(deposit)).isEqualTo(1);
+    assertThat(sequenceOf(transfer)).isEqualTo(2);
+    assertThat(statusOf(overdraft).getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION);
+    assertThat(store.get("Alice").amount(1)).isEqualTo(50);
+  }
+
+  @Test
+  public void testConcurrentDepositsGetDistinctSequences() throws Exception {
+    final int perThread = 200;
+    final List<ListenableFuture<Long>> futures = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = 0; i < perThread; i++) {
+                    ListenableFuture<Long> future = ledger.deposit("Alice", ALICE_1, 1);
+                    synchronized (futures) {
+                      futures.add(future);
+                    }
+                  }
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Set<Long> sequences = new HashSet<>();
+    for (ListenableFuture<Long> future : futures) {
+      sequences.add(sequenceOf(future));
+    }
+    assertThat(sequences).hasSize(4 * perThread);
+    assertThat(sequences).contains(4L * perThread);
+    assertThat(store.get("Alice").totalAmount()).isEqualTo(4 * perThread);
+  }
+
+  @Test
+  public void testRejectsInsufficientFundsAndOverflow() throws Exception {
+    Status status = statusOf(ledger.transfer("Alice", ALICE_1, BOB, 1));
+    assertThat(status.getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION);
+    assertThat(status.getDescription()).isEqualTo("insufficient funds");
+
+    sequenceOf(ledger.deposit("Bob", BOB, Long.MAX_VALUE));
+    status = statusOf(ledger.deposit("Bob", BOB, 1));
+    assertThat(status.getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION);
+    assertThat(status.getDescription()).isEqualTo("balance would overflow");
+    sequenceOf(ledger.deposit("Alice", ALICE_1, 1));
+    status = statusOf(ledger.transfer("Alice", ALICE_1, BOB, 1));
+    assertThat(status.getDescription()).isEqualTo("balance would overflow");
+
+    reopen(1 << 16, 1000);
+    assertThat(store.get("Bob").totalAmount()).isEqualTo(Long.MAX_VALUE);
+    assertThat(store.get("Alice").totalAmount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testRejectsInvalidTransactions() throws Exception {
+    assertThat(statusOf(ledger.deposit("Alice", "0000000f", 1)).getCode())
+        .isEqualTo(Status.Code.NOT_FOUND);
+    assertThat(statusOf(ledger.deposit("Alice", BOB, 1)).getCode())
+        .isEqualTo(Status.Code.PERMISSION_DENIED);
+    assertThat(statusOf(ledger.transfer("Alice", ALICE_1, ALICE_1, 1)).getCode())
+        .isEqualTo(Status.Code.INVALID_ARGUMENT);
+    assertThat(statusOf(ledger.deposit("Alice", ALICE_1, 0)).getCode())
+        .isEqualTo(Status.Code.INVALID_ARGUMENT);
+
+    ledger.close();
+    assertThat(statusOf(ledger.deposit("Alice", ALICE_1, 1)).getCode())
+        .isEqualTo(Status.Code.UNAVAILABLE);
+  }
+
+  @Test
+  public void testSnapshotReplacesCoveredSegments() throws Exception {
+    // Four records per segment and a snapshot every five transactions.
+    reopen(128, 5);
+    for (int i = 1; i <= 23; i++) {
+      assertThat(sequenceOf(ledger.deposit("Alice", ALICE_1, i))).isEqualTo(i);
+    }
+
+    reopen(128, 5);
+
+    assertThat(store.get("Alice").totalAmount()).isEqualTo(23 * 24 / 2);
+    assertThat(sequenceOf(ledger.deposit("Alice", ALICE_2, 1))).isEqualTo(24);
+    List<String> snapshots = new ArrayList<>();
+    for (File file : dir.toFile().listFiles()) {
+      if (file.getName().startsWith("snapshot-")) {
+        snapshots.add(file.getName());
+      }
+    }
+    assertThat(snapshots).containsExactly(String.format("snapshot-%020d.bin", 20));
+    assertThat(Files.exists(dir.resolve(String.format("ledger-%020d.log", 1)))).isFalse();
+    assertThat(Files.exists(dir.resolve(String.format("ledger-%020d.log", 21)))).isTrue();
+  }
+}
@@ -0,0 +1,302 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.fail;
+
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.examples.wallet.account.GetUserInfosRequest;
+import io.grpc.examples.wallet.account.GetUserInfosResponse;
+import io.grpc.examples.wallet.account.MembershipType;
+import io.grpc.examples.wallet.stats.PriceRequest;
+import io.grpc.examples.wallet.stats.PriceResponse;
+import io.grpc.examples.wallet.stats.StatsGrpc;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.AbstractStub;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WalletServerTest {
+  private static final String ALICE_TOKEN = "alice-token";
+  private static final String BOB_TOKEN = "bob-token";
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final ExecutorService computeExecutor = Executors.newFixedThreadPool(2);
+  private final HashedWheelTimer timer =
+      new HashedWheelTimer("test-hedge-timer", 1, 1, MILLISECONDS, 64);
+  private final FakeStats stats = new FakeStats();
+  private PackedWalletStore store;
+  private ManagedChannel channel;
+
+  @Before
+  public void setUp() throws Exception {
+    store =
+        PackedWalletStore.newBuilder()
+            .addWallet("Alice", new String[] {"00000001", "00000002"}, new long[] {10, 20})
+            .addWallet("Bob", new String[] {"00000003"}, new long[] {5})
+            .build();
+    ManagedChannel accountChannel = startServer(new FakeAccount());
+    ManagedChannel statsChannel = startServer(stats);
+    AccountLookup accountLookup =
+        new AccountLookup(accountChannel, timer, 0, AccountLookup.DEFAULT_BUDGET_PERCENT, 0);
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name)
+            .addService(
+                ServerInterceptors.intercept(
+                    new WalletServer.WalletImpl(
+                        accountLookup,
+                        statsChannel,
+                        store,
+                        null,
+                        computeExecutor,
+                        false,
+                        100),
+                    new WalletInterceptors.AuthInterceptor()))
+            .build()
+            .start());
+    channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+  }
+
+  @After
+  public void tearDown() {
+    computeExecutor.shutdownNow();
+    timer.stop();
+  }
+
+  private ManagedChannel startServer(BindableService service) throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name).addService(service).directExecutor().build().start());
+    return grpcCleanup.register(InProcessChannelBuilder.forName(name).directExecutor().build());
+  }
+
+  /** Attaches the headers that the auth interceptor expects. */
+  private static <T extends AbstractStub<T>> T withAuth(T stub, String token, String membership) {
+    Metadata headers = new Metadata();
+    headers.put(WalletInterceptors.TOKEN_MD_KEY, token);
+    headers.put(WalletInterceptors.MEMBERSHIP_MD_KEY, membership);
+    return stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+  }
+
+  private static BatchBalanceRequest batch(String... tokens) {
+    BatchBalanceRequest.Builder request = BatchBalanceRequest.newBuilder();
+    for (String token : tokens) {
+      request.addRequests(AccountBalanceRequest.newBuilder().setToken(token));
+    }
+    return request.build();
+  }
+
+  private static PriceResponse price(long price) {
+    return PriceResponse.newBuilder().setSymbol(PriceTable.DEFAULT_SYMBOL).setPrice(price).build();
+  }
+
+  @Test
+  public void testWatchBalancePushesOnlyWhenPriceOrHoldingsChange() throws Exception {
+    final BlockingQueue<BalanceResponse> updates = new LinkedBlockingQueue<>();
+    withAuth(WalletGrpc.newStub(channel), ALICE_TOKEN, "normal")
+        .watchBalance(
+            BalanceRequest.getDefaultInstance(),
+            new StreamObserver<BalanceResponse>() {
+              @Override
+              public void onNext(BalanceResponse response) {
+                updates.add(response);
+              }
+
+              @Override
+              public void onError(Throwable t) {}
+
+              @Override
+              public void onCompleted() {}
+            });
+    StreamObserver<PriceResponse> prices = stats.awaitWatch(PriceTable.DEFAULT_SYMBOL);
+    int slot = store.slotOf("00000001");
+
+    prices.onNext(price(2));
+    assertThat(updates.poll(5, SECONDS).getBalance()).isEqualTo(60);
+
+    // Neither the same price again nor a change of version alone is pushed.
+    prices.onNext(price(2));
+    prices.onNext(price(3));
+    assertThat(updates.poll(5, SECONDS).getBalance()).isEqualTo(90);
+    store.apply(new int[] {slot}, new long[] {0}, 1);
+    store.apply(new int[] {slot}, new long[] {5}, 1);
+    assertThat(updates.poll(5, SECONDS).getBalance()).isEqualTo(105);
+    // Holdings of other users do not concern the stream.
+    store.apply(new int[] {store.slotOf("00000003")}, new long[] {1}, 1);
+    prices.onNext(price(1));
+    assertThat(updates.poll(5, SECONDS).getBalance()).isEqualTo(35);
+    assertThat(updates).isEmpty();
+  }
+
+  @Test
+  public void testFetchBalancesReportsEachAccount() {
+    BatchBalanceResponse response =
+        withAuth(WalletGrpc.newBlockingStub(channel), BOB_TOKEN, "normal")
+            .fetchBalances(batch(BOB_TOKEN, "unknown-token", ALICE_TOKEN));
+
+    assertThat(response.getResultsCount()).isEqualTo(3);
+    assertThat(response.getResults(0).getCode()).isEqualTo(Status.Code.OK.value());
+    assertThat(response.getResults(0).getBalance().getBalance()).isEqualTo(10);
+    assertThat(response.getResults(1).getCode()).isEqualTo(Status.Code.NOT_FOUND.value());
+    assertThat(response.getResults(1).getMessage()).isEqualTo("Unknown token");
+    assertThat(response.getResults(2).getBalance().getBalance()).isEqualTo(60);
+  }
+
+  @Test
+  public void testFetchBalancesChecksEachAccountAgainstPremiumMembership() {
+    BatchBalanceResponse response =
+        withAuth(WalletGrpc.newBlockingStub(channel), BOB_TOKEN, "premium")
+            .fetchBalances(batch(ALICE_TOKEN, BOB_TOKEN));
+
+    assertThat(response.getResults(0).getCode()).isEqualTo(Status.Code.UNAUTHENTICATED.value());
+    assertThat(response.getResults(0).getMessage())
+        .isEqualTo("Token does not belong to a premium member");
+    assertThat(response.getResults(0).hasBalance()).isFalse();
+    assertThat(response.getResults(1).getBalance().getBalance()).isEqualTo(10);
+  }
+
+  @Test
+  public void testFetchBalancesRejectsOversizedBatch() {
+    String[] tokens = new String[WalletServer.WalletImpl.MAX_BATCH_SIZE + 1];
+    Arrays.fill(tokens, ALICE_TOKEN);
+    try {
+      withAuth(WalletGrpc.newBlockingStub(channel), ALICE_TOKEN, "normal")
+          .fetchBalances(batch(tokens));
+      fail("Expected the batch to be rejected");
+    } catch (StatusRuntimeException e) {
+      assertThat(e.getStatus().getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+  }
+
+  @Test
+  public void testStreamBalancesAnswersInOrderUntilABatchFails() throws Exception {
+    final BlockingQueue<BatchBalanceResponse> responses = new LinkedBlockingQueue<>();
+    final SettableFuture<Status> closed = SettableFuture.create();
+    StreamObserver<BatchBalanceRequest> requests =
+        withAuth(WalletGrpc.newStub(channel), ALICE_TOKEN, "normal")
+            .streamBalances(
+                new StreamObserver<BatchBalanceResponse>() {
+                  @Override
+                  public void onNext(BatchBalanceResponse response) {
+                    responses.add(response);
+                  }
+
+                  @Override
+                  public void onError(Throwable t) {
+                    closed.set(Status.fromThrowable(t));
+                  }
+
+                  @Override
+                  public void onCompleted() {
+                    closed.set(Status.OK);
+                  }
+                });
+    requests.onNext(batch(ALICE_TOKEN));
+    requests.onNext(batch("unknown-token", BOB_TOKEN));
+    String[] tokens = new String[WalletServer.WalletImpl.MAX_BATCH_SIZE + 1];
+    Arrays.fill(tokens, BOB_TOKEN);
+    requests.onNext(batch(tokens));
+    requests.onNext(batch(BOB_TOKEN));
+    requests.onCompleted();
+
+    assertThat(closed.get(5, SECONDS).getCode()).isEqualTo(Status.Code.INVALID_ARGUMENT);
+    assertThat(responses).hasSize(2);
+    assertThat(responses.poll().getResults(0).getBalance().getBalance()).isEqualTo(60);
+    BatchBalanceResponse second = responses.poll();
+    assertThat(second.getResults(0).getMessage()).isEqualTo("Unknown token");
+    assertThat(second.getResults(1).getBalance().getBalance()).isEqualTo(10);
+  }
+
+  /** Knows the tokens of Alice, a normal member, and Bob, a premium one. */
+  private static final class FakeAccount extends AccountGrpc.AccountImplBase {
+    private static GetUserInfoResponse lookUp(String token) {
+      if (ALICE_TOKEN.equals(token)) {
+        return GetUserInfoResponse.newBuilder()
+            .setName("Alice")
+            .setMembership(MembershipType.NORMAL)
+            .build();
+      } else if (BOB_TOKEN.equals(token)) {
+        return GetUserInfoResponse.newBuilder()
+            .setName("Bob")
+            .setMembership(MembershipType.PREMIUM)
+            .build();
+      }
+      return GetUserInfoResponse.getDefaultInstance();
+    }
+
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      responseObserver.onNext(lookUp(request.getToken()));
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getUserInfos(
+        GetUserInfosRequest request, StreamObserver<GetUserInfosResponse> responseObserver) {
+      GetUserInfosResponse.Builder response = GetUserInfosResponse.newBuilder();
+      for (String token : request.getTokensList()) {
+        response.addUsers(lookUp(token));
+      }
+      responseObserver.onNext(response.build());
+      responseObserver.onCompleted();
+    }
+  }
+
+  /** Prices every asset at 2, and hands the WatchPrice streams to the test. */
+  private static final class FakeStats extends StatsGrpc.StatsImplBase {
+    private final ConcurrentMap<String, BlockingQueue<StreamObserver<PriceResponse>>> watches =
+        new ConcurrentHashMap<>();
+
+    private BlockingQueue<StreamObserver<PriceResponse>> watchesOf(String symbol) {
+      BlockingQueue<StreamObserver<PriceResponse>> fresh = new LinkedBlockingQueue<>();
+      BlockingQueue<StreamObserver<PriceResponse>> existing = watches.putIfAbsent(symbol, fresh);
+      return existing != null ? existing : fresh;
+    }
+
+    StreamObserver<PriceResponse> awaitWatch(String symbol) throws InterruptedException {
+      StreamObserver<PriceResponse> watch = watchesOf(symbol).poll(5, SECONDS);
+      assertThat(watch).isNotNull();
+      return watch;
+    }
+
+    @Override
+    public void fetchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      responseObserver.onNext(price(2).toBuilder().setSymbol(request.getSymbol()).build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void watchPrice(PriceRequest request, StreamObserver<PriceResponse> responseObserver) {
+      watchesOf(request.getSymbol()).add(responseObserver);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package io.grpc.examples.wallet;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.examples.wallet.account.AccountGrpc;
+import io.grpc.examples.wallet.account.GetUserInfoRequest;
+import io.grpc.examples.wallet.account.GetUserInfoResponse;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WarmupTest {
+
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  /** Answers premium users, and fails the others. */
+  private final class FakeAccount extends AccountGrpc.AccountImplBase {
+    @Override
+    public void getUserInfo(
+        GetUserInfoRequest request, StreamObserver<GetUserInfoResponse> responseObserver) {
+      calls.incrementAndGet();
+      if ("premium".equals(WalletInterceptors.MEMBERSHIP_KEY.get())) {
+        responseObserver.onNext(GetUserInfoResponse.getDefaultInstance());
+        responseObserver.onCompleted();
+      } else {
+        responseObserver.onError(new IllegalStateException());
+      }
+    }
+  }
+
+  private static final Warmup.CallFactory CALLS_AS_BOTH_USERS =
+      new Warmup.CallFactory() {
+        @Override
+        public Callable<?> newCall(ManagedChannel channel) {
+          final AccountGrpc.AccountBlockingStub premium =
+              Warmup.asUser(AccountGrpc.newBlockingStub(channel), true);
+          final AccountGrpc.AccountBlockingStub normal =
+              Warmup.asUser(AccountGrpc.newBlockingStub(channel), false);
+          return new Callable<GetUserInfoResponse>() {
+            private int calls;
+
+            @Override
+            public GetUserInfoResponse call() {
+              return (calls++ % 2 == 0 ? premium : normal)
+                  .getUserInfo(GetUserInfoRequest.getDefaultInstance());
+            }
+          };
+        }
+      };
+
+  @Test
+  public void testConnectsChannel() throws Exception {
+    String name = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(name).addService(new FakeAccount()).build().start());
+    ManagedChannel channel = grpcCleanup.register(InProcessChannelBuilder.forName(name).build());
+
+    assertThat(new Warmup(10000).connect(channel, "account server")).isTrue();
+  }
+
+  @Test
+  public void testGivesUpConnectingAtTimeout() throws Exception {
+    ManagedChannel channel =
+        grpcCleanup.register(
+            InProcessChannelBuilder.forName(InProcessServerBuilder.generateName()).build());
+
+    assertThat(new Warmup(100).connect(channel, "account server")).isFalse();
+  }
+
+  @Test
+  public void testSendsCallsThroughService() throws Exception {
+    Warmup.Report report =
+        new Warmup(10000)
+            .run(
+                ServerInterceptors.intercept(
+                    new FakeAccount(), new WalletInterceptors.AuthInterceptor()),
+                100,
+                CALLS_AS_BOTH_USERS);
+
+    assertThat(calls.get()).isEqualTo(100);
+    assertThat(report.calls).isEqualTo(100);
+    assertThat(report.failures).isEqualTo(50);
+    assertThat(report.firstCallsNanos).isGreaterThan(0L);
+    assertThat(report.lastCallsNanos).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testStopsCallsAtTimeout() throws Exception {
+    Warmup warmup = new Warmup(0);
+    Warmup.Report report = warmup.run(new FakeAccount().bindService(), 100, CALLS_AS_BOTH_USERS);
+
+    assertThat(report.calls).isEqualTo(0);
+    assertThat(calls.get()).isEqualTo(0);
+  }
+}